@@ -0,0 +1,99 @@
+package jaist.pump;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Payload conversion as done once per message, for every convertor. The
+ * DoubleOrText cases cover both the numeric path and the fallback to text.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class ConvertorBenchmark {
+
+    private final DataConvertor asBoolean = DataConvertor.Boolean();
+    private final DataConvertor asInt32 = DataConvertor.Int32();
+    private final DataConvertor asFloat = DataConvertor.Float();
+    private final DataConvertor asDouble = DataConvertor.Double();
+    private final DataConvertor asText = DataConvertor.Text();
+    private final DataConvertor asDoubleOrText = DataConvertor.DoubleOrText();
+
+    private TopicRoute route;
+    private byte[] bool;
+    private byte[] integer;
+    private byte[] decimal;
+    private byte[] text;
+
+    @Setup
+    public void setup() {
+        route = new TopicRoute("home/livingroom/temperature", "root.devdb.home.livingroom.temperature", asDoubleOrText);
+        bool = "true".getBytes(StandardCharsets.UTF_8);
+        integer = "1234".getBytes(StandardCharsets.UTF_8);
+        decimal = "21.375".getBytes(StandardCharsets.UTF_8);
+        text = "window open".getBytes(StandardCharsets.UTF_8);
+    }
+
+    //the value holder is part of the per message cost, so it is created here too
+    private TimeSeriesAndValue parse(DataConvertor convertor, byte[] payload) {
+        TimeSeriesAndValue tsval = new TimeSeriesAndValue(route, 0);
+        convertor.parse(payload, 0, payload.length, tsval);
+        return tsval;
+    }
+
+    @Benchmark
+    public TimeSeriesAndValue parseBoolean() {
+        return parse(asBoolean, bool);
+    }
+
+    @Benchmark
+    public TimeSeriesAndValue parseInt32() {
+        return parse(asInt32, integer);
+    }
+
+    @Benchmark
+    public TimeSeriesAndValue parseFloat() {
+        return parse(asFloat, decimal);
+    }
+
+    @Benchmark
+    public TimeSeriesAndValue parseDouble() {
+        return parse(asDouble, decimal);
+    }
+
+    @Benchmark
+    public TimeSeriesAndValue parseText() {
+        return parse(asText, text);
+    }
+
+    @Benchmark
+    public TimeSeriesAndValue parseDoubleOrTextNumber() {
+        return parse(asDoubleOrText, decimal);
+    }
+
+    @Benchmark
+    public TimeSeriesAndValue parseDoubleOrTextFallback() {
+        return parse(asDoubleOrText, text);
+    }
+
+    //the older string based api, kept as a baseline
+    @Benchmark
+    public Object parseValueDouble() {
+        return asDouble.parseValue(new String(decimal, StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,61 @@
+package jaist.pump;
+
+import java.util.concurrent.TimeUnit;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The handoff from the MQTT callback threads to the main loop, with several
+ * producers and the single consumer. The queue drops instead of blocking so
+ * producers cannot hang once the consumer stops at the end of an iteration;
+ * compare producer and consumer rates to see how many were dropped.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Group)
+public class QueueBenchmark {
+
+    private Pump pump;
+    private MqttMessage message;
+
+    @Setup
+    public void setup() {
+        pump = new Pump.Builder()
+            .dbname("root.devdb")
+            .topics("bench/#")
+            .queueCapacity(1 << 16)
+            .queueOverflow(RingBuffer.OverflowPolicy.DROP_NEWEST)
+            .build();
+        message = new MqttMessage("21.5".getBytes());
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(3)
+    public void postInQue() {
+        pump.postInQue(new TopicAndMessage("bench/room/temperature", message));
+    }
+
+    @Benchmark
+    @Group("handoff")
+    @GroupThreads(1)
+    public TopicAndMessage getMessage() {
+        return pump.getMessage(0);
+    }
+}
@@ -0,0 +1,71 @@
+package jaist.pump;
+
+import java.util.concurrent.TimeUnit;
+import org.apache.tsfile.enums.TSDataType;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Mapping topics to timeseries, both uncached and through the topic cache,
+ * and building the value holder with its device/measurement split.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Thread)
+public class TopicBenchmark {
+
+    private static final String TOPIC = "building/floor3/room.301/temperature";
+    private static final String TIMESERIES = "root.devdb.building.floor3.room_301.temperature";
+
+    private Pump pump;
+    private TopicRoute route;
+
+    @Setup
+    public void setup() {
+        pump = new Pump.Builder().dbname("root.devdb").topics("building/#").build();
+        route = pump.resolveTopic(TOPIC);
+    }
+
+    @Benchmark
+    public String convertTopicToTimeseries() {
+        return pump.convertTopicToTimeseries(TOPIC);
+    }
+
+    @Benchmark
+    public String getTopicSuffix() {
+        return pump.getTopicSuffix(TOPIC);
+    }
+
+    @Benchmark
+    public TopicRoute resolveCachedTopic() {
+        return pump.resolveTopic(TOPIC);
+    }
+
+    //splits the timeseries on every construction
+    @Benchmark
+    public String newTimeSeriesAndValue() {
+        var tsval = new TimeSeriesAndValue(TIMESERIES, TSDataType.DOUBLE, 21.5, 0);
+        return tsval.getPrefix();
+    }
+
+    //takes the split from the resolved route
+    @Benchmark
+    public String newTimeSeriesAndValueFromRoute() {
+        var tsval = new TimeSeriesAndValue(route, 0);
+        tsval.acceptDouble(21.5);
+        return tsval.getPrefix();
+    }
+}
@@ -0,0 +1,113 @@
+package jaist.pump;
+
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.IntConsumer;
+
+/**
+ * Acknowledges the QoS 1 messages of one connection once their values are
+ * safe, in the order the messages arrived. Values are written by several
+ * writer threads and finish out of order, while MQTT expects the
+ * acknowledgements in order, so a finished message is held back until all
+ * messages before it have finished too.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class AckTracker {
+
+    /**
+     * The pending acknowledgement of a single message.
+     */
+    public final class Ack {
+
+        private final long seq;
+        //the message is done once all parts are, guarded by the tracker
+        private int parts = 1;
+
+        private Ack(long seq) {
+            this.seq = seq;
+        }
+
+        /**
+         * Adds a part to the message, e.g. one of several values it holds,
+         * which has to be done as well before the message is.
+         */
+        public void share() {
+            synchronized (AckTracker.this) {
+                parts++;
+            }
+        }
+
+        /**
+         * The message, or one part of it, is taken care of, i.e. its value
+         * was written, spooled or will never be.
+         */
+        public void done() {
+            synchronized (AckTracker.this) {
+                if (parts > 0 && --parts == 0) {
+                    complete(seq);
+                }
+            }
+        }
+    }
+
+    private final IntConsumer acker;
+    private final LongAdder acked = new LongAdder();
+    //message ids and whether they are done, indexed by seq like a ring
+    private int[] ids = new int[64];
+    private boolean[] done = new boolean[64];
+    private long head;
+    private long tail;
+
+    /**
+     * @param acker sends the acknowledgement for a message id, called with
+     * the tracker locked so acknowledgements go out in order
+     */
+    public AckTracker(IntConsumer acker) {
+        this.acker = acker;
+    }
+
+    public synchronized Ack arrived(int messageId) {
+        if (tail - head == ids.length) {
+            grow();
+        }
+        int index = (int) tail & (ids.length - 1);
+        ids[index] = messageId;
+        done[index] = false;
+        return new Ack(tail++);
+    }
+
+    private synchronized void complete(long seq) {
+        if (seq < head) {
+            return;
+        }
+        int mask = ids.length - 1;
+        done[(int) seq & mask] = true;
+        while (head < tail && done[(int) head & mask]) {
+            acker.accept(ids[(int) head & mask]);
+            acked.increment();
+            head++;
+        }
+    }
+
+    private void grow() {
+        int[] grownIds = new int[ids.length * 2];
+        boolean[] grownDone = new boolean[ids.length * 2];
+        for (long seq = head; seq < tail; seq++) {
+            grownIds[(int) seq & (grownIds.length - 1)] = ids[(int) seq & (ids.length - 1)];
+            grownDone[(int) seq & (grownIds.length - 1)] = done[(int) seq & (ids.length - 1)];
+        }
+        ids = grownIds;
+        done = grownDone;
+    }
+
+    /**
+     * @return messages received but not acknowledged yet
+     */
+    public synchronized int getPending() {
+        return (int) (tail - head);
+    }
+
+    public long getAcked() {
+        return acked.sum();
+    }
+}
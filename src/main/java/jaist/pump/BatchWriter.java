@@ -0,0 +1,247 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+
+/**
+ * Accumulates converted values and writes them to the database in a single
+ * round trip once either the configured batch size is reached or the oldest
+ * buffered value has waited for the configured linger time. Consecutive values
+ * of the same device and timestamp, such as the fields of a JSON payload, are
+ * written as one record with several measurements.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class BatchWriter implements ValueWriter {
+
+    private static final SampledLogger POSTED = new SampledLogger(Logger.getLogger(BatchWriter.class.getName()), 10_000);
+
+    private final RecordSink sink;
+    private final int batchSize;
+    private final long lingerMs;
+
+    private final List<String> deviceIds;
+    private final List<Long> times;
+    private final List<List<String>> measurements;
+    private final List<List<TSDataType>> types;
+    private final List<List<Object>> values;
+    //per value rather than per record
+    private final long[] received;
+    private final AckTracker.Ack[] acks;
+    private int count;
+
+    //arrival time of the oldest buffered value, only meaningful when non-empty
+    private long oldest;
+    private boolean singleDevice = true;
+    private Spool spool;
+    private Metrics metrics = new Metrics();
+    private ConnectionRetry retry;
+    private SchemaManager schema;
+
+    public BatchWriter(RecordSink sink, int batchSize, long lingerMs) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("batch size must be at least 1");
+        }
+        this.sink = sink;
+        this.batchSize = batchSize;
+        this.lingerMs = lingerMs;
+
+        this.deviceIds = new ArrayList<>(batchSize);
+        this.times = new ArrayList<>(batchSize);
+        this.measurements = new ArrayList<>(batchSize);
+        this.types = new ArrayList<>(batchSize);
+        this.values = new ArrayList<>(batchSize);
+        this.received = new long[batchSize];
+        this.acks = new AckTracker.Ack[batchSize];
+    }
+
+    /**
+     * Values that cannot be written because the database is unreachable go to
+     * the spool instead of being dropped.
+     */
+    public void setSpool(Spool spool) {
+        this.spool = spool;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Without a spool, keeps retrying while the database is unreachable instead
+     * of dropping the batch.
+     */
+    public void setRetry(ConnectionRetry retry) {
+        this.retry = retry;
+    }
+
+    /**
+     * Has the series registered with the schema manager created before every
+     * write.
+     */
+    public void setSchema(SchemaManager schema) {
+        this.schema = schema;
+    }
+
+    @Override
+    public void add(TimeSeriesAndValue tsval) {
+        String device = tsval.getPrefix();
+        if (count == 0) {
+            oldest = System.currentTimeMillis();
+            singleDevice = true;
+        } else if (singleDevice && !deviceIds.get(0).equals(device)) {
+            singleDevice = false;
+        }
+
+        received[count] = tsval.received;
+        acks[count] = tsval.ack;
+        count++;
+        int last = deviceIds.size() - 1;
+        if (last >= 0 && times.get(last) == tsval.timestamp && deviceIds.get(last).equals(device)
+            && !measurements.get(last).contains(tsval.getSuffix())) {
+            merge(last, tsval);
+        } else {
+            deviceIds.add(device);
+            times.add(tsval.timestamp);
+            measurements.add(List.of(tsval.getSuffix()));
+            types.add(List.of(tsval.getDataType()));
+            values.add(List.of(tsval.getValue()));
+        }
+
+        if (count >= batchSize) {
+            flush();
+        }
+    }
+
+    //records start out immutable, most never get a second measurement
+    private void merge(int record, TimeSeriesAndValue tsval) {
+        if (measurements.get(record).size() == 1) {
+            measurements.set(record, new ArrayList<>(measurements.get(record)));
+            types.set(record, new ArrayList<>(types.get(record)));
+            values.set(record, new ArrayList<>(values.get(record)));
+        }
+        measurements.get(record).add(tsval.getSuffix());
+        types.get(record).add(tsval.getDataType());
+        values.get(record).add(tsval.getValue());
+    }
+
+    @Override
+    public int size() {
+        return count;
+    }
+
+    @Override
+    public long millisUntilDue(long now) {
+        if (deviceIds.isEmpty()) {
+            return -1;
+        }
+        return Math.max(0, oldest + lingerMs - now);
+    }
+
+    @Override
+    public void flushIfDue(long now) {
+        if (!deviceIds.isEmpty() && now - oldest >= lingerMs) {
+            flush();
+        }
+    }
+
+    @Override
+    public void flush() {
+        if (deviceIds.isEmpty()) {
+            return;
+        }
+        if (spool != null && spool.isDatabaseDown()) {
+            spoolAll();
+            clear();
+            return;
+        }
+        int size = count;
+        int records = deviceIds.size();
+        try {
+            long start = System.nanoTime();
+            if (retry != null && spool == null) {
+                retry.run(this::insert);
+            } else {
+                insert();
+            }
+            metrics.written(size, (System.nanoTime() - start) / 1000);
+            long now = System.currentTimeMillis();
+            for (int i = 0; i < size; i++) {
+                metrics.enqueueToWrite(now - received[i]);
+            }
+            acknowledge(size);
+            POSTED.log(Level.INFO, () -> "Posted batch of " + size + " values in " + records + " records");
+        } catch (IoTDBConnectionException ex) {
+            if (spool != null) {
+                spool.markDatabaseDown();
+                spoolAll();
+            } else {
+                metrics.writeFailed(size);
+                Logger.getLogger(BatchWriter.class.getName()).log(Level.SEVERE,
+                    "failed to post batch of " + size + " values", ex);
+            }
+        } catch (StatementExecutionException ex) {
+            metrics.writeFailed(size);
+            Logger.getLogger(BatchWriter.class.getName()).log(Level.SEVERE,
+                "failed to post batch of " + size + " values", ex);
+            //rejected for good, redelivering would not help
+            acknowledge(size);
+        } finally {
+            clear();
+        }
+    }
+
+    private void insert() throws IoTDBConnectionException, StatementExecutionException {
+        if (schema != null) {
+            schema.createPending(sink);
+        }
+        if (singleDevice) {
+            sink.insertRecordsOfOneDevice(deviceIds.get(0), times, measurements, types, values);
+        } else {
+            sink.insertRecords(deviceIds, times, measurements, types, values);
+        }
+    }
+
+    //values the spool could not store are counted as lost, and their
+    //messages acknowledged all the same: an ack held back would hold back
+    //every later one on its connection
+    private void spoolAll() {
+        int lost = 0;
+        for (int i = 0; i < deviceIds.size(); i++) {
+            for (int j = 0; j < measurements.get(i).size(); j++) {
+                if (!spool.append(deviceIds.get(i), measurements.get(i).get(j), times.get(i), types.get(i).get(j), values.get(i).get(j))) {
+                    lost++;
+                }
+            }
+        }
+        if (lost > 0) {
+            metrics.writeFailed(lost);
+        }
+        spool.force();
+        acknowledge(count);
+    }
+
+    private void acknowledge(int size) {
+        for (int i = 0; i < size; i++) {
+            if (acks[i] != null) {
+                acks[i].done();
+            }
+        }
+    }
+
+    private void clear() {
+        Arrays.fill(acks, 0, count, null);
+        count = 0;
+        deviceIds.clear();
+        times.clear();
+        measurements.clear();
+        types.clear();
+        values.clear();
+    }
+}
@@ -0,0 +1,178 @@
+package jaist.pump;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.utils.Binary;
+
+/**
+ * Decodes the compact binary payload format, meant for devices on links where
+ * every byte counts and that would rather not print numbers. All multi-byte
+ * values are little-endian.
+ * <pre>
+ * offset  size  content
+ * 0       1     format version, 1
+ * 1       1     flags, bit 0 set if a timestamp follows
+ * 2       1     number of fields
+ * 3       8     timestamp in milliseconds since the epoch, int64, only if
+ *               flagged; otherwise the arrival time is used
+ * then every field:
+ *         1     name length n, 0 for the topic's own measurement
+ *         n     name, UTF-8
+ *         1     type, the TSDataType code: 0 BOOLEAN, 1 INT32, 3 FLOAT,
+ *               4 DOUBLE, 5 TEXT
+ *         ..    value: BOOLEAN 1 byte, 0 for false; INT32 and FLOAT 4 bytes;
+ *               DOUBLE 8 bytes; TEXT a uint16 length followed by as many
+ *               bytes of UTF-8
+ * </pre>
+ * A temperature of 21.5 on the topic's own measurement, with no timestamp,
+ * takes 9 bytes: {@code 01 00 01 00 03 00 00 ac 41}.
+ * <p>
+ * Values are read straight from the payload into their {@link DataConvertor.ValueSink};
+ * only text needs a copy. Stateless and thread-safe.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public final class BinaryPayload {
+
+    public static final int VERSION = 1;
+    public static final int HAS_TIMESTAMP = 1;
+    static final int HEADER = 3;
+
+    private static final VarHandle INT = MethodHandles.byteArrayViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle LONG = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle FLOAT = MethodHandles.byteArrayViewVarHandle(float[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle DOUBLE = MethodHandles.byteArrayViewVarHandle(double[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final VarHandle SHORT = MethodHandles.byteArrayViewVarHandle(short[].class, ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Takes the fields of a payload.
+     */
+    @FunctionalInterface
+    public interface FieldHandler {
+
+        /**
+         * @param name the field name, UTF-8, in name[offset, offset + length)
+         * @param type the type of the value
+         * @return where the value goes, null to skip it
+         */
+        DataConvertor.ValueSink field(byte[] name, int offset, int length, TSDataType type);
+    }
+
+    private BinaryPayload() {
+    }
+
+    /**
+     * @return the embedded timestamp, or fallback if there is none or the
+     * header is malformed
+     */
+    public static long timestamp(byte[] payload, int offset, int length, long fallback) {
+        if (length < HEADER + Long.BYTES || payload[offset] != VERSION || (payload[offset + 1] & HAS_TIMESTAMP) == 0) {
+            return fallback;
+        }
+        return (long) LONG.get(payload, offset + HEADER);
+    }
+
+    /**
+     * Hands every field of the payload to the handler, and its value to the
+     * sink the handler returns. A field is only reported once its value is
+     * known to be complete.
+     *
+     * @return false if the payload is malformed, fields reported before the
+     * error was found stand
+     */
+    public static boolean decode(byte[] payload, int offset, int length, FieldHandler handler) {
+        int end = offset + length;
+        if (length < HEADER || payload[offset] != VERSION) {
+            return false;
+        }
+        int fields = payload[offset + 2] & 0xff;
+        int position = offset + HEADER;
+        if ((payload[offset + 1] & HAS_TIMESTAMP) != 0) {
+            position += Long.BYTES;
+        }
+        for (int i = 0; i < fields; i++) {
+            if (position + 2 > end) {
+                return false;
+            }
+            int nameOffset = position + 1;
+            int nameLength = payload[position] & 0xff;
+            position = nameOffset + nameLength;
+            if (position + 1 > end) {
+                return false;
+            }
+            TSDataType type = type(payload[position++]);
+            if (type == null) {
+                return false;
+            }
+            int size = size(type, payload, position, end);
+            if (size < 0 || position + size > end) {
+                return false;
+            }
+            DataConvertor.ValueSink sink = handler.field(payload, nameOffset, nameLength, type);
+            if (sink != null) {
+                read(type, payload, position, size, sink);
+            }
+            position += size;
+        }
+        return position == end;
+    }
+
+    private static TSDataType type(byte code) {
+        switch (code) {
+            case 0:
+                return TSDataType.BOOLEAN;
+            case 1:
+                return TSDataType.INT32;
+            case 3:
+                return TSDataType.FLOAT;
+            case 4:
+                return TSDataType.DOUBLE;
+            case 5:
+                return TSDataType.TEXT;
+            default:
+                return null;
+        }
+    }
+
+    //bytes taken by the value at position, text length included. -1 if even
+    //the length of the text is cut off
+    private static int size(TSDataType type, byte[] payload, int position, int end) {
+        switch (type) {
+            case BOOLEAN:
+                return 1;
+            case INT32:
+            case FLOAT:
+                return 4;
+            case DOUBLE:
+                return 8;
+            default:
+                if (position + 2 > end) {
+                    return -1;
+                }
+                return 2 + ((short) SHORT.get(payload, position) & 0xffff);
+        }
+    }
+
+    private static void read(TSDataType type, byte[] payload, int position, int size, DataConvertor.ValueSink sink) {
+        switch (type) {
+            case BOOLEAN:
+                sink.acceptBoolean(payload[position] != 0);
+                break;
+            case INT32:
+                sink.acceptInt((int) INT.get(payload, position));
+                break;
+            case FLOAT:
+                sink.acceptFloat((float) FLOAT.get(payload, position));
+                break;
+            case DOUBLE:
+                sink.acceptDouble((double) DOUBLE.get(payload, position));
+                break;
+            default:
+                sink.acceptBinary(new Binary(Arrays.copyOfRange(payload, position + 2, position + size)));
+                break;
+        }
+    }
+}
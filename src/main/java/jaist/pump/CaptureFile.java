@@ -0,0 +1,162 @@
+package jaist.pump;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * The format of capture files, recordings of the messages a pump received,
+ * and the reading of them. A file starts with a magic number and a version,
+ * followed by records of the form
+ * <pre>
+ * int    length of the rest of the record
+ * long   receive timestamp in milliseconds since the epoch
+ * short  length of the topic, unsigned
+ *        topic, UTF-8
+ *        payload, as received
+ * </pre>
+ * all big-endian. A record cut short, e.g. by a crash of the writing process,
+ * ends the file.
+ * <p>
+ * Files are read through memory mappings, a window at a time, so reading
+ * costs no system call per record and files of any size can be read.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public final class CaptureFile {
+
+    public static final int MAGIC = 0x50434150; //"PCAP"
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 8;
+    //length, timestamp and topic length
+    public static final int RECORD_HEADER_BYTES = 4 + 8 + 2;
+    public static final String SUFFIX = ".cap";
+
+    //how much of a file is mapped at once, more than the largest record
+    static final long WINDOW_BYTES = 1L << 30;
+
+    /**
+     * Takes the records of a capture file.
+     */
+    @FunctionalInterface
+    public interface RecordHandler {
+
+        /**
+         * @param payload a copy, the handler may keep it
+         */
+        void record(String topic, long timestamp, byte[] payload);
+    }
+
+    private CaptureFile() {
+    }
+
+    /**
+     * Writes the file header at the buffer's position.
+     */
+    public static void writeHeader(ByteBuffer buffer) {
+        buffer.putInt(MAGIC);
+        buffer.putInt(VERSION);
+    }
+
+    /**
+     * @return the bytes a record takes in a file
+     */
+    public static int recordBytes(byte[] topic, int payloadLength) {
+        return RECORD_HEADER_BYTES + topic.length + payloadLength;
+    }
+
+    /**
+     * Writes a record at the buffer's position, which needs
+     * {@link #recordBytes} bytes remaining.
+     *
+     * @param topic UTF-8, at most 65535 bytes
+     */
+    public static void writeRecord(ByteBuffer buffer, byte[] topic, long timestamp, byte[] payload) {
+        buffer.putInt(recordBytes(topic, payload.length) - 4);
+        buffer.putLong(timestamp);
+        buffer.putShort((short) topic.length);
+        buffer.put(topic);
+        buffer.put(payload);
+    }
+
+    /**
+     * @param path a capture file, or a directory of them
+     * @return the file, or the capture files in the directory in name order,
+     * which is the order they were written in
+     */
+    public static List<Path> list(Path path) throws IOException {
+        if (!Files.isDirectory(path)) {
+            return List.of(path);
+        }
+        try (Stream<Path> files = Files.list(path)) {
+            return files.filter(file -> file.getFileName().toString().endsWith(SUFFIX)).sorted().collect(Collectors.toList());
+        }
+    }
+
+    /**
+     * Hands every record of a capture file to the handler, in order.
+     *
+     * @return the number of records read
+     * @throws IOException if the file cannot be read or is no capture file
+     */
+    public static long read(Path file, RecordHandler handler) throws IOException {
+        return read(file, WINDOW_BYTES, handler);
+    }
+
+    //package private for testing
+    static long read(Path file, long windowBytes, RecordHandler handler) throws IOException {
+        long records = 0;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MappedByteBuffer window = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, windowBytes));
+            if (size < HEADER_BYTES || window.getInt() != MAGIC) {
+                throw new IOException("not a capture file: " + file);
+            }
+            int version = window.getInt();
+            if (version != VERSION) {
+                throw new IOException("unsupported capture file version " + version + ": " + file);
+            }
+            //file offset of the window
+            long base = 0;
+            while (true) {
+                int start = window.position();
+                if (window.remaining() < 4 || window.remaining() < 4 + window.getInt(start)) {
+                    long next = base + start;
+                    if (base + window.limit() >= size || next == base) {
+                        //the end, or a record cut short
+                        break;
+                    }
+                    //the record crosses the end of the window, move it along
+                    base = next;
+                    window = channel.map(FileChannel.MapMode.READ_ONLY, base, Math.min(size - base, windowBytes));
+                    continue;
+                }
+                int length = window.getInt();
+                if (length < RECORD_HEADER_BYTES - 4) {
+                    break;
+                }
+                long timestamp = window.getLong();
+                int topicLength = window.getShort() & 0xffff;
+                int payloadLength = length - (RECORD_HEADER_BYTES - 4) - topicLength;
+                if (payloadLength < 0) {
+                    break;
+                }
+                byte[] topic = new byte[topicLength];
+                window.get(topic);
+                byte[] payload = new byte[payloadLength];
+                window.get(payload);
+                handler.record(new String(topic, StandardCharsets.UTF_8), timestamp, payload);
+                records++;
+            }
+        }
+        return records;
+    }
+}
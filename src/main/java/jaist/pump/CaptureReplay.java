@@ -0,0 +1,76 @@
+package jaist.pump;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Plays capture files back, see {@link CaptureFile}, keeping the gaps between
+ * the messages as they were recorded, shortened by a speed-up factor, or with
+ * no gaps at all. Meant for load tests that are both realistic and
+ * repeatable.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class CaptureReplay {
+
+    private final double speed;
+
+    /**
+     * @param speed 1 for the recorded pace, 10 for ten times as fast, 0 for
+     * as fast as the target takes the messages
+     */
+    public CaptureReplay(double speed) {
+        if (speed < 0 || Double.isNaN(speed)) {
+            throw new IllegalArgumentException("the replay speed cannot be negative: " + speed);
+        }
+        this.speed = speed;
+    }
+
+    /**
+     * @param speed "max" for as fast as possible, otherwise a factor such as
+     * 1, 2.5 or 10x
+     */
+    public static CaptureReplay atSpeed(String speed) {
+        String factor = speed.strip().toLowerCase();
+        if (factor.equals("max")) {
+            return new CaptureReplay(0);
+        }
+        if (factor.endsWith("x")) {
+            factor = factor.substring(0, factor.length() - 1);
+        }
+        try {
+            return new CaptureReplay(Double.parseDouble(factor));
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("malformed replay speed: " + speed);
+        }
+    }
+
+    /**
+     * Hands the records of the files to the target, one file after the other
+     * and paced as configured, on the calling thread.
+     *
+     * @return the number of records replayed
+     */
+    public long replay(List<Path> files, CaptureFile.RecordHandler target) throws IOException {
+        long start = System.nanoTime();
+        long[] first = {Long.MIN_VALUE};
+        long records = 0;
+        for (Path file : files) {
+            records += CaptureFile.read(file, (topic, timestamp, payload) -> {
+                if (speed > 0) {
+                    if (first[0] == Long.MIN_VALUE) {
+                        first[0] = timestamp;
+                    }
+                    long wait = start + (long) ((timestamp - first[0]) * 1e6 / speed) - System.nanoTime();
+                    if (wait > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                target.record(topic, timestamp, payload);
+            });
+        }
+        return records;
+    }
+}
@@ -0,0 +1,115 @@
+package jaist.pump;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Watches a properties file and hands its new contents over whenever they
+ * change. Editors often save in several steps, or by replacing the file, so
+ * the file is read once it has been left alone for a short while; saves that
+ * change nothing are ignored.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class ConfigWatcher implements AutoCloseable {
+
+    private final Path file;
+    private final long settleMs;
+    private final BiConsumer<Properties, Properties> onChange;
+    private final WatchService watcher;
+    private final Thread thread;
+    private Properties current;
+
+    /**
+     * @param file the properties file
+     * @param current the properties as loaded at startup
+     * @param settleMs how long the file must be left alone before it is read
+     * @param onChange takes the previous and the new properties, on the
+     * watcher's thread
+     */
+    public ConfigWatcher(Path file, Properties current, long settleMs, BiConsumer<Properties, Properties> onChange) throws IOException {
+        this.file = file.toAbsolutePath();
+        this.current = current;
+        this.settleMs = settleMs;
+        this.onChange = onChange;
+        this.watcher = this.file.getFileSystem().newWatchService();
+        this.file.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        this.thread = new Thread(this::run, "config-watcher");
+        this.thread.setDaemon(true);
+    }
+
+    public void start() {
+        thread.start();
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = touched(key);
+                //wait for the writes to settle, taking in whatever comes meanwhile
+                while (changed && (key = watcher.poll(settleMs, TimeUnit.MILLISECONDS)) != null) {
+                    touched(key);
+                }
+                if (changed) {
+                    load();
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException ex) {
+            //closed
+        }
+    }
+
+    private boolean touched(WatchKey key) {
+        boolean touched = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || file.getFileName().equals(event.context())) {
+                touched = true;
+            }
+        }
+        key.reset();
+        return touched;
+    }
+
+    private void load() {
+        Properties next = new Properties();
+        try (InputStream in = Files.newInputStream(file)) {
+            next.load(in);
+        } catch (IOException ex) {
+            Logger.getLogger(ConfigWatcher.class.getName()).log(Level.WARNING, "failed to read " + file + ", keeping the current configuration", ex);
+            return;
+        }
+        if (next.equals(current)) {
+            return;
+        }
+        Properties previous = current;
+        current = next;
+        try {
+            onChange.accept(previous, next);
+        } catch (RuntimeException ex) {
+            Logger.getLogger(ConfigWatcher.class.getName()).log(Level.WARNING, "failed to apply the changes to " + file, ex);
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            watcher.close();
+        } catch (IOException ex) {
+            Logger.getLogger(ConfigWatcher.class.getName()).log(Level.WARNING, "failed to stop watching " + file, ex);
+        }
+        thread.interrupt();
+    }
+}
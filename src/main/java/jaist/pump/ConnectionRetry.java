@@ -0,0 +1,63 @@
+package jaist.pump;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+
+/**
+ * Repeats a database call for as long as the database is unreachable, backing
+ * off exponentially between attempts. Writers use this instead of dropping
+ * values when there is no spool but the messages are only acknowledged once
+ * written: the stalled writer then pushes back all the way to the broker.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class ConnectionRetry {
+
+    static final long INITIAL_BACKOFF_MS = 500;
+    static final long MAX_BACKOFF_MS = 30_000;
+    private static final SampledLogger RETRYING = new SampledLogger(Logger.getLogger(ConnectionRetry.class.getName()), 10_000);
+
+    @FunctionalInterface
+    public interface Call {
+
+        void run() throws IoTDBConnectionException, StatementExecutionException;
+    }
+
+    private volatile boolean stopped;
+
+    /**
+     * Makes every retry give up, e.g. when shutting down.
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @throws IoTDBConnectionException the last failure, once stopped or
+     * interrupted
+     */
+    public void run(Call call) throws IoTDBConnectionException, StatementExecutionException {
+        long backoff = INITIAL_BACKOFF_MS;
+        while (true) {
+            try {
+                call.run();
+                return;
+            } catch (IoTDBConnectionException ex) {
+                if (stopped) {
+                    throw ex;
+                }
+                long wait = backoff;
+                RETRYING.log(Level.WARNING, () -> "database unreachable, retrying in " + wait + "ms: " + ex.getMessage());
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    throw ex;
+                }
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            }
+        }
+    }
+}
@@ -1,5 +1,7 @@
 package jaist.pump;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import org.apache.tsfile.enums.TSDataType;
 import org.apache.tsfile.utils.Binary;
 
@@ -9,6 +11,30 @@ import org.apache.tsfile.utils.Binary;
  */
 public abstract class DataConvertor {
 
+    /**
+     * Receives a parsed value in its primitive form. Exactly one method is
+     * called per successful parse, and which one tells the value's type.
+     */
+    public interface ValueSink {
+
+        void acceptBoolean(boolean value);
+
+        void acceptInt(int value);
+
+        void acceptFloat(float value);
+
+        void acceptDouble(double value);
+
+        void acceptBinary(Binary value);
+    }
+
+    //exactly representable powers of ten, used by the fast decimal path
+    private static final double[] DOUBLE_POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22};
+    private static final float[] FLOAT_POW10 = {
+        1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
     protected TSDataType type;
 
     public TSDataType getPrimitiveType() {
@@ -21,6 +47,188 @@ public abstract class DataConvertor {
 
     public abstract Object parseValue(String value_str) throws IllegalArgumentException;
 
+    /**
+     * Parses a value straight from raw payload bytes, without building a String
+     * or boxing the result.
+     *
+     * @param payload
+     * @param offset start of the value in payload
+     * @param length length of the value in bytes
+     * @param sink receives the value if it could be parsed
+     * @return false if the bytes do not hold a valid value for this convertor
+     */
+    public abstract boolean parse(byte[] payload, int offset, int length, ValueSink sink);
+
+    /**
+     * Convertors that decide the type per value return one fixed to the given
+     * type, once a series is known to hold only that type.
+     *
+     * @param type the type the series has settled on
+     * @return a convertor producing only that type, or this if not applicable
+     */
+    public DataConvertor specializeFor(TSDataType type) {
+        return this;
+    }
+
+    /**
+     * Parses a decimal number and hands it to the sink as the given type, one
+     * of DOUBLE, FLOAT or INT32 (rounded like {@link AsInt32}). Plain decimals
+     * whose result is exactly computable are handled without allocating, the
+     * rare rest (long mantissas, large exponents, NaN, hex) falls back to the
+     * JDK parsers.
+     *
+     * @return false if the bytes are not a number
+     */
+    static boolean parseDecimal(byte[] payload, int offset, int length, TSDataType target, ValueSink sink) {
+        int start = offset;
+        int end = offset + length;
+        //trim like String.strip() does for ASCII, bytes of multi-byte
+        //characters are negative and no whitespace
+        while (start < end && (payload[start] & 0xff) <= ' ') {
+            start++;
+        }
+        while (end > start && (payload[end - 1] & 0xff) <= ' ') {
+            end--;
+        }
+        if (start == end) {
+            return false;
+        }
+
+        int i = start;
+        boolean negative = false;
+        if (payload[i] == '-' || payload[i] == '+') {
+            negative = payload[i] == '-';
+            i++;
+        }
+
+        long mantissa = 0;
+        int significant = 0;
+        int fractionDigits = 0;
+        int digits = 0;
+        boolean fraction = false;
+        for (; i < end; i++) {
+            byte c = payload[i];
+            if (c >= '0' && c <= '9') {
+                digits++;
+                if (mantissa != 0 || c != '0') {
+                    significant++;
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (fraction) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && !fraction) {
+                fraction = true;
+            } else {
+                break;
+            }
+        }
+
+        int exponent = 0;
+        if (i < end && (payload[i] == 'e' || payload[i] == 'E') && digits > 0) {
+            i++;
+            boolean negativeExponent = false;
+            if (i < end && (payload[i] == '-' || payload[i] == '+')) {
+                negativeExponent = payload[i] == '-';
+                i++;
+            }
+            int exponentDigits = 0;
+            for (; i < end && payload[i] >= '0' && payload[i] <= '9' && exponent < 10000; i++) {
+                exponent = exponent * 10 + (payload[i] - '0');
+                exponentDigits++;
+            }
+            if (exponentDigits == 0) {
+                return false;
+            }
+            if (negativeExponent) {
+                exponent = -exponent;
+            }
+        }
+
+        if (digits == 0 && (i == end || (payload[i] != 'N' && payload[i] != 'I'))) {
+            //plain text, only NaN and Infinity get past the JDK without digits
+            return false;
+        }
+        if (i != end || digits == 0 || significant > 18) {
+            //something the fast path does not cover, let the JDK decide
+            return parseDecimalSlow(payload, start, end - start, target, sink);
+        }
+
+        exponent -= fractionDigits;
+        switch (target) {
+            case DOUBLE: {
+                if (mantissa >= (1L << 53) || exponent < -22 || exponent > 22) {
+                    return parseDecimalSlow(payload, start, end - start, target, sink);
+                }
+                double value = exponent < 0
+                    ? mantissa / DOUBLE_POW10[-exponent]
+                    : mantissa * DOUBLE_POW10[exponent];
+                sink.acceptDouble(negative ? -value : value);
+                return true;
+            }
+            case FLOAT:
+            case INT32: {
+                if (mantissa >= (1L << 24) || exponent < -10 || exponent > 10) {
+                    return parseDecimalSlow(payload, start, end - start, target, sink);
+                }
+                float value = exponent < 0
+                    ? mantissa / FLOAT_POW10[-exponent]
+                    : mantissa * FLOAT_POW10[exponent];
+                acceptFloatAs(negative ? -value : value, target, sink);
+                return true;
+            }
+            default:
+                throw new IllegalArgumentException("not a decimal type: " + target);
+        }
+    }
+
+    private static boolean parseDecimalSlow(byte[] payload, int offset, int length, TSDataType target, ValueSink sink) {
+        String value_str = new String(payload, offset, length, StandardCharsets.US_ASCII);
+        try {
+            if (target == TSDataType.DOUBLE) {
+                sink.acceptDouble(Double.parseDouble(value_str));
+            } else {
+                acceptFloatAs(Float.parseFloat(value_str), target, sink);
+            }
+            return true;
+        } catch (NumberFormatException ex) {
+            return false;
+        }
+    }
+
+    private static void acceptFloatAs(float value, TSDataType target, ValueSink sink) {
+        if (target == TSDataType.INT32) {
+            sink.acceptInt(Math.round(value));
+        } else {
+            sink.acceptFloat(value);
+        }
+    }
+
+    //wraps the payload without copying when the value spans all of it
+    static Binary binarySlice(byte[] payload, int offset, int length) {
+        if (offset == 0 && length == payload.length) {
+            return new Binary(payload);
+        }
+        return new Binary(Arrays.copyOfRange(payload, offset, offset + length));
+    }
+
+    //case-insensitive comparison of a byte range against a lowercase ASCII word
+    static boolean equalsIgnoreCase(byte[] payload, int offset, int length, String word) {
+        if (length != word.length()) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            int c = payload[offset + i];
+            if (c >= 'A' && c <= 'Z') {
+                c += 'a' - 'A';
+            }
+            if (c != word.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public static DataConvertor Boolean() {
         return new DataConvertor.AsBoolean();
     }
@@ -67,6 +275,31 @@ public abstract class DataConvertor {
                     throw new IllegalArgumentException("Unable to parse " + value_str + " as a boolean");
             }
         }
+
+        @Override
+        public boolean parse(byte[] payload, int offset, int length, ValueSink sink) {
+            int end = offset + length;
+            while (offset < end && (payload[offset] & 0xff) <= ' ') {
+                offset++;
+            }
+            while (end > offset && (payload[end - 1] & 0xff) <= ' ') {
+                end--;
+            }
+            length = end - offset;
+            if (equalsIgnoreCase(payload, offset, length, "true")
+                || equalsIgnoreCase(payload, offset, length, "yes")
+                || equalsIgnoreCase(payload, offset, length, "1")) {
+                sink.acceptBoolean(true);
+                return true;
+            }
+            if (equalsIgnoreCase(payload, offset, length, "false")
+                || equalsIgnoreCase(payload, offset, length, "no")
+                || equalsIgnoreCase(payload, offset, length, "0")) {
+                sink.acceptBoolean(false);
+                return true;
+            }
+            return false;
+        }
     }
 
     public static class AsFloat extends DataConvertor {
@@ -79,6 +312,11 @@ public abstract class DataConvertor {
         public Object parseValue(String value_str) throws IllegalArgumentException {
             return Float.valueOf(value_str);
         }
+
+        @Override
+        public boolean parse(byte[] payload, int offset, int length, ValueSink sink) {
+            return parseDecimal(payload, offset, length, TSDataType.FLOAT, sink);
+        }
     }
 
     public static class AsDouble extends DataConvertor {
@@ -91,6 +329,11 @@ public abstract class DataConvertor {
         public Object parseValue(String value_str) throws IllegalArgumentException {
             return Double.valueOf(value_str);
         }
+
+        @Override
+        public boolean parse(byte[] payload, int offset, int length, ValueSink sink) {
+            return parseDecimal(payload, offset, length, TSDataType.DOUBLE, sink);
+        }
     }
 
     public static class AsInt32 extends DataConvertor {
@@ -104,6 +347,11 @@ public abstract class DataConvertor {
             return Math.round(Float.parseFloat(value_str));
         }
 
+        @Override
+        public boolean parse(byte[] payload, int offset, int length, ValueSink sink) {
+            return parseDecimal(payload, offset, length, TSDataType.INT32, sink);
+        }
+
     }
 
     public static class AsText extends DataConvertor {
@@ -116,6 +364,12 @@ public abstract class DataConvertor {
         public Object parseValue(String value_str) throws IllegalArgumentException {
             return new Binary(value_str.getBytes());
         }
+
+        @Override
+        public boolean parse(byte[] payload, int offset, int length, ValueSink sink) {
+            sink.acceptBinary(binarySlice(payload, offset, length));
+            return true;
+        }
     }
 
     public static class AsDoubleOrText extends DataConvertor {
@@ -135,5 +389,27 @@ public abstract class DataConvertor {
             }
         }
 
+        //unlike parseValue this does not touch the shared type, the sink
+        //learns the outcome from which accept method is called
+        @Override
+        public boolean parse(byte[] payload, int offset, int length, ValueSink sink) {
+            if (!parseDecimal(payload, offset, length, TSDataType.DOUBLE, sink)) {
+                sink.acceptBinary(binarySlice(payload, offset, length));
+            }
+            return true;
+        }
+
+        @Override
+        public DataConvertor specializeFor(TSDataType type) {
+            switch (type) {
+                case DOUBLE:
+                    return DataConvertor.Double();
+                case TEXT:
+                    return DataConvertor.Text();
+                default:
+                    return this;
+            }
+        }
+
     }
 }
@@ -0,0 +1,75 @@
+package jaist.pump;
+
+/**
+ * How far a value may move from the last written value of its series before
+ * it is worth writing again. A change-only deadband suppresses only values
+ * equal to the last written one.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class Deadband {
+
+    private static final Deadband CHANGE_ONLY = new Deadband(0, 0);
+
+    //both are inclusive bounds, a value is suppressed if it is within either
+    private final double absolute;
+    private final double percent;
+
+    private Deadband(double absolute, double percent) {
+        if (!(absolute >= 0) || !(percent >= 0)) {
+            throw new IllegalArgumentException("deadbands cannot be negative");
+        }
+        this.absolute = absolute;
+        this.percent = percent;
+    }
+
+    public static Deadband changeOnly() {
+        return CHANGE_ONLY;
+    }
+
+    public static Deadband absolute(double band) {
+        return new Deadband(band, 0);
+    }
+
+    /**
+     * @param band in percent of the last written value
+     */
+    public static Deadband percent(double band) {
+        return new Deadband(0, band);
+    }
+
+    /**
+     * @return a deadband suppressing what either one would
+     */
+    public Deadband or(Deadband other) {
+        return new Deadband(Math.max(absolute, other.absolute), Math.max(percent, other.percent));
+    }
+
+    public double getAbsolute() {
+        return absolute;
+    }
+
+    public double getPercent() {
+        return percent;
+    }
+
+    /**
+     * @return true if value is close enough to last not to be written
+     */
+    public boolean suppresses(double last, double value) {
+        double delta = Math.abs(value - last);
+        //NaN never equals anything, but a series stuck at NaN is unchanged
+        if (delta <= absolute || (Double.isNaN(value) && Double.isNaN(last))) {
+            return true;
+        }
+        return delta <= Math.abs(last) * percent / 100;
+    }
+
+    @Override
+    public String toString() {
+        if (this == CHANGE_ONLY) {
+            return "change-only";
+        }
+        return "deadband(" + absolute + ", " + percent + "%)";
+    }
+}
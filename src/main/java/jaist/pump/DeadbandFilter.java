@@ -0,0 +1,164 @@
+package jaist.pump;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.utils.Binary;
+
+/**
+ * Drops values that are within the deadband of the last value written to
+ * their series, unless the series has been silent for longer than the
+ * heartbeat interval. The last written value and time of each series are kept
+ * in fixed size primitive arrays, indexed by a 64-bit hash of the timeseries:
+ * four slots per hash bucket, and when all four are taken the series written
+ * longest ago makes room. A series that lost its slot simply has its next value
+ * written. Text and booleans are only ever compared for equality.
+ * <p>
+ * Not thread-safe, the pump filters on its converting thread.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class DeadbandFilter {
+
+    private static final int WAYS = 4;
+
+    private final long heartbeatMs;
+
+    private final long[] keys;
+    //the value bits: raw double bits for numbers, a hash for text
+    private final long[] values;
+    private final long[] written;
+    private final byte[] types;
+
+    private final LongAdder suppressed = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param heartbeatMs write a value anyway once the series has not been
+     * written for this long, 0 for never
+     * @param series how many series to keep track of, rounded up to a power
+     * of two
+     */
+    public DeadbandFilter(long heartbeatMs, int series) {
+        if (heartbeatMs < 0) {
+            throw new IllegalArgumentException("the heartbeat interval cannot be negative");
+        }
+        if (series < WAYS || series > 1 << 30) {
+            throw new IllegalArgumentException("the deadband filter keeps between " + WAYS + " and 2^30 series: " + series);
+        }
+        this.heartbeatMs = heartbeatMs;
+        int capacity = Integer.highestOneBit(series - 1) << 1;
+        this.keys = new long[capacity];
+        this.values = new long[capacity];
+        this.written = new long[capacity];
+        this.types = new byte[capacity];
+    }
+
+    /**
+     * Decides whether a value is written, and if so remembers it as the last
+     * written value of its series.
+     *
+     * @param route the value's route, its deadband applies
+     * @return false if the value is not to be written
+     */
+    public boolean pass(TopicRoute route, TimeSeriesAndValue tsval) {
+        Deadband deadband = route.getDeadband();
+        if (deadband == null) {
+            return true;
+        }
+        long key = route.getSeriesKey();
+        TSDataType type = tsval.getDataType();
+        long bits = type == TSDataType.TEXT ? hash(tsval.getBinary()) : Double.doubleToRawLongBits(tsval.getDouble());
+
+        int bucket = (int) key & (keys.length - WAYS);
+        int slot = -1;
+        int oldest = bucket;
+        for (int i = bucket; i < bucket + WAYS; i++) {
+            if (keys[i] == key) {
+                slot = i;
+                break;
+            }
+            if (keys[i] == 0 || (keys[oldest] != 0 && written[i] < written[oldest])) {
+                oldest = i;
+            }
+        }
+
+        if (slot >= 0 && types[slot] == type.ordinal() && !heartbeatDue(written[slot], tsval.timestamp)) {
+            boolean unchanged;
+            switch (type) {
+                case TEXT:
+                case BOOLEAN:
+                    unchanged = values[slot] == bits;
+                    break;
+                default:
+                    unchanged = deadband.suppresses(Double.longBitsToDouble(values[slot]), tsval.getDouble());
+                    break;
+            }
+            if (unchanged) {
+                suppressed.increment();
+                return false;
+            }
+        }
+        if (slot < 0) {
+            slot = oldest;
+            if (keys[slot] != 0) {
+                evictions.increment();
+            }
+            keys[slot] = key;
+        }
+        values[slot] = bits;
+        written[slot] = tsval.timestamp;
+        types[slot] = (byte) type.ordinal();
+        return true;
+    }
+
+    //timestamps going backwards also get written, they are not ours to judge
+    private boolean heartbeatDue(long lastWritten, long timestamp) {
+        return timestamp < lastWritten || (heartbeatMs > 0 && timestamp - lastWritten >= heartbeatMs);
+    }
+
+    public long getSuppressed() {
+        return suppressed.sum();
+    }
+
+    /**
+     * @return series that lost their slot to another
+     */
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public int getCapacity() {
+        return keys.length;
+    }
+
+    /**
+     * A 64-bit FNV-1a hash of a timeseries, never 0 since that marks an empty
+     * slot. Collisions between millions of series are unlikely enough that
+     * two series sharing a slot is accepted.
+     */
+    static long seriesKey(String timeseries) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < timeseries.length(); i++) {
+            hash ^= timeseries.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash);
+    }
+
+    private static long hash(Binary binary) {
+        long hash = 0xcbf29ce484222325L;
+        for (byte b : binary.getValues()) {
+            hash ^= b & 0xff;
+            hash *= 0x100000001b3L;
+        }
+        return hash;
+    }
+
+    //spreads the low bits, which pick the bucket
+    private static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        return hash == 0 ? 1 : hash;
+    }
+}
@@ -0,0 +1,382 @@
+package jaist.pump;
+
+import java.util.Arrays;
+
+/**
+ * A streaming parser for JSON object payloads, working on the payload bytes
+ * and reporting every scalar field to a handler as it goes. Nothing is
+ * allocated per message: string values without escapes are handed over as a
+ * slice of the payload, other strings and the field names are decoded into
+ * scratch buffers reused from message to message. Fields of nested objects are
+ * reported with their names joined by '_', arrays are skipped.
+ * <p>
+ * Not thread-safe, because of the scratch buffers.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class JsonPayload {
+
+    public static final int NUMBER = 0;
+    public static final int STRING = 1;
+    public static final int TRUE = 2;
+    public static final int FALSE = 3;
+    public static final int NULL = 4;
+
+    private static final int MAX_DEPTH = 16;
+
+    /**
+     * Receives the fields of an object. The buffers are only valid during the
+     * call.
+     */
+    @FunctionalInterface
+    public interface FieldHandler {
+
+        /**
+         * @param name the field name, UTF-8, in name[0, nameLength)
+         * @param depth 0 for fields of the outermost object
+         * @param kind one of NUMBER, STRING, TRUE, FALSE or NULL
+         * @param value the value in value[offset, offset + length), for
+         * strings without the quotes
+         */
+        void field(byte[] name, int nameLength, int depth, int kind, byte[] value, int offset, int length);
+    }
+
+    private byte[] payload;
+    private int position;
+    private int end;
+    private byte[] name = new byte[64];
+    private int nameLength;
+    private byte[] text = new byte[64];
+    private int textLength;
+
+    /**
+     * @return false if the payload is not a well-formed JSON object, fields
+     * reported before the error was found stand
+     */
+    public boolean parse(byte[] payload, int offset, int length, FieldHandler handler) {
+        this.payload = payload;
+        this.position = offset;
+        this.end = offset + length;
+        this.nameLength = 0;
+        try {
+            skipWhitespace();
+            if (!object(handler, 0)) {
+                return false;
+            }
+            skipWhitespace();
+            return position == end;
+        } finally {
+            this.payload = null;
+        }
+    }
+
+    private boolean object(FieldHandler handler, int depth) {
+        if (depth == MAX_DEPTH || !consume('{')) {
+            return false;
+        }
+        int prefixLength = nameLength;
+        skipWhitespace();
+        if (consume('}')) {
+            return true;
+        }
+        while (true) {
+            skipWhitespace();
+            nameLength = prefixLength;
+            if (prefixLength > 0) {
+                appendName((byte) '_');
+            }
+            if (!string(true)) {
+                return false;
+            }
+            skipWhitespace();
+            if (!consume(':')) {
+                return false;
+            }
+            skipWhitespace();
+            if (!value(handler, depth)) {
+                return false;
+            }
+            skipWhitespace();
+            if (consume('}')) {
+                nameLength = prefixLength;
+                return true;
+            }
+            if (!consume(',')) {
+                return false;
+            }
+        }
+    }
+
+    private boolean value(FieldHandler handler, int depth) {
+        if (position >= end) {
+            return false;
+        }
+        byte c = payload[position];
+        switch (c) {
+            case '{':
+                return object(handler, depth + 1);
+            case '[':
+                return skipArray(0);
+            case '"': {
+                int start = position + 1;
+                if (!string(false)) {
+                    return false;
+                }
+                if (textLength < 0) {
+                    //no escapes, the value is right there in the payload
+                    handler.field(name, nameLength, depth, STRING, payload, start, position - 1 - start);
+                } else {
+                    handler.field(name, nameLength, depth, STRING, text, 0, textLength);
+                }
+                return true;
+            }
+            case 't':
+                return literal("true", handler, depth, TRUE);
+            case 'f':
+                return literal("false", handler, depth, FALSE);
+            case 'n':
+                return literal("null", handler, depth, NULL);
+            default: {
+                int start = position;
+                while (position < end && isNumberByte(payload[position])) {
+                    position++;
+                }
+                if (position == start) {
+                    return false;
+                }
+                handler.field(name, nameLength, depth, NUMBER, payload, start, position - start);
+                return true;
+            }
+        }
+    }
+
+    private static boolean isNumberByte(byte c) {
+        return (c >= '0' && c <= '9') || c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E';
+    }
+
+    private boolean literal(String word, FieldHandler handler, int depth, int kind) {
+        if (end - position < word.length()) {
+            return false;
+        }
+        for (int i = 0; i < word.length(); i++) {
+            if (payload[position + i] != word.charAt(i)) {
+                return false;
+            }
+        }
+        handler.field(name, nameLength, depth, kind, payload, position, word.length());
+        position += word.length();
+        return true;
+    }
+
+    //arrays and everything in them are skipped
+    private boolean skipArray(int depth) {
+        if (depth == MAX_DEPTH) {
+            return false;
+        }
+        position++;
+        while (position < end) {
+            byte c = payload[position];
+            if (c == ']') {
+                position++;
+                return true;
+            }
+            if (c == '[' || c == '{') {
+                if (!skipNested(depth + 1)) {
+                    return false;
+                }
+            } else if (c == '"') {
+                if (!string(false)) {
+                    return false;
+                }
+            } else {
+                position++;
+            }
+        }
+        return false;
+    }
+
+    //skips an object or array nested in an array, without reporting anything
+    private boolean skipNested(int depth) {
+        if (depth == MAX_DEPTH) {
+            return false;
+        }
+        byte close = payload[position] == '[' ? (byte) ']' : (byte) '}';
+        position++;
+        while (position < end) {
+            byte c = payload[position];
+            if (c == close) {
+                position++;
+                return true;
+            }
+            if (c == '[' || c == '{') {
+                if (!skipNested(depth + 1)) {
+                    return false;
+                }
+            } else if (c == '"') {
+                if (!string(false)) {
+                    return false;
+                }
+            } else {
+                position++;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Reads a string starting at the opening quote. Names are appended to the
+     * name buffer; values are only decoded into the text buffer if they hold
+     * escapes, otherwise textLength is set to -1.
+     */
+    private boolean string(boolean isName) {
+        if (!consume('"')) {
+            return false;
+        }
+        int start = position;
+        boolean escaped = false;
+        while (position < end && payload[position] != '"') {
+            if (payload[position] == '\\') {
+                escaped = true;
+                position++;
+            }
+            position++;
+        }
+        if (position >= end) {
+            return false;
+        }
+        int stop = position;
+        position++;
+        if (!escaped) {
+            if (isName) {
+                for (int i = start; i < stop; i++) {
+                    appendName(payload[i]);
+                }
+            } else {
+                textLength = -1;
+            }
+            return true;
+        }
+        if (!isName) {
+            textLength = 0;
+        }
+        for (int i = start; i < stop; i++) {
+            byte c = payload[i];
+            if (c != '\\') {
+                append(isName, c);
+                continue;
+            }
+            c = payload[++i];
+            switch (c) {
+                case 'b':
+                    append(isName, (byte) '\b');
+                    break;
+                case 'f':
+                    append(isName, (byte) '\f');
+                    break;
+                case 'n':
+                    append(isName, (byte) '\n');
+                    break;
+                case 'r':
+                    append(isName, (byte) '\r');
+                    break;
+                case 't':
+                    append(isName, (byte) '\t');
+                    break;
+                case 'u': {
+                    int code = hex(i + 1);
+                    if (code < 0) {
+                        return false;
+                    }
+                    i += 4;
+                    if (Character.isHighSurrogate((char) code) && i + 6 < stop
+                        && payload[i + 1] == '\\' && payload[i + 2] == 'u') {
+                        int low = hex(i + 3);
+                        if (low >= 0 && Character.isLowSurrogate((char) low)) {
+                            code = Character.toCodePoint((char) code, (char) low);
+                            i += 6;
+                        }
+                    }
+                    appendUtf8(isName, code);
+                    break;
+                }
+                case '"':
+                case '\\':
+                case '/':
+                    append(isName, c);
+                    break;
+                default:
+                    return false;
+            }
+        }
+        return true;
+    }
+
+    private int hex(int at) {
+        if (at + 4 > end) {
+            return -1;
+        }
+        int code = 0;
+        for (int i = at; i < at + 4; i++) {
+            int digit = Character.digit(payload[i], 16);
+            if (digit < 0) {
+                return -1;
+            }
+            code = code << 4 | digit;
+        }
+        return code;
+    }
+
+    private void appendUtf8(boolean isName, int code) {
+        if (code < 0x80) {
+            append(isName, (byte) code);
+        } else if (code < 0x800) {
+            append(isName, (byte) (0xc0 | code >> 6));
+            append(isName, (byte) (0x80 | code & 0x3f));
+        } else if (code < 0x10000) {
+            append(isName, (byte) (0xe0 | code >> 12));
+            append(isName, (byte) (0x80 | code >> 6 & 0x3f));
+            append(isName, (byte) (0x80 | code & 0x3f));
+        } else {
+            append(isName, (byte) (0xf0 | code >> 18));
+            append(isName, (byte) (0x80 | code >> 12 & 0x3f));
+            append(isName, (byte) (0x80 | code >> 6 & 0x3f));
+            append(isName, (byte) (0x80 | code & 0x3f));
+        }
+    }
+
+    private void append(boolean isName, byte c) {
+        if (isName) {
+            appendName(c);
+        } else {
+            if (textLength == text.length) {
+                text = Arrays.copyOf(text, text.length * 2);
+            }
+            text[textLength++] = c;
+        }
+    }
+
+    private void appendName(byte c) {
+        if (nameLength == name.length) {
+            name = Arrays.copyOf(name, name.length * 2);
+        }
+        name[nameLength++] = c;
+    }
+
+    private boolean consume(char c) {
+        if (position < end && payload[position] == c) {
+            position++;
+            return true;
+        }
+        return false;
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            byte c = payload[position];
+            if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+                return;
+            }
+            position++;
+        }
+    }
+}
@@ -0,0 +1,384 @@
+package jaist.pump;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Counters and latency histograms of the whole pump. Everything is recorded
+ * with {@link LongAdder}s and lock-free {@link Histogram}s so the message path
+ * only pays for a few uncontended increments. The numbers can be read over JMX
+ * (see {@link #register()}) and in the Prometheus text format (see
+ * {@link #toPrometheus()} and {@link MetricsServer}).
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class Metrics implements MetricsMXBean {
+
+    static final String OBJECT_NAME = "jaist.pump:type=Metrics";
+    //topics beyond this many distinct prefixes are counted together
+    static final int MAX_TOPIC_PREFIXES = 1000;
+    static final String OTHER_PREFIX = "_other";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+
+    private final LongAdder received = new LongAdder();
+    private final LongAdder converted = new LongAdder();
+    private final LongAdder conversionFailures = new LongAdder();
+    private final LongAdder written = new LongAdder();
+    private final LongAdder writeFailures = new LongAdder();
+
+    private final Histogram conversionNanos = new Histogram();
+    private final Histogram insertMicros = new Histogram();
+    private final Histogram enqueueToWriteMillis = new Histogram();
+    private final Histogram batchSizes = new Histogram();
+
+    private final int topicLevels;
+    private final Map<String, LongAdder> topicPrefixes = new ConcurrentHashMap<>();
+    private final List<Gauge> gauges = new CopyOnWriteArrayList<>();
+    private final Map<String, String> info = new ConcurrentHashMap<>();
+    private final List<String> infoLines = new CopyOnWriteArrayList<>();
+    private ObjectName registered;
+
+    private static class Gauge {
+
+        final String name;
+        final String help;
+        //rendered, e.g. {connection="0"}, empty without labels
+        final String labels;
+        final LongSupplier value;
+
+        Gauge(String name, String help, String labels, LongSupplier value) {
+            this.name = name;
+            this.help = help;
+            this.labels = labels;
+            this.value = value;
+        }
+    }
+
+    public Metrics() {
+        this(2);
+    }
+
+    /**
+     * @param topicLevels how many leading topic levels make up the prefix
+     * messages are counted by
+     */
+    public Metrics(int topicLevels) {
+        if (topicLevels < 1) {
+            throw new IllegalArgumentException("topics need to be counted by at least one level");
+        }
+        this.topicLevels = topicLevels;
+    }
+
+    public void messageReceived() {
+        received.increment();
+    }
+
+    /**
+     * @return the counter shared by all topics with the same prefix as this
+     * one, meant to be looked up once per topic and kept
+     */
+    public LongAdder topicCounter(String topic) {
+        String prefix = prefixOf(topic);
+        LongAdder counter = topicPrefixes.get(prefix);
+        if (counter != null) {
+            return counter;
+        }
+        if (topicPrefixes.size() >= MAX_TOPIC_PREFIXES) {
+            prefix = OTHER_PREFIX;
+        }
+        return topicPrefixes.computeIfAbsent(prefix, p -> new LongAdder());
+    }
+
+    //package private for testing
+    String prefixOf(String topic) {
+        int start = topic.startsWith("/") ? 1 : 0;
+        int end = start;
+        for (int level = 0; level < topicLevels; level++) {
+            end = topic.indexOf('/', end + (level == 0 ? 0 : 1));
+            if (end < 0) {
+                return topic.substring(start);
+            }
+        }
+        return topic.substring(start, end);
+    }
+
+    public void conversion(long nanos, boolean succeeded) {
+        conversionNanos.record(nanos);
+        if (succeeded) {
+            converted.increment();
+        } else {
+            conversionFailures.increment();
+        }
+    }
+
+    /**
+     * A batch of values reached the database.
+     */
+    public void written(int values, long insertMicros) {
+        written.add(values);
+        batchSizes.record(values);
+        this.insertMicros.record(insertMicros);
+    }
+
+    /**
+     * @param millis from the arrival of a value's message to the value being
+     * written
+     */
+    public void enqueueToWrite(long millis) {
+        enqueueToWriteMillis.record(millis);
+    }
+
+    /**
+     * Values that were neither written nor spooled.
+     */
+    public void writeFailed(int values) {
+        writeFailures.add(values);
+    }
+
+    /**
+     * Adds a value that is sampled whenever the metrics are read.
+     *
+     * @param name in Prometheus style, e.g. pump_queue_depth
+     */
+    public void gauge(String name, String help, LongSupplier value) {
+        gauges.add(new Gauge(name, help, "", value));
+    }
+
+    /**
+     * Same as {@link #gauge(String, String, LongSupplier)} for one of several
+     * values of the same name, told apart by their labels.
+     */
+    public void gauge(String name, String help, Map<String, String> labels, LongSupplier value) {
+        gauges.add(new Gauge(name, help, renderLabels(labels), value));
+    }
+
+    private static String renderLabels(Map<String, String> labels) {
+        StringBuilder out = new StringBuilder("{");
+        String separator = "";
+        for (var label : new TreeMap<>(labels).entrySet()) {
+            out.append(separator).append(label.getKey()).append("=\"").append(escapeLabel(label.getValue())).append('"');
+            separator = ",";
+        }
+        return out.append('}').toString();
+    }
+
+    /**
+     * Adds a constant metric of value 1 that carries facts about this
+     * instance in its labels, e.g. to tell apart pumps sharing the load.
+     */
+    public void info(String name, String help, Map<String, String> labels) {
+        StringBuilder out = new StringBuilder();
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" gauge\n");
+        out.append(name).append(renderLabels(labels)).append(" 1\n");
+        infoLines.add(out.toString());
+        info.putAll(labels);
+    }
+
+    /**
+     * Registers this as an MXBean with the platform MBean server. Failing to
+     * do so is only logged, metrics are not worth stopping the pump for.
+     */
+    public void register() {
+        register(null);
+    }
+
+    /**
+     * Same as {@link #register()}, with the instance added to the name so
+     * that several pumps can share a JVM.
+     *
+     * @param instance e.g. the MQTT client id
+     */
+    public synchronized void register(String instance) {
+        if (registered != null) {
+            return;
+        }
+        try {
+            ObjectName name = new ObjectName(instance == null ? OBJECT_NAME : OBJECT_NAME + ",instance=" + ObjectName.quote(instance));
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, name);
+            registered = name;
+        } catch (JMException ex) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, "could not register metrics over JMX", ex);
+        }
+    }
+
+    public synchronized void unregister() {
+        if (registered == null) {
+            return;
+        }
+        try {
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(registered);
+        } catch (JMException ex) {
+            Logger.getLogger(Metrics.class.getName()).log(Level.WARNING, "could not unregister metrics", ex);
+        }
+        registered = null;
+    }
+
+    public Histogram getConversionNanos() {
+        return conversionNanos;
+    }
+
+    public Histogram getInsertMicros() {
+        return insertMicros;
+    }
+
+    public Histogram getEnqueueToWriteMillis() {
+        return enqueueToWriteMillis;
+    }
+
+    public Histogram getBatchSizes() {
+        return batchSizes;
+    }
+
+    @Override
+    public long getReceivedMessages() {
+        return received.sum();
+    }
+
+    @Override
+    public long getConvertedValues() {
+        return converted.sum();
+    }
+
+    @Override
+    public long getConversionFailures() {
+        return conversionFailures.sum();
+    }
+
+    @Override
+    public long getWrittenValues() {
+        return written.sum();
+    }
+
+    @Override
+    public long getWriteFailures() {
+        return writeFailures.sum();
+    }
+
+    @Override
+    public double getConversionMicrosP50() {
+        return conversionNanos.valueAtQuantile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getConversionMicrosP99() {
+        return conversionNanos.valueAtQuantile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getInsertMillisP50() {
+        return insertMicros.valueAtQuantile(0.5) / 1e3;
+    }
+
+    @Override
+    public double getInsertMillisP99() {
+        return insertMicros.valueAtQuantile(0.99) / 1e3;
+    }
+
+    @Override
+    public double getEnqueueToWriteMillisP50() {
+        return enqueueToWriteMillis.valueAtQuantile(0.5);
+    }
+
+    @Override
+    public double getEnqueueToWriteMillisP99() {
+        return enqueueToWriteMillis.valueAtQuantile(0.99);
+    }
+
+    @Override
+    public double getMeanBatchSize() {
+        return batchSizes.getMean();
+    }
+
+    @Override
+    public Map<String, String> getInfo() {
+        return new TreeMap<>(info);
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        Map<String, Long> values = new LinkedHashMap<>();
+        for (Gauge gauge : gauges) {
+            values.put(gauge.name + gauge.labels, gauge.value.getAsLong());
+        }
+        return values;
+    }
+
+    @Override
+    public Map<String, Long> getTopicPrefixCounts() {
+        Map<String, Long> counts = new TreeMap<>();
+        topicPrefixes.forEach((prefix, counter) -> counts.put(prefix, counter.sum()));
+        return counts;
+    }
+
+    /**
+     * @return all metrics in the Prometheus text exposition format, with
+     * latencies in seconds
+     */
+    public String toPrometheus() {
+        StringBuilder out = new StringBuilder(4096);
+        counter(out, "pump_received_messages_total", "Messages received from the MQTT broker.", getReceivedMessages());
+        counter(out, "pump_converted_values_total", "Messages converted to values.", getConvertedValues());
+        counter(out, "pump_conversion_failures_total", "Messages that could not be converted.", getConversionFailures());
+        counter(out, "pump_written_values_total", "Values written to the database.", getWrittenValues());
+        counter(out, "pump_write_failures_total", "Values that could neither be written nor spooled.", getWriteFailures());
+        summary(out, "pump_conversion_seconds", "Time to convert a message.", conversionNanos, 1e-9);
+        summary(out, "pump_insert_seconds", "Time of a single database insert call.", insertMicros, 1e-6);
+        summary(out, "pump_enqueue_to_write_seconds", "Time from a message arriving to its value being written.", enqueueToWriteMillis, 1e-3);
+        summary(out, "pump_batch_size", "Values per database insert call.", batchSizes, 1);
+
+        out.append("# HELP pump_topic_messages_total Messages received by topic prefix.\n");
+        out.append("# TYPE pump_topic_messages_total counter\n");
+        getTopicPrefixCounts().forEach((prefix, count)
+            -> out.append("pump_topic_messages_total{prefix=\"").append(escapeLabel(prefix)).append("\"} ").append(count).append('\n'));
+
+        infoLines.forEach(out::append);
+        //all values of a name go together under one header
+        Map<String, List<Gauge>> byName = new LinkedHashMap<>();
+        for (Gauge gauge : gauges) {
+            byName.computeIfAbsent(gauge.name, name -> new ArrayList<>()).add(gauge);
+        }
+        for (var named : byName.values()) {
+            Gauge first = named.get(0);
+            out.append("# HELP ").append(first.name).append(' ').append(first.help).append('\n');
+            out.append("# TYPE ").append(first.name).append(" gauge\n");
+            for (Gauge gauge : named) {
+                out.append(gauge.name).append(gauge.labels).append(' ').append(gauge.value.getAsLong()).append('\n');
+            }
+        }
+        return out.toString();
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" counter\n");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void summary(StringBuilder out, String name, String help, Histogram histogram, double scale) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(" summary\n");
+        long[] values = histogram.valuesAtQuantiles(QUANTILES);
+        for (int i = 0; i < QUANTILES.length; i++) {
+            out.append(name).append("{quantile=\"").append(QUANTILES[i]).append("\"} ").append(values[i] * scale).append('\n');
+        }
+        out.append(name).append("_sum ").append(histogram.getSum() * scale).append('\n');
+        out.append(name).append("_count ").append(histogram.getCount()).append('\n');
+    }
+
+    private static String escapeLabel(String value) {
+        return value.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n");
+    }
+}
@@ -0,0 +1,44 @@
+package jaist.pump;
+
+import java.util.Map;
+
+/**
+ * The JMX view of {@link Metrics}. Latencies are given as the median and the
+ * 99th percentile since start.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public interface MetricsMXBean {
+
+    long getReceivedMessages();
+
+    long getConvertedValues();
+
+    long getConversionFailures();
+
+    long getWrittenValues();
+
+    long getWriteFailures();
+
+    double getConversionMicrosP50();
+
+    double getConversionMicrosP99();
+
+    double getInsertMillisP50();
+
+    double getInsertMillisP99();
+
+    double getEnqueueToWriteMillisP50();
+
+    double getEnqueueToWriteMillisP99();
+
+    double getMeanBatchSize();
+
+    //facts about this instance, such as its MQTT client id
+    Map<String, String> getInfo();
+
+    //queue depths and other values sampled on read
+    Map<String, Long> getGauges();
+
+    Map<String, Long> getTopicPrefixCounts();
+}
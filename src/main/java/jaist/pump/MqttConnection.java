@@ -0,0 +1,284 @@
+package jaist.pump;
+
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.paho.mqttv5.client.IMqttToken;
+import org.eclipse.paho.mqttv5.client.MqttCallback;
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+
+/**
+ * One MQTT client connection and the subscriptions it is responsible for.
+ * Paho delivers the messages of a client on a single thread, so the pump opens
+ * several of these to receive on more than one core; all of them hand their
+ * messages to the same downstream pipeline. Each connection reconnects on its
+ * own and subscribes again once it is back.
+ * <p>
+ * At QoS 1 the connection keeps a persistent session and acknowledges a
+ * message only once downstream reports it done, through the {@link AckTracker}
+ * handed along with it. The broker sends at most receiveMaximum messages
+ * without an acknowledgement, so a stalled database slows the broker down
+ * instead of filling the pump, and whatever was not acknowledged when the pump
+ * stopped is delivered again.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class MqttConnection implements MqttCallback {
+
+    /**
+     * Takes the messages of a connection.
+     */
+    @FunctionalInterface
+    public interface Downstream {
+
+        /**
+         * @param ack to call done on once the message is taken care of, null
+         * for QoS 0 messages
+         */
+        void accept(String topic, MqttMessage message, AckTracker.Ack ack);
+    }
+
+    private final int index;
+    private final String serverUri;
+    private final String clientId;
+    //changed by configuration reloads
+    private final List<String> filters;
+    private final int qos;
+    private final int receiveMaximum;
+    private final long sessionExpiry;
+    private final Downstream downstream;
+    private final AckTracker acks;
+
+    private MqttClient client;
+    private volatile boolean connected;
+    private volatile boolean closed;
+    private final Set<String> subscribed = ConcurrentHashMap.newKeySet();
+    private final AtomicInteger connects = new AtomicInteger();
+    private final LongAdder received = new LongAdder();
+
+    /**
+     * @param index of this connection within the pump
+     * @param serverUri
+     * @param clientId
+     * @param filters the topic filters to subscribe to
+     * @param qos 0, or 1 to acknowledge messages only once they are done
+     * @param receiveMaximum messages the broker may send without an
+     * acknowledgement, only used at QoS 1
+     * @param sessionExpiry seconds the broker keeps the session of a
+     * disconnected client, only used at QoS 1
+     * @param downstream takes every message received, from this connection's
+     * callback thread
+     */
+    public MqttConnection(int index, String serverUri, String clientId, List<String> filters, int qos, int receiveMaximum, long sessionExpiry, Downstream downstream) {
+        if (qos < 0 || qos > 1) {
+            throw new IllegalArgumentException("only QoS 0 and 1 are supported: " + qos);
+        }
+        this.index = index;
+        this.serverUri = serverUri;
+        this.clientId = clientId;
+        this.filters = new CopyOnWriteArrayList<>(filters);
+        this.qos = qos;
+        this.receiveMaximum = receiveMaximum;
+        this.sessionExpiry = sessionExpiry;
+        this.downstream = downstream;
+        this.acks = qos > 0 ? new AckTracker(this::acknowledge) : null;
+    }
+
+    public void connect() throws MqttException {
+        //the broker keeps the session, unacknowledged messages included, so
+        //there is nothing to persist on our side
+        client = new MqttClient(serverUri, clientId, new MemoryPersistence());
+        client.setCallback(this);
+
+        MqttConnectionOptions options;
+        if (acks == null) {
+            options = new MqttConnectionOptionsBuilder()
+                .cleanStart(true)
+                .automaticReconnect(true)
+                .build();
+        } else {
+            client.setManualAcks(true);
+            options = new MqttConnectionOptionsBuilder()
+                .cleanStart(false)
+                .sessionExpiryInterval(sessionExpiry)
+                .automaticReconnect(true)
+                .build();
+            options.setReceiveMaximum(receiveMaximum);
+        }
+
+        client.connect(options);
+    }
+
+    //called by the tracker, in arrival order
+    private void acknowledge(int messageId) {
+        try {
+            client.messageArrivedComplete(messageId, qos);
+        } catch (MqttException ex) {
+            //the broker will deliver it again
+            Logger.getLogger(MqttConnection.class.getName()).log(Level.WARNING, clientId + " failed to acknowledge message " + messageId, ex);
+        }
+    }
+
+    public void close() {
+        closed = true;
+        if (client == null) {
+            return;
+        }
+        try {
+            if (client.isConnected()) {
+                client.disconnect();
+            }
+            client.close();
+        } catch (MqttException ex) {
+            Logger.getLogger(MqttConnection.class.getName()).log(Level.WARNING, "failed to disconnect " + clientId + " from the MQTT server", ex);
+        }
+        connected = false;
+        subscribed.clear();
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public String getClientId() {
+        return clientId;
+    }
+
+    public List<String> getFilters() {
+        return List.copyOf(filters);
+    }
+
+    /**
+     * Subscribes to one more filter, now if connected and on every reconnect.
+     */
+    public void subscribe(String filter) throws MqttException {
+        if (filters.contains(filter)) {
+            return;
+        }
+        filters.add(filter);
+        if (connected) {
+            client.subscribe(filter, qos);
+            subscribed.add(filter);
+        }
+    }
+
+    /**
+     * Drops a filter, unsubscribing now if connected.
+     */
+    public void unsubscribe(String filter) throws MqttException {
+        if (!filters.remove(filter)) {
+            return;
+        }
+        if (subscribed.remove(filter) && connected) {
+            client.unsubscribe(filter);
+        }
+    }
+
+    public boolean isConnected() {
+        return connected;
+    }
+
+    /**
+     * @return the filters currently subscribed to, empty while disconnected
+     */
+    public Set<String> getSubscribed() {
+        return Set.copyOf(subscribed);
+    }
+
+    /**
+     * @return how many times this connection was established, reconnects
+     * included
+     */
+    public int getConnects() {
+        return connects.get();
+    }
+
+    public long getReceived() {
+        return received.sum();
+    }
+
+    public int getQos() {
+        return qos;
+    }
+
+    /**
+     * @return messages received but not acknowledged yet, always 0 at QoS 0
+     */
+    public int getPendingAcks() {
+        return acks == null ? 0 : acks.getPending();
+    }
+
+    public long getAcked() {
+        return acks == null ? 0 : acks.getAcked();
+    }
+
+    private void subscribeAll() {
+        for (String filter : filters) {
+            try {
+                client.subscribe(filter, qos);
+                subscribed.add(filter);
+            } catch (MqttException ex) {
+                if (closed) {
+                    //closed while (re)connecting, nothing to subscribe for
+                    return;
+                }
+                //if we fail to subscribe, catch fire and die
+                Logger.getLogger(MqttConnection.class.getName()).log(Level.SEVERE, clientId + " failed to subscribe to " + filter, ex);
+                System.exit(-1);
+            }
+        }
+    }
+
+    @Override
+    public void messageArrived(String topic, MqttMessage message) throws Exception {
+        received.increment();
+        AckTracker.Ack ack = acks != null && message.getQos() > 0 ? acks.arrived(message.getId()) : null;
+        downstream.accept(topic, message, ack);
+    }
+
+    @Override
+    public void disconnected(MqttDisconnectResponse disconnectResponse) {
+        connected = false;
+        //subscriptions are made again on reconnect, whether or not the session
+        //kept them
+        subscribed.clear();
+        Logger.getLogger(MqttConnection.class.getName()).log(Level.WARNING, clientId + " disconnected: " + disconnectResponse);
+    }
+
+    @Override
+    public void mqttErrorOccurred(MqttException exception) {
+        Logger.getLogger(MqttConnection.class.getName()).log(Level.WARNING, clientId + " got an MQTT error", exception);
+    }
+
+    @Override
+    public void deliveryComplete(IMqttToken token) {
+        //the pump does not publish
+    }
+
+    @Override
+    public void connectComplete(boolean reconnect, String serverURI) {
+        connected = true;
+        connects.incrementAndGet();
+        Logger.getLogger(MqttConnection.class.getName()).log(Level.INFO, clientId + (reconnect ? " reconnected to " : " connected to ") + serverURI);
+        subscribeAll();
+    }
+
+    @Override
+    public void authPacketArrived(int reasonCode, MqttProperties properties) {
+        //no enhanced authentication is set up, there is nothing to answer
+        Logger.getLogger(MqttConnection.class.getName()).log(Level.WARNING, clientId + " ignored an AUTH packet, reason code " + reasonCode
+            + (properties != null && properties.getAuthenticationMethod() != null ? ", method " + properties.getAuthenticationMethod() : ""));
+    }
+}
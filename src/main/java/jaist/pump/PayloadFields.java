@@ -0,0 +1,66 @@
+package jaist.pump;
+
+import java.util.Arrays;
+
+/**
+ * The routes of the fields seen in the JSON or binary payloads of one topic,
+ * looked up by the raw bytes of the field name so that known fields cost no
+ * allocation.
+ * Only the converting thread uses it, it is not thread-safe.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class PayloadFields {
+
+    //a device publishing ever new field names must not take all memory
+    static final int MAX_FIELDS = 1024;
+
+    private byte[][] names = new byte[8][];
+    private int[] hashes = new int[8];
+    private TopicRoute[] routes = new TopicRoute[8];
+    private int size;
+
+    /**
+     * @return the route of the field, null if not known
+     */
+    public TopicRoute get(byte[] name, int offset, int length) {
+        int hash = hash(name, offset, length);
+        for (int i = 0; i < size; i++) {
+            if (hashes[i] == hash && Arrays.equals(names[i], 0, names[i].length, name, offset, offset + length)) {
+                return routes[i];
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return false if the topic has too many fields already
+     */
+    public boolean put(byte[] name, int offset, int length, TopicRoute route) {
+        if (size == MAX_FIELDS) {
+            return false;
+        }
+        if (size == names.length) {
+            names = Arrays.copyOf(names, size * 2);
+            hashes = Arrays.copyOf(hashes, size * 2);
+            routes = Arrays.copyOf(routes, size * 2);
+        }
+        names[size] = Arrays.copyOfRange(name, offset, offset + length);
+        hashes[size] = hash(name, offset, length);
+        routes[size] = route;
+        size++;
+        return true;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private static int hash(byte[] name, int offset, int length) {
+        int hash = 1;
+        for (int i = offset; i < offset + length; i++) {
+            hash = 31 * hash + name[i];
+        }
+        return hash;
+    }
+}
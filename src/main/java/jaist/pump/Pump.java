@@ -2,34 +2,59 @@ package jaist.pump;
 
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.EnumMap;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import java.util.function.DoubleFunction;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.apache.iotdb.rpc.IoTDBConnectionException;
 import org.apache.iotdb.rpc.StatementExecutionException;
-import org.apache.iotdb.session.Session;
 import org.apache.tsfile.enums.TSDataType;
-import org.eclipse.paho.mqttv5.client.IMqttToken;
-import org.eclipse.paho.mqttv5.client.MqttCallback;
-import org.eclipse.paho.mqttv5.client.MqttClient;
-import org.eclipse.paho.mqttv5.client.MqttConnectionOptions;
-import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
-import org.eclipse.paho.mqttv5.client.MqttDisconnectResponse;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
 import org.eclipse.paho.mqttv5.common.MqttException;
 import org.eclipse.paho.mqttv5.common.MqttMessage;
-import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
 
 /**
  *
  * @author smarios <smarios@jaist.ac.jp>
  */
-public class Pump implements MqttCallback {
+public class Pump {
+
+    public enum WriteMode {
+        //one record per value, see BatchWriter
+        RECORDS,
+        //one column-wise tablet per device, see TabletWriter
+        TABLETS
+    }
+
+    public enum ExecutionMode {
+        //one platform thread per writer
+        PLATFORM,
+        //one virtual thread per writer, needs Java 21, see Threads
+        VIRTUAL
+    }
 
     static final String DBHOST_KEY = "DBHOST";
     static final String DBPORT_KEY = "DBPORT";
@@ -41,6 +66,11 @@ public class Pump implements MqttCallback {
     static final String MQTTPORT_KEY = "MQTTPORT";
     static final String MQTTTOPICS_KEY = "MQTTTOPICS";
     static final String MQTTCLIENTID_KEY = "MQTTCLIENTID";
+    static final String MQTTSHAREGROUP_KEY = "MQTTSHAREGROUP";
+    static final String MQTTCONNECTIONS_KEY = "MQTTCONNECTIONS";
+    static final String MQTTQOS_KEY = "MQTTQOS";
+    static final String MQTTRECEIVEMAXIMUM_KEY = "MQTTRECEIVEMAXIMUM";
+    static final String MQTTSESSIONEXPIRY_KEY = "MQTTSESSIONEXPIRY";
 
     static final String CONV_BOOL_KEY = "CONVERT-BOOL";
     static final String CONV_INT_KEY = "CONVERT-INT";
@@ -48,10 +78,76 @@ public class Pump implements MqttCallback {
     static final String CONV_DOUBLE_KEY = "CONVERT-DOUBLE";
     static final String CONV_TEXT_KEY = "CONVERT-TEXT";
 
-    private Session dbsession;
-    private MqttClient mqttclient;
-
-    private final List<TopicAndMessage> messages;
+    static final String DEADBAND_ABS_KEY = "DEADBAND-ABS";
+    static final String DEADBAND_PCT_KEY = "DEADBAND-PCT";
+    static final String CHANGE_ONLY_KEY = "CHANGE-ONLY";
+    static final String DEADBAND_HEARTBEAT_MS_KEY = "DEADBAND-HEARTBEAT-MS";
+    static final String DEADBAND_SERIES_KEY = "DEADBAND-SERIES";
+
+    static final String AGGREGATE_KEY = "AGGREGATE";
+    static final String AGGREGATE_KEEP_RAW_KEY = "AGGREGATE-KEEP-RAW";
+    static final String AGGREGATE_GRACE_MS_KEY = "AGGREGATE-GRACE-MS";
+
+    static final String JSON_TOPICS_KEY = "JSON-TOPICS";
+    static final String JSON_TIMESTAMP_FIELD_KEY = "JSON-TIMESTAMP-FIELD";
+    static final String BINARY_TOPICS_KEY = "BINARY-TOPICS";
+
+    //ROUTE.<name>.TOPIC and so on, see loadRoutes
+    static final String ROUTE_KEY_PREFIX = "ROUTE.";
+
+    static final String BATCH_SIZE_KEY = "BATCH-SIZE";
+    static final String BATCH_LINGER_MS_KEY = "BATCH-LINGER-MS";
+
+    static final String WRITER_THREADS_KEY = "WRITER-THREADS";
+    static final String WRITE_MODE_KEY = "WRITE-MODE";
+    static final String EXECUTION_MODE_KEY = "EXECUTION-MODE";
+    static final String DB_CONNECTIONS_KEY = "DB-CONNECTIONS";
+    static final String DBNODES_KEY = "DBNODES";
+    static final String DB_SPREAD_KEY = "DB-SPREAD";
+    static final String TABLET_ROWS_KEY = "TABLET-ROWS";
+    static final String TABLET_ALIGNED_KEY = "TABLET-ALIGNED";
+    static final String TOPIC_CACHE_SIZE_KEY = "TOPIC-CACHE-SIZE";
+
+    static final String SCHEMA_CREATE_KEY = "SCHEMA-CREATE";
+    static final String SCHEMA_ENCODING_KEY = "SCHEMA-ENCODING";
+    static final String SCHEMA_COMPRESSION_KEY = "SCHEMA-COMPRESSION";
+
+    static final String SPOOL_DIR_KEY = "SPOOL-DIR";
+    static final String SPOOL_SEGMENT_MB_KEY = "SPOOL-SEGMENT-MB";
+    static final String SPOOL_MAX_SEGMENTS_KEY = "SPOOL-MAX-SEGMENTS";
+
+    static final String CAPTURE_DIR_KEY = "CAPTURE-DIR";
+    static final String CAPTURE_SEGMENT_MB_KEY = "CAPTURE-SEGMENT-MB";
+    static final String CAPTURE_MAX_SEGMENTS_KEY = "CAPTURE-MAX-SEGMENTS";
+
+    static final String QUEUE_CAPACITY_KEY = "QUEUE-CAPACITY";
+    static final String QUEUE_OVERFLOW_KEY = "QUEUE-OVERFLOW";
+
+    static final String METRICS_HTTP_PORT_KEY = "METRICS-HTTP-PORT";
+    static final String METRICS_TOPIC_LEVELS_KEY = "METRICS-TOPIC-LEVELS";
+
+    static final String CONFIG_RELOAD_KEY = "CONFIG-RELOAD";
+    //settings a configuration reload applies, changes to any other need a
+    //restart. routing rules too, see ROUTE_KEY_PREFIX
+    static final Set<String> RELOADABLE_KEYS = Set.of(MQTTTOPICS_KEY,
+        CONV_BOOL_KEY, CONV_INT_KEY, CONV_FLOAT_KEY, CONV_DOUBLE_KEY, CONV_TEXT_KEY,
+        DEADBAND_ABS_KEY, DEADBAND_PCT_KEY, CHANGE_ONLY_KEY, AGGREGATE_KEY,
+        JSON_TOPICS_KEY, JSON_TIMESTAMP_FIELD_KEY, BINARY_TOPICS_KEY, CONFIG_RELOAD_KEY);
+
+    private static final SampledLogger RECEIVED = new SampledLogger(Logger.getLogger(Pump.class.getName()), 10_000);
+
+    private WriterPool writers;
+    private Spool spool;
+    private final List<MqttConnection> connections = new ArrayList<>();
+    private MetricsServer metricsServer;
+    private ConnectionRetry retry;
+    private ConfigWatcher configWatcher;
+    private volatile TrafficCapture capture;
+    //cleared by close() to stop the main loop
+    private volatile boolean running = true;
+    private volatile Thread mainThread;
+
+    private final RingBuffer<TopicAndMessage> messages;
 
     final String dbhost;
     final int dbport;
@@ -62,8 +158,55 @@ public class Pump implements MqttCallback {
     private final String dbusername;
     private final String dbpassword;
     final String mqttClientId;
-    private final Map<String, DataConvertor> conversions;
+    final String mqttShareGroup;
+    final int mqttConnections;
+    final int mqttQos;
+    final int mqttReceiveMaximum;
+    final long mqttSessionExpiry;
+    final int batchSize;
+    final long batchLingerMs;
+    final int writerThreads;
+    final ExecutionMode executionMode;
+    final int dbConnections;
+    //host:port of every node of a cluster, empty for DBHOST:DBPORT alone
+    final List<String> dbNodes;
+    final SinkCluster.Spread dbSpread;
+    final WriteMode writeMode;
+    final int tabletRows;
+    final boolean tabletAligned;
+    final String spoolDir;
+    final int spoolSegmentMb;
+    final int spoolMaxSegments;
+    final String captureDir;
+    final int captureSegmentMb;
+    final int captureMaxSegments;
+    final int metricsHttpPort;
+    //swapped by configuration reloads, see reload
+    private volatile RouteConfig routes;
+    private final AtomicReference<RouteConfig> reloaded = new AtomicReference<>();
+    final boolean configReload;
+    private final LongAdder reloads = new LongAdder();
+    private final LongAdder reloadFailures = new LongAdder();
+    private volatile long reloadMicros;
     private final DataConvertor defaultConvertor = DataConvertor.DoubleOrText();
+    private final TopicCache topicCache;
+    private final DeadbandFilter deadbands;
+    private final WindowAggregator aggregates;
+    final boolean aggregateKeepRaw;
+    //scratch state of the JSON or binary payload being converted, converting
+    //thread only
+    private final JsonPayload json = new JsonPayload();
+    private final JsonPayload.FieldHandler jsonHandler = this::jsonField;
+    private final BinaryPayload.FieldHandler binaryHandler = this::binaryField;
+    private final List<TimeSeriesAndValue> fieldValues = new ArrayList<>();
+    private final List<TopicRoute> fieldRoutes = new ArrayList<>();
+    private TopicRoute fieldsOf;
+    private long fieldsTimestamp;
+    private final LongAdder fieldsDropped = new LongAdder();
+    private final SeriesTypeRegistry seriesTypes = new SeriesTypeRegistry();
+    //null if IoTDB creates the series itself
+    private final SchemaManager schema;
+    private final Metrics metrics;
 
     public static class Builder {
 
@@ -76,7 +219,47 @@ public class Pump implements MqttCallback {
         private int mqttPort = 1883;
         private String topics = null;
         private String mqttClientId = "iotpump-persistence";
+        private String mqttShareGroup = null;
+        private int mqttConnections = 1;
+        private int mqttQos = 0;
+        private int mqttReceiveMaximum = 1000;
+        private long mqttSessionExpiry = 3600;
+        private int batchSize = 1000;
+        private long batchLingerMs = 200;
+        private int writerThreads = 1;
+        private ExecutionMode executionMode = ExecutionMode.PLATFORM;
+        private int dbConnections = 0;
+        private String dbNodes = null;
+        private SinkCluster.Spread dbSpread = SinkCluster.Spread.ROUND_ROBIN;
+        private WriteMode writeMode = WriteMode.RECORDS;
+        private int tabletRows = 100;
+        private boolean tabletAligned = false;
+        private String spoolDir = null;
+        private int spoolSegmentMb = 64;
+        private int spoolMaxSegments = 32;
+        private String captureDir = null;
+        private int captureSegmentMb = 64;
+        private int captureMaxSegments = 0;
+        private int topicCacheSize = 10000;
+        private int queueCapacity = 65536;
+        private RingBuffer.OverflowPolicy queueOverflow = RingBuffer.OverflowPolicy.BLOCK;
+        private int metricsHttpPort = 0;
+        private int metricsTopicLevels = 2;
         private final Map<String, DataConvertor> conversions = new HashMap<>();
+        private final Map<String, Deadband> deadbands = new HashMap<>();
+        private long deadbandHeartbeatMs = 300_000;
+        private int deadbandSeries = 1 << 20;
+        private final Map<String, Long> aggregateWindows = new LinkedHashMap<>();
+        private boolean aggregateKeepRaw = false;
+        private long aggregateGraceMs = 2000;
+        private final List<String> jsonTopics = new ArrayList<>();
+        private String jsonTimestampField = "ts";
+        private final List<String> binaryTopics = new ArrayList<>();
+        private final List<RoutingRule> routes = new ArrayList<>();
+        private boolean configReload = true;
+        private boolean schemaCreate = true;
+        private final Map<TSDataType, TSEncoding> schemaEncodings = new EnumMap<>(TSDataType.class);
+        private final Map<TSDataType, CompressionType> schemaCompressions = new EnumMap<>(TSDataType.class);
 
         public Builder() {
         }
@@ -126,20 +309,398 @@ public class Pump implements MqttCallback {
             return this;
         }
 
+        /**
+         * @param group subscribe as a member of this shared subscription
+         * group, so that the broker splits messages between all pumps in
+         * it. null to get every message
+         */
+        public Builder mqttShareGroup(String group) {
+            this.mqttShareGroup = group;
+            return this;
+        }
+
+        /**
+         * @param connections how many MQTT connections to receive on, the
+         * topics are divided between them
+         */
+        public Builder mqttConnections(int connections) {
+            this.mqttConnections = connections;
+            return this;
+        }
+
+        /**
+         * @param qos 0 for at most once, 1 for at least once: messages are
+         * acknowledged only after their values are written (or spooled)
+         */
+        public Builder mqttQos(int qos) {
+            this.mqttQos = qos;
+            return this;
+        }
+
+        /**
+         * @param receiveMaximum QoS 1 messages the broker may send each
+         * connection before they are acknowledged
+         */
+        public Builder mqttReceiveMaximum(int receiveMaximum) {
+            this.mqttReceiveMaximum = receiveMaximum;
+            return this;
+        }
+
+        /**
+         * @param seconds how long the broker keeps the QoS 1 session, and the
+         * messages for it, while the pump is away
+         */
+        public Builder mqttSessionExpiry(long seconds) {
+            this.mqttSessionExpiry = seconds;
+            return this;
+        }
+
+        /**
+         * @param suffix topic suffix whose values are dropped while within the
+         * deadband of the last written one. Adding several deadbands for a
+         * suffix drops what any of them would
+         */
+        public Builder deadband(String suffix, Deadband deadband) {
+            this.deadbands.merge(suffix.strip().toLowerCase(), deadband, Deadband::or);
+            return this;
+        }
+
+        /**
+         * @param heartbeatMs write a value anyway once its series has not been
+         * written for this long, 0 for never
+         */
+        public Builder deadbandHeartbeatMs(long heartbeatMs) {
+            this.deadbandHeartbeatMs = heartbeatMs;
+            return this;
+        }
+
+        /**
+         * @param series how many series the deadband filter keeps track of
+         */
+        public Builder deadbandSeries(int series) {
+            this.deadbandSeries = series;
+            return this;
+        }
+
+        /**
+         * @param filter MQTT topic filter whose series are aggregated, the
+         * first matching filter applies
+         * @param windowMs length of the aggregation windows
+         */
+        public Builder aggregate(String filter, long windowMs) {
+            this.aggregateWindows.put(filter.strip(), windowMs);
+            return this;
+        }
+
+        /**
+         * @param keepRaw write the aggregated values too, not only their
+         * statistics
+         */
+        public Builder aggregateKeepRaw(boolean keepRaw) {
+            this.aggregateKeepRaw = keepRaw;
+            return this;
+        }
+
+        /**
+         * @param graceMs how long past its end the window of a quiet series is
+         * kept open
+         */
+        public Builder aggregateGraceMs(long graceMs) {
+            this.aggregateGraceMs = graceMs;
+            return this;
+        }
+
+        /**
+         * @param filter MQTT topic filter whose payloads are JSON objects,
+         * every field of which is a measurement of the topic's device
+         */
+        public Builder jsonTopic(String filter) {
+            this.jsonTopics.add(filter.strip());
+            return this;
+        }
+
+        /**
+         * @param field top level JSON field holding the timestamp of the
+         * reading in milliseconds, null to always use the arrival time
+         */
+        public Builder jsonTimestampField(String field) {
+            this.jsonTimestampField = field;
+            return this;
+        }
+
+        /**
+         * @param filter MQTT topic filter whose payloads are in the compact
+         * binary format, see {@link BinaryPayload}
+         */
+        public Builder binaryTopic(String filter) {
+            this.binaryTopics.add(filter.strip());
+            return this;
+        }
+
+        /**
+         * @param rule how to write the topics matching its filter, the most
+         * specific filter wins
+         */
+        public Builder route(RoutingRule rule) {
+            this.routes.add(rule);
+            return this;
+        }
+
+        /**
+         * @param reload watch the configuration file and apply changes to the
+         * topics, convertors and routing without a restart
+         */
+        public Builder configReload(boolean reload) {
+            this.configReload = reload;
+            return this;
+        }
+
+        /**
+         * @param create create the series before their first value is written,
+         * with the configured encodings and compressions, instead of leaving it
+         * to IoTDB
+         */
+        public Builder schemaCreate(boolean create) {
+            this.schemaCreate = create;
+            return this;
+        }
+
+        /**
+         * @throws IllegalArgumentException if the encoding does not support the
+         * type
+         */
+        public Builder schemaEncoding(TSDataType type, TSEncoding encoding) {
+            if (!encoding.isSupported(type)) {
+                throw new IllegalArgumentException(encoding + " cannot encode " + type);
+            }
+            this.schemaEncodings.put(type, encoding);
+            return this;
+        }
+
+        public Builder schemaCompression(TSDataType type, CompressionType compression) {
+            this.schemaCompressions.put(type, compression);
+            return this;
+        }
+
+        public Builder batchSize(int size) {
+            this.batchSize = size;
+            return this;
+        }
+
+        public Builder batchLingerMs(long lingerMs) {
+            this.batchLingerMs = lingerMs;
+            return this;
+        }
+
+        public Builder writerThreads(int threads) {
+            this.writerThreads = threads;
+            return this;
+        }
+
+        public Builder executionMode(ExecutionMode mode) {
+            this.executionMode = mode;
+            return this;
+        }
+
+        /**
+         * @param connections how many database connections the writer
+         * threads share, 0 for one per thread
+         */
+        public Builder dbConnections(int connections) {
+            this.dbConnections = connections;
+            return this;
+        }
+
+        /**
+         * @param nodes comma separated host:port of the nodes of a cluster to
+         * write to instead of dbhost:dbport, see {@link SinkCluster}
+         */
+        public Builder dbNodes(String nodes) {
+            this.dbNodes = nodes;
+            return this;
+        }
+
+        public Builder dbSpread(SinkCluster.Spread spread) {
+            this.dbSpread = spread;
+            return this;
+        }
+
+        public Builder writeMode(WriteMode mode) {
+            this.writeMode = mode;
+            return this;
+        }
+
+        public Builder tabletRows(int rows) {
+            this.tabletRows = rows;
+            return this;
+        }
+
+        public Builder tabletAligned(boolean aligned) {
+            this.tabletAligned = aligned;
+            return this;
+        }
+
+        /**
+         * @param dir where to spool values the database cannot take, null
+         * to drop them instead
+         */
+        public Builder spoolDir(String dir) {
+            this.spoolDir = dir;
+            return this;
+        }
+
+        public Builder spoolSegmentMb(int megabytes) {
+            this.spoolSegmentMb = megabytes;
+            return this;
+        }
+
+        public Builder spoolMaxSegments(int segments) {
+            this.spoolMaxSegments = segments;
+            return this;
+        }
+
+        /**
+         * @param dir where to record the messages received, see
+         * {@link TrafficCapture}, null to not record them
+         */
+        public Builder captureDir(String dir) {
+            this.captureDir = dir;
+            return this;
+        }
+
+        public Builder captureSegmentMb(int megabytes) {
+            this.captureSegmentMb = megabytes;
+            return this;
+        }
+
+        /**
+         * @param segments how many capture files to keep, 0 for all
+         */
+        public Builder captureMaxSegments(int segments) {
+            this.captureMaxSegments = segments;
+            return this;
+        }
+
+        public Builder topicCacheSize(int size) {
+            this.topicCacheSize = size;
+            return this;
+        }
+
+        public Builder queueCapacity(int capacity) {
+            this.queueCapacity = capacity;
+            return this;
+        }
+
+        public Builder queueOverflow(RingBuffer.OverflowPolicy policy) {
+            this.queueOverflow = policy;
+            return this;
+        }
+
+        /**
+         * @param port serve metrics on this local port, 0 to not serve them
+         */
+        public Builder metricsHttpPort(int port) {
+            this.metricsHttpPort = port;
+            return this;
+        }
+
+        /**
+         * @param levels message rates are counted by this many leading topic
+         * levels
+         */
+        public Builder metricsTopicLevels(int levels) {
+            this.metricsTopicLevels = levels;
+            return this;
+        }
+
         public Pump build() {
+            if (batchSize < 1) {
+                throw new IllegalArgumentException("batch size must be at least 1");
+            }
+            if (mqttConnections < 1) {
+                throw new IllegalArgumentException("at least one MQTT connection is required");
+            }
+            if (mqttQos < 0 || mqttQos > 1) {
+                throw new IllegalArgumentException("only MQTT QoS 0 and 1 are supported: " + mqttQos);
+            }
+            if (mqttReceiveMaximum < 1 || mqttReceiveMaximum > 65535) {
+                throw new IllegalArgumentException("the receive maximum must be between 1 and 65535: " + mqttReceiveMaximum);
+            }
+            if (mqttSessionExpiry < 0) {
+                throw new IllegalArgumentException("the session expiry cannot be negative");
+            }
+            if (writerThreads < 1) {
+                throw new IllegalArgumentException("at least one writer thread is required");
+            }
+            if (dbConnections < 0) {
+                throw new IllegalArgumentException("the number of database connections cannot be negative");
+            }
+            if (tabletRows < 1) {
+                throw new IllegalArgumentException("tablets need at least one row");
+            }
+            return new Pump(this);
+        }
+
+        private RingBuffer.OverflowPolicy overflowPolicy() {
+            if (mqttQos > 0 && queueOverflow != RingBuffer.OverflowPolicy.BLOCK) {
+                //a dropped message is never acknowledged, and holds back the
+                //acknowledgements of all messages after it
+                Logger.getLogger(Builder.class.getName()).log(Level.WARNING,
+                    "QoS 1 needs the " + RingBuffer.OverflowPolicy.BLOCK + " queue overflow policy, ignoring " + queueOverflow);
+                return RingBuffer.OverflowPolicy.BLOCK;
+            }
+            return queueOverflow;
+        }
+
+        //null if not subscribing as a member of a group
+        private String shareGroup() {
+            String group = mqttShareGroup == null || mqttShareGroup.isBlank() ? null : mqttShareGroup.strip();
+            if (group != null && (group.contains("/") || group.contains("+") || group.contains("#"))) {
+                throw new IllegalArgumentException("share group names cannot contain '/', '+' or '#': " + group);
+            }
+            return group;
+        }
+
+        private String clientId(String group) {
+            String clientId = mqttClientId;
+            if (group != null && !clientId.contains("{")) {
+                //all members of a group must have different ids
+                clientId = clientId + "-{host}-{pid}";
+            }
+            return expandClientId(clientId);
+        }
+
+        private List<String> nodeList() {
+            List<String> nodes = new ArrayList<>();
+            if (dbNodes != null) {
+                for (String node : dbNodes.split(",")) {
+                    if (!node.isBlank()) {
+                        nodes.add(node.strip());
+                    }
+                }
+            }
+            return List.copyOf(nodes);
+        }
+
+        /**
+         * @return the settings deciding the routes of topics, which a
+         * configuration reload can replace
+         */
+        public RouteConfig buildRoutes() {
+            return new RouteConfig(conversions, deadbands, aggregateWindows, jsonTopics, jsonTimestampField, binaryTopics, routes);
+        }
+
+        //the configured topics, split and stripped
+        String[] topicList() {
             if (this.topics == null) {
                 throw new IllegalArgumentException("no valid topics configuration!");
             }
-            //this is horrible, the use of java arrays
-            //when comming from rust it'd be
-            //topics.split.map(strip).collect() and go to town
             String[] splits = topics.split(",");
-            String[] scrubbed_topics = new String[splits.length];
+            String[] scrubbed = new String[splits.length];
             for (int i = 0; i < splits.length; i++) {
-                scrubbed_topics[i] = splits[i].strip();
+                scrubbed[i] = splits[i].strip();
             }
-
-            return new Pump(dbhost, dbport, dbusername, dbpassword, dbname, mqttServerUri, mqttPort, scrubbed_topics, mqttClientId, conversions);
+            return scrubbed;
         }
 
         private void loadConvertor(Properties properties, String key, DataConvertor convertor) {
@@ -155,6 +716,214 @@ public class Pump implements MqttCallback {
 
         }
 
+        //only for optional settings, a missing key silently keeps the default
+        private int intProperty(Properties properties, String key, int fallback) {
+            var prop = properties.getProperty(key);
+            if (prop == null) {
+                return fallback;
+            }
+            try {
+                return Integer.parseInt(prop.strip());
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + key + ", using default: " + fallback, ex);
+                return fallback;
+            }
+        }
+
+        private long longProperty(Properties properties, String key, long fallback) {
+            var prop = properties.getProperty(key);
+            if (prop == null) {
+                return fallback;
+            }
+            try {
+                return Long.parseLong(prop.strip());
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + key + ", using default: " + fallback, ex);
+                return fallback;
+            }
+        }
+
+        //entries look like suffix:band, separated by commas
+        private void loadDeadbands(Properties properties, String key, DoubleFunction<Deadband> deadband) {
+            var prop = properties.getProperty(key);
+            if (prop == null) {
+                return;
+            }
+            for (var entry : prop.split(",")) {
+                int split = entry.lastIndexOf(':');
+                try {
+                    if (split < 0) {
+                        throw new IllegalArgumentException("no band given");
+                    }
+                    this.deadband(entry.substring(0, split), deadband.apply(Double.parseDouble(entry.substring(split + 1).strip())));
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + key + ", ignoring: " + entry.strip(), ex);
+                }
+            }
+        }
+
+        //entries look like filter:windowMs, separated by commas
+        private void loadAggregates(Properties properties) {
+            var prop = properties.getProperty(AGGREGATE_KEY);
+            if (prop != null) {
+                for (var entry : prop.split(",")) {
+                    int split = entry.lastIndexOf(':');
+                    try {
+                        if (split < 0) {
+                            throw new IllegalArgumentException("no window given");
+                        }
+                        this.aggregate(entry.substring(0, split), Long.parseLong(entry.substring(split + 1).strip()));
+                    } catch (IllegalArgumentException ex) {
+                        Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + AGGREGATE_KEY + ", ignoring: " + entry.strip(), ex);
+                    }
+                }
+            }
+            this.aggregateKeepRaw(Boolean.parseBoolean(properties.getProperty(AGGREGATE_KEEP_RAW_KEY, String.valueOf(aggregateKeepRaw)).strip()));
+            this.aggregateGraceMs(longProperty(properties, AGGREGATE_GRACE_MS_KEY, aggregateGraceMs));
+        }
+
+        private void loadDeadbands(Properties properties) {
+            var changeOnly = properties.getProperty(CHANGE_ONLY_KEY);
+            if (changeOnly != null) {
+                for (var suffix : changeOnly.split(",")) {
+                    this.deadband(suffix, Deadband.changeOnly());
+                }
+            }
+            loadDeadbands(properties, DEADBAND_ABS_KEY, Deadband::absolute);
+            loadDeadbands(properties, DEADBAND_PCT_KEY, Deadband::percent);
+            this.deadbandHeartbeatMs(longProperty(properties, DEADBAND_HEARTBEAT_MS_KEY, deadbandHeartbeatMs));
+            this.deadbandSeries(intProperty(properties, DEADBAND_SERIES_KEY, deadbandSeries));
+        }
+
+        //types go by the names of their convertors
+        private static TSDataType typeNamed(String name) {
+            return convertorNamed(name).getPrimitiveType();
+        }
+
+        //entries look like type:encoding, separated by commas. a compression
+        //without a type applies to all types
+        private void loadSchema(Properties properties) {
+            this.schemaCreate(Boolean.parseBoolean(properties.getProperty(SCHEMA_CREATE_KEY, String.valueOf(schemaCreate)).strip()));
+            var encodings = properties.getProperty(SCHEMA_ENCODING_KEY);
+            if (encodings != null) {
+                for (var entry : encodings.split(",")) {
+                    int split = entry.indexOf(':');
+                    try {
+                        if (split < 0) {
+                            throw new IllegalArgumentException("no type given");
+                        }
+                        this.schemaEncoding(typeNamed(entry.substring(0, split)), TSEncoding.valueOf(entry.substring(split + 1).strip().toUpperCase()));
+                    } catch (IllegalArgumentException ex) {
+                        Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + SCHEMA_ENCODING_KEY + ", ignoring: " + entry.strip(), ex);
+                    }
+                }
+            }
+            var compressions = properties.getProperty(SCHEMA_COMPRESSION_KEY);
+            if (compressions != null) {
+                for (var entry : compressions.split(",")) {
+                    int split = entry.indexOf(':');
+                    try {
+                        if (split < 0) {
+                            var compression = CompressionType.valueOf(entry.strip().toUpperCase());
+                            for (var type : List.of(TSDataType.BOOLEAN, TSDataType.INT32, TSDataType.FLOAT, TSDataType.DOUBLE, TSDataType.TEXT)) {
+                                this.schemaCompressions.putIfAbsent(type, compression);
+                            }
+                        } else {
+                            this.schemaCompression(typeNamed(entry.substring(0, split)), CompressionType.valueOf(entry.substring(split + 1).strip().toUpperCase()));
+                        }
+                    } catch (IllegalArgumentException ex) {
+                        Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + SCHEMA_COMPRESSION_KEY + ", ignoring: " + entry.strip(), ex);
+                    }
+                }
+            }
+        }
+
+        private static DataConvertor convertorNamed(String name) {
+            switch (name.strip().toUpperCase()) {
+                case "BOOL":
+                    return DataConvertor.Boolean();
+                case "INT":
+                    return DataConvertor.Int32();
+                case "FLOAT":
+                    return DataConvertor.Float();
+                case "DOUBLE":
+                    return DataConvertor.Double();
+                case "TEXT":
+                    return DataConvertor.Text();
+                default:
+                    throw new IllegalArgumentException("unknown convertor: " + name.strip());
+            }
+        }
+
+        //every rule is a group of keys ROUTE.<name>.<setting>, TOPIC being the
+        //only one required
+        private void loadRoutes(Properties properties) {
+            Map<String, Map<String, String>> settings = new TreeMap<>();
+            for (var key : properties.stringPropertyNames()) {
+                if (!key.startsWith(ROUTE_KEY_PREFIX)) {
+                    continue;
+                }
+                int split = key.indexOf('.', ROUTE_KEY_PREFIX.length());
+                if (split < 0) {
+                    Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration, ignoring: " + key);
+                    continue;
+                }
+                settings.computeIfAbsent(key.substring(ROUTE_KEY_PREFIX.length(), split), name -> new HashMap<>())
+                    .put(key.substring(split + 1).toUpperCase(), properties.getProperty(key).strip());
+            }
+            for (var entry : settings.entrySet()) {
+                var name = entry.getKey();
+                var rule = entry.getValue();
+                try {
+                    if (!rule.containsKey("TOPIC")) {
+                        throw new IllegalArgumentException("no TOPIC given");
+                    }
+                    var route = new RoutingRule(name, rule.get("TOPIC"));
+                    for (var setting : rule.entrySet()) {
+                        var value = setting.getValue();
+                        switch (setting.getKey()) {
+                            case "TOPIC":
+                                break;
+                            case "SERIES":
+                                route.series(value);
+                                break;
+                            case "CONVERT":
+                                route.convertor(convertorNamed(value));
+                                break;
+                            case "PAYLOAD":
+                                route.payload(RoutingRule.Payload.valueOf(value.toUpperCase()));
+                                break;
+                            case "DEADBAND-ABS":
+                                route.deadband(Deadband.absolute(Double.parseDouble(value)));
+                                break;
+                            case "DEADBAND-PCT":
+                                route.deadband(Deadband.percent(Double.parseDouble(value)));
+                                break;
+                            case "CHANGE-ONLY":
+                                if (Boolean.parseBoolean(value)) {
+                                    route.deadband(Deadband.changeOnly());
+                                }
+                                break;
+                            case "AGGREGATE":
+                                route.aggregate(Long.parseLong(value));
+                                break;
+                            case "ENCODING":
+                                route.encoding(TSEncoding.valueOf(value.toUpperCase()));
+                                break;
+                            case "COMPRESSION":
+                                route.compression(CompressionType.valueOf(value.toUpperCase()));
+                                break;
+                            default:
+                                throw new IllegalArgumentException("unknown setting: " + setting.getKey());
+                        }
+                    }
+                    this.route(route);
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: route " + name + ", ignoring it", ex);
+                }
+            }
+        }
+
         private Map<String, DataConvertor> loadConvertors(Properties properties) {
             loadConvertor(properties, CONV_FLOAT_KEY, DataConvertor.Float());
             loadConvertor(properties, CONV_DOUBLE_KEY, DataConvertor.Double());
@@ -165,6 +934,14 @@ public class Pump implements MqttCallback {
         }
 
         public Pump fromProperties(Properties properties) {
+            return this.configure(properties).build();
+        }
+
+        /**
+         * Takes the settings found in the properties, keeping the current
+         * ones for anything missing.
+         */
+        public Builder configure(Properties properties) {
 
             this.dbhost(properties.getProperty(DBHOST_KEY, dbhost));
             this.dbname(properties.getProperty(DBNAME_KEY, dbname));
@@ -174,6 +951,11 @@ public class Pump implements MqttCallback {
             this.mqttServerUri(properties.getProperty(MQTTSERVER_KEY, mqttServerUri));
             this.topics(properties.getProperty(MQTTTOPICS_KEY, topics));
             this.mqttClientId(properties.getProperty(MQTTCLIENTID_KEY, this.mqttClientId));
+            this.mqttShareGroup(properties.getProperty(MQTTSHAREGROUP_KEY, this.mqttShareGroup));
+            this.mqttConnections(intProperty(properties, MQTTCONNECTIONS_KEY, this.mqttConnections));
+            this.mqttQos(intProperty(properties, MQTTQOS_KEY, this.mqttQos));
+            this.mqttReceiveMaximum(intProperty(properties, MQTTRECEIVEMAXIMUM_KEY, this.mqttReceiveMaximum));
+            this.mqttSessionExpiry(longProperty(properties, MQTTSESSIONEXPIRY_KEY, this.mqttSessionExpiry));
 
             try {
                 this.dbport(Integer.parseInt(properties.getProperty(DBPORT_KEY)));
@@ -187,26 +969,159 @@ public class Pump implements MqttCallback {
                 Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed or non-existing configuration: MQTTPORT, using default port: " + this.mqttPort, ex);
             }
 
+            this.batchSize(intProperty(properties, BATCH_SIZE_KEY, batchSize));
+            this.batchLingerMs(longProperty(properties, BATCH_LINGER_MS_KEY, batchLingerMs));
+            this.writerThreads(intProperty(properties, WRITER_THREADS_KEY, writerThreads));
+            this.dbConnections(intProperty(properties, DB_CONNECTIONS_KEY, dbConnections));
+            this.dbNodes(properties.getProperty(DBNODES_KEY, dbNodes));
+            var spread = properties.getProperty(DB_SPREAD_KEY);
+            if (spread != null) {
+                try {
+                    this.dbSpread(SinkCluster.Spread.fromString(spread));
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + DB_SPREAD_KEY + ", using default: " + this.dbSpread, ex);
+                }
+            }
+            var execution = properties.getProperty(EXECUTION_MODE_KEY);
+            if (execution != null) {
+                try {
+                    this.executionMode(ExecutionMode.valueOf(execution.strip().toUpperCase()));
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + EXECUTION_MODE_KEY + ", using default: " + this.executionMode, ex);
+                }
+            }
+            this.tabletRows(intProperty(properties, TABLET_ROWS_KEY, tabletRows));
+            this.tabletAligned(Boolean.parseBoolean(properties.getProperty(TABLET_ALIGNED_KEY, String.valueOf(tabletAligned)).strip()));
+            var mode = properties.getProperty(WRITE_MODE_KEY);
+            if (mode != null) {
+                try {
+                    this.writeMode(WriteMode.valueOf(mode.strip().toUpperCase()));
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + WRITE_MODE_KEY + ", using default: " + this.writeMode, ex);
+                }
+            }
+            this.spoolDir(properties.getProperty(SPOOL_DIR_KEY, spoolDir));
+            this.spoolSegmentMb(intProperty(properties, SPOOL_SEGMENT_MB_KEY, spoolSegmentMb));
+            this.spoolMaxSegments(intProperty(properties, SPOOL_MAX_SEGMENTS_KEY, spoolMaxSegments));
+            this.captureDir(properties.getProperty(CAPTURE_DIR_KEY, captureDir));
+            this.captureSegmentMb(intProperty(properties, CAPTURE_SEGMENT_MB_KEY, captureSegmentMb));
+            this.captureMaxSegments(intProperty(properties, CAPTURE_MAX_SEGMENTS_KEY, captureMaxSegments));
+            this.topicCacheSize(intProperty(properties, TOPIC_CACHE_SIZE_KEY, topicCacheSize));
+            this.queueCapacity(intProperty(properties, QUEUE_CAPACITY_KEY, queueCapacity));
+
+            var overflow = properties.getProperty(QUEUE_OVERFLOW_KEY);
+            if (overflow != null) {
+                try {
+                    this.queueOverflow(RingBuffer.OverflowPolicy.fromString(overflow));
+                } catch (IllegalArgumentException ex) {
+                    Logger.getLogger(Builder.class.getName()).log(Level.WARNING, "malformed configuration: " + QUEUE_OVERFLOW_KEY + ", using default: " + this.queueOverflow, ex);
+                }
+            }
+
+            this.metricsHttpPort(intProperty(properties, METRICS_HTTP_PORT_KEY, metricsHttpPort));
+            this.metricsTopicLevels(intProperty(properties, METRICS_TOPIC_LEVELS_KEY, metricsTopicLevels));
+
             this.loadConvertors(properties);
+            this.loadDeadbands(properties);
+            this.loadAggregates(properties);
+            var json = properties.getProperty(JSON_TOPICS_KEY);
+            if (json != null) {
+                for (var filter : json.split(",")) {
+                    this.jsonTopic(filter);
+                }
+            }
+            var timestampField = properties.getProperty(JSON_TIMESTAMP_FIELD_KEY);
+            if (timestampField != null) {
+                this.jsonTimestampField(timestampField.isBlank() ? null : timestampField.strip());
+            }
+            var binary = properties.getProperty(BINARY_TOPICS_KEY);
+            if (binary != null) {
+                for (var filter : binary.split(",")) {
+                    this.binaryTopic(filter);
+                }
+            }
+            this.loadRoutes(properties);
+            this.loadSchema(properties);
+            this.configReload(Boolean.parseBoolean(properties.getProperty(CONFIG_RELOAD_KEY, String.valueOf(configReload)).strip()));
 
-            return this.build();
+            return this;
         }
     }
 
-    public Pump(String dbhost, int dbport, String dbusername, String dbpassword, String dbname, String mqttServerUri, int mqttPort, String[] topics, String mqttClientId, Map<String, DataConvertor> conversions) {
-        this.dbhost = dbhost;
-        this.dbport = dbport;
-        this.dbusername = dbusername;
-        this.dbpassword = dbpassword;
-        this.dbname = dbname;
-        this.mqttServerUri = mqttServerUri;
-        this.mqttport = mqttPort;
-        this.topics = topics;
-        this.mqttClientId = mqttClientId;
-        this.conversions = conversions;
-
-        this.messages = Collections.synchronizedList(new ArrayList<>());
-
+    private Pump(Builder builder) {
+        this.dbhost = builder.dbhost;
+        this.dbport = builder.dbport;
+        this.dbusername = builder.dbusername;
+        this.dbpassword = builder.dbpassword;
+        this.dbname = builder.dbname;
+        this.mqttServerUri = builder.mqttServerUri;
+        this.mqttport = builder.mqttPort;
+        //this is horrible, the use of java arrays
+        //when comming from rust it'd be
+        //topics.split.map(strip).collect() and go to town
+        this.topics = builder.topicList();
+        this.mqttShareGroup = builder.shareGroup();
+        this.mqttClientId = builder.clientId(mqttShareGroup);
+        this.mqttConnections = builder.mqttConnections;
+        this.mqttQos = builder.mqttQos;
+        this.mqttReceiveMaximum = builder.mqttReceiveMaximum;
+        this.mqttSessionExpiry = builder.mqttSessionExpiry;
+        this.routes = builder.buildRoutes();
+        this.batchSize = builder.batchSize;
+        this.batchLingerMs = builder.batchLingerMs;
+        this.writerThreads = builder.writerThreads;
+        this.executionMode = builder.executionMode;
+        this.dbConnections = builder.dbConnections;
+        this.dbNodes = builder.nodeList();
+        this.dbSpread = builder.dbSpread;
+        this.writeMode = builder.writeMode;
+        this.tabletRows = builder.tabletRows;
+        this.tabletAligned = builder.tabletAligned;
+        this.spoolDir = builder.spoolDir;
+        this.spoolSegmentMb = builder.spoolSegmentMb;
+        this.spoolMaxSegments = builder.spoolMaxSegments;
+        this.captureDir = builder.captureDir;
+        this.captureSegmentMb = builder.captureSegmentMb;
+        this.captureMaxSegments = builder.captureMaxSegments;
+        this.metricsHttpPort = builder.metricsHttpPort;
+        this.messages = new RingBuffer<>(builder.queueCapacity, builder.overflowPolicy());
+        this.topicCache = new TopicCache(builder.topicCacheSize);
+        this.deadbands = routes.hasDeadbands() ? new DeadbandFilter(builder.deadbandHeartbeatMs, builder.deadbandSeries) : null;
+        this.aggregates = routes.hasAggregates() ? new WindowAggregator(builder.aggregateGraceMs) : null;
+        this.aggregateKeepRaw = builder.aggregateKeepRaw;
+        this.configReload = builder.configReload;
+        //aligned tablets need aligned series
+        this.schema = builder.schemaCreate
+            ? new SchemaManager(builder.schemaEncodings, builder.schemaCompressions, writeMode == WriteMode.TABLETS && tabletAligned) : null;
+        this.metrics = new Metrics(builder.metricsTopicLevels);
+
+        metrics.info("pump_instance_info", "This pump's MQTT client id and share group.",
+            Map.of("client_id", mqttClientId, "share_group", mqttShareGroup == null ? "" : mqttShareGroup));
+        metrics.gauge("pump_queue_depth", "Messages waiting to be converted.", this::getQueueDepth);
+        metrics.gauge("pump_writer_queue_depth", "Values waiting for a writer thread.", this::getWriterQueueDepth);
+        metrics.gauge("pump_dropped_messages", "Messages dropped because the queue was full.", this::getDroppedMessages);
+        metrics.gauge("pump_topic_cache_size", "Topics in the topic cache.", topicCache::size);
+        metrics.gauge("pump_topic_cache_misses", "Topic cache lookups that had to resolve the topic.", topicCache::getMisses);
+        metrics.gauge("pump_series_type_conflicts", "Values that did not fit the learned type of their series.", seriesTypes::getConflicts);
+        metrics.gauge("pump_payload_fields_dropped", "JSON or binary payload fields dropped because their topic had too many distinct fields.", fieldsDropped::sum);
+        metrics.gauge("pump_config_reloads", "Configuration changes applied without a restart.", reloads::sum);
+        metrics.gauge("pump_config_reload_failures", "Configuration changes rejected, the previous configuration staying in force.", reloadFailures::sum);
+        metrics.gauge("pump_config_reload_micros", "Time the last configuration reload took to swap the routing and update the subscriptions.", () -> reloadMicros);
+        if (aggregates != null) {
+            metrics.gauge("pump_aggregated_values", "Values added to an aggregation window.", aggregates::getAggregated);
+            metrics.gauge("pump_aggregate_windows_written", "Aggregation windows closed and written.", aggregates::getEmitted);
+            metrics.gauge("pump_aggregate_open_windows", "Aggregation windows currently open.", aggregates::getOpenWindows);
+            metrics.gauge("pump_aggregate_late_values", "Values left out because their window was already written.", aggregates::getLate);
+        }
+        if (schema != null) {
+            metrics.gauge("pump_schema_series_created", "Timeseries created ahead of their first value.", schema::getCreated);
+            metrics.gauge("pump_schema_create_failures", "Timeseries that could not be created ahead, and were left to IoTDB.", schema::getFailed);
+            metrics.gauge("pump_schema_pending", "Timeseries waiting to be created by the next write.", schema::getPending);
+        }
+        if (deadbands != null) {
+            metrics.gauge("pump_deadband_suppressed_values", "Values not written because they were within their deadband.", deadbands::getSuppressed);
+            metrics.gauge("pump_deadband_evictions", "Series the deadband filter stopped tracking to make room for others.", deadbands::getEvictions);
+        }
     }
 
     public static void main(String[] args) throws IoTDBConnectionException, StatementExecutionException, MqttException, IOException {
@@ -215,85 +1130,840 @@ public class Pump implements MqttCallback {
         Properties properties = new Properties();
         properties.load(new FileInputStream("config.properties"));
         Pump pump = new Pump.Builder().fromProperties(properties);
+        if (args.length > 0 && args[0].equals("--load")) {
+            //bulk load capture files, then exit
+            pump.load(captureFiles(args, 1));
+            return;
+        }
+        if (args.length > 1 && args[0].equals("--replay")) {
+            //run on replayed capture files, then exit
+            pump.replay(captureFiles(args, 2), CaptureReplay.atSpeed(args[1]));
+            return;
+        }
         pump.init();
+        if (pump.configReload) {
+            pump.watchConfig(Path.of("config.properties"), properties);
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(pump::close));
 
         pump.mainloop();
     }
 
-    public void init() throws IoTDBConnectionException, MqttException, StatementExecutionException {
-        connectToIotDb();
+    //the files named by the arguments from the given one on, directories
+    //standing for the capture files in them
+    private static List<Path> captureFiles(String[] args, int from) throws IOException {
+        List<Path> files = new ArrayList<>();
+        for (int i = from; i < args.length; i++) {
+            files.addAll(CaptureFile.list(Path.of(args[i])));
+        }
+        return files;
+    }
+
+    public void init() throws IoTDBConnectionException, MqttException, StatementExecutionException, IOException {
+        init(sinkFactory());
+    }
+
+    //package private for testing
+    void init(SinkFactory factory) throws IoTDBConnectionException, MqttException, StatementExecutionException, IOException {
+        metrics.register(mqttClientId);
+        if (metricsHttpPort > 0) {
+            metricsServer = new MetricsServer(metrics, metricsHttpPort);
+        }
+        connectToIotDb(factory);
+        startCapture();
         startMqttClient();
     }
 
-    private void connectToIotDb() throws IoTDBConnectionException, StatementExecutionException {
+    private void startCapture() throws IOException {
+        if (captureDir == null) {
+            return;
+        }
+        TrafficCapture recording = new TrafficCapture(Path.of(captureDir), (long) captureSegmentMb << 20, captureMaxSegments);
+        metrics.gauge("pump_captured_messages", "Messages recorded to the capture files.", recording::getCaptured);
+        metrics.gauge("pump_capture_dropped_messages", "Messages left out of the capture because its buffers were full.", recording::getDropped);
+        metrics.gauge("pump_capture_write_failures", "Capture buffers that could not be written to disk.", recording::getFailures);
+        capture = recording;
+    }
 
-        dbsession = new Session.Builder()
-            .host(this.dbhost)
-            .port(this.dbport)
-            .username(this.dbusername)
-            .password(this.dbpassword)
-            .build();
-        dbsession.open();
+    /**
+     * Runs the pump on messages replayed from capture files instead of MQTT,
+     * see {@link CaptureReplay}, until all of them are written. The values
+     * are timestamped as they are replayed, like live ones; no MQTT
+     * connection is made and nothing is recorded.
+     *
+     * @return the number of messages replayed
+     */
+    public long replay(List<Path> files, CaptureReplay replay) throws IoTDBConnectionException, StatementExecutionException, IOException {
+        return replay(sinkFactory(), files, replay);
     }
 
-    private void startMqttClient() throws MqttException {
+    //package private for testing
+    long replay(SinkFactory factory, List<Path> files, CaptureReplay replay) throws IoTDBConnectionException, StatementExecutionException, IOException {
+        metrics.register(mqttClientId);
+        if (metricsHttpPort > 0) {
+            metricsServer = new MetricsServer(metrics, metricsHttpPort);
+        }
+        connectToIotDb(factory);
+        long start = System.nanoTime();
+        AtomicLong replayed = new AtomicLong(-1);
+        Thread replayer = new Thread(() -> {
+            long count = 0;
+            try {
+                count = replay.replay(files, (topic, timestamp, payload) -> received(topic, new MqttMessage(payload), System.currentTimeMillis(), null));
+            } catch (IOException ex) {
+                Logger.getLogger(Pump.class.getName()).log(Level.SEVERE, "replay stopped", ex);
+            } finally {
+                replayed.set(count);
+            }
+        }, "pump-replay");
+        replayer.start();
+        while (replayed.get() < 0 || getQueueDepth() > 0) {
+            handleIncomingMessages(100);
+        }
+        close();
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        Logger.getLogger(Pump.class.getName()).log(Level.INFO, String.format("replayed %d messages in %.1fs, %.0f messages/s, %d points written",
+            replayed.get(), seconds, replayed.get() / seconds, metrics.getWrittenValues()));
+        return replayed.get();
+    }
 
-        mqttclient = new MqttClient(this.mqttServerUri, this.mqttClientId);
-        mqttclient.setCallback(this);
+    //flushes buffered values, anything still in the incoming queue is lost
+    //(at QoS 1 it is not acknowledged either, and comes again on restart)
+    public void close() {
+        if (configWatcher != null) {
+            configWatcher.close();
+        }
+        TrafficCapture recording = capture;
+        if (recording != null) {
+            capture = null;
+            recording.close();
+        }
+        if (retry != null) {
+            retry.stop();
+        }
+        for (var connection : connections) {
+            connection.close();
+        }
+        stopMainloop();
+        if (writers != null) {
+            if (aggregates != null) {
+                //partial windows are better than none
+                aggregates.emitAll(this::postToDB);
+            }
+            writers.close();
+        }
+        if (spool != null) {
+            spool.close();
+        }
+        if (metricsServer != null) {
+            metricsServer.close();
+        }
+        metrics.unregister();
+    }
 
-        MqttConnectionOptions options = new MqttConnectionOptionsBuilder()
-            .cleanStart(true)
-            .automaticReconnect(true)
-            .build();
+    //lets the main loop finish the message at hand, so nothing is handed to
+    //the writers after they are closed
+    private void stopMainloop() {
+        running = false;
+        Thread loop = mainThread;
+        if (loop == null || loop == Thread.currentThread()) {
+            return;
+        }
+        //wakes it up if it is waiting for a message
+        loop.interrupt();
+        try {
+            loop.join();
+        } catch (InterruptedException ex) {
+            Logger.getLogger(Pump.class.getName()).log(Level.WARNING, "interrupted while stopping the main loop", ex);
+            Thread.currentThread().interrupt();
+        }
+    }
 
-        mqttclient.connect(options);
+    //the sessions to DBHOST:DBPORT, or spread over DBNODES
+    private SinkFactory sinkFactory() {
+        if (dbNodes.isEmpty()) {
+            return () -> SessionSink.open(this.dbhost, this.dbport, this.dbusername, this.dbpassword);
+        }
+        return SinkCluster.of(dbNodes, this.dbport, this.dbusername, this.dbpassword, dbSpread);
+    }
 
+    private void connectToIotDb(SinkFactory factory) throws IoTDBConnectionException, StatementExecutionException, IOException {
+        if (factory instanceof SinkCluster) {
+            for (SinkCluster.Node node : ((SinkCluster) factory).getNodes()) {
+                var labels = Map.of("node", node.getName());
+                metrics.gauge("pump_db_node_healthy", "1 unless the last call to the database node failed to reach it.", labels, () -> node.isHealthy() ? 1 : 0);
+                metrics.gauge("pump_db_node_calls", "Calls made to the database node.", labels, node::getCalls);
+                metrics.gauge("pump_db_node_failures", "Calls that could not reach the database node.", labels, node::getFailures);
+                metrics.gauge("pump_db_node_rejections", "Calls the database node rejected.", labels, node::getRejections);
+                metrics.gauge("pump_db_node_call_micros_p50", "Median duration of the calls to the database node.", labels, () -> node.getCallMicros().valueAtQuantile(0.5));
+                metrics.gauge("pump_db_node_call_micros_p99", "99th percentile duration of the calls to the database node.", labels, () -> node.getCallMicros().valueAtQuantile(0.99));
+            }
+        }
+        if (spoolDir != null) {
+            spool = new Spool(Path.of(spoolDir), spoolSegmentMb << 20, spoolMaxSegments);
+            spool.startReplayer(factory, batchSize);
+            metrics.gauge("pump_spooled_values", "Values written to the spool.", spool::getSpooled);
+            metrics.gauge("pump_replayed_values", "Values replayed from the spool.", spool::getReplayed);
+            metrics.gauge("pump_spool_segments", "Segment files in the spool.", spool::getSegmentCount);
+        }
+        if (mqttQos > 0 && spool == null) {
+            //without a spool the writers hold on to what they cannot write, and
+            //the unacknowledged messages make the broker wait
+            retry = new ConnectionRetry();
+        }
+        loadSeriesTypes(factory);
+        //every writer opens its own session, unless they are told to share
+        writers = new WriterPool(factory, this.writerThreads, this.dbConnections,
+            Threads.factory(this.executionMode, "pump-writer-"), this::newValueWriter);
+        writers.setSpool(spool);
     }
 
-    private void mainloop() {
-        while (true) {
-            handleIncomingMessages();
+    public Spool getSpool() {
+        return spool;
+    }
+
+    //package private for testing
+    ValueWriter newValueWriter(RecordSink sink) {
+        if (writeMode == WriteMode.TABLETS) {
+            TabletWriter writer = new TabletWriter(sink, this.tabletRows, this.batchLingerMs, this.tabletAligned);
+            writer.setSpool(spool);
+            writer.setMetrics(metrics);
+            writer.setRetry(retry);
+            writer.setSchema(schema);
+            return writer;
         }
+        BatchWriter writer = new BatchWriter(sink, this.batchSize, this.batchLingerMs);
+        writer.setSpool(spool);
+        writer.setMetrics(metrics);
+        writer.setRetry(retry);
+        writer.setSchema(schema);
+        return writer;
     }
 
-    private void handleIncomingMessages() {
-        TopicAndMessage tm = getMessage();
-        TimeSeriesAndValue tsval = convertMessage(tm);
-        if (tsval != null) {
-            postToDB(tsval);
+    //types of series that already exist need not be learned
+    private void loadSeriesTypes(SinkFactory factory) throws IoTDBConnectionException {
+        RecordSink sink = factory.open();
+        try {
+            Map<String, TSDataType> existing = sink.fetchSeriesTypes(this.dbname + ".**");
+            seriesTypes.seed(existing);
+            if (schema != null) {
+                schema.seed(existing.keySet());
+            }
+        } catch (StatementExecutionException ex) {
+            Logger.getLogger(Pump.class.getName()).log(Level.WARNING, "could not load existing series types, learning them instead", ex);
+        } finally {
+            sink.close();
         }
     }
 
-    private TopicAndMessage getMessage() {
-        synchronized (messages) {
-            while (messages.isEmpty()) {
+    private void startMqttClient() throws MqttException {
+        List<List<String>> partitions = partitionFilters();
+        for (int i = 0; i < partitions.size(); i++) {
+            String clientId = partitions.size() == 1 ? this.mqttClientId : this.mqttClientId + "-" + i;
+            var connection = new MqttConnection(i, mqttServerAddress(), clientId, partitions.get(i),
+                mqttQos, mqttReceiveMaximum, mqttSessionExpiry, this::messageArrived);
+            var labels = Map.of("connection", String.valueOf(i));
+            metrics.gauge("pump_mqtt_connected", "1 while the MQTT connection is up.", labels, () -> connection.isConnected() ? 1 : 0);
+            metrics.gauge("pump_mqtt_connects", "Times the MQTT connection was established.", labels, connection::getConnects);
+            metrics.gauge("pump_mqtt_received_messages", "Messages received on the MQTT connection.", labels, connection::getReceived);
+            if (mqttQos > 0) {
+                metrics.gauge("pump_mqtt_pending_acks", "QoS 1 messages received on the MQTT connection but not acknowledged yet.", labels, connection::getPendingAcks);
+            }
+            connections.add(connection);
+        }
+        for (var connection : connections) {
+            connection.connect();
+        }
+    }
+
+    /**
+     * Divides the subscriptions between the connections. Members of a share
+     * group are all subscribed to every topic, the broker then balances
+     * between them; otherwise each topic goes to one connection, and there are
+     * never more connections than topics.
+     *
+     * package private for testing
+     */
+    List<List<String>> partitionFilters() {
+        List<List<String>> partitions = new ArrayList<>();
+        if (mqttShareGroup != null) {
+            List<String> filters = new ArrayList<>();
+            for (String topic : topics) {
+                filters.add(subscriptionFilter(topic));
+            }
+            for (int i = 0; i < mqttConnections; i++) {
+                partitions.add(filters);
+            }
+            return partitions;
+        }
+        int count = Math.min(mqttConnections, topics.length);
+        if (count < mqttConnections) {
+            Logger.getLogger(Pump.class.getName()).log(Level.WARNING,
+                "only " + topics.length + " topics for " + mqttConnections + " MQTT connections, opening " + count);
+        }
+        for (int i = 0; i < count; i++) {
+            partitions.add(new ArrayList<>());
+        }
+        for (int i = 0; i < topics.length; i++) {
+            partitions.get(i % count).add(topics[i]);
+        }
+        return partitions;
+    }
+
+    /**
+     * Starts watching the configuration file, applying changes to the
+     * settings in RELOADABLE_KEYS as they are saved.
+     *
+     * @param loaded the properties the pump was built from
+     */
+    public void watchConfig(Path file, Properties loaded) throws IOException {
+        configWatcher = new ConfigWatcher(file, loaded, 200, this::reload);
+        configWatcher.start();
+    }
+
+    /**
+     * Applies a changed configuration without a restart: new topic settings
+     * are swapped in at once, topics seen before are routed again from
+     * scratch, and subscriptions are added and dropped on the live
+     * connections. Changes to other settings are only reported. If the new
+     * configuration is broken the current one stays.
+     *
+     * @return false if the new configuration was rejected
+     */
+    public boolean reload(Properties previous, Properties next) {
+        long start = System.nanoTime();
+        for (String key : changedKeys(previous, next)) {
+            if (!RELOADABLE_KEYS.contains(key) && !key.startsWith(ROUTE_KEY_PREFIX)) {
+                Logger.getLogger(Pump.class.getName()).log(Level.WARNING, "configuration " + key + " changed, it takes effect on restart");
+            }
+        }
+        RouteConfig config;
+        String[] subscriptions;
+        try {
+            Builder builder = new Builder().configure(next);
+            config = builder.buildRoutes();
+            subscriptions = builder.topicList();
+            for (String topic : subscriptions) {
+                //a filter the broker refuses would stop the pump on reconnect
+                String problem = TopicFilter.check(topic);
+                if (problem != null) {
+                    throw new IllegalArgumentException(problem);
+                }
+            }
+        } catch (IllegalArgumentException ex) {
+            reloadFailures.increment();
+            Logger.getLogger(Pump.class.getName()).log(Level.WARNING, "rejected the new configuration, keeping the current one", ex);
+            return false;
+        }
+        if (config.hasDeadbands() && deadbands == null) {
+            Logger.getLogger(Pump.class.getName()).log(Level.WARNING, "deadbands are configured now, they take effect on restart");
+        }
+        if (config.hasAggregates() && aggregates == null) {
+            Logger.getLogger(Pump.class.getName()).log(Level.WARNING, "aggregation is configured now, it takes effect on restart");
+        }
+        reloaded.set(config);
+        updateSubscriptions(subscriptions);
+        reloadMicros = (System.nanoTime() - start) / 1000;
+        reloads.increment();
+        Logger.getLogger(Pump.class.getName()).log(Level.INFO, "configuration reloaded in " + reloadMicros + "us");
+        return true;
+    }
+
+    private static Set<String> changedKeys(Properties previous, Properties next) {
+        Set<String> changed = new TreeSet<>();
+        for (String key : previous.stringPropertyNames()) {
+            if (!previous.getProperty(key).equals(next.getProperty(key))) {
+                changed.add(key);
+            }
+        }
+        for (String key : next.stringPropertyNames()) {
+            if (!previous.containsKey(key)) {
+                changed.add(key);
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * Subscribes to the topics not subscribed to yet and drops the ones no
+     * longer wanted, leaving the others alone. New topics go to the
+     * connection with the fewest, or to every connection of a share group.
+     * The number of connections stays as it is.
+     *
+     * package private for testing
+     */
+    synchronized void updateSubscriptions(String[] next) {
+        Set<String> wanted = new LinkedHashSet<>(Arrays.asList(next));
+        Set<String> current = new LinkedHashSet<>(Arrays.asList(topics));
+        for (String topic : current) {
+            if (wanted.contains(topic)) {
+                continue;
+            }
+            for (var connection : connections) {
+                try {
+                    connection.unsubscribe(subscriptionFilter(topic));
+                } catch (MqttException ex) {
+                    Logger.getLogger(Pump.class.getName()).log(Level.WARNING, connection.getClientId() + " failed to unsubscribe from " + topic, ex);
+                }
+            }
+        }
+        for (String topic : wanted) {
+            if (current.contains(topic) || connections.isEmpty()) {
+                continue;
+            }
+            List<MqttConnection> to = connections;
+            if (mqttShareGroup == null) {
+                MqttConnection least = connections.get(0);
+                for (var connection : connections) {
+                    if (connection.getFilters().size() < least.getFilters().size()) {
+                        least = connection;
+                    }
+                }
+                to = List.of(least);
+            }
+            for (var connection : to) {
                 try {
-                    messages.wait();
-                } catch (InterruptedException ex) {
-                    Logger.getLogger(Pump.class.getName()).log(Level.SEVERE, null, ex);
+                    connection.subscribe(subscriptionFilter(topic));
+                } catch (MqttException ex) {
+                    //stays in the connection's filters, so it is tried again
+                    //on reconnect
+                    Logger.getLogger(Pump.class.getName()).log(Level.WARNING, connection.getClientId() + " failed to subscribe to " + topic, ex);
                 }
             }
-            //we have a message here, deque it
-            return (TopicAndMessage) messages.remove(0);
         }
+        topics = wanted.toArray(String[]::new);
     }
 
-    private TimeSeriesAndValue convertMessage(TopicAndMessage message) {
-        String timeseries = convertTopicToTimeseries(message.topic);
-        DataConvertor convertor = getConvertor(getTopicSuffix(message.topic));
+    public List<MqttConnection> getConnections() {
+        return List.copyOf(connections);
+    }
+
+    //the configured port applies unless the server uri has its own
+    //package private for testing
+    String mqttServerAddress() {
         try {
-            Object parseValue = convertor.parseValue(message.message.toString());
-            return new TimeSeriesAndValue(timeseries, convertor.getPrimitiveType(), parseValue);
-        } catch (IllegalArgumentException ex) {
+            URI uri = new URI(this.mqttServerUri);
+            if (uri.getPort() < 0 && uri.getHost() != null) {
+                return this.mqttServerUri + ":" + this.mqttport;
+            }
+        } catch (URISyntaxException ex) {
+            //let the MQTT client complain about it
+        }
+        return this.mqttServerUri;
+    }
+
+    /**
+     * Expands the placeholders of a client id template: {host} is the local
+     * host name, {pid} the process id and {uuid} a random string.
+     */
+    static String expandClientId(String template) {
+        String id = template;
+        if (id.contains("{host}")) {
+            String host;
+            try {
+                host = InetAddress.getLocalHost().getHostName();
+            } catch (UnknownHostException ex) {
+                host = "localhost";
+            }
+            id = id.replace("{host}", host);
+        }
+        id = id.replace("{pid}", String.valueOf(ProcessHandle.current().pid()));
+        while (id.contains("{uuid}")) {
+            id = id.replaceFirst("\\{uuid\\}", UUID.randomUUID().toString().substring(0, 8));
+        }
+        return id;
+    }
+
+    //package private for testing
+    String subscriptionFilter(String topic) {
+        if (mqttShareGroup == null) {
+            return topic;
+        }
+        return "$share/" + mqttShareGroup + "/" + topic;
+    }
+
+    //package private for testing
+    void mainloop() {
+        mainThread = Thread.currentThread();
+        while (running) {
+            //wake up in time to close the windows of series gone quiet
+            handleIncomingMessages(aggregates == null ? -1 : aggregates.millisUntilDue(System.currentTimeMillis()));
+        }
+    }
+
+    //package private for testing
+    void handleIncomingMessages(long timeoutMs) {
+        TopicAndMessage tm = getMessage(timeoutMs);
+        if (tm != null) {
+            process(tm);
+        }
+        if (aggregates != null) {
+            aggregates.emitDue(System.currentTimeMillis(), this::postToDB);
+        }
+    }
+
+    //converts a message and hands its values to the writers
+    private void process(TopicAndMessage tm) {
+        TopicRoute route = resolveTopic(tm.topic);
+        if (route.getFields() != null) {
+            convertFields(route, tm, this::postToDB);
+        } else {
+            TimeSeriesAndValue tsval = convertMessage(route, tm);
+            if (tsval != null) {
+                tsval.ack = tm.ack;
+                postToDB(tsval);
+            } else {
+                //nothing to write, redelivering would not change that. a
+                //value gone into an aggregation window holds a part of its own
+                tm.acknowledge();
+            }
+        }
+    }
+
+    /**
+     * Writes the messages recorded in capture files, see {@link CaptureFile},
+     * as if they had just arrived, but timestamped when they were recorded.
+     * No MQTT connection is made. The files are read in order on the calling
+     * thread and the values written by all writers in parallel, each taking
+     * its devices; returns once everything is written.
+     *
+     * @return the number of values written
+     */
+    public long load(List<Path> files) throws IoTDBConnectionException, StatementExecutionException, IOException {
+        return load(sinkFactory(), files);
+    }
+
+    //package private for testing
+    long load(SinkFactory factory, List<Path> files) throws IoTDBConnectionException, StatementExecutionException, IOException {
+        long start = System.nanoTime();
+        connectToIotDb(factory);
+        long messages = 0;
+        try {
+            for (Path file : files) {
+                long read = CaptureFile.read(file, (topic, timestamp, payload) -> {
+                    metrics.messageReceived();
+                    process(new TopicAndMessage(topic, new MqttMessage(payload), timestamp));
+                });
+                messages += read;
+                Logger.getLogger(Pump.class.getName()).log(Level.INFO, "read " + read + " messages from " + file);
+            }
+        } finally {
+            //windows close on later values only, the clock says nothing about
+            //recorded data. whatever is still open is written as it is
+            if (aggregates != null) {
+                aggregates.emitAll(this::postToDB);
+            }
+            writers.close();
+            writers = null;
+            if (spool != null) {
+                spool.close();
+            }
+        }
+        long points = metrics.getWrittenValues();
+        double seconds = Math.max(System.nanoTime() - start, 1) / 1e9;
+        Logger.getLogger(Pump.class.getName()).log(Level.INFO, String.format("loaded %d messages, %d points in %.1fs, %.0f points/s, %d points failed",
+            messages, points, seconds, points / seconds, metrics.getWriteFailures()));
+        return points;
+    }
+
+    //waits at most timeoutMs for a message (forever if negative), returns null
+    //if none arrived in time. package private for testing
+    TopicAndMessage getMessage(long timeoutMs) {
+        return messages.poll(timeoutMs);
+    }
+
+    //returns null if there is nothing to write, because the value could not be
+    //converted, only goes into an aggregate or is within its deadband. closed
+    //aggregation windows are written from here too. package private for testing
+    TimeSeriesAndValue convertMessage(TopicAndMessage message) {
+        return convertMessage(resolveTopic(message.topic), message);
+    }
+
+    private TimeSeriesAndValue convertMessage(TopicRoute route, TopicAndMessage message) {
+        long start = System.nanoTime();
+        route.countMessage();
+        TimeSeriesAndValue tsval = new TimeSeriesAndValue(route, message.timestamp);
+        byte[] payload = message.message.getPayload();
+        boolean converted = convertValue(route, payload, 0, payload.length, tsval);
+        metrics.conversion(System.nanoTime() - start, converted);
+        if (converted && admit(route, tsval, message.ack)) {
+            return tsval;
+        }
+        return null;
+    }
+
+    //parses a value with the convertor of its route, learning the type of the
+    //series from the first one
+    private boolean convertValue(TopicRoute route, byte[] payload, int offset, int length, TimeSeriesAndValue tsval) {
+        if (route.getConvertor().parse(payload, offset, length, tsval)) {
+            if (!route.isSettled()) {
+                settle(route, tsval.getDataType());
+            }
+            return true;
+        }
+        String value = new String(payload, offset, length, StandardCharsets.UTF_8);
+        if (route.isSpecialized()) {
+            seriesTypes.conflict();
             Logger.getLogger(Pump.class.getName()).log(
-                Level.WARNING, "failed to convert value: " + message.message.toString(), ex);
+                Level.FINE, "value: " + value + " does not fit the type of: " + route.timeseries);
+            return false;
+        }
+        Logger.getLogger(Pump.class.getName()).log(
+            Level.WARNING, "failed to convert value: " + value + " of: " + route.timeseries + " in topic: " + route.topic);
+        return false;
+    }
+
+    //false if the value is not to be written, because it only goes into an
+    //aggregate or is within its deadband. a value that goes into an aggregate
+    //holds on to a part of the ack until the aggregate is written
+    private boolean admit(TopicRoute route, TimeSeriesAndValue tsval, AckTracker.Ack ack) {
+        if (aggregates != null && aggregates.add(route, tsval, ack, this::postToDB) && !aggregateKeepRaw) {
+            return false;
+        }
+        return deadbands == null || deadbands.pass(route, tsval);
+    }
+
+    /**
+     * Converts every field of a JSON object or binary payload, and hands the
+     * values that are to be written to out. They all get the timestamp
+     * embedded in the payload, if there is one. The message is acknowledged
+     * once all of them are done.
+     *
+     * package private for testing
+     *
+     * @return the number of values handed to out
+     */
+    int convertFields(TopicRoute route, TopicAndMessage message, Consumer<TimeSeriesAndValue> out) {
+        long start = System.nanoTime();
+        route.countMessage();
+        fieldsOf = route;
+        byte[] payload = message.message.getPayload();
+        boolean wellFormed;
+        if (route.isBinary()) {
+            fieldsTimestamp = BinaryPayload.timestamp(payload, 0, payload.length, message.timestamp);
+            wellFormed = BinaryPayload.decode(payload, 0, payload.length, binaryHandler);
+        } else {
+            fieldsTimestamp = message.timestamp;
+            wellFormed = json.parse(payload, 0, payload.length, jsonHandler);
+        }
+        if (!wellFormed) {
+            Logger.getLogger(Pump.class.getName()).log(
+                Level.WARNING, "malformed " + (route.isBinary() ? "binary" : "JSON") + " payload: " + message.message.toString() + " in topic: " + message.topic);
+        }
+        metrics.conversion(System.nanoTime() - start, wellFormed && !fieldValues.isEmpty());
+
+        int posted = 0;
+        for (int i = 0; i < fieldValues.size(); i++) {
+            TimeSeriesAndValue tsval = fieldValues.get(i);
+            TopicRoute field = fieldRoutes.get(i);
+            tsval.timestamp = fieldsTimestamp;
+            if ((!route.isBinary() || fitsSeries(field, tsval)) && admit(field, tsval, message.ack)) {
+                if (message.ack != null) {
+                    message.ack.share();
+                    tsval.ack = message.ack;
+                }
+                out.accept(tsval);
+                posted++;
+            }
+        }
+        fieldValues.clear();
+        fieldRoutes.clear();
+        fieldsOf = null;
+        //the values hold their own parts of the acknowledgement
+        message.acknowledge();
+        return posted;
+    }
+
+    private void jsonField(byte[] name, int nameLength, int depth, int kind, byte[] value, int offset, int length) {
+        if (kind == JsonPayload.NULL) {
+            return;
+        }
+        byte[] jsonTimestampName = routes.getJsonTimestampName();
+        if (depth == 0 && jsonTimestampName != null && kind == JsonPayload.NUMBER
+            && Arrays.equals(name, 0, nameLength, jsonTimestampName, 0, jsonTimestampName.length)) {
+            try {
+                fieldsTimestamp = (long) Double.parseDouble(new String(value, offset, length, StandardCharsets.US_ASCII));
+            } catch (NumberFormatException ex) {
+                Logger.getLogger(Pump.class.getName()).log(Level.WARNING, "malformed JSON timestamp in topic: " + fieldsOf.topic);
+            }
+            return;
+        }
+        TopicRoute field = fieldRoute(name, 0, nameLength);
+        if (field == null) {
+            return;
+        }
+        TimeSeriesAndValue tsval = new TimeSeriesAndValue(field, fieldsTimestamp);
+        if ((kind == JsonPayload.TRUE || kind == JsonPayload.FALSE) && field.configured == defaultConvertor) {
+            //JSON says what type it is, nothing configured says otherwise
+            tsval.acceptBoolean(kind == JsonPayload.TRUE);
+            if (!field.isSettled()) {
+                settle(field, TSDataType.BOOLEAN);
+            }
+        } else if (!convertValue(field, value, offset, length, tsval)) {
+            return;
+        }
+        fieldValues.add(tsval);
+        fieldRoutes.add(field);
+    }
+
+    //the value is read straight into the returned sink, its type is checked
+    //against the series afterwards
+    private DataConvertor.ValueSink binaryField(byte[] name, int offset, int length, TSDataType type) {
+        TopicRoute field = fieldRoute(name, offset, length);
+        if (field == null) {
             return null;
         }
+        TimeSeriesAndValue tsval = new TimeSeriesAndValue(field, fieldsTimestamp);
+        fieldValues.add(tsval);
+        fieldRoutes.add(field);
+        return tsval;
+    }
+
+    //null if the topic has too many fields already
+    private TopicRoute fieldRoute(byte[] name, int offset, int length) {
+        TopicRoute field = fieldsOf.getFields().get(name, offset, length);
+        if (field == null) {
+            field = newFieldRoute(fieldsOf, new String(name, offset, length, StandardCharsets.UTF_8));
+            if (!fieldsOf.getFields().put(name, offset, length, field)) {
+                fieldsDropped.increment();
+                return null;
+            }
+        }
+        return field;
+    }
+
+    //binary values come typed, and the series takes them if the type is its
+    //own or widens to it
+    private boolean fitsSeries(TopicRoute route, TimeSeriesAndValue tsval) {
+        TSDataType type = tsval.getDataType();
+        if (!route.isSettled()) {
+            settle(route, type);
+        }
+        TSDataType series = route.getType();
+        if (series == type) {
+            return true;
+        }
+        if (series == TSDataType.DOUBLE && (type == TSDataType.INT32 || type == TSDataType.FLOAT)) {
+            tsval.acceptDouble(type == TSDataType.INT32 ? tsval.getInt() : tsval.getFloat());
+            return true;
+        }
+        if (series == TSDataType.FLOAT && type == TSDataType.INT32) {
+            tsval.acceptFloat(tsval.getInt());
+            return true;
+        }
+        seriesTypes.conflict();
+        Logger.getLogger(Pump.class.getName()).log(
+            Level.FINE, type + " value does not fit the type of: " + route.timeseries);
+        return false;
+    }
+
+    //package private for testing
+    TopicRoute resolveTopic(String topic) {
+        RouteConfig next = reloaded.get();
+        if (next != null && reloaded.compareAndSet(next, null)) {
+            //swapped here, on the converting thread, so that no route made
+            //from the old settings gets into the cache after it is cleared
+            routes = next;
+            topicCache.clear();
+        }
+        return topicCache.get(topic, this::newRoute);
+    }
+
+    private TopicRoute newRoute(String topic) {
+        RouteConfig config = routes;
+        List<String> captures = new ArrayList<>();
+        RoutingRule rule = config.getRouting().match(topic, captures);
+        String suffix = getTopicSuffix(topic);
+        String timeseries = rule == null || rule.getSeries() == null ? convertTopicToTimeseries(topic) : rule.expand(captures);
+        DataConvertor convertor = rule == null || rule.getConvertor() == null ? getConvertor(suffix) : rule.getConvertor();
+        TopicRoute route = new TopicRoute(topic, timeseries, convertor);
+        route.countIn(metrics.topicCounter(topic));
+        route.routedBy(rule);
+        switch (config.payloadFor(topic, rule)) {
+            case BINARY:
+                route.decodeAsBinary();
+                return route;
+            case JSON:
+                //the topic names the device, the fields its measurements
+                route.parseAsJson();
+                return route;
+            default:
+                return configureRoute(route, suffix);
+        }
+    }
+
+    //the field names of JSON and binary payloads play the part of topic
+    //suffixes. an unnamed field is the topic's own measurement
+    private TopicRoute newFieldRoute(TopicRoute payload, String field) {
+        TopicRoute route;
+        if (field.isEmpty()) {
+            String suffix = getTopicSuffix(payload.topic);
+            route = new TopicRoute(payload.topic, payload.timeseries, payload.configured);
+            route.routedBy(payload.getRule());
+            return configureRoute(route, suffix);
+        }
+        route = new TopicRoute(payload.topic, payload.timeseries + "." + field.replace('.', '_'), getConvertor(field));
+        route.routedBy(payload.getRule());
+        return configureRoute(route, field);
+    }
+
+    //what the routing rule leaves unset goes by the suffix and the global
+    //settings
+    private TopicRoute configureRoute(TopicRoute route, String suffix) {
+        RoutingRule rule = route.getRule();
+        if (aggregates != null) {
+            long window = rule == null ? 0 : rule.getAggregateWindow();
+            route.aggregateEvery(window > 0 ? window : routes.windowFor(route.topic));
+        }
+        if (deadbands != null) {
+            Deadband deadband = rule == null || rule.getDeadband() == null ? routes.deadbandFor(suffix) : rule.getDeadband();
+            if (deadband != null) {
+                route.filterWith(deadband);
+            }
+        }
+        TSDataType known = seriesTypes.get(route.timeseries);
+        if (known != null) {
+            settle(route, known);
+        }
+        return route;
+    }
+
+    //fixes the type of the route's series, which is then created ahead of its
+    //first value. happens once per route, so the writes never wait on it
+    private void settle(TopicRoute route, TSDataType type) {
+        route.settle(seriesTypes.learn(route.timeseries, type));
+        if (schema == null) {
+            return;
+        }
+        schema.register(route.timeseries, route.getType(), route.getRule());
+        if (route.getAggregateWindow() > 0 && route.getType() != TSDataType.TEXT) {
+            //the statistics of the windows, see WindowAggregator
+            for (String statistic : WindowAggregator.STATISTICS) {
+                schema.register(route.timeseries + "_" + statistic, statistic.equals("count") ? TSDataType.INT32 : TSDataType.DOUBLE, null);
+            }
+        }
+    }
+
+    public SeriesTypeRegistry getSeriesTypes() {
+        return seriesTypes;
+    }
+
+    public SchemaManager getSchema() {
+        return schema;
+    }
+
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    public TopicCache getTopicCache() {
+        return topicCache;
     }
 
     //package private for testing
     DataConvertor getConvertor(String key) {
-        return conversions.getOrDefault(key.toLowerCase(), defaultConvertor);
+        DataConvertor convertor = routes.convertorFor(key);
+        return convertor == null ? defaultConvertor : convertor;
     }
 
     //we convert an MQTT topic by
@@ -313,68 +1983,48 @@ public class Pump implements MqttCallback {
         return mqtttopic.substring(mqtttopic.lastIndexOf('/') + 1);
     }
 
-    private <T> void postToDB(TimeSeriesAndValue tsval) {
-        List<String> measurements = new ArrayList<>(List.of(tsval.getSuffix()));
-        List<TSDataType> types = new ArrayList<>(List.of(tsval.getDataType()));
-        List<Object> values = new ArrayList<>(List.of(tsval.getValue()));
-        Date date = new Date();
-        try {
-            dbsession.insertRecord(tsval.getPrefix(), date.getTime(), measurements, types, values);
-            System.out.println("Posted in: " + tsval.timeseries + " value: " + values.get(0));
-        } catch (IoTDBConnectionException | StatementExecutionException ex) {
-            Logger.getLogger(Pump.class.getName()).log(Level.SEVERE, null, ex);
-        }
-    }
-
-    private void postInQue(TopicAndMessage message) {
-        synchronized (messages) {
-            messages.add(message);
-            messages.notify();
-        }
+    //values are handed to the writer owning their device and written in
+    //batches, see WriterPool and BatchWriter
+    private void postToDB(TimeSeriesAndValue tsval) {
+        writers.submit(tsval);
     }
 
-    private void subscribeToTopics() {
-        for (String topic : topics) {
-            try {
-                mqttclient.subscribe(topic, 0);
-            } catch (MqttException ex) {
-                //if we fail to subscribe, catch fire and die
-                Logger.getLogger(Pump.class.getName()).log(Level.SEVERE, null, ex);
-                System.exit(-1);
-            }
-        }
+    //depending on the overflow policy this may block the calling (MQTT) thread
+    //package private for testing
+    void postInQue(TopicAndMessage message) {
+        messages.put(message);
     }
 
-    @Override
-    public void messageArrived(String topic, MqttMessage message) throws Exception {
-        System.out.println("received message: " + message.toString() + " in topic: " + topic);
-        postInQue(new TopicAndMessage(topic, message));
+    public long getDroppedMessages() {
+        return messages.getDropped();
     }
 
-    @Override
-    public void disconnected(MqttDisconnectResponse disconnectResponse) {
-        System.out.println("Disconnected!");
+    public int getQueueDepth() {
+        return messages.size();
     }
 
-    @Override
-    public void mqttErrorOccurred(MqttException exception) {
-        System.err.println("exception occurred!" + exception.toString());
+    public RingBuffer.OverflowPolicy getQueueOverflow() {
+        return messages.getPolicy();
     }
 
-    @Override
-    public void deliveryComplete(IMqttToken token) {
-
-        System.out.println("something sent!");
+    public int getWriterQueueDepth() {
+        return writers == null ? 0 : writers.getQueueDepth();
     }
 
-    @Override
-    public void connectComplete(boolean reconnect, String serverURI) {
-        System.out.println("Connected to MQTT server");
-        subscribeToTopics();
+    //where all connections deliver their messages, on their own threads
+    public void messageArrived(String topic, MqttMessage message, AckTracker.Ack ack) {
+        long now = System.currentTimeMillis();
+        TrafficCapture recording = capture;
+        if (recording != null) {
+            recording.append(topic, now, message.getPayload());
+        }
+        received(topic, message, now, ack);
     }
 
-    @Override
-    public void authPacketArrived(int reasonCode, MqttProperties properties) {
-        throw new UnsupportedOperationException("Not supported yet.");
+    //where replayed messages come in too, bypassing the capture
+    private void received(String topic, MqttMessage message, long timestamp, AckTracker.Ack ack) {
+        metrics.messageReceived();
+        RECEIVED.log(Level.INFO, () -> "received message: " + message.toString() + " in topic: " + topic);
+        postInQue(new TopicAndMessage(topic, message, timestamp, ack));
     }
 }
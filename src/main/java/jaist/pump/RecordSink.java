@@ -0,0 +1,59 @@
+package jaist.pump;
+
+import java.util.List;
+import java.util.Map;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+import org.apache.tsfile.write.record.Tablet;
+
+/**
+ * The subset of the IoTDB session API the pump writes through. Kept narrow so
+ * that writers can be exercised against stubs.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public interface RecordSink {
+
+    void insertRecords(List<String> deviceIds, List<Long> times,
+        List<List<String>> measurementsList, List<List<TSDataType>> typesList,
+        List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException;
+
+    void insertRecordsOfOneDevice(String deviceId, List<Long> times,
+        List<List<String>> measurementsList, List<List<TSDataType>> typesList,
+        List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException;
+
+    void insertTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException;
+
+    void insertAlignedTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException;
+
+    /**
+     * @param tablets keyed by device
+     */
+    void insertTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException;
+
+    void insertAlignedTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException;
+
+    /**
+     * Creates timeseries in a single round trip, failing if any of them
+     * exists already.
+     */
+    void createTimeseries(List<String> paths, List<TSDataType> types, List<TSEncoding> encodings,
+        List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException;
+
+    /**
+     * Creates measurements of an aligned device in a single round trip.
+     */
+    void createAlignedTimeseries(String deviceId, List<String> measurements, List<TSDataType> types,
+        List<TSEncoding> encodings, List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException;
+
+    /**
+     * @param pathPattern e.g. root.devdb.**
+     * @return the data type of every existing timeseries matching the pattern
+     */
+    Map<String, TSDataType> fetchSeriesTypes(String pathPattern) throws IoTDBConnectionException, StatementExecutionException;
+
+    void close() throws IoTDBConnectionException;
+}
@@ -0,0 +1,207 @@
+package jaist.pump;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A bounded queue over pre-allocated slots. Producers and the consumer claim
+ * slots with a compare-and-set on a shared position and hand them over through
+ * a per-slot sequence number (the Vyukov bounded queue), so no lock is taken
+ * per message. Multiple producers are supported; the overflow policy decides
+ * what happens when the queue is full.
+ *
+ * Only one thread should wait in {@link #poll(long)} at a time.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ * @param <T> element type
+ */
+public class RingBuffer<T> {
+
+    public enum OverflowPolicy {
+        //wait until the consumer frees a slot
+        BLOCK,
+        //evict the oldest queued element to make room
+        DROP_OLDEST,
+        //discard the element being offered
+        DROP_NEWEST;
+
+        public static OverflowPolicy fromString(String policy) {
+            return OverflowPolicy.valueOf(policy.strip().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    private static final long PRODUCER_BACKOFF_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final int mask;
+    private final AtomicReferenceArray<T> slots;
+    private final AtomicLongArray sequences;
+    private final AtomicLong enqueuePos = new AtomicLong();
+    private final AtomicLong dequeuePos = new AtomicLong();
+    private final OverflowPolicy policy;
+    private final LongAdder dropped = new LongAdder();
+
+    private volatile Thread waitingConsumer;
+
+    /**
+     * @param capacity rounded up to the next power of two
+     * @param policy what to do when the buffer is full
+     */
+    public RingBuffer(int capacity, OverflowPolicy policy) {
+        if (capacity < 2) {
+            throw new IllegalArgumentException("capacity must be at least 2");
+        }
+        int size = Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.slots = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.policy = policy;
+    }
+
+    public int capacity() {
+        return mask + 1;
+    }
+
+    public OverflowPolicy getPolicy() {
+        return policy;
+    }
+
+    public int size() {
+        long size = enqueuePos.get() - dequeuePos.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+
+    /**
+     * @return the number of elements discarded because the buffer was full
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * Adds an element according to the overflow policy.
+     *
+     * @return false if the element (or an older one) was dropped
+     */
+    public boolean put(T element) {
+        if (offer(element)) {
+            return true;
+        }
+        switch (policy) {
+            case DROP_NEWEST:
+                dropped.increment();
+                return false;
+            case DROP_OLDEST:
+                do {
+                    if (tryPoll() != null) {
+                        dropped.increment();
+                    }
+                } while (!offer(element));
+                return false;
+            default:
+                while (!offer(element)) {
+                    LockSupport.parkNanos(this, PRODUCER_BACKOFF_NANOS);
+                }
+                return true;
+        }
+    }
+
+    /**
+     * Adds an element if there is room, never blocks.
+     */
+    public boolean offer(T element) {
+        long pos = enqueuePos.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long seq = sequences.get(index);
+            long diff = seq - pos;
+            if (diff == 0) {
+                if (enqueuePos.compareAndSet(pos, pos + 1)) {
+                    slots.lazySet(index, element);
+                    sequences.set(index, pos + 1);
+                    Thread consumer = waitingConsumer;
+                    if (consumer != null) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return true;
+                }
+                pos = enqueuePos.get();
+            } else if (diff < 0) {
+                //the slot still holds an element from the previous lap
+                return false;
+            } else {
+                pos = enqueuePos.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, or returns null if empty. Never blocks.
+     */
+    public T tryPoll() {
+        long pos = dequeuePos.get();
+        while (true) {
+            int index = (int) pos & mask;
+            long seq = sequences.get(index);
+            long diff = seq - (pos + 1);
+            if (diff == 0) {
+                if (dequeuePos.compareAndSet(pos, pos + 1)) {
+                    T element = slots.get(index);
+                    slots.lazySet(index, null);
+                    sequences.set(index, pos + mask + 1);
+                    return element;
+                }
+                pos = dequeuePos.get();
+            } else if (diff < 0) {
+                return null;
+            } else {
+                pos = dequeuePos.get();
+            }
+        }
+    }
+
+    /**
+     * Removes the oldest element, waiting at most timeoutMs for one to arrive
+     * (forever if negative).
+     *
+     * @return the element, or null if none arrived in time or the waiting
+     * thread was interrupted (the interrupt status is cleared)
+     */
+    public T poll(long timeoutMs) {
+        T element = tryPoll();
+        if (element != null || timeoutMs == 0) {
+            return element;
+        }
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        waitingConsumer = Thread.currentThread();
+        try {
+            while (true) {
+                //re-check after publishing ourselves, producers unpark us from now on
+                element = tryPoll();
+                if (element != null) {
+                    return element;
+                }
+                if (timeoutMs < 0) {
+                    LockSupport.park(this);
+                } else {
+                    long remaining = deadline - System.nanoTime();
+                    if (remaining <= 0) {
+                        return null;
+                    }
+                    LockSupport.parkNanos(this, remaining);
+                }
+                if (Thread.interrupted()) {
+                    return tryPoll();
+                }
+            }
+        } finally {
+            waitingConsumer = null;
+        }
+    }
+}
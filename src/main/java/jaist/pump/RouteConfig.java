@@ -0,0 +1,132 @@
+package jaist.pump;
+
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The settings that decide the route of a topic: convertors and deadbands by
+ * topic suffix, aggregation windows and payload formats by topic filter, and
+ * the routing rules. The pump consults them only when it sees a topic for the
+ * first time. Immutable, so that a configuration reload can swap in a new set
+ * while messages keep flowing.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public final class RouteConfig {
+
+    private final Map<String, DataConvertor> conversions;
+    private final Map<String, Deadband> deadbands;
+    private final Map<String, Long> aggregateWindows;
+    private final List<String> jsonTopics;
+    private final String jsonTimestampField;
+    private final byte[] jsonTimestampName;
+    private final List<String> binaryTopics;
+    private final RoutingTable routing;
+
+    /**
+     * @param conversions convertors by lowercase topic suffix
+     * @param deadbands deadbands by lowercase topic suffix
+     * @param aggregateWindows window length in milliseconds by MQTT topic
+     * filter, the first matching filter applies
+     * @param jsonTopics filters of the topics with JSON payloads
+     * @param jsonTimestampField top level JSON field holding the timestamp,
+     * null for none
+     * @param binaryTopics filters of the topics with binary payloads
+     * @param rules the routing rules
+     * @throws IllegalArgumentException if a window is shorter than 1ms or two
+     * rules have the same filter
+     */
+    public RouteConfig(Map<String, DataConvertor> conversions, Map<String, Deadband> deadbands, Map<String, Long> aggregateWindows,
+        List<String> jsonTopics, String jsonTimestampField, List<String> binaryTopics, List<RoutingRule> rules) {
+        for (var window : aggregateWindows.entrySet()) {
+            if (window.getValue() < 1) {
+                throw new IllegalArgumentException("aggregation windows must be at least 1ms: " + window.getKey());
+            }
+        }
+        this.conversions = Map.copyOf(conversions);
+        this.deadbands = Map.copyOf(deadbands);
+        this.aggregateWindows = new LinkedHashMap<>(aggregateWindows);
+        this.jsonTopics = List.copyOf(jsonTopics);
+        this.jsonTimestampField = jsonTimestampField;
+        this.jsonTimestampName = jsonTimestampField == null ? null : jsonTimestampField.getBytes(StandardCharsets.UTF_8);
+        this.binaryTopics = List.copyOf(binaryTopics);
+        this.routing = new RoutingTable(rules);
+    }
+
+    /**
+     * @return the convertor for a topic suffix, null if none is configured
+     */
+    public DataConvertor convertorFor(String suffix) {
+        return conversions.get(suffix.toLowerCase());
+    }
+
+    /**
+     * @return the deadband for a topic suffix, null if its values are all
+     * written
+     */
+    public Deadband deadbandFor(String suffix) {
+        return deadbands.get(suffix.toLowerCase());
+    }
+
+    /**
+     * @return the aggregation window length for a topic's series, 0 if they
+     * are not aggregated
+     */
+    public long windowFor(String topic) {
+        for (var window : aggregateWindows.entrySet()) {
+            if (TopicFilter.matches(window.getKey(), topic)) {
+                return window.getValue();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * @param rule the routing rule of the topic, may be null
+     */
+    public RoutingRule.Payload payloadFor(String topic, RoutingRule rule) {
+        if (rule != null && rule.getPayload() != null) {
+            return rule.getPayload();
+        }
+        for (String filter : binaryTopics) {
+            if (TopicFilter.matches(filter, topic)) {
+                return RoutingRule.Payload.BINARY;
+            }
+        }
+        for (String filter : jsonTopics) {
+            if (TopicFilter.matches(filter, topic)) {
+                return RoutingRule.Payload.JSON;
+            }
+        }
+        return RoutingRule.Payload.TEXT;
+    }
+
+    public RoutingTable getRouting() {
+        return routing;
+    }
+
+    public String getJsonTimestampField() {
+        return jsonTimestampField;
+    }
+
+    //shared, not to be modified
+    byte[] getJsonTimestampName() {
+        return jsonTimestampName;
+    }
+
+    /**
+     * @return true if any topic may have its values filtered by a deadband
+     */
+    public boolean hasDeadbands() {
+        return !deadbands.isEmpty() || routing.any(rule -> rule.getDeadband() != null);
+    }
+
+    /**
+     * @return true if any topic may have its values aggregated
+     */
+    public boolean hasAggregates() {
+        return !aggregateWindows.isEmpty() || routing.any(rule -> rule.getAggregateWindow() > 0);
+    }
+}
@@ -0,0 +1,228 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+
+/**
+ * How the topics matching an MQTT topic filter are written: where to, with
+ * which convertor, and which filtering and aggregation applies. Anything left
+ * unset falls back to what the topic suffix or the global settings say.
+ * <p>
+ * The series template is a timeseries in which {1}, {2}, ... stand for the
+ * topic levels matched by the filter's '+' wildcards in order, and {#} for
+ * the levels matched by '#', joined by '.'. Dots within a level become
+ * underscores, as in the default topic to timeseries rewrite.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class RoutingRule {
+
+    public enum Payload {
+        TEXT, JSON, BINARY
+    }
+
+    public final String name;
+    public final String filter;
+    private final int wildcards;
+    private final boolean multiLevel;
+
+    private String series;
+    //literal parts of the template, with the captures in between. -1 for {#}
+    private String[] literals;
+    private int[] captures;
+    private DataConvertor convertor;
+    private Payload payload;
+    private Deadband deadband;
+    private long aggregateWindow;
+    private TSEncoding encoding;
+    private CompressionType compression;
+
+    /**
+     * @param name for log messages
+     * @param filter the MQTT topic filter
+     */
+    public RoutingRule(String name, String filter) {
+        String problem = TopicFilter.check(filter);
+        if (problem != null) {
+            throw new IllegalArgumentException(problem);
+        }
+        int wildcards = 0;
+        for (String level : filter.split("/", -1)) {
+            if (level.equals("+")) {
+                wildcards++;
+            }
+        }
+        this.name = name;
+        this.filter = filter;
+        this.wildcards = wildcards;
+        this.multiLevel = filter.equals("#") || filter.endsWith("/#");
+    }
+
+    /**
+     * @param template the timeseries to write to, see above
+     */
+    public RoutingRule series(String template) {
+        List<String> literals = new ArrayList<>();
+        List<Integer> captures = new ArrayList<>();
+        int literal = 0;
+        int open = template.indexOf('{');
+        while (open >= 0) {
+            int close = template.indexOf('}', open);
+            if (close < 0) {
+                throw new IllegalArgumentException("unclosed '{' in " + template);
+            }
+            String capture = template.substring(open + 1, close);
+            int index;
+            if (capture.equals("#")) {
+                if (!multiLevel) {
+                    throw new IllegalArgumentException("{#} needs a filter ending in '#': " + filter);
+                }
+                index = -1;
+            } else {
+                try {
+                    index = Integer.parseInt(capture);
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("unknown placeholder {" + capture + "} in " + template);
+                }
+                if (index < 1 || index > wildcards) {
+                    throw new IllegalArgumentException(filter + " has no wildcard {" + capture + "}");
+                }
+            }
+            literals.add(template.substring(literal, open));
+            captures.add(index);
+            literal = close + 1;
+            open = template.indexOf('{', literal);
+        }
+        literals.add(template.substring(literal));
+        if (!template.contains(".")) {
+            throw new IllegalArgumentException("a series needs a device and a measurement: " + template);
+        }
+        this.series = template;
+        this.literals = literals.toArray(String[]::new);
+        this.captures = captures.stream().mapToInt(Integer::intValue).toArray();
+        return this;
+    }
+
+    public RoutingRule convertor(DataConvertor convertor) {
+        this.convertor = convertor;
+        return this;
+    }
+
+    public RoutingRule payload(Payload payload) {
+        this.payload = payload;
+        return this;
+    }
+
+    /**
+     * @param deadband combined with any deadband set before, see
+     * {@link Deadband#or}
+     */
+    public RoutingRule deadband(Deadband deadband) {
+        this.deadband = this.deadband == null ? deadband : this.deadband.or(deadband);
+        return this;
+    }
+
+    /**
+     * @param windowMs aggregate the values over windows of this length, 0 to
+     * write them as they are
+     */
+    public RoutingRule aggregate(long windowMs) {
+        if (windowMs < 0) {
+            throw new IllegalArgumentException("aggregation windows cannot be negative");
+        }
+        this.aggregateWindow = windowMs;
+        return this;
+    }
+
+    /**
+     * @param encoding for the series created, if it supports their type
+     */
+    public RoutingRule encoding(TSEncoding encoding) {
+        this.encoding = encoding;
+        return this;
+    }
+
+    public RoutingRule compression(CompressionType compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    /**
+     * @return the series template, null to use the default rewrite
+     */
+    public String getSeries() {
+        return series;
+    }
+
+    /**
+     * @return null to choose by topic suffix
+     */
+    public DataConvertor getConvertor() {
+        return convertor;
+    }
+
+    /**
+     * @return null to decide by the JSON and binary topic lists
+     */
+    public Payload getPayload() {
+        return payload;
+    }
+
+    /**
+     * @return null to choose by topic suffix
+     */
+    public Deadband getDeadband() {
+        return deadband;
+    }
+
+    /**
+     * @return 0 to decide by the aggregation filters
+     */
+    public long getAggregateWindow() {
+        return aggregateWindow;
+    }
+
+    /**
+     * @return null to choose by type, see {@link SchemaManager}
+     */
+    public TSEncoding getEncoding() {
+        return encoding;
+    }
+
+    /**
+     * @return null to choose by type, see {@link SchemaManager}
+     */
+    public CompressionType getCompression() {
+        return compression;
+    }
+
+    /**
+     * @param captured the levels the wildcards matched, the '#' ones last and
+     * already joined by '.'
+     * @return the timeseries for a matching topic, null without a template
+     */
+    String expand(List<String> captured) {
+        if (series == null) {
+            return null;
+        }
+        StringBuilder timeseries = new StringBuilder(series.length() + 32);
+        timeseries.append(literals[0]);
+        for (int i = 0; i < captures.length; i++) {
+            String value = captured.get(captures[i] < 0 ? wildcards : captures[i] - 1);
+            if (value.isEmpty() && timeseries.length() > 0 && timeseries.charAt(timeseries.length() - 1) == '.') {
+                //'#' matched no levels at all, do not leave an empty one
+                timeseries.setLength(timeseries.length() - 1);
+            }
+            timeseries.append(value);
+            timeseries.append(literals[i + 1]);
+        }
+        return timeseries.toString();
+    }
+
+    @Override
+    public String toString() {
+        return name + ": " + filter;
+    }
+}
@@ -0,0 +1,134 @@
+package jaist.pump;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * The routing rules compiled into a trie over topic levels, so that finding
+ * the rule of a topic takes a walk down as many nodes as the topic has
+ * levels, however many rules there are. Where several filters match, the
+ * most specific one wins: at every level an exact match is tried before '+',
+ * and '+' before '#'.
+ * <p>
+ * Lookups only happen when a topic is seen for the first time, the resulting
+ * {@link TopicRoute} is cached. Immutable once built, and thread-safe.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class RoutingTable {
+
+    private static class Node {
+
+        final Map<String, Node> children = new HashMap<>();
+        Node single;
+        //the rule of a filter ending in '#' below this node
+        RoutingRule multi;
+        //the rule of a filter ending at this node
+        RoutingRule rule;
+    }
+
+    private final Node root = new Node();
+    private final List<RoutingRule> rules;
+
+    /**
+     * @throws IllegalArgumentException if two rules have the same filter
+     */
+    public RoutingTable(List<RoutingRule> rules) {
+        for (RoutingRule rule : rules) {
+            add(rule);
+        }
+        this.rules = List.copyOf(rules);
+    }
+
+    private void add(RoutingRule rule) {
+        Node node = root;
+        String[] levels = rule.filter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#")) {
+                if (node.multi != null) {
+                    throw new IllegalArgumentException("rules " + node.multi.name + " and " + rule.name + " have the same filter: " + rule.filter);
+                }
+                node.multi = rule;
+                return;
+            }
+            if (level.equals("+")) {
+                if (node.single == null) {
+                    node.single = new Node();
+                }
+                node = node.single;
+            } else {
+                node = node.children.computeIfAbsent(level, l -> new Node());
+            }
+        }
+        if (node.rule != null) {
+            throw new IllegalArgumentException("rules " + node.rule.name + " and " + rule.name + " have the same filter: " + rule.filter);
+        }
+        node.rule = rule;
+    }
+
+    /**
+     * @param captures filled with the levels matched by the wildcards of the
+     * rule returned, see {@link RoutingRule#expand}
+     * @return the most specific rule matching the topic, null if none does
+     */
+    public RoutingRule match(String topic, List<String> captures) {
+        if (rules.isEmpty()) {
+            return null;
+        }
+        captures.clear();
+        return match(root, topic, 0, captures);
+    }
+
+    public int size() {
+        return rules.size();
+    }
+
+    /**
+     * @return true if any of the rules passes the test
+     */
+    public boolean any(Predicate<RoutingRule> test) {
+        return rules.stream().anyMatch(test);
+    }
+
+    private static RoutingRule match(Node node, String topic, int start, List<String> captures) {
+        if (start > topic.length()) {
+            //all levels matched
+            if (node.rule != null) {
+                return node.rule;
+            }
+            if (node.multi != null) {
+                //"a/#" matches "a" too
+                captures.add("");
+                return node.multi;
+            }
+            return null;
+        }
+        int end = topic.indexOf('/', start);
+        if (end < 0) {
+            end = topic.length();
+        }
+        Node exact = node.children.get(topic.substring(start, end));
+        if (exact != null) {
+            RoutingRule rule = match(exact, topic, end + 1, captures);
+            if (rule != null) {
+                return rule;
+            }
+        }
+        if (node.single != null) {
+            captures.add(topic.substring(start, end).replace('.', '_'));
+            RoutingRule rule = match(node.single, topic, end + 1, captures);
+            if (rule != null) {
+                return rule;
+            }
+            captures.remove(captures.size() - 1);
+        }
+        if (node.multi != null) {
+            captures.add(topic.substring(start).replace('.', '_').replace('/', '.'));
+            return node.multi;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,47 @@
+package jaist.pump;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Logs at most one message per interval and counts the rest, for events that
+ * happen for every message or batch. The message is only built when it is
+ * actually logged.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SampledLogger {
+
+    private final Logger logger;
+    private final long intervalNanos;
+    private final AtomicLong next;
+    private final LongAdder suppressed = new LongAdder();
+
+    public SampledLogger(Logger logger, long intervalMs) {
+        this.logger = logger;
+        this.intervalNanos = TimeUnit.MILLISECONDS.toNanos(intervalMs);
+        this.next = new AtomicLong(System.nanoTime());
+    }
+
+    public void log(Level level, Supplier<String> message) {
+        if (!logger.isLoggable(level)) {
+            return;
+        }
+        long now = System.nanoTime();
+        long due = next.get();
+        if (now - due < 0 || !next.compareAndSet(due, now + intervalNanos)) {
+            suppressed.increment();
+            return;
+        }
+        long skipped = suppressed.sumThenReset();
+        if (skipped == 0) {
+            logger.log(level, message.get());
+        } else {
+            logger.log(level, message.get() + " (" + skipped + " more since the last one)");
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+
+/**
+ * Creates the timeseries the pump writes to before their first value is,
+ * with the encoding and compression configured for their type or routing
+ * rule, instead of leaving it to IoTDB to create them with its defaults.
+ * <p>
+ * A series is registered once its type is known, which costs no more than
+ * adding it to a set. The series registered since are created in bulk, in a
+ * single round trip, by the next writer about to write; all writers wait for
+ * that creation to finish, so no value can get ahead of its series. Series
+ * that exist already are never created again.
+ * <p>
+ * Thread-safe.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SchemaManager {
+
+    private static final class Series {
+
+        final String timeseries;
+        final TSDataType type;
+        final TSEncoding encoding;
+        final CompressionType compression;
+
+        Series(String timeseries, TSDataType type, TSEncoding encoding, CompressionType compression) {
+            this.timeseries = timeseries;
+            this.type = type;
+            this.encoding = encoding;
+            this.compression = compression;
+        }
+
+        String device() {
+            return timeseries.substring(0, timeseries.lastIndexOf('.'));
+        }
+
+        String measurement() {
+            return timeseries.substring(timeseries.lastIndexOf('.') + 1);
+        }
+    }
+
+    private final Map<TSDataType, TSEncoding> encodings = new EnumMap<>(TSDataType.class);
+    private final Map<TSDataType, CompressionType> compressions = new EnumMap<>(TSDataType.class);
+    private final boolean aligned;
+
+    //every series known to exist or about to be created
+    private final Set<String> registered = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<Series> pending = new ConcurrentLinkedQueue<>();
+    //registered but not created yet, writers only take the lock while not 0
+    private final AtomicInteger outstanding = new AtomicInteger();
+    private final Object creating = new Object();
+
+    private final LongAdder created = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+
+    /**
+     * @param encodings by type, types left out get {@link #defaultEncoding}
+     * @param compressions by type, types left out get LZ4
+     * @param aligned create the devices as aligned timeseries, as the tablet
+     * writer writes them with TABLET-ALIGNED
+     * @throws IllegalArgumentException if an encoding does not support its
+     * type
+     */
+    public SchemaManager(Map<TSDataType, TSEncoding> encodings, Map<TSDataType, CompressionType> compressions, boolean aligned) {
+        for (var encoding : encodings.entrySet()) {
+            if (!encoding.getValue().isSupported(encoding.getKey())) {
+                throw new IllegalArgumentException(encoding.getValue() + " cannot encode " + encoding.getKey());
+            }
+        }
+        this.encodings.putAll(encodings);
+        this.compressions.putAll(compressions);
+        this.aligned = aligned;
+    }
+
+    /**
+     * @return the encoding used for a type unless configured otherwise:
+     * GORILLA for floating point, TS_2DIFF for integers, RLE for booleans and
+     * PLAIN for text
+     */
+    public static TSEncoding defaultEncoding(TSDataType type) {
+        switch (type) {
+            case FLOAT:
+            case DOUBLE:
+                return TSEncoding.GORILLA;
+            case INT32:
+            case INT64:
+                return TSEncoding.TS_2DIFF;
+            case BOOLEAN:
+                return TSEncoding.RLE;
+            default:
+                return TSEncoding.PLAIN;
+        }
+    }
+
+    /**
+     * Marks series as existing, e.g. those found in the database at startup.
+     */
+    public void seed(Collection<String> existing) {
+        registered.addAll(existing);
+    }
+
+    /**
+     * Has a series created before the next write, unless it exists already.
+     *
+     * @param rule the routing rule of the series, its encoding and
+     * compression win over the ones for the type. May be null
+     */
+    public void register(String timeseries, TSDataType type, RoutingRule rule) {
+        if (registered.contains(timeseries) || !registered.add(timeseries)) {
+            return;
+        }
+        TSEncoding encoding = rule == null ? null : rule.getEncoding();
+        if (encoding == null || !encoding.isSupported(type)) {
+            encoding = encodings.getOrDefault(type, defaultEncoding(type));
+        }
+        CompressionType compression = rule == null ? null : rule.getCompression();
+        if (compression == null) {
+            compression = compressions.getOrDefault(type, CompressionType.LZ4);
+        }
+        outstanding.incrementAndGet();
+        pending.add(new Series(timeseries, type, encoding, compression));
+    }
+
+    /**
+     * Creates the series registered since the last call, writers call this
+     * before every write. Returns at once if there are none. Series that
+     * cannot be created are left to be created by the write, with the
+     * database's defaults.
+     *
+     * @throws IoTDBConnectionException if the database is unreachable, the
+     * series are then created by a later call
+     */
+    public void createPending(RecordSink sink) throws IoTDBConnectionException {
+        if (outstanding.get() == 0) {
+            return;
+        }
+        synchronized (creating) {
+            List<Series> batch = new ArrayList<>();
+            Series series;
+            while ((series = pending.poll()) != null) {
+                batch.add(series);
+            }
+            int done = 0;
+            try {
+                for (List<Series> group : groups(batch)) {
+                    create(sink, group);
+                    done += group.size();
+                }
+            } catch (IoTDBConnectionException ex) {
+                //the groups are in batch order, the rest is left for later
+                pending.addAll(batch.subList(done, batch.size()));
+                throw ex;
+            } finally {
+                outstanding.addAndGet(-done);
+            }
+        }
+    }
+
+    //one group of all the series, or one per device if they are aligned.
+    //reorders the batch to match
+    private List<List<Series>> groups(List<Series> batch) {
+        if (!aligned) {
+            return List.of(batch);
+        }
+        Map<String, List<Series>> devices = new LinkedHashMap<>();
+        for (Series series : batch) {
+            devices.computeIfAbsent(series.device(), d -> new ArrayList<>()).add(series);
+        }
+        batch.clear();
+        for (List<Series> group : devices.values()) {
+            batch.addAll(group);
+        }
+        return List.copyOf(devices.values());
+    }
+
+    //in one round trip if possible, otherwise one by one
+    private void create(RecordSink sink, List<Series> group) throws IoTDBConnectionException {
+        try {
+            createAll(sink, group);
+            created.add(group.size());
+            return;
+        } catch (StatementExecutionException ex) {
+            //e.g. another pump created some of them meanwhile
+            Logger.getLogger(SchemaManager.class.getName()).log(Level.FINE, "could not create " + group.size() + " series at once", ex);
+        }
+        for (Series series : group) {
+            try {
+                createAll(sink, List.of(series));
+                created.increment();
+            } catch (StatementExecutionException ex) {
+                failed.increment();
+                Logger.getLogger(SchemaManager.class.getName()).log(Level.FINE, "could not create " + series.timeseries, ex);
+            }
+        }
+    }
+
+    private void createAll(RecordSink sink, List<Series> group) throws IoTDBConnectionException, StatementExecutionException {
+        List<TSDataType> types = new ArrayList<>(group.size());
+        List<TSEncoding> encodings = new ArrayList<>(group.size());
+        List<CompressionType> compressions = new ArrayList<>(group.size());
+        List<String> names = new ArrayList<>(group.size());
+        for (Series series : group) {
+            names.add(aligned ? series.measurement() : series.timeseries);
+            types.add(series.type);
+            encodings.add(series.encoding);
+            compressions.add(series.compression);
+        }
+        if (aligned) {
+            sink.createAlignedTimeseries(group.get(0).device(), names, types, encodings, compressions);
+        } else {
+            sink.createTimeseries(names, types, encodings, compressions);
+        }
+    }
+
+    /**
+     * @return series created by the pump
+     */
+    public long getCreated() {
+        return created.sum();
+    }
+
+    /**
+     * @return series that could not be created, and were left to the writes
+     */
+    public long getFailed() {
+        return failed.sum();
+    }
+
+    /**
+     * @return series registered but not created yet
+     */
+    public int getPending() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return series known to exist or about to be created
+     */
+    public int size() {
+        return registered.size();
+    }
+}
@@ -0,0 +1,56 @@
+package jaist.pump;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.tsfile.enums.TSDataType;
+
+/**
+ * Remembers the data type each timeseries has settled on, either learned from
+ * its first value or taken from the database schema. Convertors that pick a
+ * type per value (such as DoubleOrText) are then specialized to that type, so
+ * later values of the series skip the guessing. A value that does not fit the
+ * settled type is a conflict: it is counted and dropped, since the database
+ * would reject it anyway.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SeriesTypeRegistry {
+
+    private final ConcurrentHashMap<String, TSDataType> types = new ConcurrentHashMap<>();
+    private final LongAdder conflicts = new LongAdder();
+
+    public TSDataType get(String timeseries) {
+        return types.get(timeseries);
+    }
+
+    /**
+     * Records the type of a series unless one is known already.
+     *
+     * @return the type the series has settled on
+     */
+    public TSDataType learn(String timeseries, TSDataType type) {
+        TSDataType known = types.putIfAbsent(timeseries, type);
+        return known == null ? type : known;
+    }
+
+    /**
+     * Adds already known types, e.g. from the database schema. These win over
+     * anything learned so far.
+     */
+    public void seed(Map<String, TSDataType> known) {
+        types.putAll(known);
+    }
+
+    public void conflict() {
+        conflicts.increment();
+    }
+
+    public long getConflicts() {
+        return conflicts.sum();
+    }
+
+    public int size() {
+        return types.size();
+    }
+}
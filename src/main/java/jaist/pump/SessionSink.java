@@ -0,0 +1,104 @@
+package jaist.pump;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.iotdb.isession.SessionDataSet;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.iotdb.session.Session;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+import org.apache.tsfile.write.record.Tablet;
+
+/**
+ * A {@link RecordSink} backed by a single IoTDB {@link Session}.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SessionSink implements RecordSink {
+
+    private final Session session;
+
+    public SessionSink(Session session) {
+        this.session = session;
+    }
+
+    public static SessionSink open(String host, int port, String username, String password) throws IoTDBConnectionException {
+        Session session = new Session.Builder()
+            .host(host)
+            .port(port)
+            .username(username)
+            .password(password)
+            .build();
+        session.open();
+        return new SessionSink(session);
+    }
+
+    @Override
+    public void insertRecords(List<String> deviceIds, List<Long> times,
+        List<List<String>> measurementsList, List<List<TSDataType>> typesList,
+        List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+        session.insertRecords(deviceIds, times, measurementsList, typesList, valuesList);
+    }
+
+    @Override
+    public void insertRecordsOfOneDevice(String deviceId, List<Long> times,
+        List<List<String>> measurementsList, List<List<TSDataType>> typesList,
+        List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+        session.insertRecordsOfOneDevice(deviceId, times, measurementsList, typesList, valuesList);
+    }
+
+    @Override
+    public void insertTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException {
+        session.insertTablet(tablet);
+    }
+
+    @Override
+    public void insertAlignedTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException {
+        session.insertAlignedTablet(tablet);
+    }
+
+    @Override
+    public void insertTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException {
+        session.insertTablets(tablets);
+    }
+
+    @Override
+    public void insertAlignedTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException {
+        session.insertAlignedTablets(tablets);
+    }
+
+    @Override
+    public void createTimeseries(List<String> paths, List<TSDataType> types, List<TSEncoding> encodings,
+        List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+        session.createMultiTimeseries(paths, types, encodings, compressions, null, null, null, null);
+    }
+
+    @Override
+    public void createAlignedTimeseries(String deviceId, List<String> measurements, List<TSDataType> types,
+        List<TSEncoding> encodings, List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+        session.createAlignedTimeseries(deviceId, measurements, types, encodings, compressions, null);
+    }
+
+    @Override
+    public Map<String, TSDataType> fetchSeriesTypes(String pathPattern) throws IoTDBConnectionException, StatementExecutionException {
+        Map<String, TSDataType> types = new HashMap<>();
+        SessionDataSet dataSet = session.executeQueryStatement("SHOW TIMESERIES " + pathPattern);
+        try {
+            SessionDataSet.DataIterator it = dataSet.iterator();
+            while (it.next()) {
+                types.put(it.getString("Timeseries"), TSDataType.valueOf(it.getString("DataType")));
+            }
+        } finally {
+            dataSet.close();
+        }
+        return types;
+    }
+
+    @Override
+    public void close() throws IoTDBConnectionException {
+        session.close();
+    }
+}
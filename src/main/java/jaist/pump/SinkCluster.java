@@ -0,0 +1,362 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+import org.apache.tsfile.write.record.Tablet;
+
+/**
+ * Writes to a cluster of database nodes, any of which takes any write. The
+ * sinks opened here spread their calls over the nodes, either in turn or by
+ * device, and move a call on to the next node as soon as one turns out to be
+ * unreachable.
+ * <p>
+ * A node that failed is left out for a backoff that doubles with every
+ * failure in a row. Once it is due, a single call tries it again while the
+ * others keep going to the healthy nodes, so a dead node costs at most one
+ * failed attempt per backoff. Only when no node can be reached does a call
+ * fail, leaving it to the writers to retry or spool as with a single node.
+ * <p>
+ * Every sink holds its own connection to each node, opened on first use, so
+ * like other sinks they are not thread-safe, while the health of the nodes is
+ * shared by all of them.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SinkCluster implements SinkFactory {
+
+    static final long INITIAL_BACKOFF_MS = 100;
+    static final long MAX_BACKOFF_MS = 30_000;
+    private static final SampledLogger FAILOVER = new SampledLogger(Logger.getLogger(SinkCluster.class.getName()), 10_000);
+
+    /**
+     * How calls are spread over the nodes.
+     */
+    public enum Spread {
+        //each call to the next node
+        ROUND_ROBIN,
+        //the calls for a device always to the same node while it is up
+        DEVICE;
+
+        public static Spread fromString(String spread) {
+            return Spread.valueOf(spread.strip().toUpperCase().replace('-', '_'));
+        }
+    }
+
+    @FunctionalInterface
+    private interface Call<T> {
+
+        T on(RecordSink sink) throws IoTDBConnectionException, StatementExecutionException;
+    }
+
+    /**
+     * A database node, its health and statistics.
+     */
+    public static class Node {
+
+        private final String name;
+        private final SinkFactory factory;
+        //failures in a row, 0 while healthy
+        private final AtomicInteger failuresInRow = new AtomicInteger();
+        //System.currentTimeMillis() before which the node is left out
+        private final AtomicLong retryAt = new AtomicLong();
+        private final LongAdder calls = new LongAdder();
+        private final LongAdder failures = new LongAdder();
+        private final LongAdder rejections = new LongAdder();
+        private final Histogram callMicros = new Histogram();
+
+        Node(String name, SinkFactory factory) {
+            this.name = name;
+            this.factory = factory;
+        }
+
+        //true if the node may be called now. a node that is down is handed
+        //to one caller when due, the others skip it for another backoff
+        boolean acquire(long now) {
+            if (failuresInRow.get() == 0) {
+                return true;
+            }
+            long at = retryAt.get();
+            return now >= at && retryAt.compareAndSet(at, now + backoff());
+        }
+
+        private long backoff() {
+            int failed = Math.max(failuresInRow.get(), 1);
+            return Math.min(INITIAL_BACKOFF_MS << Math.min(failed - 1, 20), MAX_BACKOFF_MS);
+        }
+
+        void succeeded(long micros) {
+            calls.increment();
+            callMicros.record(micros);
+            if (failuresInRow.get() != 0) {
+                failuresInRow.set(0);
+                Logger.getLogger(SinkCluster.class.getName()).log(Level.INFO, "database node " + name + " is back");
+            }
+        }
+
+        void failed(long now, IoTDBConnectionException ex) {
+            calls.increment();
+            failures.increment();
+            failuresInRow.incrementAndGet();
+            long backoff = backoff();
+            retryAt.set(now + backoff);
+            FAILOVER.log(Level.WARNING, () -> "database node " + name + " unreachable, leaving it out for " + backoff + "ms: " + ex.getMessage());
+        }
+
+        void rejected(long micros) {
+            rejections.increment();
+            //the node answered, it is up
+            succeeded(micros);
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return true unless the last call to the node failed to reach it
+         */
+        public boolean isHealthy() {
+            return failuresInRow.get() == 0;
+        }
+
+        public long getCalls() {
+            return calls.sum();
+        }
+
+        /**
+         * @return calls that could not reach the node
+         */
+        public long getFailures() {
+            return failures.sum();
+        }
+
+        /**
+         * @return calls the node rejected
+         */
+        public long getRejections() {
+            return rejections.sum();
+        }
+
+        /**
+         * @return duration of the calls that reached the node, in
+         * microseconds
+         */
+        public Histogram getCallMicros() {
+            return callMicros;
+        }
+    }
+
+    private final List<Node> nodes = new ArrayList<>();
+    private final Spread spread;
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    /**
+     * @param names of the nodes, for the logs and metrics
+     * @param factories opening a connection to each node
+     */
+    public SinkCluster(List<String> names, List<SinkFactory> factories, Spread spread) {
+        if (names.isEmpty() || names.size() != factories.size()) {
+            throw new IllegalArgumentException("a cluster needs at least one node, and a name for each");
+        }
+        for (int i = 0; i < names.size(); i++) {
+            nodes.add(new Node(names.get(i), factories.get(i)));
+        }
+        this.spread = spread;
+    }
+
+    /**
+     * @param addresses host:port of every node, the port defaulting to
+     * defaultPort
+     */
+    public static SinkCluster of(List<String> addresses, int defaultPort, String username, String password, Spread spread) {
+        List<SinkFactory> factories = new ArrayList<>();
+        for (String address : addresses) {
+            String host = address;
+            int port = defaultPort;
+            int colon = address.lastIndexOf(':');
+            if (colon > 0) {
+                host = address.substring(0, colon);
+                try {
+                    port = Integer.parseInt(address.substring(colon + 1));
+                } catch (NumberFormatException ex) {
+                    throw new IllegalArgumentException("malformed database node: " + address);
+                }
+            }
+            String nodeHost = host;
+            int nodePort = port;
+            factories.add(() -> SessionSink.open(nodeHost, nodePort, username, password));
+        }
+        return new SinkCluster(addresses, factories, spread);
+    }
+
+    public List<Node> getNodes() {
+        return Collections.unmodifiableList(nodes);
+    }
+
+    public Spread getSpread() {
+        return spread;
+    }
+
+    /**
+     * Connects to nothing yet, the connections are opened as the calls need
+     * them.
+     */
+    @Override
+    public RecordSink open() {
+        return new ClusterSink();
+    }
+
+    //the node a call goes to first
+    private int first(String device) {
+        if (spread == Spread.DEVICE && device != null) {
+            return Math.floorMod(device.hashCode(), nodes.size());
+        }
+        return Math.floorMod(cursor.getAndIncrement(), nodes.size());
+    }
+
+    private class ClusterSink implements RecordSink {
+
+        //a connection to each node, null until needed or after a failure
+        private final RecordSink[] connections = new RecordSink[nodes.size()];
+
+        private <T> T call(String device, Call<T> call) throws IoTDBConnectionException, StatementExecutionException {
+            IoTDBConnectionException failure = null;
+            int first = first(device);
+            for (int i = 0; i < nodes.size(); i++) {
+                int index = (first + i) % nodes.size();
+                Node node = nodes.get(index);
+                if (!node.acquire(System.currentTimeMillis())) {
+                    continue;
+                }
+                long start = System.nanoTime();
+                try {
+                    if (connections[index] == null) {
+                        connections[index] = node.factory.open();
+                    }
+                    T result = call.on(connections[index]);
+                    node.succeeded((System.nanoTime() - start) / 1000);
+                    return result;
+                } catch (IoTDBConnectionException ex) {
+                    node.failed(System.currentTimeMillis(), ex);
+                    drop(index);
+                    failure = ex;
+                } catch (StatementExecutionException ex) {
+                    node.rejected((System.nanoTime() - start) / 1000);
+                    throw ex;
+                }
+            }
+            throw failure != null ? failure : new IoTDBConnectionException("no database node is available");
+        }
+
+        private void drop(int index) {
+            RecordSink broken = connections[index];
+            connections[index] = null;
+            if (broken != null) {
+                try {
+                    broken.close();
+                } catch (IoTDBConnectionException ex) {
+                    //broken already
+                }
+            }
+        }
+
+        @Override
+        public void insertRecords(List<String> deviceIds, List<Long> times, List<List<String>> measurementsList, List<List<TSDataType>> typesList, List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+            call(deviceIds.isEmpty() ? null : deviceIds.get(0), sink -> {
+                sink.insertRecords(deviceIds, times, measurementsList, typesList, valuesList);
+                return null;
+            });
+        }
+
+        @Override
+        public void insertRecordsOfOneDevice(String deviceId, List<Long> times, List<List<String>> measurementsList, List<List<TSDataType>> typesList, List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+            call(deviceId, sink -> {
+                sink.insertRecordsOfOneDevice(deviceId, times, measurementsList, typesList, valuesList);
+                return null;
+            });
+        }
+
+        @Override
+        public void insertTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException {
+            call(tablet.getDeviceId(), sink -> {
+                sink.insertTablet(tablet);
+                return null;
+            });
+        }
+
+        @Override
+        public void insertAlignedTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException {
+            call(tablet.getDeviceId(), sink -> {
+                sink.insertAlignedTablet(tablet);
+                return null;
+            });
+        }
+
+        @Override
+        public void insertTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException {
+            call(tablets.isEmpty() ? null : tablets.keySet().iterator().next(), sink -> {
+                sink.insertTablets(tablets);
+                return null;
+            });
+        }
+
+        @Override
+        public void insertAlignedTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException {
+            call(tablets.isEmpty() ? null : tablets.keySet().iterator().next(), sink -> {
+                sink.insertAlignedTablets(tablets);
+                return null;
+            });
+        }
+
+        @Override
+        public void createTimeseries(List<String> paths, List<TSDataType> types, List<TSEncoding> encodings, List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+            call(null, sink -> {
+                sink.createTimeseries(paths, types, encodings, compressions);
+                return null;
+            });
+        }
+
+        @Override
+        public void createAlignedTimeseries(String deviceId, List<String> measurements, List<TSDataType> types, List<TSEncoding> encodings, List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+            call(deviceId, sink -> {
+                sink.createAlignedTimeseries(deviceId, measurements, types, encodings, compressions);
+                return null;
+            });
+        }
+
+        @Override
+        public Map<String, TSDataType> fetchSeriesTypes(String pathPattern) throws IoTDBConnectionException, StatementExecutionException {
+            return call(null, sink -> sink.fetchSeriesTypes(pathPattern));
+        }
+
+        @Override
+        public void close() throws IoTDBConnectionException {
+            IoTDBConnectionException failure = null;
+            for (int i = 0; i < connections.length; i++) {
+                if (connections[i] != null) {
+                    try {
+                        connections[i].close();
+                    } catch (IoTDBConnectionException ex) {
+                        failure = ex;
+                    }
+                    connections[i] = null;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package jaist.pump;
+
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+
+/**
+ * Opens a new connection to the database. Every writer owns the sink it gets
+ * from here, so sinks need not be thread-safe.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+@FunctionalInterface
+public interface SinkFactory {
+
+    RecordSink open() throws IoTDBConnectionException;
+}
@@ -0,0 +1,187 @@
+package jaist.pump;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+import org.apache.tsfile.write.record.Tablet;
+
+/**
+ * A thread-safe sink over a bounded number of connections, for when there are
+ * more writers than the database should see connections. Every call borrows a
+ * connection for its duration, waiting for one to be returned if all are in
+ * use; connections are opened as they are first needed.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SinkPool implements RecordSink {
+
+    @FunctionalInterface
+    private interface Call<T> {
+
+        T on(RecordSink sink) throws IoTDBConnectionException, StatementExecutionException;
+    }
+
+    private final SinkFactory factory;
+    private final int size;
+    private final BlockingQueue<RecordSink> idle;
+    private final AtomicInteger opened = new AtomicInteger();
+
+    /**
+     * Opens the first connection right away, so that an unreachable database
+     * is reported here.
+     *
+     * @param factory
+     * @param size the most connections open at once
+     */
+    public SinkPool(SinkFactory factory, int size) throws IoTDBConnectionException {
+        if (size < 1) {
+            throw new IllegalArgumentException("at least one connection is required");
+        }
+        this.factory = factory;
+        this.size = size;
+        this.idle = new ArrayBlockingQueue<>(size);
+        opened.set(1);
+        idle.add(factory.open());
+    }
+
+    public int getOpened() {
+        return opened.get();
+    }
+
+    private RecordSink acquire() throws IoTDBConnectionException {
+        RecordSink sink = idle.poll();
+        if (sink != null) {
+            return sink;
+        }
+        for (int count = opened.get(); count < size; count = opened.get()) {
+            if (opened.compareAndSet(count, count + 1)) {
+                try {
+                    return factory.open();
+                } catch (IoTDBConnectionException ex) {
+                    opened.decrementAndGet();
+                    throw ex;
+                }
+            }
+        }
+        //every connection in use is returned, so this does not wait long. a
+        //writer interrupted to close still has to write its last batch
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return idle.take();
+                } catch (InterruptedException ex) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private <T> T with(Call<T> call) throws IoTDBConnectionException, StatementExecutionException {
+        RecordSink sink = acquire();
+        try {
+            return call.on(sink);
+        } finally {
+            idle.add(sink);
+        }
+    }
+
+    @Override
+    public void insertRecords(List<String> deviceIds, List<Long> times, List<List<String>> measurementsList, List<List<TSDataType>> typesList, List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+        with(sink -> {
+            sink.insertRecords(deviceIds, times, measurementsList, typesList, valuesList);
+            return null;
+        });
+    }
+
+    @Override
+    public void insertRecordsOfOneDevice(String deviceId, List<Long> times, List<List<String>> measurementsList, List<List<TSDataType>> typesList, List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+        with(sink -> {
+            sink.insertRecordsOfOneDevice(deviceId, times, measurementsList, typesList, valuesList);
+            return null;
+        });
+    }
+
+    @Override
+    public void insertTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException {
+        with(sink -> {
+            sink.insertTablet(tablet);
+            return null;
+        });
+    }
+
+    @Override
+    public void insertAlignedTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException {
+        with(sink -> {
+            sink.insertAlignedTablet(tablet);
+            return null;
+        });
+    }
+
+    @Override
+    public void insertTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException {
+        with(sink -> {
+            sink.insertTablets(tablets);
+            return null;
+        });
+    }
+
+    @Override
+    public void insertAlignedTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException {
+        with(sink -> {
+            sink.insertAlignedTablets(tablets);
+            return null;
+        });
+    }
+
+    @Override
+    public void createTimeseries(List<String> paths, List<TSDataType> types, List<TSEncoding> encodings, List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+        with(sink -> {
+            sink.createTimeseries(paths, types, encodings, compressions);
+            return null;
+        });
+    }
+
+    @Override
+    public void createAlignedTimeseries(String deviceId, List<String> measurements, List<TSDataType> types, List<TSEncoding> encodings, List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+        with(sink -> {
+            sink.createAlignedTimeseries(deviceId, measurements, types, encodings, compressions);
+            return null;
+        });
+    }
+
+    @Override
+    public Map<String, TSDataType> fetchSeriesTypes(String pathPattern) throws IoTDBConnectionException, StatementExecutionException {
+        return with(sink -> sink.fetchSeriesTypes(pathPattern));
+    }
+
+    /**
+     * Closes the idle connections, call once no more writes are in flight.
+     */
+    @Override
+    public void close() throws IoTDBConnectionException {
+        IoTDBConnectionException failure = null;
+        RecordSink sink;
+        while ((sink = idle.poll()) != null) {
+            try {
+                sink.close();
+            } catch (IoTDBConnectionException ex) {
+                failure = ex;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+}
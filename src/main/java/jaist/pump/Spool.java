@@ -0,0 +1,632 @@
+package jaist.pump;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.utils.Binary;
+
+/**
+ * A local, append-only store for values that could not be written to the
+ * database, either because it is unreachable or because the writers are not
+ * keeping up. A background replayer drains it back into the database in large
+ * batches once the database accepts writes again.
+ *
+ * The spool is a directory of fixed-size, memory-mapped segment files. Each
+ * segment starts with a magic number and holds records of the form
+ *
+ * <pre>
+ * int    length of the body, 0 if nothing was written here yet, -1 if the
+ *        rest of the segment is unused because the writer moved on
+ * int    CRC32 of the body
+ * body:  long timestamp, byte data type, short+bytes device,
+ *        short+bytes measurement, value (1 byte boolean, 4 byte int32,
+ *        4 byte float, 8 byte double, int+bytes text)
+ * </pre>
+ *
+ * The length is written last, so a record torn by a crash reads as the end of
+ * the segment, and a segment a crash left without its magic number is set
+ * aside as broken. Appended records reach the operating system at once, so
+ * they survive the process crashing; to survive the machine crashing as well
+ * they are forced to disk with {@link #force()}, which the writers call once
+ * per batch they spool, before acknowledging its messages. How far the
+ * replayer got is kept in a checkpoint file that is replaced atomically after
+ * every successful batch; after a restart replay resumes from there and
+ * writing starts in a fresh segment. Fully replayed segments are deleted, and
+ * when there are more than the configured number of segments the oldest is
+ * deleted even if it was not replayed.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class Spool implements Closeable {
+
+    private static final int MAGIC = 0x5053504c; //"PSPL"
+    private static final int HEADER_BYTES = 4;
+    private static final int RECORD_HEADER_BYTES = 8;
+    private static final int ROTATED = -1;
+    private static final String SEGMENT_PREFIX = "spool-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CHECKPOINT = "checkpoint";
+    private static final String BROKEN_SUFFIX = ".broken";
+
+    private static final long MIN_BACKOFF_MS = 500;
+    private static final long MAX_BACKOFF_MS = 30_000;
+
+    private final Path directory;
+    private final int segmentBytes;
+    private final int maxSegments;
+
+    //all of the following is guarded by this
+    private final TreeMap<Long, Segment> segments = new TreeMap<>();
+    private Segment writeSegment;
+    private long readSegmentId;
+    private int readOffset;
+    private final CRC32 crc = new CRC32();
+    private ByteBuffer scratch = ByteBuffer.allocate(256);
+
+    private final LongAdder spooled = new LongAdder();
+    private final LongAdder replayed = new LongAdder();
+    private final LongAdder lost = new LongAdder();
+    private final LongAdder droppedSegments = new LongAdder();
+
+    //set by writers when the database is unreachable, cleared by the replayer
+    private volatile boolean databaseDown;
+    private volatile Thread replayer;
+    private volatile boolean running = true;
+
+    /**
+     * Opens (or creates) a spool directory, recovering anything left in it.
+     *
+     * @param directory
+     * @param segmentBytes size of each segment file
+     * @param maxSegments how many segments may exist before the oldest is
+     * deleted
+     * @throws IOException
+     */
+    public Spool(Path directory, int segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes < 4096) {
+            throw new IllegalArgumentException("spool segments must be at least 4096 bytes");
+        }
+        if (maxSegments < 2) {
+            throw new IllegalArgumentException("the spool needs at least two segments");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+
+        Files.createDirectories(directory);
+        //past every segment file, broken ones included, so none is overwritten
+        long nextId = 0;
+        try (Stream<Path> files = Files.list(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                String name = file.getFileName().toString();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+                    continue;
+                }
+                long id;
+                try {
+                    id = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+                } catch (NumberFormatException ex) {
+                    Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "ignoring misnamed spool segment " + file);
+                    continue;
+                }
+                nextId = Math.max(nextId, id + 1);
+                try {
+                    segments.put(id, Segment.open(file, id));
+                } catch (IOException ex) {
+                    //e.g. created just before a crash, its magic number never
+                    //made it to disk. nothing was acknowledged from it
+                    setAside(file, ex);
+                }
+            }
+        }
+        readCheckpoint();
+        rotate(Math.max(nextId, readSegmentId));
+        if (segments.firstKey() > readSegmentId) {
+            readSegmentId = segments.firstKey();
+            readOffset = HEADER_BYTES;
+        }
+    }
+
+    private static void setAside(Path file, IOException ex) {
+        Path broken = file.resolveSibling(file.getFileName() + BROKEN_SUFFIX);
+        try {
+            Files.move(file, broken, StandardCopyOption.REPLACE_EXISTING);
+            Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "set aside unreadable spool segment as " + broken, ex);
+        } catch (IOException moveEx) {
+            Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "skipping unreadable spool segment " + file, ex);
+        }
+    }
+
+    private void readCheckpoint() throws IOException {
+        Path checkpoint = directory.resolve(CHECKPOINT);
+        readSegmentId = 0;
+        readOffset = HEADER_BYTES;
+        if (!Files.exists(checkpoint)) {
+            return;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(checkpoint));
+        if (buffer.remaining() != 20) {
+            Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "ignoring malformed spool checkpoint");
+            return;
+        }
+        long id = buffer.getLong();
+        int offset = buffer.getInt();
+        long checksum = buffer.getLong();
+        crc.reset();
+        crc.update(buffer.array(), 0, 12);
+        if (crc.getValue() != checksum) {
+            Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "ignoring corrupt spool checkpoint");
+            return;
+        }
+        readSegmentId = id;
+        readOffset = offset;
+    }
+
+    private void writeCheckpoint() throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(20);
+        buffer.putLong(readSegmentId).putInt(readOffset);
+        crc.reset();
+        crc.update(buffer.array(), 0, 12);
+        buffer.putLong(crc.getValue());
+        Path tmp = directory.resolve(CHECKPOINT + ".tmp");
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            buffer.flip();
+            channel.write(buffer);
+            channel.force(true);
+        }
+        Files.move(tmp, directory.resolve(CHECKPOINT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private void rotate(long id) throws IOException {
+        if (writeSegment != null) {
+            if (writeSegment.position + 4 <= segmentBytes) {
+                writeSegment.buffer.putInt(writeSegment.position, ROTATED);
+            }
+            writeSegment.buffer.force();
+        }
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+        writeSegment = Segment.create(file, id, segmentBytes);
+        segments.put(id, writeSegment);
+
+        while (segments.size() > maxSegments) {
+            //over the retention limit, give up on the oldest data
+            Segment oldest = segments.pollFirstEntry().getValue();
+            oldest.delete();
+            droppedSegments.increment();
+            Logger.getLogger(Spool.class.getName()).log(Level.SEVERE, "spool is full, deleted unreplayed segment " + oldest.file);
+            if (readSegmentId <= oldest.id) {
+                readSegmentId = segments.firstKey();
+                readOffset = HEADER_BYTES;
+            }
+        }
+    }
+
+    /**
+     * @return false if the value was lost
+     */
+    public boolean append(TimeSeriesAndValue tsval) {
+        return append(tsval.getPrefix(), tsval.getSuffix(), tsval.timestamp, tsval.getDataType(), tsval.getValue());
+    }
+
+    /**
+     * Stores a single value. Never throws: if the value cannot be stored it is
+     * logged and counted as lost.
+     *
+     * @return false if the value was lost
+     */
+    public synchronized boolean append(String device, String measurement, long timestamp, TSDataType type, Object value) {
+        byte[] deviceBytes = device.getBytes(StandardCharsets.UTF_8);
+        byte[] measurementBytes = measurement.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer body = encode(deviceBytes, measurementBytes, timestamp, type, value);
+        int length = body.remaining();
+        if (RECORD_HEADER_BYTES + length + 4 > segmentBytes - HEADER_BYTES) {
+            lost.increment();
+            Logger.getLogger(Spool.class.getName()).log(Level.SEVERE, "value too large for the spool, dropping it: " + device + "." + measurement);
+            return false;
+        }
+        try {
+            //keep room for the rotation marker
+            if (writeSegment.position + RECORD_HEADER_BYTES + length + 4 > segmentBytes) {
+                rotate(writeSegment.id + 1);
+            }
+        } catch (IOException ex) {
+            lost.increment();
+            Logger.getLogger(Spool.class.getName()).log(Level.SEVERE, "could not open a new spool segment, dropping value", ex);
+            return false;
+        }
+        crc.reset();
+        crc.update(body.array(), 0, length);
+
+        MappedByteBuffer buffer = writeSegment.buffer;
+        int position = writeSegment.position;
+        buffer.put(position + RECORD_HEADER_BYTES, body.array(), 0, length);
+        buffer.putInt(position + 4, (int) crc.getValue());
+        //the length goes last, it is what makes the record visible
+        buffer.putInt(position, length);
+        writeSegment.position = position + RECORD_HEADER_BYTES + length;
+        spooled.increment();
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * Forces the records appended since the last call to disk. Never throws:
+     * a failure is logged, the records stay in the page cache.
+     */
+    public synchronized void force() {
+        Segment segment = writeSegment;
+        if (segment == null || segment.position <= segment.forced) {
+            return;
+        }
+        try {
+            segment.buffer.force(segment.forced, segment.position - segment.forced);
+            segment.forced = segment.position;
+        } catch (UncheckedIOException ex) {
+            Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "could not force the spool to disk", ex);
+        }
+    }
+
+    private ByteBuffer encode(byte[] device, byte[] measurement, long timestamp, TSDataType type, Object value) {
+        byte[] text = type == TSDataType.TEXT ? ((Binary) value).getValues() : null;
+        int size = 8 + 1 + 2 + device.length + 2 + measurement.length + 4 + (text == null ? 8 : text.length);
+        if (scratch.capacity() < size) {
+            scratch = ByteBuffer.allocate(Integer.highestOneBit(size) << 1);
+        }
+        ByteBuffer body = scratch.clear();
+        body.putLong(timestamp);
+        body.put(type.serialize());
+        body.putShort((short) device.length).put(device);
+        body.putShort((short) measurement.length).put(measurement);
+        switch (type) {
+            case BOOLEAN:
+                body.put((byte) ((Boolean) value ? 1 : 0));
+                break;
+            case INT32:
+                body.putInt((Integer) value);
+                break;
+            case FLOAT:
+                body.putFloat((Float) value);
+                break;
+            case DOUBLE:
+                body.putDouble((Double) value);
+                break;
+            case TEXT:
+                body.putInt(text.length).put(text);
+                break;
+            default:
+                throw new IllegalArgumentException("unsupported data type: " + type);
+        }
+        return body.flip();
+    }
+
+    /**
+     * Reads up to max records following the checkpoint into the given lists,
+     * without moving the checkpoint.
+     *
+     * @return the position after the last record read, as {segment, offset}
+     */
+    private synchronized long[] read(int max, List<String> devices, List<Long> times,
+        List<List<String>> measurements, List<List<TSDataType>> types, List<List<Object>> values) {
+        long segmentId = readSegmentId;
+        int offset = readOffset;
+        while (devices.size() < max) {
+            var entry = segments.ceilingEntry(segmentId);
+            if (entry == null) {
+                break;
+            }
+            Segment segment = entry.getValue();
+            if (segment.id != segmentId) {
+                segmentId = segment.id;
+                offset = HEADER_BYTES;
+            }
+            boolean sealed = segment != writeSegment;
+            //recovered segments may have been written with another size
+            int capacity = segment.buffer.capacity();
+            int length = offset + RECORD_HEADER_BYTES <= capacity ? segment.buffer.getInt(offset) : ROTATED;
+            if (length == 0 && !sealed) {
+                //caught up with the writer
+                break;
+            }
+            if (length <= 0 || offset + RECORD_HEADER_BYTES + length > capacity) {
+                //end of a finished segment
+                segmentId = segment.id + 1;
+                offset = HEADER_BYTES;
+                continue;
+            }
+            ByteBuffer body = segment.buffer.duplicate();
+            body.position(offset + RECORD_HEADER_BYTES).limit(offset + RECORD_HEADER_BYTES + length);
+            crc.reset();
+            crc.update(body.duplicate());
+            if ((int) crc.getValue() != segment.buffer.getInt(offset + 4)) {
+                Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "corrupt record in " + segment.file + ", skipping rest of segment");
+                segmentId = segment.id + 1;
+                offset = HEADER_BYTES;
+                continue;
+            }
+            decode(body, devices, times, measurements, types, values);
+            offset += RECORD_HEADER_BYTES + length;
+        }
+        return new long[]{segmentId, offset};
+    }
+
+    private static void decode(ByteBuffer body, List<String> devices, List<Long> times,
+        List<List<String>> measurements, List<List<TSDataType>> types, List<List<Object>> values) {
+        long timestamp = body.getLong();
+        TSDataType type = TSDataType.deserialize(body.get());
+        devices.add(readString(body));
+        String measurement = readString(body);
+        Object value;
+        switch (type) {
+            case BOOLEAN:
+                value = body.get() != 0;
+                break;
+            case INT32:
+                value = body.getInt();
+                break;
+            case FLOAT:
+                value = body.getFloat();
+                break;
+            case DOUBLE:
+                value = body.getDouble();
+                break;
+            default:
+                byte[] text = new byte[body.getInt()];
+                body.get(text);
+                value = new Binary(text);
+                break;
+        }
+        times.add(timestamp);
+        measurements.add(List.of(measurement));
+        types.add(List.of(type));
+        values.add(List.of(value));
+    }
+
+    private static String readString(ByteBuffer body) {
+        byte[] bytes = new byte[body.getShort() & 0xffff];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    //moves the checkpoint and deletes segments that are fully replayed
+    private synchronized void commit(long[] position) throws IOException {
+        readSegmentId = position[0];
+        readOffset = (int) position[1];
+        writeCheckpoint();
+        while (!segments.isEmpty() && segments.firstKey() < readSegmentId && segments.firstEntry().getValue() != writeSegment) {
+            segments.pollFirstEntry().getValue().delete();
+        }
+    }
+
+    /**
+     * Writes one batch of spooled values to the sink and moves the checkpoint
+     * past them. Values the database rejects are skipped, so that they cannot
+     * block the spool forever.
+     *
+     * @return the number of values replayed
+     * @throws IoTDBConnectionException if the database is unreachable; the
+     * checkpoint does not move
+     */
+    public int replayOnce(RecordSink sink, int max) throws IoTDBConnectionException, IOException {
+        List<String> devices = new ArrayList<>();
+        List<Long> times = new ArrayList<>();
+        List<List<String>> measurements = new ArrayList<>();
+        List<List<TSDataType>> types = new ArrayList<>();
+        List<List<Object>> values = new ArrayList<>();
+        long[] position = read(max, devices, times, measurements, types, values);
+        if (!devices.isEmpty()) {
+            try {
+                sink.insertRecords(devices, times, measurements, types, values);
+                replayed.add(devices.size());
+            } catch (StatementExecutionException ex) {
+                lost.add(devices.size());
+                Logger.getLogger(Spool.class.getName()).log(Level.SEVERE, "database rejected " + devices.size() + " spooled values, skipping them", ex);
+            }
+        }
+        commit(position);
+        return devices.size();
+    }
+
+    /**
+     * @return true if nothing is waiting to be replayed
+     */
+    public synchronized boolean isEmpty() {
+        long[] position = read(1, new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>(), new ArrayList<>());
+        return position[0] == readSegmentId && position[1] == readOffset;
+    }
+
+    /**
+     * @return true if writers should send values straight to the spool,
+     * because the database was found unreachable and has not recovered yet
+     */
+    public boolean isDatabaseDown() {
+        return databaseDown;
+    }
+
+    public void markDatabaseDown() {
+        if (!databaseDown) {
+            databaseDown = true;
+            Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "database unreachable, spooling values to " + directory);
+        }
+    }
+
+    /**
+     * Starts a thread that keeps draining the spool into the database.
+     *
+     * @param factory opens the replayer's own connection
+     * @param batchSize values per insert
+     */
+    public void startReplayer(SinkFactory factory, int batchSize) {
+        Thread thread = new Thread(() -> replayLoop(factory, batchSize), "pump-spool-replayer");
+        thread.setDaemon(true);
+        replayer = thread;
+        thread.start();
+    }
+
+    private void replayLoop(SinkFactory factory, int batchSize) {
+        RecordSink sink = null;
+        long backoff = MIN_BACKOFF_MS;
+        while (running) {
+            try {
+                if (isEmpty()) {
+                    //nothing to replay, so nothing to probe the database
+                    //with either: let the writers try it again
+                    databaseDown = false;
+                    synchronized (this) {
+                        wait(1000);
+                    }
+                    continue;
+                }
+                if (sink == null) {
+                    sink = factory.open();
+                }
+                replayOnce(sink, batchSize);
+                if (databaseDown) {
+                    Logger.getLogger(Spool.class.getName()).log(Level.INFO, "database reachable again, replaying spool");
+                    databaseDown = false;
+                }
+                backoff = MIN_BACKOFF_MS;
+            } catch (IoTDBConnectionException ex) {
+                markDatabaseDown();
+                Logger.getLogger(Spool.class.getName()).log(Level.FINE, "replay failed, retrying in " + backoff + "ms", ex);
+                sleep(backoff);
+                backoff = Math.min(backoff * 2, MAX_BACKOFF_MS);
+            } catch (IOException ex) {
+                Logger.getLogger(Spool.class.getName()).log(Level.SEVERE, "could not write spool checkpoint", ex);
+                sleep(backoff);
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+        if (sink != null) {
+            try {
+                sink.close();
+            } catch (IoTDBConnectionException ex) {
+                Logger.getLogger(Spool.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+    }
+
+    private void sleep(long ms) {
+        try {
+            TimeUnit.MILLISECONDS.sleep(ms);
+        } catch (InterruptedException ex) {
+            running = false;
+        }
+    }
+
+    public long getSpooled() {
+        return spooled.sum();
+    }
+
+    public long getReplayed() {
+        return replayed.sum();
+    }
+
+    /**
+     * @return values that could not be spooled or were rejected on replay
+     */
+    public long getLost() {
+        return lost.sum();
+    }
+
+    public long getDroppedSegments() {
+        return droppedSegments.sum();
+    }
+
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    @Override
+    public void close() {
+        running = false;
+        Thread thread = replayer;
+        if (thread != null) {
+            thread.interrupt();
+            try {
+                thread.join(TimeUnit.SECONDS.toMillis(5));
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        synchronized (this) {
+            for (Segment segment : segments.values()) {
+                segment.buffer.force();
+                segment.close();
+            }
+        }
+    }
+
+    private static class Segment {
+
+        final Path file;
+        final long id;
+        final FileChannel channel;
+        final MappedByteBuffer buffer;
+        //next write position, only used for the segment being written
+        int position = HEADER_BYTES;
+        //up to where it was forced to disk
+        int forced;
+
+        private Segment(Path file, long id, FileChannel channel, MappedByteBuffer buffer) {
+            this.file = file;
+            this.id = id;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        static Segment create(Path file, long id, int size) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.putInt(0, MAGIC);
+            return new Segment(file, id, channel, buffer);
+        }
+
+        static Segment open(Path file, long id) throws IOException {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            if (channel.size() < HEADER_BYTES || buffer.getInt(0) != MAGIC) {
+                channel.close();
+                throw new IOException("not a spool segment: " + file);
+            }
+            return new Segment(file, id, channel, buffer);
+        }
+
+        void close() {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                Logger.getLogger(Spool.class.getName()).log(Level.FINE, null, ex);
+            }
+        }
+
+        void delete() {
+            close();
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException ex) {
+                Logger.getLogger(Spool.class.getName()).log(Level.WARNING, "could not delete spool segment " + file, ex);
+            }
+        }
+    }
+}
@@ -0,0 +1,394 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.write.record.Tablet;
+import org.apache.tsfile.write.schema.IMeasurementSchema;
+import org.apache.tsfile.write.schema.MeasurementSchema;
+
+/**
+ * Buffers values column-wise in one {@link Tablet} per device, with one column
+ * per measurement seen on that device. Values of a device that share a
+ * timestamp end up in the same row; cells without a value stay marked null in
+ * the tablet's bitmaps. A device's tablet is written once it is full, and all
+ * tablets are written together once the oldest buffered value has waited for
+ * the linger time. The tablets of devices that had no values since the last
+ * time all of them were written are let go then, so devices that went quiet
+ * take neither memory nor time.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class TabletWriter implements ValueWriter {
+
+    private static final SampledLogger POSTED = new SampledLogger(Logger.getLogger(TabletWriter.class.getName()), 10_000);
+
+    private final RecordSink sink;
+    private final int maxRows;
+    private final long lingerMs;
+    private final boolean aligned;
+    private Spool spool;
+    private Metrics metrics = new Metrics();
+    private ConnectionRetry retry;
+    private SchemaManager schema;
+
+    private final Map<String, DeviceTablet> devices = new HashMap<>();
+    private int buffered;
+    //arrival time of the oldest buffered value, only meaningful when non-empty
+    private long oldest;
+
+    /**
+     * @param sink
+     * @param maxRows rows per device tablet
+     * @param lingerMs
+     * @param aligned write the devices as aligned timeseries
+     */
+    public TabletWriter(RecordSink sink, int maxRows, long lingerMs, boolean aligned) {
+        if (maxRows < 1) {
+            throw new IllegalArgumentException("tablets need at least one row");
+        }
+        this.sink = sink;
+        this.maxRows = maxRows;
+        this.lingerMs = lingerMs;
+        this.aligned = aligned;
+    }
+
+    /**
+     * Values that cannot be written because the database is unreachable go to
+     * the spool instead of being dropped.
+     */
+    public void setSpool(Spool spool) {
+        this.spool = spool;
+    }
+
+    public void setMetrics(Metrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Without a spool, keeps retrying while the database is unreachable instead
+     * of dropping the tablets.
+     */
+    public void setRetry(ConnectionRetry retry) {
+        this.retry = retry;
+    }
+
+    /**
+     * Has the series registered with the schema manager created before every
+     * write.
+     */
+    public void setSchema(SchemaManager schema) {
+        this.schema = schema;
+    }
+
+    @Override
+    public void add(TimeSeriesAndValue tsval) {
+        String device = tsval.getPrefix();
+        DeviceTablet dt = devices.get(device);
+        if (dt == null) {
+            dt = new DeviceTablet(device);
+            devices.put(device, dt);
+        }
+
+        int column = dt.columnOf(tsval.getSuffix(), tsval.getDataType());
+        if (column < 0) {
+            //new measurement, the tablet has to be rebuilt with one more column
+            flush(dt);
+            column = dt.addColumn(tsval.getSuffix(), tsval.getDataType(), maxRows);
+        }
+
+        Tablet tablet = dt.tablet;
+        int row = tablet.getRowSize() - 1;
+        if (row < 0 || tablet.getTimestamp(row) != tsval.timestamp || !tablet.isNull(row, column)) {
+            if (tablet.getRowSize() == maxRows) {
+                flush(dt);
+            }
+            row = tablet.getRowSize();
+            tablet.addTimestamp(row, tsval.timestamp);
+        }
+        setCell(tablet, row, column, tsval);
+
+        if (buffered == 0) {
+            oldest = System.currentTimeMillis();
+        }
+        buffered++;
+        dt.received(tsval.received, tsval.ack);
+    }
+
+    private static void setCell(Tablet tablet, int row, int column, TimeSeriesAndValue tsval) {
+        switch (tsval.getDataType()) {
+            case BOOLEAN:
+                tablet.addValue(row, column, tsval.getBoolean());
+                break;
+            case INT32:
+                tablet.addValue(row, column, tsval.getInt());
+                break;
+            case FLOAT:
+                tablet.addValue(row, column, tsval.getFloat());
+                break;
+            case DOUBLE:
+                tablet.addValue(row, column, tsval.getDouble());
+                break;
+            default:
+                tablet.addValue(row, column, tsval.getBinary().getValues());
+                break;
+        }
+    }
+
+    @Override
+    public int size() {
+        return buffered;
+    }
+
+    @Override
+    public long millisUntilDue(long now) {
+        if (buffered == 0) {
+            return -1;
+        }
+        return Math.max(0, oldest + lingerMs - now);
+    }
+
+    @Override
+    public void flushIfDue(long now) {
+        if (buffered > 0 && now - oldest >= lingerMs) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all non-empty tablets in one round trip.
+     */
+    @Override
+    public void flush() {
+        if (buffered == 0) {
+            return;
+        }
+        Map<String, Tablet> tablets = new HashMap<>();
+        for (var dt : devices.values()) {
+            if (dt.tablet != null && dt.tablet.getRowSize() > 0) {
+                tablets.put(dt.device, dt.tablet);
+            }
+        }
+        int values = buffered;
+        try {
+            if (spool != null && spool.isDatabaseDown()) {
+                spoolAll();
+                return;
+            }
+            long start = System.nanoTime();
+            write(() -> {
+                if (aligned) {
+                    sink.insertAlignedTablets(tablets);
+                } else {
+                    sink.insertTablets(tablets);
+                }
+            });
+            metrics.written(values, (System.nanoTime() - start) / 1000);
+            long now = System.currentTimeMillis();
+            for (var dt : devices.values()) {
+                dt.recordLatency(metrics, now);
+                dt.acknowledge();
+            }
+            POSTED.log(Level.INFO, () -> "Posted " + values + " values in " + tablets.size() + " tablets");
+        } catch (IoTDBConnectionException ex) {
+            if (spool != null) {
+                spool.markDatabaseDown();
+                spoolAll();
+            } else {
+                metrics.writeFailed(values);
+                Logger.getLogger(TabletWriter.class.getName()).log(Level.SEVERE,
+                    "failed to post " + buffered + " values in " + tablets.size() + " tablets", ex);
+            }
+        } catch (StatementExecutionException ex) {
+            metrics.writeFailed(values);
+            Logger.getLogger(TabletWriter.class.getName()).log(Level.SEVERE,
+                "failed to post " + buffered + " values in " + tablets.size() + " tablets", ex);
+            //rejected for good, redelivering would not help
+            devices.values().forEach(DeviceTablet::acknowledge);
+        } finally {
+            devices.values().removeIf(dt -> !dt.active);
+            for (var dt : devices.values()) {
+                dt.reset();
+                dt.active = false;
+            }
+            buffered = 0;
+        }
+    }
+
+    //package private for testing
+    int deviceCount() {
+        return devices.size();
+    }
+
+    //writes a single device's tablet, e.g. because it is full
+    private void flush(DeviceTablet dt) {
+        if (dt.tablet == null || dt.tablet.getRowSize() == 0) {
+            return;
+        }
+        try {
+            if (spool != null && spool.isDatabaseDown()) {
+                spool(dt);
+                return;
+            }
+            long start = System.nanoTime();
+            write(() -> {
+                if (aligned) {
+                    sink.insertAlignedTablet(dt.tablet);
+                } else {
+                    sink.insertTablet(dt.tablet);
+                }
+            });
+            metrics.written(dt.values, (System.nanoTime() - start) / 1000);
+            dt.recordLatency(metrics, System.currentTimeMillis());
+            dt.acknowledge();
+        } catch (IoTDBConnectionException ex) {
+            if (spool != null) {
+                spool.markDatabaseDown();
+                spool(dt);
+            } else {
+                metrics.writeFailed(dt.values);
+                Logger.getLogger(TabletWriter.class.getName()).log(Level.SEVERE,
+                    "failed to post " + dt.values + " values of " + dt.device, ex);
+            }
+        } catch (StatementExecutionException ex) {
+            metrics.writeFailed(dt.values);
+            Logger.getLogger(TabletWriter.class.getName()).log(Level.SEVERE,
+                "failed to post " + dt.values + " values of " + dt.device, ex);
+            dt.acknowledge();
+        } finally {
+            buffered -= dt.values;
+            dt.reset();
+        }
+    }
+
+    private void write(ConnectionRetry.Call insert) throws IoTDBConnectionException, StatementExecutionException {
+        if (schema != null) {
+            ConnectionRetry.Call write = insert;
+            insert = () -> {
+                schema.createPending(sink);
+                write.run();
+            };
+        }
+        if (retry != null && spool == null) {
+            retry.run(insert);
+        } else {
+            insert.run();
+        }
+    }
+
+    private void spoolAll() {
+        for (var dt : devices.values()) {
+            if (dt.tablet != null && dt.tablet.getRowSize() > 0) {
+                spool(dt);
+            }
+        }
+    }
+
+    //values the spool could not store are counted as lost, and their
+    //messages acknowledged all the same: an ack held back would hold back
+    //every later one on its connection
+    private void spool(DeviceTablet dt) {
+        Tablet tablet = dt.tablet;
+        int lost = 0;
+        List<IMeasurementSchema> schemas = tablet.getSchemas();
+        for (int row = 0; row < tablet.getRowSize(); row++) {
+            for (int column = 0; column < schemas.size(); column++) {
+                if (tablet.isNull(row, column)) {
+                    continue;
+                }
+                IMeasurementSchema schema = schemas.get(column);
+                if (!spool.append(tablet.getDeviceId(), schema.getMeasurementName(), tablet.getTimestamp(row),
+                    schema.getType(), tablet.getValue(row, column))) {
+                    lost++;
+                }
+            }
+        }
+        if (lost > 0) {
+            metrics.writeFailed(lost);
+        }
+        spool.force();
+        dt.acknowledge();
+    }
+
+    private static class DeviceTablet {
+
+        final String device;
+        final List<IMeasurementSchema> schemas = new ArrayList<>();
+        final Map<String, Integer> columns = new HashMap<>();
+        Tablet tablet;
+        int values;
+        //whether it had values since all tablets were last written
+        boolean active;
+        //arrival times of the buffered values and the acks of their messages
+        long[] received = new long[16];
+        AckTracker.Ack[] acks = new AckTracker.Ack[16];
+
+        DeviceTablet(String device) {
+            this.device = device;
+        }
+
+        //-1 if the measurement has no column of that type yet
+        int columnOf(String measurement, TSDataType type) {
+            Integer column = columns.get(measurement);
+            if (column == null || schemas.get(column).getType() != type) {
+                return -1;
+            }
+            return column;
+        }
+
+        //must only be called while the tablet is empty
+        int addColumn(String measurement, TSDataType type, int maxRows) {
+            Integer column = columns.get(measurement);
+            if (column == null) {
+                column = schemas.size();
+                schemas.add(new MeasurementSchema(measurement, type));
+                columns.put(measurement, column);
+            } else {
+                //the series changed type, let the database sort it out
+                schemas.set(column, new MeasurementSchema(measurement, type));
+            }
+            tablet = new Tablet(device, new ArrayList<>(schemas), maxRows);
+            return column;
+        }
+
+        void received(long millis, AckTracker.Ack ack) {
+            if (values == received.length) {
+                received = Arrays.copyOf(received, values * 2);
+                acks = Arrays.copyOf(acks, values * 2);
+            }
+            acks[values] = ack;
+            received[values++] = millis;
+            active = true;
+        }
+
+        void acknowledge() {
+            for (int i = 0; i < values; i++) {
+                if (acks[i] != null) {
+                    acks[i].done();
+                    acks[i] = null;
+                }
+            }
+        }
+
+        void recordLatency(Metrics metrics, long now) {
+            for (int i = 0; i < values; i++) {
+                metrics.enqueueToWrite(now - received[i]);
+            }
+        }
+
+        void reset() {
+            if (tablet != null) {
+                tablet.reset();
+            }
+            Arrays.fill(acks, 0, values, null);
+            values = 0;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package jaist.pump;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Thread factories for the execution modes. Virtual threads are looked up
+ * reflectively, the pump is built for Java 17 and only gets them when running
+ * on Java 21 or later.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class Threads {
+
+    private Threads() {
+    }
+
+    /**
+     * @param mode
+     * @param prefix threads are named prefix0, prefix1 and so on
+     * @return platform threads if virtual ones were asked for but are not
+     * available
+     */
+    public static ThreadFactory factory(Pump.ExecutionMode mode, String prefix) {
+        if (mode == Pump.ExecutionMode.VIRTUAL) {
+            ThreadFactory factory = virtual(prefix);
+            if (factory != null) {
+                return factory;
+            }
+            Logger.getLogger(Threads.class.getName()).log(Level.WARNING,
+                "virtual threads need Java 21, running on " + Runtime.version() + " with platform threads instead");
+        }
+        return platform(prefix);
+    }
+
+    public static ThreadFactory platform(String prefix) {
+        AtomicInteger count = new AtomicInteger();
+        return runnable -> new Thread(runnable, prefix + count.getAndIncrement());
+    }
+
+    /**
+     * @return null if this JVM has no virtual threads
+     */
+    public static ThreadFactory virtual(String prefix) {
+        try {
+            //Thread.ofVirtual().name(prefix, 0).factory()
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            //missing before Java 19, a preview feature that is not enabled before 21
+            return null;
+        }
+    }
+
+    public static boolean isVirtual(Thread thread) {
+        try {
+            return (Boolean) Thread.class.getMethod("isVirtual").invoke(thread);
+        } catch (ReflectiveOperationException | RuntimeException ex) {
+            return false;
+        }
+    }
+}
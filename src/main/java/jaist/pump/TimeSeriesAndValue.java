@@ -1,16 +1,30 @@
 package jaist.pump;
 
 import org.apache.tsfile.enums.TSDataType;
-import org.apache.tsfile.utils.TsPrimitiveType;
+import org.apache.tsfile.utils.Binary;
 
 /**
  *
  * @author smarios <smarios@jaist.ac.jp>
  */
-public class TimeSeriesAndValue {
+public class TimeSeriesAndValue implements DataConvertor.ValueSink {
 
     public String timeseries;
-    public TsPrimitiveType value;
+    public long timestamp;
+    //when (in milliseconds) the message carrying the value arrived, same as
+    //the timestamp unless the value brings its own
+    public long received;
+    //acknowledges the message carrying the value once it is written, null
+    //unless the message was received with QoS 1
+    public AckTracker.Ack ack;
+    //the value is kept unboxed: booleans, ints, floats and doubles all fit
+    //exactly in a double, text goes in binary
+    private TSDataType type;
+    private double number;
+    private Binary binary;
+    //pre-split timeseries, null unless known up front
+    private final String prefix;
+    private final String suffix;
 
     /**
      *
@@ -20,23 +34,159 @@ public class TimeSeriesAndValue {
      * @param value
      */
     public TimeSeriesAndValue(String timeseries, TSDataType type, Object value) {
+        this(timeseries, type, value, System.currentTimeMillis());
+    }
+
+    /**
+     *
+     * @param timeseries see above
+     * @param type
+     * @param value
+     * @param timestamp the time (in milliseconds) this value was observed
+     */
+    public TimeSeriesAndValue(String timeseries, TSDataType type, Object value, long timestamp) {
         this.timeseries = timeseries;
-        this.value = TsPrimitiveType.getByType(type, value);
+        this.timestamp = timestamp;
+        this.received = timestamp;
+        setValue(type, value);
+        this.prefix = null;
+        this.suffix = null;
+    }
+
+    /**
+     * Creates a value for an already resolved topic, so that the prefix and
+     * suffix need not be split out of the timeseries again.
+     *
+     * @param route
+     * @param type
+     * @param value
+     * @param timestamp the time (in milliseconds) this value was observed
+     */
+    public TimeSeriesAndValue(TopicRoute route, TSDataType type, Object value, long timestamp) {
+        this(route, timestamp);
+        setValue(type, value);
+    }
+
+    /**
+     * Creates a value-less instance for an already resolved topic, to be
+     * filled in by a {@link DataConvertor} through the ValueSink methods.
+     *
+     * @param route
+     * @param timestamp the time (in milliseconds) this value was observed
+     */
+    public TimeSeriesAndValue(TopicRoute route, long timestamp) {
+        this.timeseries = route.timeseries;
+        this.timestamp = timestamp;
+        this.received = timestamp;
+        this.prefix = route.device;
+        this.suffix = route.measurement;
+    }
+
+    private void setValue(TSDataType type, Object value) {
+        switch (type) {
+            case BOOLEAN:
+                acceptBoolean((Boolean) value);
+                break;
+            case INT32:
+                acceptInt((Integer) value);
+                break;
+            case FLOAT:
+                acceptFloat((Float) value);
+                break;
+            case DOUBLE:
+                acceptDouble((Double) value);
+                break;
+            case TEXT:
+                acceptBinary((Binary) value);
+                break;
+            default:
+                throw new UnsupportedOperationException("unsupported data type: " + type);
+        }
+    }
+
+    @Override
+    public void acceptBoolean(boolean value) {
+        this.type = TSDataType.BOOLEAN;
+        this.number = value ? 1 : 0;
+    }
+
+    @Override
+    public void acceptInt(int value) {
+        this.type = TSDataType.INT32;
+        this.number = value;
+    }
+
+    @Override
+    public void acceptFloat(float value) {
+        this.type = TSDataType.FLOAT;
+        this.number = value;
+    }
+
+    @Override
+    public void acceptDouble(double value) {
+        this.type = TSDataType.DOUBLE;
+        this.number = value;
+    }
+
+    @Override
+    public void acceptBinary(Binary value) {
+        this.type = TSDataType.TEXT;
+        this.binary = value;
     }
 
     public TSDataType getDataType() {
-        return this.value.getDataType();
+        return this.type;
+    }
+
+    public boolean getBoolean() {
+        return number != 0;
     }
 
+    public int getInt() {
+        return (int) number;
+    }
+
+    public float getFloat() {
+        return (float) number;
+    }
+
+    public double getDouble() {
+        return number;
+    }
+
+    public Binary getBinary() {
+        return binary;
+    }
+
+    /**
+     * @return the value boxed according to its type
+     */
     public Object getValue() {
-        return this.value.getValue();
+        switch (type) {
+            case BOOLEAN:
+                return getBoolean();
+            case INT32:
+                return getInt();
+            case FLOAT:
+                return getFloat();
+            case DOUBLE:
+                return getDouble();
+            default:
+                return binary;
+        }
     }
 
     public String getSuffix() {
+        if (suffix != null) {
+            return suffix;
+        }
         return timeseries.substring(timeseries.lastIndexOf('.') + 1);
     }
 
     public String getPrefix() {
+        if (prefix != null) {
+            return prefix;
+        }
         return timeseries.substring(0, timeseries.lastIndexOf('.'));
     }
 
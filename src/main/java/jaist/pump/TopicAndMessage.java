@@ -10,9 +10,32 @@ import org.eclipse.paho.mqttv5.common.MqttMessage;
 public class TopicAndMessage {
     public final MqttMessage message;
     public final String topic;
+    public final long timestamp;
+    //null unless the message was received with QoS 1
+    public final AckTracker.Ack ack;
 
     public TopicAndMessage(String topic, MqttMessage message) {
+        this(topic, message, System.currentTimeMillis());
+    }
+
+    public TopicAndMessage(String topic, MqttMessage message, long timestamp) {
+        this(topic, message, timestamp, null);
+    }
+
+    public TopicAndMessage(String topic, MqttMessage message, long timestamp, AckTracker.Ack ack) {
         this.topic = topic;
         this.message = message;
+        this.timestamp = timestamp;
+        this.ack = ack;
+    }
+
+    /**
+     * The message needs no further handling, e.g. because it could not be
+     * converted.
+     */
+    public void acknowledge() {
+        if (ack != null) {
+            ack.done();
+        }
     }
 }
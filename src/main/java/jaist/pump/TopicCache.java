@@ -0,0 +1,99 @@
+package jaist.pump;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A bounded, concurrent map from MQTT topic to its resolved {@link TopicRoute}.
+ * Lookups are a single hash map read. When the cache grows past its size a
+ * clock sweep evicts entries that were not used since the previous sweep,
+ * which approximates least-recently-used eviction without keeping an access
+ * order list.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class TopicCache {
+
+    private final ConcurrentHashMap<String, TopicRoute> routes;
+    private final int maxSize;
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    //the clock hand, only touched under sweepLock
+    private final Object sweepLock = new Object();
+    private Iterator<TopicRoute> hand;
+
+    public TopicCache(int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("cache size must be at least 1");
+        }
+        this.maxSize = maxSize;
+        this.routes = new ConcurrentHashMap<>(Math.min(maxSize, 1 << 16));
+    }
+
+    /**
+     * @param topic
+     * @param resolver called on a miss to work out the route for topic
+     * @return the cached or freshly resolved route
+     */
+    public TopicRoute get(String topic, Function<String, TopicRoute> resolver) {
+        TopicRoute route = routes.get(topic);
+        if (route != null) {
+            hits.increment();
+            if (!route.referenced) {
+                route.referenced = true;
+            }
+            return route;
+        }
+        misses.increment();
+        route = resolver.apply(topic);
+        TopicRoute raced = routes.putIfAbsent(topic, route);
+        if (raced != null) {
+            return raced;
+        }
+        if (routes.size() > maxSize) {
+            evict();
+        }
+        return route;
+    }
+
+    private void evict() {
+        synchronized (sweepLock) {
+            while (routes.size() > maxSize) {
+                if (hand == null || !hand.hasNext()) {
+                    hand = routes.values().iterator();
+                }
+                TopicRoute candidate = hand.next();
+                if (candidate.referenced) {
+                    //second chance
+                    candidate.referenced = false;
+                } else if (routes.remove(candidate.topic, candidate)) {
+                    evictions.increment();
+                }
+            }
+        }
+    }
+
+    public void clear() {
+        routes.clear();
+    }
+
+    public int size() {
+        return routes.size();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+}
@@ -0,0 +1,66 @@
+package jaist.pump;
+
+/**
+ * MQTT topic filter matching, for configuration that applies to topic
+ * patterns rather than suffixes.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public final class TopicFilter {
+
+    private TopicFilter() {
+    }
+
+    /**
+     * @return null if the filter is well-formed, what is wrong with it
+     * otherwise
+     */
+    public static String check(String filter) {
+        if (filter.isEmpty()) {
+            return "empty topic filter";
+        }
+        String[] levels = filter.split("/", -1);
+        for (int i = 0; i < levels.length; i++) {
+            String level = levels[i];
+            if (level.equals("#") && i != levels.length - 1) {
+                return "'#' must be the last level of " + filter;
+            }
+            if (level.length() > 1 && (level.contains("+") || level.contains("#"))) {
+                return "wildcards must take a whole level in " + filter;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param filter an MQTT topic filter, '+' matches one level and a
+     * trailing '#' any number of levels
+     * @param topic
+     * @return true if the filter matches the topic
+     */
+    public static boolean matches(String filter, String topic) {
+        int f = 0;
+        int t = 0;
+        while (f < filter.length()) {
+            char c = filter.charAt(f);
+            if (c == '#') {
+                return true;
+            }
+            if (c == '+') {
+                //one whole level of the topic, possibly empty
+                while (t < topic.length() && topic.charAt(t) != '/') {
+                    t++;
+                }
+                f++;
+            } else {
+                if (t >= topic.length() || topic.charAt(t) != c) {
+                    //"a/#" also matches "a"
+                    return t == topic.length() && filter.startsWith("/#", f);
+                }
+                f++;
+                t++;
+            }
+        }
+        return t == topic.length();
+    }
+}
@@ -0,0 +1,187 @@
+package jaist.pump;
+
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.tsfile.enums.TSDataType;
+
+/**
+ * Everything the pump derives from an MQTT topic, worked out once and reused
+ * for every message on that topic.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class TopicRoute {
+
+    public final String topic;
+    public final String timeseries;
+    public final String device;
+    public final String measurement;
+    //the configured convertor, and the one actually used once the type of
+    //the series is known
+    public final DataConvertor configured;
+    private volatile DataConvertor convertor;
+    private volatile boolean settled;
+    private volatile TSDataType type;
+
+    //messages on this topic, usually shared with topics of the same prefix
+    private LongAdder messages = new LongAdder();
+    //null unless values within a deadband are dropped, see DeadbandFilter
+    private Deadband deadband;
+    private long seriesKey;
+    //0 unless values are aggregated, see WindowAggregator
+    private long aggregateWindow;
+    //routes of the fields, null unless the payloads are JSON objects or binary
+    private PayloadFields fields;
+    private boolean binary;
+    //the routing rule the topic matched, null if none
+    private RoutingRule rule;
+
+    //set on every cache hit and cleared by the eviction sweep. deliberately
+    //not volatile, it is only a hint
+    boolean referenced;
+
+    /**
+     * @param topic the MQTT topic
+     * @param timeseries the full timeseries, its last level is the measurement
+     * and everything before it the device
+     * @param convertor
+     */
+    public TopicRoute(String topic, String timeseries, DataConvertor convertor) {
+        this.topic = topic;
+        this.timeseries = timeseries;
+        int split = timeseries.lastIndexOf('.');
+        this.device = timeseries.substring(0, split);
+        this.measurement = timeseries.substring(split + 1);
+        this.configured = convertor;
+        this.convertor = convertor;
+    }
+
+    /**
+     * Counts this topic's messages with the given counter, must be called
+     * before the route is shared.
+     */
+    void countIn(LongAdder counter) {
+        this.messages = counter;
+    }
+
+    /**
+     * Drops values of this topic within the given deadband, must be called
+     * before the route is shared.
+     */
+    void filterWith(Deadband deadband) {
+        this.deadband = deadband;
+        this.seriesKey = DeadbandFilter.seriesKey(timeseries);
+    }
+
+    public Deadband getDeadband() {
+        return deadband;
+    }
+
+    long getSeriesKey() {
+        return seriesKey;
+    }
+
+    /**
+     * Aggregates the values of this topic over windows of the given length,
+     * must be called before the route is shared.
+     */
+    void aggregateEvery(long windowMs) {
+        this.aggregateWindow = windowMs;
+    }
+
+    /**
+     * @return the aggregation window length in milliseconds, 0 if values are
+     * not aggregated
+     */
+    public long getAggregateWindow() {
+        return aggregateWindow;
+    }
+
+    /**
+     * Makes this the route of a topic whose payloads are JSON objects, each
+     * field going to its own route. Must be called before the route is
+     * shared.
+     */
+    void parseAsJson() {
+        this.fields = new PayloadFields();
+    }
+
+    /**
+     * Makes this the route of a topic whose payloads are in the compact binary
+     * format, see {@link BinaryPayload}. Must be called before the route is
+     * shared.
+     */
+    void decodeAsBinary() {
+        this.fields = new PayloadFields();
+        this.binary = true;
+    }
+
+    /**
+     * Remembers the routing rule this route was made by, must be called
+     * before the route is shared.
+     */
+    void routedBy(RoutingRule rule) {
+        this.rule = rule;
+    }
+
+    /**
+     * @return the routing rule the topic matched, null if none did
+     */
+    public RoutingRule getRule() {
+        return rule;
+    }
+
+    public boolean isJson() {
+        return fields != null && !binary;
+    }
+
+    public boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return the routes of the fields, null unless the payloads are JSON or
+     * binary
+     */
+    public PayloadFields getFields() {
+        return fields;
+    }
+
+    public void countMessage() {
+        messages.increment();
+    }
+
+    public DataConvertor getConvertor() {
+        return convertor;
+    }
+
+    /**
+     * @return true once the type of the series is known
+     */
+    public boolean isSettled() {
+        return settled;
+    }
+
+    /**
+     * @return true if values must fit a type learned for this series, i.e.
+     * the convertor in use rejects values the configured one would take
+     */
+    public boolean isSpecialized() {
+        return convertor != configured;
+    }
+
+    /**
+     * @return the type the series has settled on, null until it is known
+     */
+    public TSDataType getType() {
+        return type;
+    }
+
+    /**
+     * Fixes the convertor to the type the series has settled on.
+     */
+    public void settle(TSDataType type) {
+        this.type = type;
+        this.convertor = configured.specializeFor(type);
+        this.settled = true;
+    }
+}
@@ -0,0 +1,247 @@
+package jaist.pump;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Records the messages the pump receives into capture files, see
+ * {@link CaptureFile}, to be loaded or replayed later. Files are rotated once
+ * they reach the segment size, and the oldest deleted beyond the configured
+ * number.
+ * <p>
+ * The MQTT threads only copy each message into one of a fixed pool of direct
+ * buffers; a dedicated thread writes the filled buffers out. If the disk
+ * cannot keep up and all buffers are full, messages are left out of the
+ * capture and counted, rather than holding up the MQTT threads.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class TrafficCapture implements Closeable {
+
+    static final int BUFFER_BYTES = 256 << 10;
+    static final int BUFFERS = 32;
+    //how long a partly filled buffer may wait to be written
+    static final long FLUSH_MS = 200;
+    private static final String SEGMENT_PREFIX = "capture-";
+    private static final SampledLogger FAILED = new SampledLogger(Logger.getLogger(TrafficCapture.class.getName()), 10_000);
+
+    private final Path directory;
+    private final long segmentBytes;
+    private final int maxSegments;
+
+    private final BlockingQueue<ByteBuffer> free = new ArrayBlockingQueue<>(BUFFERS);
+    private final BlockingQueue<ByteBuffer> full = new ArrayBlockingQueue<>(BUFFERS);
+    //the buffer being filled, null if none was free. guarded by itself
+    private final Object filling = new Object();
+    private ByteBuffer current;
+
+    //writer thread only
+    private final ArrayDeque<Path> segments = new ArrayDeque<>();
+    private long nextSegment;
+    private FileChannel channel;
+    private long segmentWritten;
+
+    private final Thread writer;
+    private volatile boolean running = true;
+    private final LongAdder captured = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    /**
+     * @param directory where the capture files go, created if missing. Files
+     * of an earlier capture are kept, and count towards maxSegments
+     * @param segmentBytes size at which a file is rotated
+     * @param maxSegments how many files to keep, 0 for all
+     */
+    public TrafficCapture(Path directory, long segmentBytes, int maxSegments) throws IOException {
+        if (segmentBytes < BUFFER_BYTES) {
+            throw new IllegalArgumentException("capture segments must be at least " + BUFFER_BYTES + " bytes");
+        }
+        if (maxSegments < 0) {
+            throw new IllegalArgumentException("the number of capture segments cannot be negative");
+        }
+        this.directory = directory;
+        this.segmentBytes = segmentBytes;
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        for (Path file : CaptureFile.list(directory)) {
+            String name = file.getFileName().toString();
+            if (name.startsWith(SEGMENT_PREFIX)) {
+                segments.add(file);
+                try {
+                    nextSegment = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - CaptureFile.SUFFIX.length())) + 1;
+                } catch (NumberFormatException ex) {
+                    //not one of ours
+                }
+            }
+        }
+        rotate();
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_BYTES));
+        }
+        current = free.poll();
+        writer = new Thread(this::run, "pump-capture");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Records a message, never blocks for longer than a copy of it takes.
+     *
+     * @param timestamp when the message was received
+     */
+    public void append(String topic, long timestamp, byte[] payload) {
+        byte[] name = topic.getBytes(StandardCharsets.UTF_8);
+        int bytes = CaptureFile.recordBytes(name, payload.length);
+        if (bytes > BUFFER_BYTES || name.length > 0xffff) {
+            dropped.increment();
+            return;
+        }
+        synchronized (filling) {
+            if (current == null || current.remaining() < bytes) {
+                if (current != null) {
+                    //never full, there are only as many buffers as it holds
+                    full.add(current);
+                }
+                current = free.poll();
+                if (current == null) {
+                    dropped.increment();
+                    return;
+                }
+            }
+            CaptureFile.writeRecord(current, name, timestamp, payload);
+        }
+        captured.increment();
+    }
+
+    private void run() {
+        while (running || !full.isEmpty()) {
+            ByteBuffer buffer;
+            try {
+                buffer = full.poll(FLUSH_MS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                continue;
+            }
+            if (buffer == null) {
+                //nothing filled up for a while, write what there is
+                buffer = takeCurrent();
+            }
+            if (buffer != null) {
+                write(buffer);
+            }
+        }
+        ByteBuffer last = takeCurrent();
+        if (last != null) {
+            write(last);
+        }
+        try {
+            channel.close();
+        } catch (IOException ex) {
+            Logger.getLogger(TrafficCapture.class.getName()).log(Level.WARNING, "failed to close capture file", ex);
+        }
+    }
+
+    //the buffer being filled if anything is in it, replaced by a free one
+    private ByteBuffer takeCurrent() {
+        synchronized (filling) {
+            if (current == null || current.position() == 0) {
+                return null;
+            }
+            ByteBuffer taken = current;
+            current = free.poll();
+            return taken;
+        }
+    }
+
+    private void write(ByteBuffer buffer) {
+        buffer.flip();
+        try {
+            //a buffer always goes in a fresh segment, however large
+            if (segmentWritten > CaptureFile.HEADER_BYTES && segmentWritten + buffer.remaining() > segmentBytes) {
+                rotate();
+            }
+            while (buffer.hasRemaining()) {
+                segmentWritten += channel.write(buffer);
+            }
+        } catch (IOException ex) {
+            failures.increment();
+            FAILED.log(Level.SEVERE, () -> "failed to write capture file, messages were lost: " + ex);
+        } finally {
+            buffer.clear();
+            free.add(buffer);
+        }
+    }
+
+    private void rotate() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+        Path file = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSegment++, CaptureFile.SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+        ByteBuffer header = ByteBuffer.allocate(CaptureFile.HEADER_BYTES);
+        CaptureFile.writeHeader(header);
+        header.flip();
+        while (header.hasRemaining()) {
+            channel.write(header);
+        }
+        segmentWritten = CaptureFile.HEADER_BYTES;
+        segments.add(file);
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.poll());
+        }
+    }
+
+    /**
+     * @return messages recorded
+     */
+    public long getCaptured() {
+        return captured.sum();
+    }
+
+    /**
+     * @return messages left out, because all buffers were full or the message
+     * was larger than one
+     */
+    public long getDropped() {
+        return dropped.sum();
+    }
+
+    /**
+     * @return buffers that could not be written to disk
+     */
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    //package private for testing
+    int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Writes out everything recorded so far and stops.
+     */
+    @Override
+    public void close() {
+        //not interrupted, that would close the file in the middle of a write
+        running = false;
+        try {
+            writer.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package jaist.pump;
+
+/**
+ * Buffers converted values and writes them out in bulk. Implementations are
+ * used from a single writer thread and need not be thread-safe.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public interface ValueWriter {
+
+    void add(TimeSeriesAndValue tsval);
+
+    /**
+     * @return the number of buffered values
+     */
+    int size();
+
+    /**
+     * @param now current time in milliseconds
+     * @return how long the caller may wait before buffered values are due, or
+     * -1 if nothing is buffered
+     */
+    long millisUntilDue(long now);
+
+    void flushIfDue(long now);
+
+    void flush();
+}
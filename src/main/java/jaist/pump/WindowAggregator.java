@@ -0,0 +1,279 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+import org.apache.tsfile.enums.TSDataType;
+
+/**
+ * Reduces the values of a series to min, max, mean, last and count over
+ * tumbling windows, aligned to multiples of the window length. Each closed
+ * window is written as five derived measurements named after the series'
+ * measurement (lux_min, lux_max, lux_mean, lux_last, lux_count), timestamped
+ * with the start of the window.
+ * <p>
+ * A window closes when its series gets a value of a later window, or once the
+ * clock is past its end by the grace time, for series that went quiet. Values
+ * of an already closed window are counted as late and left out. Text values
+ * are never aggregated.
+ * <p>
+ * A value that goes into a window holds on to a part of its message's
+ * acknowledgement until the window's statistics are written, so under QoS 1 a
+ * window lost with the process is delivered again rather than acknowledged.
+ * <p>
+ * The windows live in primitive arrays, one slot per series. A series keeps
+ * its slot once its window is written, to remember how far it was written
+ * even after its route was evicted from the topic cache or rebuilt by a
+ * configuration reload. Safe to use from several threads, though the pump
+ * aggregates on its converting thread.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class WindowAggregator {
+
+    static final String[] STATISTICS = {"min", "max", "mean", "last", "count"};
+
+    private final long graceMs;
+
+    //slot of each series aggregated so far, kept once its window is written
+    //to remember how far the series was written
+    private final Map<String, Integer> slots = new HashMap<>();
+    private int used;
+    private int open;
+    //route of the open window, null while the slot has none
+    private TopicRoute[] routes = new TopicRoute[64];
+    private long[] starts = new long[64];
+    private long[] lengths = new long[64];
+    private double[] mins = new double[64];
+    private double[] maxs = new double[64];
+    private double[] sums = new double[64];
+    private double[] lasts = new double[64];
+    private int[] counts = new int[64];
+    //end of the last window written
+    private long[] writtenUntil = new long[64];
+    //acks of the messages whose values are in the window, null if none
+    private List<AckTracker.Ack>[] acks = newAcks(64);
+    //earliest time an open window is due, Long.MAX_VALUE if none is open
+    private long nextDue = Long.MAX_VALUE;
+
+    private final LongAdder aggregated = new LongAdder();
+    private final LongAdder emitted = new LongAdder();
+    private final LongAdder late = new LongAdder();
+
+    /**
+     * @param graceMs how long past its end a window of a quiet series stays
+     * open
+     */
+    public WindowAggregator(long graceMs) {
+        if (graceMs < 0) {
+            throw new IllegalArgumentException("the aggregation grace time cannot be negative");
+        }
+        this.graceMs = graceMs;
+    }
+
+    /**
+     * Adds a value to the open window of its series, writing out the window
+     * first if the value starts a later one.
+     *
+     * @param route the value's route, its window length applies
+     * @param emit takes the statistics of closed windows
+     * @return false if the value was not aggregated, i.e. text or a topic
+     * without a window
+     */
+    public boolean add(TopicRoute route, TimeSeriesAndValue tsval, Consumer<TimeSeriesAndValue> emit) {
+        return add(route, tsval, null, emit);
+    }
+
+    /**
+     * Same as {@link #add(TopicRoute, TimeSeriesAndValue, Consumer)}, an
+     * aggregated value taking a part of its message's ack until the window is
+     * written.
+     *
+     * @param ack of the value's message, null if it needs none
+     */
+    public synchronized boolean add(TopicRoute route, TimeSeriesAndValue tsval, AckTracker.Ack ack, Consumer<TimeSeriesAndValue> emit) {
+        long length = route.getAggregateWindow();
+        if (length <= 0 || tsval.getDataType() == TSDataType.TEXT) {
+            return false;
+        }
+        long start = Math.floorDiv(tsval.timestamp, length) * length;
+        Integer slot = slots.get(route.timeseries);
+        if (slot == null) {
+            slot = slot(route.timeseries);
+        }
+        if (start < writtenUntil[slot]) {
+            late.increment();
+            return true;
+        }
+        if (routes[slot] != null && starts[slot] != start) {
+            if (start < starts[slot]) {
+                late.increment();
+                return true;
+            }
+            emit(slot, emit);
+        }
+        if (routes[slot] == null) {
+            open(slot, start, length);
+        }
+        //the route may have been evicted from the topic cache and resolved again
+        routes[slot] = route;
+        double value = tsval.getDouble();
+        mins[slot] = Math.min(mins[slot], value);
+        maxs[slot] = Math.max(maxs[slot], value);
+        sums[slot] += value;
+        lasts[slot] = value;
+        counts[slot]++;
+        if (ack != null) {
+            ack.share();
+            if (acks[slot] == null) {
+                acks[slot] = new ArrayList<>();
+            }
+            acks[slot].add(ack);
+        }
+        aggregated.increment();
+        return true;
+    }
+
+    /**
+     * Writes out the windows that are past their end by the grace time.
+     */
+    public synchronized void emitDue(long now, Consumer<TimeSeriesAndValue> emit) {
+        if (now < nextDue) {
+            return;
+        }
+        nextDue = Long.MAX_VALUE;
+        for (int slot = 0; slot < used; slot++) {
+            if (routes[slot] == null) {
+                continue;
+            }
+            long due = starts[slot] + lengths[slot] + graceMs;
+            if (due <= now) {
+                emit(slot, emit);
+            } else {
+                nextDue = Math.min(nextDue, due);
+            }
+        }
+    }
+
+    /**
+     * Writes out every open window, e.g. when shutting down.
+     */
+    public synchronized void emitAll(Consumer<TimeSeriesAndValue> emit) {
+        for (int slot = 0; slot < used; slot++) {
+            if (routes[slot] != null) {
+                emit(slot, emit);
+            }
+        }
+        nextDue = Long.MAX_VALUE;
+    }
+
+    /**
+     * @return how long until a window is due, -1 if none is open
+     */
+    public synchronized long millisUntilDue(long now) {
+        if (nextDue == Long.MAX_VALUE) {
+            return -1;
+        }
+        return Math.max(0, nextDue - now);
+    }
+
+    private int slot(String timeseries) {
+        if (used == routes.length) {
+            grow();
+        }
+        int slot = used++;
+        slots.put(timeseries, slot);
+        return slot;
+    }
+
+    private void open(int slot, long start, long length) {
+        open++;
+        starts[slot] = start;
+        lengths[slot] = length;
+        mins[slot] = Double.POSITIVE_INFINITY;
+        maxs[slot] = Double.NEGATIVE_INFINITY;
+        sums[slot] = 0;
+        counts[slot] = 0;
+        nextDue = Math.min(nextDue, start + length + graceMs);
+    }
+
+    private void emit(int slot, Consumer<TimeSeriesAndValue> emit) {
+        long now = System.currentTimeMillis();
+        TopicRoute route = routes[slot];
+        String prefix = route.timeseries + "_";
+        AckTracker.Ack written = windowAck(acks[slot]);
+        acks[slot] = null;
+        double[] doubles = {mins[slot], maxs[slot], sums[slot] / counts[slot], lasts[slot]};
+        for (int i = 0; i < doubles.length; i++) {
+            emit.accept(derived(prefix + STATISTICS[i], TSDataType.DOUBLE, doubles[i], starts[slot], now, written));
+        }
+        emit.accept(derived(prefix + STATISTICS[4], TSDataType.INT32, counts[slot], starts[slot], now, written));
+        emitted.increment();
+
+        writtenUntil[slot] = starts[slot] + lengths[slot];
+        routes[slot] = null;
+        open--;
+    }
+
+    //an ack of the window's own, in a part for each statistic, that lets go
+    //of the window's messages once all of them are written
+    private static AckTracker.Ack windowAck(List<AckTracker.Ack> messages) {
+        if (messages == null) {
+            return null;
+        }
+        AckTracker.Ack written = new AckTracker(id -> messages.forEach(AckTracker.Ack::done)).arrived(0);
+        for (int i = 1; i < STATISTICS.length; i++) {
+            written.share();
+        }
+        return written;
+    }
+
+    private static TimeSeriesAndValue derived(String timeseries, TSDataType type, Object value, long start, long now, AckTracker.Ack ack) {
+        TimeSeriesAndValue tsval = new TimeSeriesAndValue(timeseries, type, value, start);
+        tsval.received = now;
+        tsval.ack = ack;
+        return tsval;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<AckTracker.Ack>[] newAcks(int capacity) {
+        return new List[capacity];
+    }
+
+    private void grow() {
+        int capacity = routes.length * 2;
+        routes = Arrays.copyOf(routes, capacity);
+        starts = Arrays.copyOf(starts, capacity);
+        lengths = Arrays.copyOf(lengths, capacity);
+        mins = Arrays.copyOf(mins, capacity);
+        maxs = Arrays.copyOf(maxs, capacity);
+        sums = Arrays.copyOf(sums, capacity);
+        lasts = Arrays.copyOf(lasts, capacity);
+        counts = Arrays.copyOf(counts, capacity);
+        writtenUntil = Arrays.copyOf(writtenUntil, capacity);
+        acks = Arrays.copyOf(acks, capacity);
+    }
+
+    public synchronized int getOpenWindows() {
+        return open;
+    }
+
+    public long getAggregated() {
+        return aggregated.sum();
+    }
+
+    public long getEmitted() {
+        return emitted.sum();
+    }
+
+    /**
+     * @return values that arrived after their window was written
+     */
+    public long getLate() {
+        return late.sum();
+    }
+}
@@ -0,0 +1,201 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.function.Function;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+
+/**
+ * A fixed set of writer threads, each with its own database connection and
+ * batch. Values are routed to a writer by the hash of their device, so all
+ * values of one series are written by the same thread in the order they were
+ * submitted, while different devices are written in parallel.
+ *
+ * With fewer connections than writers, the writers share them through a
+ * {@link SinkPool}. That is meant for virtual threads: thousands of writers
+ * can then each wait on their own round trip while only a few connections are
+ * open.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class WriterPool {
+
+    static final int WRITER_QUEUE_CAPACITY = 8192;
+    //with many writers each gets a smaller queue, down to this
+    static final int MIN_WRITER_QUEUE_CAPACITY = 256;
+
+    private final List<Worker> workers = new ArrayList<>();
+    //the connections shared by all writers, null if each has its own
+    private final SinkPool shared;
+    private volatile Spool spool;
+
+    public WriterPool(SinkFactory factory, int threads, int batchSize, long batchLingerMs) throws IoTDBConnectionException {
+        this(factory, threads, sink -> new BatchWriter(sink, batchSize, batchLingerMs));
+    }
+
+    /**
+     * @param factory opens one database connection per writer
+     * @param threads
+     * @param writers creates the value writer of each thread on top of its
+     * connection
+     */
+    public WriterPool(SinkFactory factory, int threads, Function<RecordSink, ValueWriter> writers) throws IoTDBConnectionException {
+        this(factory, threads, 0, Threads.platform("pump-writer-"), writers);
+    }
+
+    /**
+     * @param factory opens the database connections
+     * @param threads
+     * @param connections how many connections the writers share, 0 (or at
+     * least as many as there are writers) for one per writer
+     * @param threadFactory makes the writer threads
+     * @param writers creates the value writer of each thread on top of its
+     * connection
+     */
+    public WriterPool(SinkFactory factory, int threads, int connections, ThreadFactory threadFactory, Function<RecordSink, ValueWriter> writers) throws IoTDBConnectionException {
+        if (threads < 1) {
+            throw new IllegalArgumentException("at least one writer thread is required");
+        }
+        this.shared = connections > 0 && connections < threads ? new SinkPool(factory, connections) : null;
+        int capacity = Math.min(WRITER_QUEUE_CAPACITY, Math.max(MIN_WRITER_QUEUE_CAPACITY, 8 * WRITER_QUEUE_CAPACITY / threads));
+        try {
+            for (int i = 0; i < threads; i++) {
+                RecordSink sink = shared != null ? shared : factory.open();
+                workers.add(new Worker(sink, shared == null, capacity, writers.apply(sink), threadFactory));
+            }
+        } catch (IoTDBConnectionException ex) {
+            for (var worker : workers) {
+                worker.closeSink();
+            }
+            throw ex;
+        }
+        for (var worker : workers) {
+            worker.thread.start();
+        }
+    }
+
+    public int size() {
+        return workers.size();
+    }
+
+    //package private for testing
+    int shardOf(String device) {
+        return (device.hashCode() & 0x7fffffff) % workers.size();
+    }
+
+    /**
+     * With a spool, values for a writer that is backed up are spooled instead
+     * of blocking the caller.
+     */
+    public void setSpool(Spool spool) {
+        this.spool = spool;
+    }
+
+    /**
+     * Hands a value to the writer responsible for its device. Blocks if that
+     * writer is backed up and there is no spool, or the spool cannot take the
+     * value either.
+     */
+    public void submit(TimeSeriesAndValue tsval) {
+        RingBuffer<TimeSeriesAndValue> queue = workers.get(shardOf(tsval.getPrefix())).queue;
+        Spool overflow = spool;
+        if (overflow == null || queue.offer(tsval)) {
+            if (overflow == null) {
+                queue.put(tsval);
+            }
+            return;
+        }
+        if (overflow.append(tsval)) {
+            if (tsval.ack != null) {
+                overflow.force();
+                tsval.ack.done();
+            }
+        } else {
+            //not lost, the writer takes it once it catches up
+            queue.put(tsval);
+        }
+    }
+
+    public int getQueueDepth() {
+        int depth = 0;
+        for (var worker : workers) {
+            depth += worker.queue.size();
+        }
+        return depth;
+    }
+
+    /**
+     * Stops all writers after flushing whatever they have queued or buffered.
+     */
+    public void close() {
+        for (var worker : workers) {
+            worker.running = false;
+            worker.thread.interrupt();
+        }
+        for (var worker : workers) {
+            try {
+                worker.thread.join();
+            } catch (InterruptedException ex) {
+                Logger.getLogger(WriterPool.class.getName()).log(Level.WARNING, "interrupted while closing writers", ex);
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+        if (shared != null) {
+            closeSink(shared);
+        }
+    }
+
+    private static void closeSink(RecordSink sink) {
+        try {
+            sink.close();
+        } catch (IoTDBConnectionException ex) {
+            Logger.getLogger(WriterPool.class.getName()).log(Level.WARNING, "failed to close database connection", ex);
+        }
+    }
+
+    private static class Worker implements Runnable {
+
+        final RingBuffer<TimeSeriesAndValue> queue;
+        final ValueWriter batchWriter;
+        final RecordSink sink;
+        final boolean ownsSink;
+        final Thread thread;
+        volatile boolean running = true;
+
+        Worker(RecordSink sink, boolean ownsSink, int capacity, ValueWriter batchWriter, ThreadFactory threadFactory) {
+            this.sink = sink;
+            this.ownsSink = ownsSink;
+            this.queue = new RingBuffer<>(capacity, RingBuffer.OverflowPolicy.BLOCK);
+            this.batchWriter = batchWriter;
+            this.thread = threadFactory.newThread(this);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                TimeSeriesAndValue tsval = queue.poll(batchWriter.millisUntilDue(System.currentTimeMillis()));
+                if (tsval != null) {
+                    batchWriter.add(tsval);
+                }
+                batchWriter.flushIfDue(System.currentTimeMillis());
+            }
+            //drain what is left before going away
+            TimeSeriesAndValue tsval;
+            while ((tsval = queue.tryPoll()) != null) {
+                batchWriter.add(tsval);
+            }
+            batchWriter.flush();
+            closeSink();
+        }
+
+        void closeSink() {
+            if (ownsSink) {
+                WriterPool.closeSink(sink);
+            }
+        }
+    }
+}
@@ -0,0 +1,193 @@
+package jaist.pump;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BooleanSupplier;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.utils.Binary;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class AcknowledgementTest {
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void acksGoOutInArrivalOrder() {
+        List<Integer> acked = new ArrayList<>();
+        AckTracker tracker = new AckTracker(acked::add);
+        //more than the initial capacity, to see it grow
+        List<AckTracker.Ack> acks = new ArrayList<>();
+        for (int id = 1; id <= 100; id++) {
+            acks.add(tracker.arrived(id));
+        }
+        for (int i = 99; i > 0; i--) {
+            acks.get(i).done();
+        }
+        assertTrue(acked.isEmpty());
+        assertEquals(100, tracker.getPending());
+
+        acks.get(0).done();
+        assertEquals(100, acked.size());
+        for (int i = 0; i < 100; i++) {
+            assertEquals(i + 1, acked.get(i));
+        }
+        assertEquals(0, tracker.getPending());
+        assertEquals(100, tracker.getAcked());
+
+        //done twice is harmless
+        acks.get(5).done();
+        assertEquals(100, acked.size());
+    }
+
+    @Test
+    public void recordsAreAckedOnlyOnceWritten() throws Exception {
+        ackedOnlyOnceWritten(Pump.WriteMode.RECORDS);
+    }
+
+    @Test
+    public void tabletsAreAckedOnlyOnceWritten() throws Exception {
+        ackedOnlyOnceWritten(Pump.WriteMode.TABLETS);
+    }
+
+    private void ackedOnlyOnceWritten(Pump.WriteMode mode) throws Exception {
+        StubSink sink = new StubSink();
+        sink.down = true;
+        try (TestBroker broker = new TestBroker()) {
+            Pump pump = new Pump.Builder()
+                .mqttServerUri(broker.getUri())
+                .mqttClientId("pump")
+                .topics("sensors/#")
+                .mqttQos(1)
+                .mqttReceiveMaximum(5)
+                .writeMode(mode)
+                .batchLingerMs(20)
+                .build();
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread consumer = new Thread(() -> {
+                while (running.get()) {
+                    pump.handleIncomingMessages(20);
+                }
+            });
+            try {
+                pump.init(() -> sink);
+                waitFor(() -> broker.getSubscriptionCount() == 1);
+                consumer.start();
+
+                for (int i = 0; i < 20; i++) {
+                    broker.publish("sensors/device" + (i % 4) + "/temperature", String.valueOf(i).getBytes(), 1);
+                }
+                //the broker holds back all but receive maximum messages
+                waitFor(() -> pump.getConnections().get(0).getPendingAcks() == 5);
+                Thread.sleep(200);
+                assertEquals(5, broker.getInflight());
+                assertEquals(15, broker.getWaiting());
+                assertEquals(0, broker.getAcked());
+                assertEquals(0, sink.points());
+
+                //once the database is back everything is written, then acked
+                sink.down = false;
+                waitFor(() -> broker.getAcked() == 20);
+                assertEquals(20, sink.points());
+                assertEquals(0, broker.getInflight());
+                assertEquals(0, pump.getConnections().get(0).getPendingAcks());
+            } finally {
+                running.set(false);
+                consumer.join();
+                pump.close();
+            }
+        }
+    }
+
+    @Test
+    public void valuesTheSpoolCannotTakeAreAckedAsLost(@TempDir Path dir) throws Exception {
+        List<Integer> acked = new ArrayList<>();
+        AckTracker tracker = new AckTracker(acked::add);
+        //too large for a segment, the spool cannot store it
+        Binary huge = new Binary(new byte[8192]);
+        try (Spool spool = new Spool(dir, 4096, 4)) {
+            StubSink sink = new StubSink();
+            sink.down = true;
+            Metrics metrics = new Metrics();
+            BatchWriter records = new BatchWriter(sink, 2, 60_000);
+            records.setSpool(spool);
+            records.setMetrics(metrics);
+            TabletWriter tablets = new TabletWriter(sink, 2, 60_000, false);
+            tablets.setSpool(spool);
+            tablets.setMetrics(metrics);
+            int id = 1;
+            for (ValueWriter writer : List.of(records, tablets)) {
+                for (Object value : List.of(huge, new Binary("ok".getBytes()))) {
+                    TimeSeriesAndValue tsval = new TimeSeriesAndValue("root.devdb.a.status", TSDataType.TEXT, value, id);
+                    tsval.ack = tracker.arrived(id++);
+                    writer.add(tsval);
+                }
+                writer.flush();
+            }
+            //nothing held back the acks of the values after the lost ones
+            assertEquals(List.of(1, 2, 3, 4), acked);
+            assertEquals(2, metrics.getWriteFailures());
+            assertEquals(2, spool.getSpooled());
+        }
+    }
+
+    @Test
+    public void unconvertibleMessagesAreAcked() throws Exception {
+        StubSink sink = new StubSink();
+        try (TestBroker broker = new TestBroker()) {
+            Pump pump = new Pump.Builder()
+                .mqttServerUri(broker.getUri())
+                .mqttClientId("pump")
+                .topics("sensors/#")
+                .mqttQos(1)
+                .build();
+            try {
+                pump.init(() -> sink);
+                waitFor(() -> broker.getSubscriptionCount() == 1);
+                broker.publish("sensors/device/temperature", "20".getBytes(), 1);
+                waitFor(() -> pump.getQueueDepth() == 1);
+                pump.handleIncomingMessages(0);
+                //the series is now known to be numeric, text does not fit
+                broker.publish("sensors/device/temperature", "warm".getBytes(), 1);
+                waitFor(() -> pump.getQueueDepth() == 1);
+                pump.handleIncomingMessages(0);
+                waitFor(() -> broker.getAcked() == 2);
+                assertEquals(1, sink.points());
+            } finally {
+                pump.close();
+            }
+        }
+    }
+
+    @Test
+    public void qosOneForcesBlockingQueue() {
+        Pump pump = new Pump.Builder()
+            .topics("a/#")
+            .mqttQos(1)
+            .queueOverflow(RingBuffer.OverflowPolicy.DROP_NEWEST)
+            .build();
+        assertEquals(RingBuffer.OverflowPolicy.BLOCK, pump.getQueueOverflow());
+        assertThrows(IllegalArgumentException.class, () -> new Pump.Builder().topics("a/#").mqttQos(2).build());
+        assertThrows(IllegalArgumentException.class, () -> new Pump.Builder().topics("a/#").mqttReceiveMaximum(0).build());
+
+        //the session expiry is an unsigned int in MQTT, past what an int holds
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "a/#");
+        props.setProperty("MQTTSESSIONEXPIRY", "4294967295");
+        assertEquals(4294967295L, new Pump.Builder().fromProperties(props).mqttSessionExpiry);
+    }
+}
@@ -0,0 +1,77 @@
+package jaist.pump;
+
+import java.util.List;
+import org.apache.tsfile.enums.TSDataType;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class BatchWriterTest {
+
+    @Test
+    public void flushesWhenBatchIsFull() {
+        StubSink sink = new StubSink();
+        BatchWriter writer = new BatchWriter(sink, 3, 60_000);
+
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 1.0f, 10));
+        writer.add(new TimeSeriesAndValue("root.devdb.b.temperature", TSDataType.FLOAT, 2.0f, 11));
+        assertTrue(sink.calls.isEmpty());
+        assertEquals(2, writer.size());
+
+        writer.add(new TimeSeriesAndValue("root.devdb.a.humidity", TSDataType.FLOAT, 3.0f, 12));
+        assertEquals(1, sink.calls.size());
+        assertEquals("insertRecords", sink.calls.get(0));
+        assertEquals("root.devdb.b", sink.devices.get(1));
+        assertEquals(12L, sink.times.get(2));
+        assertEquals("humidity", sink.measurements.get(2).get(0));
+        assertEquals(0, writer.size());
+    }
+
+    @Test
+    public void singleDeviceBatchUsesOneDeviceCall() {
+        StubSink sink = new StubSink();
+        BatchWriter writer = new BatchWriter(sink, 2, 60_000);
+
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 1.0f, 10));
+        writer.add(new TimeSeriesAndValue("root.devdb.a.humidity", TSDataType.FLOAT, 2.0f, 11));
+        assertEquals("insertRecordsOfOneDevice", sink.calls.get(0));
+        assertEquals("root.devdb.a", sink.devices.get(0));
+    }
+
+    @Test
+    public void flushesAfterLinger() {
+        StubSink sink = new StubSink();
+        BatchWriter writer = new BatchWriter(sink, 100, 50);
+        assertEquals(-1, writer.millisUntilDue(System.currentTimeMillis()));
+
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 1.0f, 10));
+        long now = System.currentTimeMillis();
+        assertTrue(writer.millisUntilDue(now) <= 50);
+
+        writer.flushIfDue(now);
+        assertTrue(sink.calls.isEmpty());
+
+        writer.flushIfDue(now + 50);
+        assertEquals(1, sink.calls.size());
+        assertEquals(0, writer.size());
+    }
+
+    @Test
+    public void valuesOfOneReadingShareARecord() {
+        StubSink sink = new StubSink();
+        BatchWriter writer = new BatchWriter(sink, 3, 60_000);
+
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 1.0f, 10));
+        writer.add(new TimeSeriesAndValue("root.devdb.a.humidity", TSDataType.FLOAT, 2.0f, 10));
+        //the same measurement again needs a record of its own
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 3.0f, 10));
+        assertEquals(1, sink.calls.size());
+        assertEquals(2, sink.times.size());
+        assertEquals(List.of("temperature", "humidity"), sink.measurements.get(0));
+        assertEquals(List.of(1.0f, 2.0f), sink.values.get(0));
+        assertEquals(List.of("temperature"), sink.measurements.get(1));
+    }
+}
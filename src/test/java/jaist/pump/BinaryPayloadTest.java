@@ -0,0 +1,148 @@
+package jaist.pump;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Properties;
+import org.apache.tsfile.enums.TSDataType;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class BinaryPayloadTest {
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(256).order(ByteOrder.LITTLE_ENDIAN);
+
+    private BinaryPayloadTest header(long timestamp, int fields) {
+        buffer.put((byte) BinaryPayload.VERSION).put((byte) (timestamp < 0 ? 0 : BinaryPayload.HAS_TIMESTAMP)).put((byte) fields);
+        if (timestamp >= 0) {
+            buffer.putLong(timestamp);
+        }
+        return this;
+    }
+
+    private BinaryPayloadTest field(String name, int type) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        buffer.put((byte) bytes.length).put(bytes).put((byte) type);
+        return this;
+    }
+
+    private byte[] payload() {
+        return Arrays.copyOf(buffer.array(), buffer.position());
+    }
+
+    private static List<Object> decode(byte[] payload, boolean expected) {
+        List<TimeSeriesAndValue> values = new ArrayList<>();
+        assertEquals(expected, BinaryPayload.decode(payload, 0, payload.length, (name, offset, length, type) -> {
+            String measurement = length == 0 ? "x" : new String(name, offset, length, StandardCharsets.UTF_8);
+            TimeSeriesAndValue tsval = new TimeSeriesAndValue(new TopicRoute("topic", "root.a." + measurement, DataConvertor.Double()), 0);
+            values.add(tsval);
+            return tsval;
+        }));
+        List<Object> decoded = new ArrayList<>();
+        for (var tsval : values) {
+            decoded.add(tsval.getSuffix() + "=" + tsval.getValue());
+        }
+        return decoded;
+    }
+
+    @Test
+    public void documentedExample() {
+        byte[] payload = HexFormat.of().parseHex("010001000300 00ac41".replace(" ", ""));
+        assertEquals(List.of("x=21.5"), decode(payload, true));
+        assertEquals(42, BinaryPayload.timestamp(payload, 0, payload.length, 42));
+    }
+
+    @Test
+    public void everyType() {
+        header(1_700_000_000_000L, 5);
+        field("on", 0);
+        buffer.put((byte) 1);
+        field("n", 1);
+        buffer.putInt(-7);
+        field("f", 3);
+        buffer.putFloat(1.5f);
+        field("d", 4);
+        buffer.putDouble(Math.PI);
+        field("s", 5);
+        buffer.putShort((short) 3).put("hé".getBytes(StandardCharsets.UTF_8));
+        byte[] payload = payload();
+        assertEquals(List.of("on=true", "n=-7", "f=1.5", "d=" + Math.PI, "s=hé"), decode(payload, true));
+        assertEquals(1_700_000_000_000L, BinaryPayload.timestamp(payload, 0, payload.length, 0));
+    }
+
+    @Test
+    public void malformedPayloads() {
+        assertEquals(List.of(), decode(new byte[0], false));
+        assertEquals(List.of(), decode(new byte[]{2, 0, 0}, false));
+        //the second field is cut short, the first one stands
+        header(-1, 2);
+        field("a", 1);
+        buffer.putInt(1);
+        field("b", 4);
+        buffer.putInt(1);
+        assertEquals(List.of("a=1"), decode(payload(), false));
+        //unknown type
+        buffer.clear();
+        header(-1, 1);
+        field("a", 2);
+        buffer.putLong(1);
+        assertEquals(List.of(), decode(payload(), false));
+        //trailing bytes
+        buffer.clear();
+        header(-1, 1);
+        field("a", 0);
+        buffer.put((byte) 0).put((byte) 0);
+        assertEquals(List.of("a=false"), decode(payload(), false));
+    }
+
+    @Test
+    public void pumpWritesTypedFields() {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/+/+/bin");
+        props.setProperty(Pump.BINARY_TOPICS_KEY, "/+/+/bin, /+/+/temperature");
+        Pump pump = new Pump.Builder().fromProperties(props);
+        assertTrue(pump.resolveTopic("/room/a/bin").isBinary());
+        assertFalse(pump.resolveTopic("/room/a/bin").isJson());
+        List<TimeSeriesAndValue> out = new ArrayList<>();
+
+        header(1_700_000_000_000L, 2);
+        field("humidity", 4);
+        buffer.putDouble(40.5);
+        field("presence", 0);
+        buffer.put((byte) 1);
+        assertEquals(2, pump.convertFields(pump.resolveTopic("/room/a/bin"), new TopicAndMessage("/room/a/bin", new MqttMessage(payload()), 1), out::add));
+        assertEquals("root.devdb.room.a.bin.humidity", out.get(0).timeseries);
+        assertEquals(1_700_000_000_000L, out.get(0).timestamp);
+        assertEquals(true, out.get(1).getValue());
+
+        //an int widens to the double series, a boolean does not fit it
+        out.clear();
+        buffer.clear();
+        header(-1, 2);
+        field("humidity", 1);
+        buffer.putInt(41);
+        field("humidity", 0);
+        buffer.put((byte) 1);
+        assertEquals(1, pump.convertFields(pump.resolveTopic("/room/a/bin"), new TopicAndMessage("/room/a/bin", new MqttMessage(payload()), 5), out::add));
+        assertEquals(TSDataType.DOUBLE, out.get(0).getDataType());
+        assertEquals(41.0, out.get(0).getValue());
+        assertEquals(5L, out.get(0).timestamp);
+        assertEquals(1, pump.getSeriesTypes().getConflicts());
+
+        //an unnamed field is the topic's own measurement
+        out.clear();
+        byte[] example = HexFormat.of().parseHex("01000100030000ac41");
+        assertEquals(1, pump.convertFields(pump.resolveTopic("/room/a/temperature"), new TopicAndMessage("/room/a/temperature", new MqttMessage(example), 1), out::add));
+        assertEquals("root.devdb.room.a.temperature", out.get(0).timeseries);
+        assertEquals(21.5f, out.get(0).getValue());
+    }
+}
@@ -0,0 +1,88 @@
+package jaist.pump;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class CaptureFileTest {
+
+    @TempDir
+    Path dir;
+
+    //a capture file holding the messages, given as topic and payload pairs
+    private Path capture(String name, long firstTimestamp, String... messages) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        CaptureFile.writeHeader(buffer);
+        for (int i = 0; i < messages.length; i += 2) {
+            CaptureFile.writeRecord(buffer, messages[i].getBytes(StandardCharsets.UTF_8), firstTimestamp + i / 2,
+                messages[i + 1].getBytes(StandardCharsets.UTF_8));
+        }
+        Path file = dir.resolve(name + CaptureFile.SUFFIX);
+        Files.write(file, Arrays.copyOf(buffer.array(), buffer.position()));
+        return file;
+    }
+
+    @Test
+    public void recordsAreReadAcrossWindows() throws IOException {
+        List<String> messages = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            messages.add("/room/" + i + "/temperature");
+            messages.add(String.valueOf(i));
+        }
+        Path file = capture("windows", 1000, messages.toArray(String[]::new));
+        List<String> read = new ArrayList<>();
+        List<Long> timestamps = new ArrayList<>();
+        //far smaller than the file, most records are moved to a new window
+        long records = CaptureFile.read(file, 64, (topic, timestamp, payload) -> {
+            read.add(topic);
+            read.add(new String(payload, StandardCharsets.UTF_8));
+            timestamps.add(timestamp);
+        });
+        assertEquals(100, records);
+        assertEquals(messages, read);
+        assertEquals(1000, timestamps.get(0));
+        assertEquals(1099, timestamps.get(99));
+    }
+
+    @Test
+    public void aRecordCutShortEndsTheFile() throws IOException {
+        Path file = capture("cut", 0, "/a/b/c", "1", "/a/b/d", "2.5");
+        Files.write(file, Arrays.copyOf(Files.readAllBytes(file), (int) Files.size(file) - 2));
+        assertEquals(1, CaptureFile.read(file, (topic, timestamp, payload) -> assertEquals("/a/b/c", topic)));
+
+        Path other = dir.resolve("other");
+        Files.write(other, "not a capture".getBytes());
+        assertThrows(IOException.class, () -> CaptureFile.read(other, (topic, timestamp, payload) -> fail()));
+    }
+
+    @Test
+    public void capturesAreLoadedThroughTheConvertors() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/+/+/+");
+        props.setProperty("CONVERT-FLOAT", "temperature");
+        props.setProperty("JSON-TOPICS", "/+/+/json");
+        props.setProperty("WRITER-THREADS", "2");
+        Pump pump = new Pump.Builder().fromProperties(props);
+        Path first = capture("first", 5000, "/room/1/temperature", "21.5", "/room/2/temperature", "warm", "/room/1/json", "{\"lux\": 12, \"presence\": true}");
+        Path second = capture("second", 6000, "/room/2/temperature", "19");
+
+        StubSink sink = new StubSink();
+        assertEquals(4, pump.load(() -> sink, List.of(first, second)));
+        assertEquals(4, sink.points());
+        assertTrue(sink.times.containsAll(List.of(5000L, 5002L, 6000L)));
+        assertEquals(1, pump.getMetrics().getConversionFailures());
+    }
+}
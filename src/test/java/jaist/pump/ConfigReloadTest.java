@@ -0,0 +1,159 @@
+package jaist.pump;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class ConfigReloadTest {
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static Properties properties(String... keysAndValues) {
+        Properties props = new Properties();
+        for (int i = 0; i < keysAndValues.length; i += 2) {
+            props.setProperty(keysAndValues[i], keysAndValues[i + 1]);
+        }
+        return props;
+    }
+
+    @Test
+    public void routesAreSwappedForTheConvertingThread() {
+        Properties before = properties("MQTTTOPICS", "/+/+/temp");
+        Pump pump = new Pump.Builder().fromProperties(before);
+        TopicRoute route = pump.resolveTopic("/room/a/temp");
+        assertSame(route, pump.resolveTopic("/room/a/temp"));
+        assertNull(pump.resolveTopic("/room/a/state").getRule());
+
+        Properties after = properties("MQTTTOPICS", "/+/+/temp", "CONVERT-INT", "temp",
+            "ROUTE.state.TOPIC", "/+/+/state", "ROUTE.state.SERIES", "root.states.{1}.{2}", "ROUTE.state.CONVERT", "text");
+        assertTrue(pump.reload(before, after));
+        TopicRoute reloaded = pump.resolveTopic("/room/a/temp");
+        assertNotSame(route, reloaded);
+        assertSame(pump.getConvertor("temp"), reloaded.configured);
+        assertEquals("root.states.room.a", pump.resolveTopic("/room/a/state").timeseries);
+        assertEquals(1, pump.getMetrics().getGauges().get("pump_config_reloads"));
+    }
+
+    @Test
+    public void brokenConfigurationsAreRejected() {
+        Properties before = properties("MQTTTOPICS", "/+/+/temp");
+        Pump pump = new Pump.Builder().fromProperties(before);
+        TopicRoute route = pump.resolveTopic("/room/a/temp");
+
+        assertFalse(pump.reload(before, properties()));
+        assertFalse(pump.reload(before, properties("MQTTTOPICS", "a/#/b")));
+        assertFalse(pump.reload(before, properties("MQTTTOPICS", "a/#",
+            "ROUTE.one.TOPIC", "a/+", "ROUTE.two.TOPIC", "a/+")));
+        assertSame(route, pump.resolveTopic("/room/a/temp"));
+        assertEquals(3, pump.getMetrics().getGauges().get("pump_config_reload_failures"));
+        assertArrayEquals(new String[]{"/+/+/temp"}, pump.topics);
+    }
+
+    @Test
+    public void writtenWindowsStayWrittenAcrossReloads() throws Exception {
+        StubSink sink = new StubSink();
+        try (TestBroker broker = new TestBroker()) {
+            Properties before = properties("MQTTSERVER", broker.getUri(), "MQTTCLIENTID", "pump",
+                "MQTTTOPICS", "/+/+/lux", "AGGREGATE", "/+/+/lux:1000");
+            Pump pump = new Pump.Builder().fromProperties(before);
+            try {
+                pump.init(() -> sink);
+                waitFor(() -> broker.getSubscriptionCount() == 1);
+                for (long time : new long[]{1100, 1200, 2100}) {
+                    assertNull(pump.convertMessage(new TopicAndMessage("/room/a/lux", new MqttMessage("5".getBytes()), time)));
+                }
+                TopicRoute route = pump.resolveTopic("/room/a/lux");
+
+                assertTrue(pump.reload(before, properties("MQTTSERVER", broker.getUri(), "MQTTCLIENTID", "pump",
+                    "MQTTTOPICS", "/+/+/lux", "AGGREGATE", "/+/+/lux:1000", "CONVERT-FLOAT", "temp")));
+                assertNotSame(route, pump.resolveTopic("/room/a/lux"));
+                //too late for the window written before the reload
+                assertNull(pump.convertMessage(new TopicAndMessage("/room/a/lux", new MqttMessage("500".getBytes()), 1500)));
+                assertEquals(1L, pump.getMetrics().getGauges().get("pump_aggregate_late_values"));
+            } finally {
+                pump.close();
+            }
+        }
+        //the window of 1000 once, the one of 2000 on close
+        assertEquals(List.of(1000L, 2000L), sink.times);
+        int count = sink.measurements.get(0).indexOf("lux_count");
+        assertEquals(2, sink.values.get(0).get(count));
+    }
+
+    @Test
+    public void subscriptionsChangeOnTheLiveConnections() throws Exception {
+        StubSink sink = new StubSink();
+        try (TestBroker broker = new TestBroker()) {
+            Properties before = properties("MQTTSERVER", broker.getUri(), "MQTTCLIENTID", "pump",
+                "MQTTCONNECTIONS", "2", "MQTTTOPICS", "a/#, b/#");
+            Pump pump = new Pump.Builder().fromProperties(before);
+            try {
+                pump.init(() -> sink);
+                waitFor(() -> broker.getSubscriptionCount() == 2);
+                int connects = pump.getConnections().get(0).getConnects() + pump.getConnections().get(1).getConnects();
+
+                Properties after = (Properties) before.clone();
+                after.setProperty("MQTTTOPICS", "a/#, c/#, d/#");
+                assertTrue(pump.reload(before, after));
+                waitFor(() -> broker.getSubscriptionCount() == 3);
+                //new topics go to the connection with the fewest
+                assertEquals(Set.of("a/#", "d/#"), Set.copyOf(broker.getSubscriptions().get("pump-0")));
+                assertEquals(Set.of("c/#"), Set.copyOf(broker.getSubscriptions().get("pump-1")));
+                //without reconnecting
+                assertEquals(connects, pump.getConnections().get(0).getConnects() + pump.getConnections().get(1).getConnects());
+
+                broker.publish("b/x", "1".getBytes(), 0);
+                broker.publish("c/x", "2".getBytes(), 0);
+                waitFor(() -> pump.getQueueDepth() == 1);
+            } finally {
+                pump.close();
+            }
+        }
+    }
+
+    @Test
+    public void watcherHandsOverChangedFiles(@TempDir Path dir) throws Exception {
+        Path file = dir.resolve("config.properties");
+        Properties initial = properties("MQTTTOPICS", "a/#");
+        store(initial, file);
+        LinkedBlockingQueue<Properties> changes = new LinkedBlockingQueue<>();
+        try (ConfigWatcher watcher = new ConfigWatcher(file, initial, 50, (previous, next) -> changes.add(next))) {
+            watcher.start();
+            //the same contents again are no change
+            store(initial, file);
+            store(properties("MQTTTOPICS", "b/#"), file);
+            Properties changed = changes.poll(10, TimeUnit.SECONDS);
+            assertNotNull(changed);
+            assertEquals("b/#", changed.getProperty("MQTTTOPICS"));
+            Thread.sleep(300);
+            assertTrue(changes.isEmpty());
+        }
+    }
+
+    private static void store(Properties properties, Path file) throws IOException {
+        try (OutputStream out = Files.newOutputStream(file)) {
+            properties.store(out, null);
+        }
+    }
+}
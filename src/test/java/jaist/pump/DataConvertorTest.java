@@ -1,5 +1,6 @@
 package jaist.pump;
 
+import java.nio.charset.StandardCharsets;
 import org.apache.tsfile.enums.TSDataType;
 import org.apache.tsfile.utils.Binary;
 import org.junit.jupiter.api.AfterAll;
@@ -129,4 +130,109 @@ public class DataConvertorTest {
         assertEquals(TSDataType.TEXT, conv.getPrimitiveType());
     }
 
+    //remembers what a convertor handed over through the byte API
+    private static class CapturingSink implements DataConvertor.ValueSink {
+
+        TSDataType type;
+        Object value;
+
+        @Override
+        public void acceptBoolean(boolean value) {
+            this.type = TSDataType.BOOLEAN;
+            this.value = value;
+        }
+
+        @Override
+        public void acceptInt(int value) {
+            this.type = TSDataType.INT32;
+            this.value = value;
+        }
+
+        @Override
+        public void acceptFloat(float value) {
+            this.type = TSDataType.FLOAT;
+            this.value = value;
+        }
+
+        @Override
+        public void acceptDouble(double value) {
+            this.type = TSDataType.DOUBLE;
+            this.value = value;
+        }
+
+        @Override
+        public void acceptBinary(Binary value) {
+            this.type = TSDataType.TEXT;
+            this.value = value;
+        }
+    }
+
+    private static CapturingSink parseBytes(DataConvertor conv, String input) {
+        //surround the value with junk to make sure offset and length are honoured
+        byte[] payload = ("##" + input + "##").getBytes(StandardCharsets.UTF_8);
+        CapturingSink sink = new CapturingSink();
+        return conv.parse(payload, 2, payload.length - 4, sink) ? sink : null;
+    }
+
+    private static final String[] NUMBERS = {
+        "0", "-0", "1", "+1", "1.5", "-273.15", " 21.4 ", "0.1", "0.30000000000000004",
+        "1e3", "1.5E-3", "123456789012345678", "1234567890123456789012", "3.4028235e38",
+        "1e-400", "1e400", "NaN", "-Infinity", "0.99", "1.01", "16777217", "0.000001",
+        "1.", ".5", "1.0f", "00000000000000000000001.25", "9007199254740993",
+        "abc", "", " ", "-", "1e", "1.2.3", "1-2", "e5", "Infinity", "+NaN", "Nope", "window open", ".", "-.",
+        "21.5\u00b0", "5\u20ac", "\u00e91", "\u00a012"};
+
+    @Test
+    public void byteParsingMatchesStringParsing() {
+        DataConvertor[] convertors = {DataConvertor.Double(), DataConvertor.Float(), DataConvertor.Int32()};
+        for (DataConvertor conv : convertors) {
+            for (String input : NUMBERS) {
+                Object expected;
+                try {
+                    expected = conv.parseValue(input);
+                } catch (IllegalArgumentException ex) {
+                    expected = null;
+                }
+                CapturingSink sink = parseBytes(conv, input);
+                if (expected == null) {
+                    assertNull(sink, conv.getClass().getSimpleName() + " accepted " + input);
+                } else {
+                    assertNotNull(sink, conv.getClass().getSimpleName() + " rejected " + input);
+                    assertEquals(expected, sink.value, conv.getClass().getSimpleName() + " on " + input);
+                    assertEquals(conv.getPrimitiveType(), sink.type);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void byteParsingOfBooleansAndText() {
+        DataConvertor bool = DataConvertor.Boolean();
+        assertEquals(true, parseBytes(bool, " YES").value);
+        assertEquals(true, parseBytes(bool, "1").value);
+        assertEquals(false, parseBytes(bool, "False\n").value);
+        assertNull(parseBytes(bool, "maybe"));
+        assertNull(parseBytes(bool, "yes\u00e9"));
+        assertNull(parseBytes(bool, "\u00e9no"));
+
+        CapturingSink text = parseBytes(DataConvertor.Text(), "test string");
+        assertEquals(TSDataType.TEXT, text.type);
+        assertEquals(new Binary("test string".getBytes()), text.value);
+    }
+
+    @Test
+    public void byteParsingOfDoubleOrTextLeavesTypeAlone() {
+        DataConvertor conv = DataConvertor.DoubleOrText();
+        CapturingSink number = parseBytes(conv, "21.5");
+        assertEquals(TSDataType.DOUBLE, number.type);
+        assertEquals(21.5, number.value);
+        CapturingSink text = parseBytes(conv, "open");
+        assertEquals(TSDataType.TEXT, text.type);
+        assertEquals("open", text.value.toString());
+        CapturingSink unit = parseBytes(conv, "21.5\u00b0");
+        assertEquals(TSDataType.TEXT, unit.type);
+        assertEquals("21.5\u00b0", unit.value.toString());
+        assertEquals(TSDataType.DOUBLE, conv.getPrimitiveType());
+    }
+
 }
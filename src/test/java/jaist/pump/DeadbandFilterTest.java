@@ -0,0 +1,117 @@
+package jaist.pump;
+
+import java.util.Properties;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.utils.Binary;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class DeadbandFilterTest {
+
+    private static TopicRoute route(String timeseries, Deadband deadband) {
+        TopicRoute route = new TopicRoute("topic", timeseries, DataConvertor.Double());
+        route.filterWith(deadband);
+        return route;
+    }
+
+    private static TimeSeriesAndValue value(TopicRoute route, double value, long timestamp) {
+        return new TimeSeriesAndValue(route, TSDataType.DOUBLE, value, timestamp);
+    }
+
+    @Test
+    public void absoluteDeadband() {
+        DeadbandFilter filter = new DeadbandFilter(0, 16);
+        TopicRoute route = route("root.db.room.lux", Deadband.absolute(5));
+        assertTrue(filter.pass(route, value(route, 100, 1)));
+        assertFalse(filter.pass(route, value(route, 104, 2)));
+        assertFalse(filter.pass(route, value(route, 95, 3)));
+        //measured from the last written value, so slow drift is caught
+        assertTrue(filter.pass(route, value(route, 105.5, 4)));
+        assertFalse(filter.pass(route, value(route, 101, 5)));
+        assertEquals(3, filter.getSuppressed());
+    }
+
+    @Test
+    public void percentDeadband() {
+        DeadbandFilter filter = new DeadbandFilter(0, 16);
+        TopicRoute route = route("root.db.room.PM10", Deadband.percent(10));
+        assertTrue(filter.pass(route, value(route, 50, 1)));
+        assertFalse(filter.pass(route, value(route, 54, 2)));
+        assertTrue(filter.pass(route, value(route, 56, 3)));
+        assertFalse(filter.pass(route, value(route, 51, 4)));
+    }
+
+    @Test
+    public void changeOnly() {
+        DeadbandFilter filter = new DeadbandFilter(0, 16);
+        TopicRoute route = route("root.db.room.presence", Deadband.changeOnly());
+        assertTrue(filter.pass(route, new TimeSeriesAndValue(route, TSDataType.BOOLEAN, true, 1)));
+        assertFalse(filter.pass(route, new TimeSeriesAndValue(route, TSDataType.BOOLEAN, true, 2)));
+        assertTrue(filter.pass(route, new TimeSeriesAndValue(route, TSDataType.BOOLEAN, false, 3)));
+
+        TopicRoute text = route("root.db.room.state", Deadband.absolute(100));
+        assertTrue(filter.pass(text, new TimeSeriesAndValue(text, TSDataType.TEXT, new Binary("on".getBytes()), 1)));
+        assertFalse(filter.pass(text, new TimeSeriesAndValue(text, TSDataType.TEXT, new Binary("on".getBytes()), 2)));
+        assertTrue(filter.pass(text, new TimeSeriesAndValue(text, TSDataType.TEXT, new Binary("off".getBytes()), 3)));
+
+        //a type change is always written
+        assertTrue(filter.pass(text, new TimeSeriesAndValue(text, TSDataType.DOUBLE, 0.0, 4)));
+    }
+
+    @Test
+    public void heartbeatForcesWrites() {
+        DeadbandFilter filter = new DeadbandFilter(1000, 16);
+        TopicRoute route = route("root.db.room.lux", Deadband.changeOnly());
+        assertTrue(filter.pass(route, value(route, 1, 0)));
+        assertFalse(filter.pass(route, value(route, 1, 999)));
+        assertTrue(filter.pass(route, value(route, 1, 1000)));
+        assertFalse(filter.pass(route, value(route, 1, 1500)));
+        //out of order values are written
+        assertTrue(filter.pass(route, value(route, 1, 10)));
+    }
+
+    @Test
+    public void stateStaysBounded() {
+        DeadbandFilter filter = new DeadbandFilter(0, 64);
+        assertEquals(64, filter.getCapacity());
+        for (int i = 0; i < 10_000; i++) {
+            TopicRoute route = route("root.db.device" + i + ".lux", Deadband.changeOnly());
+            assertTrue(filter.pass(route, value(route, 1, i)));
+        }
+        assertEquals(10_000 - 64, filter.getEvictions());
+
+        //the most recently written series are still tracked
+        TopicRoute recent = route("root.db.device9999.lux", Deadband.changeOnly());
+        assertFalse(filter.pass(recent, value(recent, 1, 10_000)));
+        //and the ones that lost their slot are written again
+        TopicRoute evicted = route("root.db.device0.lux", Deadband.changeOnly());
+        assertTrue(filter.pass(evicted, value(evicted, 1, 10_000)));
+    }
+
+    @Test
+    public void configuredPerSuffix() {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/+/+/lux");
+        props.setProperty(Pump.DEADBAND_ABS_KEY, "lux:5, temperature:0.2");
+        props.setProperty(Pump.DEADBAND_PCT_KEY, "lux:10, broken");
+        props.setProperty(Pump.CHANGE_ONLY_KEY, "presence, button");
+        Pump pump = new Pump.Builder().fromProperties(props);
+
+        assertEquals(5, pump.resolveTopic("/room/a/lux").getDeadband().getAbsolute());
+        assertEquals(10, pump.resolveTopic("/room/a/LUX").getDeadband().getPercent());
+        assertEquals(Deadband.changeOnly(), pump.resolveTopic("/room/a/presence").getDeadband());
+        assertNull(pump.resolveTopic("/room/a/humidity").getDeadband());
+
+        assertNotNull(pump.convertMessage(new TopicAndMessage("/room/a/lux", new MqttMessage("100".getBytes()), 1)));
+        assertNull(pump.convertMessage(new TopicAndMessage("/room/a/lux", new MqttMessage("109".getBytes()), 2)));
+        assertNotNull(pump.convertMessage(new TopicAndMessage("/room/a/lux", new MqttMessage("111".getBytes()), 3)));
+        //without a deadband everything is written
+        assertNotNull(pump.convertMessage(new TopicAndMessage("/room/a/humidity", new MqttMessage("40".getBytes()), 1)));
+        assertNotNull(pump.convertMessage(new TopicAndMessage("/room/a/humidity", new MqttMessage("40".getBytes()), 2)));
+    }
+}
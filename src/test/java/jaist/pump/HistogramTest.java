@@ -0,0 +1,71 @@
+package jaist.pump;
+
+import java.util.Arrays;
+import java.util.Random;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class HistogramTest {
+
+    @Test
+    public void bucketsAreContiguous() {
+        long previous = -1;
+        for (int index = 0; index < 1000; index++) {
+            long upper = Histogram.upperBoundOf(index);
+            assertEquals(index, Histogram.indexOf(previous + 1), "lower bound of " + index);
+            assertEquals(index, Histogram.indexOf(upper), "upper bound of " + index);
+            previous = upper;
+        }
+        assertEquals(Histogram.indexOf(Long.MAX_VALUE), Histogram.indexOf(Long.MAX_VALUE - 1));
+    }
+
+    @Test
+    public void smallValuesAreExact() {
+        Histogram histogram = new Histogram();
+        for (int i = 1; i <= 50; i++) {
+            histogram.record(i);
+        }
+        assertEquals(25, histogram.valueAtQuantile(0.5));
+        assertEquals(50, histogram.valueAtQuantile(1.0));
+        assertEquals(1, histogram.valueAtQuantile(0));
+        assertEquals(50, histogram.getCount());
+        assertEquals(1275, histogram.getSum());
+        assertEquals(25.5, histogram.getMean());
+    }
+
+    @Test
+    public void quantilesStayWithinBucketPrecision() {
+        Histogram histogram = new Histogram();
+        long[] values = new long[100_000];
+        Random random = new Random(42);
+        for (int i = 0; i < values.length; i++) {
+            //spread over several orders of magnitude
+            values[i] = (long) Math.exp(random.nextDouble() * 20);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        double[] quantiles = {0.5, 0.9, 0.99, 0.999};
+        long[] reported = histogram.valuesAtQuantiles(quantiles);
+        for (int i = 0; i < quantiles.length; i++) {
+            long exact = values[(int) Math.ceil(quantiles[i] * values.length) - 1];
+            assertTrue(reported[i] >= exact, "quantile " + quantiles[i]);
+            assertTrue(reported[i] <= exact * 1.04, "quantile " + quantiles[i] + ": " + reported[i] + " vs " + exact);
+        }
+        assertEquals(values[values.length - 1], histogram.getMax());
+        assertEquals(histogram.getMax(), histogram.valueAtQuantile(1.0));
+    }
+
+    @Test
+    public void emptyAndNegative() {
+        Histogram histogram = new Histogram();
+        assertEquals(0, histogram.valueAtQuantile(0.99));
+        assertEquals(0, histogram.getMean());
+        histogram.record(-5);
+        assertEquals(0, histogram.getMax());
+        assertEquals(1, histogram.getCount());
+    }
+}
@@ -0,0 +1,119 @@
+package jaist.pump;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class JsonPayloadTest {
+
+    private final List<String> fields = new ArrayList<>();
+    private final List<byte[]> buffers = new ArrayList<>();
+
+    private boolean parse(String json) {
+        byte[] payload = json.getBytes(StandardCharsets.UTF_8);
+        return new JsonPayload().parse(payload, 0, payload.length, (name, nameLength, depth, kind, value, offset, length) -> {
+            fields.add(new String(name, 0, nameLength, StandardCharsets.UTF_8) + "@" + depth + "="
+                + kind + ":" + new String(value, offset, length, StandardCharsets.UTF_8));
+            buffers.add(value == payload ? null : value);
+        });
+    }
+
+    @Test
+    public void scalarFields() {
+        assertTrue(parse(" { \"t\" : 21.5, \"on\":true,\"off\":false, \"x\":null, \"s\":\"abc\", \"n\":-1e3 } "));
+        assertEquals(List.of("t@0=0:21.5", "on@0=2:true", "off@0=3:false", "x@0=4:null", "s@0=1:abc", "n@0=0:-1e3"), fields);
+        //plain strings are slices of the payload
+        assertNull(buffers.get(4));
+    }
+
+    @Test
+    public void escapedStrings() {
+        assertTrue(parse("{\"a\\u0062\":\"x\\\"y\\n\\u00e9\\ud83d\\ude00\"}"));
+        assertEquals(List.of("ab@0=1:x\"y\n\u00e9\ud83d\ude00"), fields);
+        assertNotNull(buffers.get(0));
+    }
+
+    @Test
+    public void nestedObjectsAndArrays() {
+        assertTrue(parse("{\"env\":{\"t\":1,\"deep\":{\"h\":2}},\"list\":[1,{\"a\":2},[3]],\"after\":3}"));
+        assertEquals(List.of("env_t@1=0:1", "env_deep_h@2=0:2", "after@0=0:3"), fields);
+    }
+
+    @Test
+    public void malformedPayloads() {
+        assertTrue(parse("{}"));
+        assertFalse(parse("[1, 2]"));
+        assertFalse(parse("{\"a\":1"));
+        assertFalse(parse("{\"a\":1,}"));
+        assertFalse(parse("{\"a\" 1}"));
+        assertFalse(parse("{\"a\":tru}"));
+        assertFalse(parse("{\"a\":1} x"));
+        assertFalse(parse("{\"a\":\"\\q\"}"));
+        assertFalse(parse("{\"a\":" + "{\"a\":".repeat(20) + "1" + "}".repeat(21)));
+        fields.clear();
+        //what came before the error is still reported
+        assertFalse(parse("{\"a\":1,\"b\":}"));
+        assertEquals(List.of("a@0=0:1"), fields);
+    }
+
+    @Test
+    public void pumpWritesEveryField() {
+        StubSink sink = new StubSink();
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/+/+/json");
+        props.setProperty(Pump.JSON_TOPICS_KEY, "/+/+/json");
+        props.setProperty(Pump.DEADBAND_ABS_KEY, "temperature:1");
+        Pump pump = new Pump.Builder().fromProperties(props);
+        assertTrue(pump.resolveTopic("/room/a/json").isJson());
+        assertFalse(pump.resolveTopic("/room/a/lux").isJson());
+
+        List<TimeSeriesAndValue> out = new ArrayList<>();
+        String json = "{\"ts\":1700000000000,\"temperature\":21.5,\"presence\":true,\"state\":\"on\",\"env\":{\"co2\":400}}";
+        assertEquals(4, pump.convertFields(pump.resolveTopic("/room/a/json"), new TopicAndMessage("/room/a/json", new MqttMessage(json.getBytes()), 1), out::add));
+        List<String> series = new ArrayList<>();
+        for (var tsval : out) {
+            series.add(tsval.timeseries);
+            assertEquals(1700000000000L, tsval.timestamp);
+        }
+        assertEquals(List.of("root.devdb.room.a.json.temperature", "root.devdb.room.a.json.presence",
+            "root.devdb.room.a.json.state", "root.devdb.room.a.json.env_co2"), series);
+        assertEquals(true, out.get(1).getValue());
+
+        //fields get the deadband of their name
+        out.clear();
+        assertEquals(1, pump.convertFields(pump.resolveTopic("/room/a/json"), new TopicAndMessage("/room/a/json", new MqttMessage("{\"ts\":1700000001000,\"temperature\":21.7,\"presence\":false}".getBytes()), 5), out::add));
+        assertEquals("root.devdb.room.a.json.presence", out.get(0).timeseries);
+
+        //and the arrival time without a timestamp field
+        out.clear();
+        assertEquals(1, pump.convertFields(pump.resolveTopic("/room/a/json"), new TopicAndMessage("/room/a/json", new MqttMessage("{\"state\":\"off\"}".getBytes()), 5), out::add));
+        assertEquals(5L, out.get(0).timestamp);
+    }
+
+    @Test
+    public void oneAckForAllFields() {
+        List<Integer> acked = new ArrayList<>();
+        AckTracker tracker = new AckTracker(acked::add);
+        Pump pump = new Pump.Builder().topics("/+/+/json").jsonTopic("/+/+/json").build();
+        List<TimeSeriesAndValue> out = new ArrayList<>();
+        TopicAndMessage message = new TopicAndMessage("/room/a/json", new MqttMessage("{\"a\":1,\"b\":2}".getBytes()), 1, tracker.arrived(7));
+        assertEquals(2, pump.convertFields(pump.resolveTopic(message.topic), message, out::add));
+        out.get(0).ack.done();
+        assertTrue(acked.isEmpty());
+        out.get(1).ack.done();
+        assertEquals(List.of(7), acked);
+
+        //nothing to write, acked right away
+        message = new TopicAndMessage("/room/a/json", new MqttMessage("{\"a\":null}".getBytes()), 2, tracker.arrived(8));
+        assertEquals(0, pump.convertFields(pump.resolveTopic(message.topic), message, out::add));
+        assertEquals(List.of(7, 8), acked);
+    }
+}
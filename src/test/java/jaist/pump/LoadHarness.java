@@ -0,0 +1,469 @@
+package jaist.pump;
+
+import com.sun.management.ThreadMXBean;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.eclipse.paho.mqttv5.client.MqttClient;
+import org.eclipse.paho.mqttv5.client.MqttConnectionOptionsBuilder;
+import org.eclipse.paho.mqttv5.client.persist.MemoryPersistence;
+import org.eclipse.paho.mqttv5.common.MqttException;
+
+/**
+ * Drives a whole pump under load, offline: a {@link TestBroker} in process, a
+ * synthetic fleet of publishers over real MQTT connections to it, and a
+ * {@link LoadSink} in place of the database. Every value published is the
+ * time it was published at, so the sink can tell the end to end latency.
+ * Reports throughput, latency percentiles, the queue depths over time and
+ * the garbage collection and allocation of the run.
+ * <p>
+ * Run with
+ * <pre>
+ * mvn -P load test-compile exec:exec -Dload.args="rate=50000 seconds=60"
+ * </pre>
+ * the arguments being any of the setters below as name=value, plus
+ * config=file for the pump's properties.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class LoadHarness {
+
+    //how long the writers must be idle for a run to be over
+    private static final long QUIET_MS = 1000;
+
+    private Properties properties = new Properties();
+    private int publishers = 4;
+    private int devices = 1000;
+    private int measurements = 4;
+    private int rate = 10_000;
+    private int seconds = 30;
+    private int sampleMs = 1000;
+    private long latencyMicros = 1000;
+    private long jitterMicros = 0;
+    private double rejectRate = 0;
+    private double disconnectRate = 0;
+    //how long to wait for the last values to be written
+    private long drainMs = 30_000;
+
+    /**
+     * The pump's settings, MQTTTOPICS also deciding what the fleet publishes
+     * to. The broker and database settings are ignored.
+     */
+    public LoadHarness properties(Properties properties) {
+        this.properties = properties;
+        return this;
+    }
+
+    /**
+     * @param publishers MQTT connections the devices are spread over, each
+     * publishing from its own thread
+     */
+    public LoadHarness publishers(int publishers) {
+        this.publishers = publishers;
+        return this;
+    }
+
+    public LoadHarness devices(int devices) {
+        this.devices = devices;
+        return this;
+    }
+
+    /**
+     * @param measurements per device
+     */
+    public LoadHarness measurements(int measurements) {
+        this.measurements = measurements;
+        return this;
+    }
+
+    /**
+     * @param rate messages per second across the fleet, 0 for as fast as the
+     * publishers go
+     */
+    public LoadHarness rate(int rate) {
+        this.rate = rate;
+        return this;
+    }
+
+    public LoadHarness seconds(int seconds) {
+        this.seconds = seconds;
+        return this;
+    }
+
+    /**
+     * @param sampleMs how often the queue depths are sampled
+     */
+    public LoadHarness sampleMs(int sampleMs) {
+        this.sampleMs = sampleMs;
+        return this;
+    }
+
+    /**
+     * @param latencyMicros how long every database call takes
+     */
+    public LoadHarness latencyMicros(long latencyMicros) {
+        this.latencyMicros = latencyMicros;
+        return this;
+    }
+
+    public LoadHarness jitterMicros(long jitterMicros) {
+        this.jitterMicros = jitterMicros;
+        return this;
+    }
+
+    /**
+     * @param rejectRate share of the database calls rejected, see
+     * {@link LoadSink}
+     */
+    public LoadHarness rejectRate(double rejectRate) {
+        this.rejectRate = rejectRate;
+        return this;
+    }
+
+    /**
+     * @param disconnectRate share of the database calls failing as if it was
+     * unreachable, see {@link LoadSink}
+     */
+    public LoadHarness disconnectRate(double disconnectRate) {
+        this.disconnectRate = disconnectRate;
+        return this;
+    }
+
+    public LoadHarness drainMs(long drainMs) {
+        this.drainMs = drainMs;
+        return this;
+    }
+
+    /**
+     * A sample of the pump's state during the run.
+     */
+    public static class Sample {
+
+        public final long elapsedMs;
+        public final long published;
+        public final long written;
+        public final int queueDepth;
+        public final int writerQueueDepth;
+
+        Sample(long elapsedMs, long published, long written, int queueDepth, int writerQueueDepth) {
+            this.elapsedMs = elapsedMs;
+            this.published = published;
+            this.written = written;
+            this.queueDepth = queueDepth;
+            this.writerQueueDepth = writerQueueDepth;
+        }
+    }
+
+    /**
+     * What a run came to.
+     */
+    public static class Report {
+
+        public long published;
+        public long received;
+        public long written;
+        public long conversionFailures;
+        public long writeFailures;
+        public long dropped;
+        public long databaseCalls;
+        public long rejected;
+        public long disconnected;
+        public double publishSeconds;
+        public double totalSeconds;
+        //publish to write, in microseconds
+        public Histogram latency;
+        public final List<Sample> samples = new ArrayList<>();
+        public final Map<String, long[]> collections = new LinkedHashMap<>();
+        public long allocatedBytes;
+
+        public double getThroughput() {
+            return written / totalSeconds;
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder out = new StringBuilder();
+            out.append(String.format("published %d messages in %.1fs (%.0f/s), received %d, dropped %d%n",
+                published, publishSeconds, published / publishSeconds, received, dropped));
+            out.append(String.format("written %d values in %.1fs (%.0f/s) in %d calls, %d conversion failures, %d write failures%n",
+                written, totalSeconds, getThroughput(), databaseCalls, conversionFailures, writeFailures));
+            out.append(String.format("injected %d rejections, %d disconnects%n", rejected, disconnected));
+            long[] quantiles = latency.valuesAtQuantiles(0.5, 0.9, 0.99, 0.999);
+            out.append(String.format("latency ms: p50 %.2f p90 %.2f p99 %.2f p99.9 %.2f max %.2f mean %.2f%n",
+                quantiles[0] / 1e3, quantiles[1] / 1e3, quantiles[2] / 1e3, quantiles[3] / 1e3,
+                latency.getMax() / 1e3, latency.getMean() / 1e3));
+            out.append(String.format("%8s %12s %12s %8s %8s%n", "ms", "published", "written", "queue", "writers"));
+            for (Sample sample : samples) {
+                out.append(String.format("%8d %12d %12d %8d %8d%n",
+                    sample.elapsedMs, sample.published, sample.written, sample.queueDepth, sample.writerQueueDepth));
+            }
+            for (var collector : collections.entrySet()) {
+                out.append(String.format("gc %s: %d collections, %d ms%n", collector.getKey(), collector.getValue()[0], collector.getValue()[1]));
+            }
+            out.append(String.format("allocated %.1f MB, %.0f bytes per message%n",
+                allocatedBytes / 1e6, published == 0 ? 0 : (double) allocatedBytes / published));
+            return out.toString();
+        }
+    }
+
+    //a topic for the device and measurement out of a subscription pattern
+    static String topicOf(String pattern, int device, int measurement) {
+        String[] levels = pattern.split("/", -1);
+        StringBuilder topic = new StringBuilder();
+        for (int i = 0; i < levels.length; i++) {
+            if (i > 0) {
+                topic.append('/');
+            }
+            boolean last = i == levels.length - 1;
+            switch (levels[i]) {
+                case "#":
+                    topic.append("device").append(device).append("/m").append(measurement);
+                    break;
+                case "+":
+                    topic.append(last ? "m" + measurement : "device" + device);
+                    break;
+                default:
+                    topic.append(levels[i]);
+            }
+        }
+        return topic.toString();
+    }
+
+    /**
+     * Runs the fleet against a pump for the configured time, then waits for
+     * what was published to be written.
+     */
+    public Report run() throws Exception {
+        ThreadMXBean threads = (ThreadMXBean) ManagementFactory.getThreadMXBean();
+        Map<String, long[]> collectionsBefore = collections();
+        long allocatedBefore = allocated(threads);
+        long origin = System.nanoTime();
+        LoadSink sink = new LoadSink(origin, latencyMicros, jitterMicros, rejectRate, disconnectRate);
+        Report report = new Report();
+        LongAdder published = new LongAdder();
+        try (TestBroker broker = new TestBroker()) {
+            Pump pump = new Pump.Builder()
+                .configure(properties)
+                .mqttServerUri(broker.getUri())
+                .metricsHttpPort(0)
+                .build();
+            AtomicBoolean running = new AtomicBoolean(true);
+            Thread consumer = new Thread(() -> {
+                while (running.get()) {
+                    pump.handleIncomingMessages(100);
+                }
+            }, "load-pump");
+            List<MqttClient> clients = new ArrayList<>();
+            List<Thread> fleet = new ArrayList<>();
+            try {
+                pump.init(() -> sink);
+                consumer.start();
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (broker.getSubscriptionCount() < pump.getConnections().size() * pump.topics.length) {
+                    if (System.currentTimeMillis() > deadline) {
+                        throw new IllegalStateException("the pump did not subscribe");
+                    }
+                    Thread.sleep(10);
+                }
+                AtomicBoolean publishing = new AtomicBoolean(true);
+                for (int p = 0; p < publishers; p++) {
+                    MqttClient client = new MqttClient(broker.getUri(), "load-" + p, new MemoryPersistence());
+                    client.connect(new MqttConnectionOptionsBuilder().cleanStart(true).build());
+                    clients.add(client);
+                    List<String> topics = new ArrayList<>();
+                    for (int device = p; device < devices; device += publishers) {
+                        for (int m = 0; m < measurements; m++) {
+                            topics.add(topicOf(pump.topics[device % pump.topics.length], device, m));
+                        }
+                    }
+                    if (topics.isEmpty()) {
+                        continue;
+                    }
+                    long interval = rate > 0 ? 1_000_000_000L * publishers / rate : 0;
+                    Thread publisher = new Thread(() -> publish(client, topics, interval, origin, publishing, published), "load-publisher-" + p);
+                    fleet.add(publisher);
+                }
+                long start = System.nanoTime();
+                fleet.forEach(Thread::start);
+                long end = start + seconds * 1_000_000_000L;
+                long next = start;
+                while (System.nanoTime() < end) {
+                    next += sampleMs * 1_000_000L;
+                    LockSupport.parkNanos(Math.min(next, end) - System.nanoTime());
+                    report.samples.add(sample(start, published, sink, pump));
+                }
+                publishing.set(false);
+                for (Thread publisher : fleet) {
+                    publisher.join();
+                }
+                report.publishSeconds = (System.nanoTime() - start) / 1e9;
+                //done once all is received and the writers have gone quiet,
+                //values may be held back by batching or retries for a while
+                deadline = System.currentTimeMillis() + drainMs;
+                long settled = -1;
+                long quietSince = System.currentTimeMillis();
+                while (System.currentTimeMillis() < deadline) {
+                    long done = sink.getPoints() + pump.getMetrics().getWriteFailures();
+                    if (done != settled) {
+                        settled = done;
+                        quietSince = System.currentTimeMillis();
+                    }
+                    if (pump.getMetrics().getReceivedMessages() >= published.sum() && pump.getQueueDepth() == 0
+                        && pump.getWriterQueueDepth() == 0 && System.currentTimeMillis() - quietSince >= QUIET_MS) {
+                        break;
+                    }
+                    Thread.sleep(10);
+                }
+                report.totalSeconds = (System.nanoTime() - start) / 1e9;
+                report.samples.add(sample(start, published, sink, pump));
+            } finally {
+                for (MqttClient client : clients) {
+                    try {
+                        client.disconnect();
+                        client.close();
+                    } catch (MqttException ex) {
+                        //on the way out anyway
+                    }
+                }
+                running.set(false);
+                consumer.join();
+                pump.close();
+            }
+            report.published = published.sum();
+            report.received = pump.getMetrics().getReceivedMessages();
+            report.conversionFailures = pump.getMetrics().getConversionFailures();
+            report.writeFailures = pump.getMetrics().getWriteFailures();
+            report.dropped = pump.getDroppedMessages();
+        }
+        report.written = sink.getPoints();
+        report.databaseCalls = sink.getCalls();
+        report.rejected = sink.getRejected();
+        report.disconnected = sink.getDisconnected();
+        report.latency = sink.getLatency();
+        Map<String, long[]> collectionsAfter = collections();
+        for (var collector : collectionsAfter.entrySet()) {
+            long[] before = collectionsBefore.getOrDefault(collector.getKey(), new long[2]);
+            report.collections.put(collector.getKey(),
+                new long[]{collector.getValue()[0] - before[0], collector.getValue()[1] - before[1]});
+        }
+        report.allocatedBytes = allocated(threads) - allocatedBefore;
+        return report;
+    }
+
+    private static void publish(MqttClient client, List<String> topics, long intervalNanos, long origin,
+        AtomicBoolean publishing, LongAdder published) {
+        long next = System.nanoTime();
+        int i = 0;
+        while (publishing.get()) {
+            if (intervalNanos > 0) {
+                next += intervalNanos;
+                long wait = next - System.nanoTime();
+                if (wait > 0) {
+                    LockSupport.parkNanos(wait);
+                }
+            }
+            byte[] payload = Long.toString((System.nanoTime() - origin) / 1000).getBytes();
+            try {
+                client.publish(topics.get(i), payload, 0, false);
+                published.increment();
+            } catch (MqttException ex) {
+                Logger.getLogger(LoadHarness.class.getName()).log(Level.WARNING, "publisher stopped", ex);
+                return;
+            }
+            i = i + 1 == topics.size() ? 0 : i + 1;
+        }
+    }
+
+    private static Sample sample(long start, LongAdder published, LoadSink sink, Pump pump) {
+        return new Sample((System.nanoTime() - start) / 1_000_000, published.sum(), sink.getPoints(),
+            pump.getQueueDepth(), pump.getWriterQueueDepth());
+    }
+
+    private static Map<String, long[]> collections() {
+        Map<String, long[]> collections = new LinkedHashMap<>();
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans()) {
+            collections.put(collector.getName(), new long[]{collector.getCollectionCount(), collector.getCollectionTime()});
+        }
+        return collections;
+    }
+
+    //by the live threads, what threads that ended allocated is not counted
+    private static long allocated(ThreadMXBean threads) {
+        long bytes = 0;
+        for (long allocated : threads.getThreadAllocatedBytes(threads.getAllThreadIds())) {
+            if (allocated > 0) {
+                bytes += allocated;
+            }
+        }
+        return bytes;
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadHarness harness = new LoadHarness();
+        Properties properties = new Properties();
+        properties.setProperty(Pump.MQTTTOPICS_KEY, "sensors/+/+");
+        for (String arg : args) {
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                throw new IllegalArgumentException("expected name=value: " + arg);
+            }
+            String name = arg.substring(0, split);
+            String value = arg.substring(split + 1);
+            switch (name) {
+                case "config":
+                    try (InputStream in = new FileInputStream(value)) {
+                        properties.load(in);
+                    }
+                    break;
+                case "publishers":
+                    harness.publishers(Integer.parseInt(value));
+                    break;
+                case "devices":
+                    harness.devices(Integer.parseInt(value));
+                    break;
+                case "measurements":
+                    harness.measurements(Integer.parseInt(value));
+                    break;
+                case "rate":
+                    harness.rate(Integer.parseInt(value));
+                    break;
+                case "seconds":
+                    harness.seconds(Integer.parseInt(value));
+                    break;
+                case "sample-ms":
+                    harness.sampleMs(Integer.parseInt(value));
+                    break;
+                case "latency-us":
+                    harness.latencyMicros(Long.parseLong(value));
+                    break;
+                case "jitter-us":
+                    harness.jitterMicros(Long.parseLong(value));
+                    break;
+                case "reject-rate":
+                    harness.rejectRate(Double.parseDouble(value));
+                    break;
+                case "disconnect-rate":
+                    harness.disconnectRate(Double.parseDouble(value));
+                    break;
+                case "drain-ms":
+                    harness.drainMs(Long.parseLong(value));
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown setting: " + name);
+            }
+        }
+        Report report = harness.properties(properties).run();
+        System.out.print(report);
+    }
+}
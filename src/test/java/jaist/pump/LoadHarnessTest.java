@@ -0,0 +1,49 @@
+package jaist.pump;
+
+import java.util.Properties;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class LoadHarnessTest {
+
+    @Test
+    public void topicsFollowTheSubscriptionPatterns() {
+        assertEquals("sensors/device3/m1", LoadHarness.topicOf("sensors/+/+", 3, 1));
+        assertEquals("/site/device3/m0", LoadHarness.topicOf("/site/#", 3, 0));
+    }
+
+    //a short run to keep the harness working, not a measurement
+    @Test
+    public void aShortRunAccountsForEveryMessage() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "sensors/+/+, /site/#");
+        props.setProperty("WRITE-MODE", "TABLETS");
+        props.setProperty("WRITER-THREADS", "2");
+        props.setProperty("BATCH-LINGER-MS", "20");
+        LoadHarness.Report report = new LoadHarness()
+            .properties(props)
+            .publishers(2)
+            .devices(20)
+            .measurements(2)
+            .rate(2000)
+            .seconds(2)
+            .sampleMs(500)
+            .latencyMicros(200)
+            .rejectRate(0.01)
+            .drainMs(10_000)
+            .run();
+        assertTrue(report.published > 1000, report.toString());
+        assertEquals(report.published, report.received, report.toString());
+        //every value was either written or lost to an injected rejection
+        assertEquals(report.published, report.written + report.writeFailures, report.toString());
+        assertEquals(report.written, report.latency.getCount());
+        assertTrue(report.latency.valueAtQuantile(0.5) > 0);
+        assertTrue(report.samples.size() >= 4);
+        assertFalse(report.collections.isEmpty());
+        assertTrue(report.allocatedBytes > 0);
+    }
+}
@@ -0,0 +1,192 @@
+package jaist.pump;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+import org.apache.tsfile.write.record.Tablet;
+
+/**
+ * Stands in for an IoTDB session under load: every call takes the configured
+ * time and fails at the configured rates, and nothing is kept. The values
+ * written are taken to be the time they were published at, in microseconds
+ * since the origin, as {@link LoadHarness} publishes them, and their end to
+ * end latency is recorded.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class LoadSink implements RecordSink {
+
+    private final long origin;
+    private final long latencyNanos;
+    private final long jitterNanos;
+    private final double rejectRate;
+    private final double disconnectRate;
+
+    private final Histogram latency = new Histogram();
+    private final LongAdder calls = new LongAdder();
+    private final LongAdder points = new LongAdder();
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder disconnected = new LongAdder();
+
+    /**
+     * @param origin the {@link System#nanoTime()} the published times count
+     * from
+     * @param latencyMicros how long every call takes
+     * @param jitterMicros up to how much longer a call may take, at random
+     * @param rejectRate share of the inserts rejected as bad statements, which
+     * loses their values
+     * @param disconnectRate share of the inserts failing as if the database
+     * was unreachable, which the writers retry or spool
+     */
+    public LoadSink(long origin, long latencyMicros, long jitterMicros, double rejectRate, double disconnectRate) {
+        this.origin = origin;
+        this.latencyNanos = latencyMicros * 1000;
+        this.jitterNanos = jitterMicros * 1000;
+        this.rejectRate = rejectRate;
+        this.disconnectRate = disconnectRate;
+    }
+
+    //the round trip, and maybe a failure
+    private void call() throws IoTDBConnectionException, StatementExecutionException {
+        calls.increment();
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        long wait = latencyNanos + (jitterNanos > 0 ? random.nextLong(jitterNanos) : 0);
+        if (wait > 0) {
+            LockSupport.parkNanos(wait);
+        }
+        double roll = random.nextDouble();
+        if (roll < disconnectRate) {
+            disconnected.increment();
+            throw new IoTDBConnectionException("injected disconnect");
+        }
+        if (roll < disconnectRate + rejectRate) {
+            rejected.increment();
+            throw new StatementExecutionException("injected rejection");
+        }
+    }
+
+    private void written(Object value, long nowMicros) {
+        if (value instanceof Number) {
+            latency.record(nowMicros - ((Number) value).longValue());
+        }
+        points.increment();
+    }
+
+    private long nowMicros() {
+        return (System.nanoTime() - origin) / 1000;
+    }
+
+    @Override
+    public void insertRecords(List<String> deviceIds, List<Long> times, List<List<String>> measurementsList,
+        List<List<TSDataType>> typesList, List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+        call();
+        long now = nowMicros();
+        for (List<Object> row : valuesList) {
+            for (Object value : row) {
+                written(value, now);
+            }
+        }
+    }
+
+    @Override
+    public void insertRecordsOfOneDevice(String deviceId, List<Long> times, List<List<String>> measurementsList,
+        List<List<TSDataType>> typesList, List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+        insertRecords(null, times, measurementsList, typesList, valuesList);
+    }
+
+    @Override
+    public void insertTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException {
+        call();
+        writtenTablet(tablet, nowMicros());
+    }
+
+    @Override
+    public void insertAlignedTablet(Tablet tablet) throws IoTDBConnectionException, StatementExecutionException {
+        insertTablet(tablet);
+    }
+
+    @Override
+    public void insertTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException {
+        call();
+        long now = nowMicros();
+        for (Tablet tablet : tablets.values()) {
+            writtenTablet(tablet, now);
+        }
+    }
+
+    @Override
+    public void insertAlignedTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException, StatementExecutionException {
+        insertTablets(tablets);
+    }
+
+    //straight from the column arrays, boxing every cell would add to the
+    //allocations measured
+    private void writtenTablet(Tablet tablet, long now) {
+        Object[] columns = tablet.getValues();
+        for (int column = 0; column < columns.length; column++) {
+            for (int row = 0; row < tablet.getRowSize(); row++) {
+                if (tablet.isNull(row, column)) {
+                    continue;
+                }
+                if (columns[column] instanceof double[]) {
+                    latency.record(now - (long) ((double[]) columns[column])[row]);
+                } else if (columns[column] instanceof long[]) {
+                    latency.record(now - ((long[]) columns[column])[row]);
+                }
+                points.increment();
+            }
+        }
+    }
+
+    @Override
+    public void createTimeseries(List<String> paths, List<TSDataType> types, List<TSEncoding> encodings,
+        List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+        call();
+    }
+
+    @Override
+    public void createAlignedTimeseries(String deviceId, List<String> measurements, List<TSDataType> types,
+        List<TSEncoding> encodings, List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+        call();
+    }
+
+    @Override
+    public Map<String, TSDataType> fetchSeriesTypes(String pathPattern) {
+        return Map.of();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return publish to write latencies of the values written, in
+     * microseconds
+     */
+    public Histogram getLatency() {
+        return latency;
+    }
+
+    public long getCalls() {
+        return calls.sum();
+    }
+
+    public long getPoints() {
+        return points.sum();
+    }
+
+    public long getRejected() {
+        return rejected.sum();
+    }
+
+    public long getDisconnected() {
+        return disconnected.sum();
+    }
+}
@@ -0,0 +1,138 @@
+package jaist.pump;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.Map;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import org.apache.tsfile.enums.TSDataType;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class MetricsTest {
+
+    @Test
+    public void topicsAreCountedByPrefix() {
+        Metrics metrics = new Metrics(2);
+        assertEquals("home/kitchen", metrics.prefixOf("home/kitchen/temperature"));
+        assertEquals("home/kitchen", metrics.prefixOf("/home/kitchen/temperature"));
+        assertEquals("home/kitchen", metrics.prefixOf("home/kitchen"));
+        assertEquals("home", metrics.prefixOf("home"));
+
+        metrics.topicCounter("home/kitchen/temperature").increment();
+        metrics.topicCounter("home/kitchen/humidity").increment();
+        metrics.topicCounter("office/desk/lux").increment();
+        assertEquals(Map.of("home/kitchen", 2L, "office/desk", 1L), metrics.getTopicPrefixCounts());
+    }
+
+    @Test
+    public void prefixesAreBounded() {
+        Metrics metrics = new Metrics(1);
+        for (int i = 0; i < Metrics.MAX_TOPIC_PREFIXES + 10; i++) {
+            metrics.topicCounter("device" + i + "/value").increment();
+        }
+        Map<String, Long> counts = metrics.getTopicPrefixCounts();
+        assertEquals(Metrics.MAX_TOPIC_PREFIXES + 1, counts.size());
+        assertEquals(10L, counts.get(Metrics.OTHER_PREFIX));
+    }
+
+    @Test
+    public void prometheusFormat() {
+        Metrics metrics = new Metrics();
+        metrics.messageReceived();
+        metrics.conversion(1500, true);
+        metrics.written(10, 2000);
+        metrics.gauge("pump_queue_depth", "Messages waiting.", () -> 7);
+        metrics.topicCounter("a\"b/c/d").increment();
+
+        String text = metrics.toPrometheus();
+        assertTrue(text.contains("# TYPE pump_received_messages_total counter\npump_received_messages_total 1\n"));
+        assertTrue(text.contains("pump_written_values_total 10\n"));
+        assertTrue(text.contains("# TYPE pump_insert_seconds summary\n"));
+        assertTrue(text.contains("pump_insert_seconds_count 1\n"));
+        assertTrue(text.contains("pump_batch_size{quantile=\"0.5\"} 10.0\n"));
+        assertTrue(text.contains("pump_queue_depth 7\n"));
+        assertTrue(text.contains("pump_topic_messages_total{prefix=\"a\\\"b/c\"} 1\n"));
+        for (String line : text.split("\n")) {
+            assertTrue(line.startsWith("# ") || line.matches("[a-z_]+(\\{.*\\})? \\S+"), line);
+        }
+    }
+
+    @Test
+    public void servedOverHttp() throws IOException, InterruptedException {
+        Metrics metrics = new Metrics();
+        metrics.messageReceived();
+        try (MetricsServer server = new MetricsServer(metrics, 0)) {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpResponse<String> response = client.send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/metrics")).build(),
+                HttpResponse.BodyHandlers.ofString());
+            assertEquals(200, response.statusCode());
+            assertTrue(response.headers().firstValue("Content-Type").orElse("").startsWith("text/plain"));
+            assertTrue(response.body().contains("pump_received_messages_total 1"));
+
+            response = client.send(
+                HttpRequest.newBuilder(URI.create("http://localhost:" + server.getPort() + "/metrics"))
+                    .POST(HttpRequest.BodyPublishers.noBody()).build(),
+                HttpResponse.BodyHandlers.ofString());
+            assertEquals(405, response.statusCode());
+        }
+    }
+
+    @Test
+    public void exposedOverJmx() throws JMException {
+        Metrics metrics = new Metrics();
+        metrics.register();
+        try {
+            metrics.written(3, 100);
+            var server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(Metrics.OBJECT_NAME);
+            assertEquals(3L, server.getAttribute(name, "WrittenValues"));
+            assertEquals(3.0, server.getAttribute(name, "MeanBatchSize"));
+        } finally {
+            metrics.unregister();
+        }
+        assertFalse(ManagementFactory.getPlatformMBeanServer().isRegistered(new ObjectName(Metrics.OBJECT_NAME)));
+    }
+
+    @Test
+    public void pumpRecordsConversions() {
+        Pump pump = new Pump.Builder().topics("home/#").build();
+        pump.convertMessage(new TopicAndMessage("home/kitchen/todouble", new MqttMessage("21.5".getBytes())));
+        pump.convertMessage(new TopicAndMessage("home/kitchen/todouble", new MqttMessage("22".getBytes())));
+        Metrics metrics = pump.getMetrics();
+        assertEquals(2, metrics.getConvertedValues());
+        assertEquals(2, metrics.getConversionNanos().getCount());
+        assertEquals(Map.of("home/kitchen", 2L), metrics.getTopicPrefixCounts());
+        assertEquals(0L, metrics.getGauges().get("pump_queue_depth"));
+    }
+
+    @Test
+    public void writersRecordBatches() {
+        Metrics metrics = new Metrics();
+        StubSink sink = new StubSink();
+        BatchWriter writer = new BatchWriter(sink, 2, 60_000);
+        writer.setMetrics(metrics);
+        long now = System.currentTimeMillis();
+        writer.add(new TimeSeriesAndValue("root.devdb.a.lux", TSDataType.INT32, 1, now - 50));
+        writer.add(new TimeSeriesAndValue("root.devdb.a.lux", TSDataType.INT32, 2, now - 50));
+        assertEquals(2, metrics.getWrittenValues());
+        assertEquals(1, metrics.getBatchSizes().getCount());
+        assertEquals(2, metrics.getEnqueueToWriteMillis().getCount());
+        assertTrue(metrics.getEnqueueToWriteMillis().valueAtQuantile(0.5) >= 50);
+
+        sink.down = true;
+        writer.add(new TimeSeriesAndValue("root.devdb.a.lux", TSDataType.INT32, 3, now));
+        writer.flush();
+        assertEquals(1, metrics.getWriteFailures());
+    }
+}
@@ -0,0 +1,103 @@
+package jaist.pump;
+
+import java.util.List;
+import java.util.Set;
+import java.util.function.BooleanSupplier;
+import org.eclipse.paho.mqttv5.common.packet.MqttProperties;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class MqttConnectionTest {
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    @Test
+    public void topicsArePartitioned() {
+        Pump pump = new Pump.Builder().topics("a/#, b/#, c/#, d/#").mqttConnections(3).build();
+        assertEquals(List.of(List.of("a/#", "d/#"), List.of("b/#"), List.of("c/#")), pump.partitionFilters());
+
+        pump = new Pump.Builder().topics("a/#, b/#").mqttConnections(3).build();
+        assertEquals(List.of(List.of("a/#"), List.of("b/#")), pump.partitionFilters());
+
+        pump = new Pump.Builder().topics("a/#, b/#").mqttConnections(2).mqttShareGroup("pumps").build();
+        List<String> shared = List.of("$share/pumps/a/#", "$share/pumps/b/#");
+        assertEquals(List.of(shared, shared), pump.partitionFilters());
+
+        assertThrows(IllegalArgumentException.class, () -> new Pump.Builder().topics("a/#").mqttConnections(0).build());
+    }
+
+    @Test
+    public void connectionsFeedOnePipeline() throws Exception {
+        try (TestBroker broker = new TestBroker()) {
+            Pump pump = new Pump.Builder()
+                .mqttServerUri(broker.getUri())
+                .mqttClientId("pump")
+                .topics("a/#, b/#, c/#")
+                .mqttConnections(3)
+                .build();
+            try {
+                pump.init(StubSink::new);
+                waitFor(() -> broker.getSubscriptionCount() == 3);
+                assertEquals(List.of("pump-0", "pump-1", "pump-2"),
+                    pump.getConnections().stream().map(MqttConnection::getClientId).toList());
+                assertEquals(List.of("b/#"), broker.getSubscriptions().get("pump-1"));
+
+                for (int i = 0; i < 30; i++) {
+                    broker.publish("abc".charAt(i % 3) + "/device/temperature", "20".getBytes(), 0);
+                }
+                waitFor(() -> pump.getQueueDepth() == 30);
+                for (MqttConnection connection : pump.getConnections()) {
+                    assertEquals(10, connection.getReceived());
+                }
+                assertEquals(30, pump.getMetrics().getReceivedMessages());
+                assertEquals(1L, pump.getMetrics().getGauges().get("pump_mqtt_connected{connection=\"2\"}"));
+
+                //a stray AUTH packet is logged and ignored
+                MqttProperties auth = new MqttProperties();
+                auth.setAuthenticationMethod("SCRAM-SHA-1");
+                pump.getConnections().get(0).authPacketArrived(0x18, auth);
+                assertEquals(1L, pump.getMetrics().getGauges().get("pump_mqtt_connected{connection=\"0\"}"));
+            } finally {
+                pump.close();
+            }
+        }
+    }
+
+    @Test
+    public void connectionsReconnectOnTheirOwn() throws Exception {
+        try (TestBroker broker = new TestBroker()) {
+            Pump pump = new Pump.Builder()
+                .mqttServerUri(broker.getUri())
+                .mqttClientId("pump")
+                .topics("a/#, b/#")
+                .mqttConnections(2)
+                .build();
+            try {
+                pump.init(StubSink::new);
+                waitFor(() -> broker.getSubscriptionCount() == 2);
+                MqttConnection dropped = pump.getConnections().get(0);
+                MqttConnection kept = pump.getConnections().get(1);
+
+                broker.disconnect(dropped.getClientId());
+                waitFor(() -> dropped.getConnects() == 2 && dropped.getSubscribed().equals(Set.of("a/#")));
+                assertTrue(dropped.isConnected());
+                assertEquals(1, kept.getConnects());
+
+                broker.publish("a/device/temperature", "20".getBytes(), 0);
+                waitFor(() -> dropped.getReceived() == 1);
+            } finally {
+                pump.close();
+            }
+        }
+    }
+}
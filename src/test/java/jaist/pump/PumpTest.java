@@ -6,6 +6,8 @@ import java.io.IOException;
 import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import org.apache.tsfile.enums.TSDataType;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
 import static org.junit.jupiter.api.Assertions.*;
 import org.junit.jupiter.api.Test;
 
@@ -101,6 +103,48 @@ public class PumpTest {
         }
 
         assertEquals("client_id", pump.mqttClientId);
+        assertEquals(1000, pump.batchSize);
+        assertEquals(200, pump.batchLingerMs);
+    }
+
+    @Test
+    public void batchSettingsFallBackToDefaults() {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/a/b");
+        props.setProperty("BATCH-SIZE", "not a number");
+        Pump pump = new Pump.Builder().fromProperties(props);
+        assertEquals(1000, pump.batchSize);
+        assertEquals(200, pump.batchLingerMs);
+    }
+
+    @Test
+    public void queueOverflowPolicyIsConfigurable() {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/a/b");
+        props.setProperty("QUEUE-CAPACITY", "2");
+        props.setProperty("QUEUE-OVERFLOW", "drop-newest");
+        Pump pump = new Pump.Builder().fromProperties(props);
+
+        pump.postInQue(new TopicAndMessage("/a/b", new MqttMessage("1".getBytes())));
+        pump.postInQue(new TopicAndMessage("/a/b", new MqttMessage("2".getBytes())));
+        pump.postInQue(new TopicAndMessage("/a/b", new MqttMessage("3".getBytes())));
+        assertEquals(1, pump.getDroppedMessages());
+        assertEquals(2, pump.getQueueDepth());
+        assertEquals("1", pump.getMessage(0).message.toString());
+    }
+
+    @Test
+    public void writeModeSelectsTheValueWriter() {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/a/b");
+        assertEquals(BatchWriter.class, new Pump.Builder().fromProperties(props).newValueWriter(new StubSink()).getClass());
+
+        props.setProperty("WRITE-MODE", "tablets");
+        props.setProperty("TABLET-ALIGNED", "true");
+        Pump pump = new Pump.Builder().fromProperties(props);
+        assertEquals(Pump.WriteMode.TABLETS, pump.writeMode);
+        assertTrue(pump.tabletAligned);
+        assertEquals(TabletWriter.class, pump.newValueWriter(new StubSink()).getClass());
     }
 
     @Test
@@ -117,6 +161,78 @@ public class PumpTest {
         assertEquals("root.devdb.nostartingslash", uninit_pump.convertTopicToTimeseries("nostartingslash"));
     }
 
+    @Test
+    public void resolveTopicSplitsAndCaches() {
+        TopicRoute route = uninit_pump.resolveTopic("/room/1/PM2.5");
+        assertEquals("root.devdb.room.1.PM2_5", route.timeseries);
+        assertEquals("root.devdb.room.1", route.device);
+        assertEquals("PM2_5", route.measurement);
+        assertSame(route, uninit_pump.resolveTopic("/room/1/PM2.5"));
+    }
+
+    @Test
+    public void convertMessageParsesPayloadBytes() throws IOException {
+        Properties props = new Properties();
+        props.load(new FileInputStream("config_test.properties"));
+        Pump pump = new Pump.Builder().fromProperties(props);
+
+        TimeSeriesAndValue tsval = pump.convertMessage(new TopicAndMessage("/room/1/temperature", new MqttMessage("21.5".getBytes()), 7));
+        assertEquals(TSDataType.FLOAT, tsval.getDataType());
+        assertEquals(21.5f, tsval.getFloat());
+        assertEquals("root.devdb.room.1", tsval.getPrefix());
+        assertEquals(7, tsval.timestamp);
+
+        tsval = pump.convertMessage(new TopicAndMessage("/room/1/presence", new MqttMessage("yes".getBytes())));
+        assertEquals(TSDataType.BOOLEAN, tsval.getDataType());
+        assertEquals(true, tsval.getValue());
+
+        assertNull(pump.convertMessage(new TopicAndMessage("/room/1/presence", new MqttMessage("maybe".getBytes()))));
+    }
+
+    @Test
+    public void doubleOrTextSeriesLearnTheirType() {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/+/+/+");
+        Pump pump = new Pump.Builder().fromProperties(props);
+
+        TimeSeriesAndValue tsval = pump.convertMessage(new TopicAndMessage("/room/1/status", new MqttMessage("open".getBytes())));
+        assertEquals(TSDataType.TEXT, tsval.getDataType());
+        //a number on a text series stays text
+        tsval = pump.convertMessage(new TopicAndMessage("/room/1/status", new MqttMessage("12".getBytes())));
+        assertEquals(TSDataType.TEXT, tsval.getDataType());
+        assertEquals("12", tsval.getValue().toString());
+
+        tsval = pump.convertMessage(new TopicAndMessage("/room/1/level", new MqttMessage("12".getBytes())));
+        assertEquals(TSDataType.DOUBLE, tsval.getDataType());
+        //text on a numeric series is a conflict and gets dropped
+        assertNull(pump.convertMessage(new TopicAndMessage("/room/1/level", new MqttMessage("high".getBytes()))));
+        assertEquals(1, pump.getSeriesTypes().getConflicts());
+        assertEquals(TSDataType.DOUBLE, pump.getSeriesTypes().get("root.devdb.room.1.level"));
+    }
+
+    @Test
+    public void closeStopsTheMainLoopBeforeTheWriters() throws Exception {
+        StubSink sink = new StubSink();
+        try (TestBroker broker = new TestBroker()) {
+            Properties props = new Properties();
+            props.setProperty("MQTTTOPICS", "/+/+/lux");
+            props.setProperty("MQTTSERVER", broker.getUri());
+            props.setProperty("MQTTCLIENTID", "pump");
+            props.setProperty(Pump.AGGREGATE_KEY, "/+/+/lux:60000");
+            Pump pump = new Pump.Builder().fromProperties(props);
+            pump.init(() -> sink);
+            Thread loop = new Thread(pump::mainloop);
+            loop.start();
+            long deadline = System.currentTimeMillis() + 10_000;
+            while (loop.getState() != Thread.State.TIMED_WAITING && loop.getState() != Thread.State.WAITING) {
+                assertTrue(System.currentTimeMillis() < deadline, "timed out");
+                Thread.sleep(10);
+            }
+            pump.close();
+            assertFalse(loop.isAlive());
+        }
+    }
+
     @Test
     public void NoTopicConfigurationThrows() {
         try {
@@ -0,0 +1,96 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class RingBufferTest {
+
+    @Test
+    public void capacityIsRoundedToPowerOfTwo() {
+        assertEquals(8, new RingBuffer<Integer>(5, RingBuffer.OverflowPolicy.BLOCK).capacity());
+        assertEquals(8, new RingBuffer<Integer>(8, RingBuffer.OverflowPolicy.BLOCK).capacity());
+    }
+
+    @Test
+    public void isFifoAcrossLaps() {
+        RingBuffer<Integer> ring = new RingBuffer<>(4, RingBuffer.OverflowPolicy.BLOCK);
+        for (int i = 0; i < 10; i++) {
+            assertTrue(ring.offer(i));
+            assertTrue(ring.offer(i + 100));
+            assertEquals(i, ring.tryPoll());
+            assertEquals(i + 100, ring.tryPoll());
+        }
+        assertNull(ring.tryPoll());
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void dropNewestKeepsQueuedElements() {
+        RingBuffer<Integer> ring = new RingBuffer<>(2, RingBuffer.OverflowPolicy.DROP_NEWEST);
+        assertTrue(ring.put(1));
+        assertTrue(ring.put(2));
+        assertFalse(ring.put(3));
+        assertEquals(1, ring.getDropped());
+        assertEquals(1, ring.tryPoll());
+        assertEquals(2, ring.tryPoll());
+    }
+
+    @Test
+    public void dropOldestEvictsHead() {
+        RingBuffer<Integer> ring = new RingBuffer<>(2, RingBuffer.OverflowPolicy.DROP_OLDEST);
+        ring.put(1);
+        ring.put(2);
+        assertFalse(ring.put(3));
+        assertEquals(1, ring.getDropped());
+        assertEquals(2, ring.tryPoll());
+        assertEquals(3, ring.tryPoll());
+    }
+
+    @Test
+    public void pollTimesOutWhenEmpty() {
+        RingBuffer<Integer> ring = new RingBuffer<>(2, RingBuffer.OverflowPolicy.BLOCK);
+        long start = System.nanoTime();
+        assertNull(ring.poll(20));
+        assertTrue(System.nanoTime() - start >= 15_000_000L);
+    }
+
+    @Test
+    public void blockingProducersLoseNothing() throws InterruptedException {
+        RingBuffer<Integer> ring = new RingBuffer<>(16, RingBuffer.OverflowPolicy.BLOCK);
+        int producers = 4;
+        int perProducer = 10_000;
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int base = p * perProducer;
+            Thread t = new Thread(() -> {
+                for (int i = 0; i < perProducer; i++) {
+                    ring.put(base + i);
+                }
+            });
+            threads.add(t);
+            t.start();
+        }
+
+        int[] last = new int[producers];
+        java.util.Arrays.fill(last, -1);
+        for (int received = 0; received < producers * perProducer; received++) {
+            Integer value = ring.poll(5000);
+            assertNotNull(value);
+            //each producer's elements must come out in the order they went in
+            int producer = value / perProducer;
+            assertTrue(value % perProducer > last[producer]);
+            last[producer] = value % perProducer;
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(0, ring.getDropped());
+        assertNull(ring.tryPoll());
+    }
+}
@@ -0,0 +1,99 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class RoutingTableTest {
+
+    private final List<String> captures = new ArrayList<>();
+
+    private String match(RoutingTable table, String topic) {
+        RoutingRule rule = table.match(topic, captures);
+        return rule == null ? null : rule.name;
+    }
+
+    @Test
+    public void mostSpecificFilterWins() {
+        RoutingTable table = new RoutingTable(List.of(
+            new RoutingRule("all", "#"),
+            new RoutingRule("plant", "plant/#"),
+            new RoutingRule("any", "plant/+/+/temp"),
+            new RoutingRule("line1", "plant/line1/+/temp"),
+            new RoutingRule("exact", "plant/line1/m7/temp")));
+        assertEquals(5, table.size());
+        assertEquals("exact", match(table, "plant/line1/m7/temp"));
+        assertEquals("line1", match(table, "plant/line1/m8/temp"));
+        assertEquals(List.of("m8"), captures);
+        assertEquals("any", match(table, "plant/line2/m8/temp"));
+        assertEquals(List.of("line2", "m8"), captures);
+        //a dead end below line1 falls back to the wildcards
+        assertEquals("plant", match(table, "plant/line1/m8/humidity"));
+        assertEquals(List.of("line1.m8.humidity"), captures);
+        assertEquals("plant", match(table, "plant"));
+        assertEquals(List.of(""), captures);
+        assertEquals("all", match(table, "other/topic"));
+
+        assertNull(match(new RoutingTable(List.of(new RoutingRule("a", "a/+"))), "a/b/c"));
+        assertThrows(IllegalArgumentException.class, () -> new RoutingTable(List.of(new RoutingRule("a", "x/+"), new RoutingRule("b", "x/+"))));
+    }
+
+    @Test
+    public void seriesTemplates() {
+        RoutingRule rule = new RoutingRule("r", "plant/+/+/#").series("root.plant.{1}.m_{2}.{#}");
+        RoutingTable table = new RoutingTable(List.of(rule));
+        table.match("plant/line.1/7/temp/raw", captures);
+        assertEquals("root.plant.line_1.m_7.temp.raw", rule.expand(captures));
+        table.match("plant/line1/7", captures);
+        assertEquals("root.plant.line1.m_7", rule.expand(captures));
+
+        assertThrows(IllegalArgumentException.class, () -> new RoutingRule("r", "a/+").series("root.{2}.x"));
+        assertThrows(IllegalArgumentException.class, () -> new RoutingRule("r", "a/+").series("root.{#}.x"));
+        assertThrows(IllegalArgumentException.class, () -> new RoutingRule("r", "a/+").series("root.{1"));
+        assertThrows(IllegalArgumentException.class, () -> new RoutingRule("r", "a/+").series("{1}"));
+        assertThrows(IllegalArgumentException.class, () -> new RoutingRule("r", "a/#/b"));
+        assertThrows(IllegalArgumentException.class, () -> new RoutingRule("r", "a/b+"));
+    }
+
+    @Test
+    public void pumpRoutesByRule() {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "plant/#");
+        props.setProperty("CONVERT-INT", "temp");
+        props.setProperty("ROUTE.temps.TOPIC", "plant/+/+/temp");
+        props.setProperty("ROUTE.temps.SERIES", "root.plant.{1}.{2}.temperature");
+        props.setProperty("ROUTE.temps.CONVERT", "float");
+        props.setProperty("ROUTE.temps.DEADBAND-ABS", "0.5");
+        props.setProperty("ROUTE.temps.AGGREGATE", "60000");
+        props.setProperty("ROUTE.env.TOPIC", "plant/+/env");
+        props.setProperty("ROUTE.env.PAYLOAD", "json");
+        props.setProperty("ROUTE.broken.TOPIC", "plant/#/x");
+        props.setProperty("ROUTE.nameless.SERIES", "root.x.y");
+        Pump pump = new Pump.Builder().fromProperties(props);
+
+        TopicRoute temp = pump.resolveTopic("plant/l1/m7/temp");
+        assertEquals("root.plant.l1.m7.temperature", temp.timeseries);
+        assertEquals("temps", temp.getRule().name);
+        assertTrue(temp.configured.parse("21.5".getBytes(), 0, 4, new TimeSeriesAndValue(temp, 0)));
+        assertEquals(0.5, temp.getDeadband().getAbsolute());
+        assertEquals(60_000, temp.getAggregateWindow());
+
+        TopicRoute env = pump.resolveTopic("plant/l1/env");
+        assertTrue(env.isJson());
+        assertEquals("root.devdb.plant.l1.env", env.timeseries);
+
+        //no rule, the suffix decides as before
+        TopicRoute other = pump.resolveTopic("plant/l1/m7/x/temp");
+        assertNull(other.getRule());
+        assertEquals("root.devdb.plant.l1.m7.x.temp", other.timeseries);
+        assertSame(pump.getConvertor("temp"), other.configured);
+        assertNotSame(other.configured, temp.configured);
+        assertNull(other.getDeadband());
+    }
+}
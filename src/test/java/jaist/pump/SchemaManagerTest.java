@@ -0,0 +1,113 @@
+package jaist.pump;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SchemaManagerTest {
+
+    @Test
+    public void registeredSeriesAreCreatedInOneRoundTrip() throws Exception {
+        SchemaManager schema = new SchemaManager(Map.of(TSDataType.DOUBLE, TSEncoding.CHIMP), Map.of(), false);
+        schema.seed(List.of("root.a.b.existing"));
+        RoutingRule rule = new RoutingRule("rle", "a/#").encoding(TSEncoding.RLE).compression(CompressionType.ZSTD);
+        schema.register("root.a.b.existing", TSDataType.DOUBLE, null);
+        schema.register("root.a.b.temperature", TSDataType.FLOAT, null);
+        schema.register("root.a.b.level", TSDataType.DOUBLE, null);
+        schema.register("root.a.b.count", TSDataType.INT32, rule);
+        //registering again changes nothing
+        schema.register("root.a.b.level", TSDataType.DOUBLE, null);
+        //the rule's encoding does not fit text, the type's default applies
+        schema.register("root.a.b.status", TSDataType.TEXT, rule);
+        assertEquals(4, schema.getPending());
+
+        StubSink sink = new StubSink();
+        schema.createPending(sink);
+        assertEquals(List.of("createTimeseries"), sink.calls);
+        assertEquals(Map.of("root.a.b.temperature", TSEncoding.GORILLA, "root.a.b.level", TSEncoding.CHIMP,
+            "root.a.b.count", TSEncoding.RLE, "root.a.b.status", TSEncoding.PLAIN), sink.created);
+        assertEquals(4, schema.getCreated());
+        assertEquals(0, schema.getPending());
+
+        schema.createPending(sink);
+        assertEquals(1, sink.calls.size());
+        assertThrows(IllegalArgumentException.class, () -> new SchemaManager(Map.of(TSDataType.TEXT, TSEncoding.GORILLA), Map.of(), false));
+    }
+
+    @Test
+    public void seriesCreatedElsewhereAreSkipped() throws Exception {
+        SchemaManager schema = new SchemaManager(Map.of(), Map.of(), false);
+        StubSink sink = new StubSink();
+        //e.g. by another pump since startup
+        sink.createTimeseries(List.of("root.a.b.c"), List.of(TSDataType.DOUBLE), List.of(TSEncoding.PLAIN), List.of(CompressionType.LZ4));
+        schema.register("root.a.b.c", TSDataType.DOUBLE, null);
+        schema.register("root.a.b.d", TSDataType.DOUBLE, null);
+        schema.createPending(sink);
+        assertEquals(TSEncoding.PLAIN, sink.created.get("root.a.b.c"));
+        assertEquals(TSEncoding.GORILLA, sink.created.get("root.a.b.d"));
+        assertEquals(1, schema.getCreated());
+        assertEquals(1, schema.getFailed());
+        assertEquals(0, schema.getPending());
+    }
+
+    @Test
+    public void seriesStayPendingWhileTheDatabaseIsDown() throws Exception {
+        SchemaManager schema = new SchemaManager(Map.of(), Map.of(), true);
+        schema.register("root.a.b.c", TSDataType.DOUBLE, null);
+        schema.register("root.a.x.c", TSDataType.DOUBLE, null);
+        schema.register("root.a.b.d", TSDataType.BOOLEAN, null);
+        StubSink sink = new StubSink();
+        sink.down = true;
+        assertThrows(IoTDBConnectionException.class, () -> schema.createPending(sink));
+        assertEquals(3, schema.getPending());
+
+        sink.down = false;
+        schema.createPending(sink);
+        //aligned series are created per device
+        assertEquals(List.of("createAlignedTimeseries", "createAlignedTimeseries"), sink.calls);
+        assertEquals(List.of("root.a.b.c", "root.a.b.d", "root.a.x.c"), List.copyOf(sink.created.keySet()));
+        assertEquals(0, schema.getPending());
+    }
+
+    @Test
+    public void settledRoutesRegisterTheirSeries() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/+/+/+");
+        props.setProperty("CONVERT-INT", "count");
+        props.setProperty("AGGREGATE", "/agg/#:1000");
+        props.setProperty("SCHEMA-ENCODING", "INT:RLE, TEXT:GORILLA");
+        props.setProperty("SCHEMA-COMPRESSION", "SNAPPY, TEXT:ZSTD");
+        props.setProperty("ROUTE.lux.TOPIC", "/+/+/lux");
+        props.setProperty("ROUTE.lux.ENCODING", "CHIMP");
+        Pump pump = new Pump.Builder().fromProperties(props);
+
+        pump.convertMessage(new TopicAndMessage("/room/1/count", new MqttMessage("3".getBytes())));
+        pump.convertMessage(new TopicAndMessage("/room/1/count", new MqttMessage("4".getBytes())));
+        pump.convertMessage(new TopicAndMessage("/room/1/lux", new MqttMessage("120.5".getBytes())));
+        pump.convertMessage(new TopicAndMessage("/agg/1/level", new MqttMessage("120.5".getBytes())));
+        assertEquals(8, pump.getSchema().getPending());
+
+        StubSink sink = new StubSink();
+        pump.getSchema().createPending(sink);
+        assertEquals(TSEncoding.RLE, sink.created.get("root.devdb.room.1.count"));
+        assertEquals(TSEncoding.CHIMP, sink.created.get("root.devdb.room.1.lux"));
+        assertEquals(TSEncoding.GORILLA, sink.created.get("root.devdb.agg.1.level"));
+        assertEquals(TSEncoding.GORILLA, sink.created.get("root.devdb.agg.1.level_mean"));
+        //the window counts are ints
+        assertEquals(TSEncoding.RLE, sink.created.get("root.devdb.agg.1.level_count"));
+
+        props.setProperty("SCHEMA-CREATE", "false");
+        assertNull(new Pump.Builder().fromProperties(props).getSchema());
+    }
+}
@@ -0,0 +1,40 @@
+package jaist.pump;
+
+import java.util.Map;
+import org.apache.tsfile.enums.TSDataType;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SeriesTypeRegistryTest {
+
+    @Test
+    public void firstTypeWins() {
+        SeriesTypeRegistry registry = new SeriesTypeRegistry();
+        assertNull(registry.get("root.a.b"));
+        assertEquals(TSDataType.TEXT, registry.learn("root.a.b", TSDataType.TEXT));
+        assertEquals(TSDataType.TEXT, registry.learn("root.a.b", TSDataType.DOUBLE));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void seededTypesOverrideLearnedOnes() {
+        SeriesTypeRegistry registry = new SeriesTypeRegistry();
+        registry.learn("root.a.b", TSDataType.TEXT);
+        registry.seed(Map.of("root.a.b", TSDataType.DOUBLE, "root.a.c", TSDataType.FLOAT));
+        assertEquals(TSDataType.DOUBLE, registry.get("root.a.b"));
+        assertEquals(TSDataType.FLOAT, registry.learn("root.a.c", TSDataType.DOUBLE));
+    }
+
+    @Test
+    public void doubleOrTextSpecializes() {
+        DataConvertor conv = DataConvertor.DoubleOrText();
+        assertEquals(DataConvertor.AsDouble.class, conv.specializeFor(TSDataType.DOUBLE).getClass());
+        assertEquals(DataConvertor.AsText.class, conv.specializeFor(TSDataType.TEXT).getClass());
+        DataConvertor fixed = DataConvertor.Float();
+        assertSame(fixed, fixed.specializeFor(TSDataType.DOUBLE));
+    }
+}
@@ -0,0 +1,107 @@
+package jaist.pump;
+
+import java.util.function.BooleanSupplier;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SharedSubscriptionTest {
+
+    private static Pump pump(TestBroker broker, String group) {
+        return new Pump.Builder()
+            .mqttServerUri("tcp://127.0.0.1")
+            .mqttPort(broker.getPort())
+            .mqttClientId("pump-{uuid}")
+            .mqttShareGroup(group)
+            .topics("home/#")
+            .build();
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.currentTimeMillis() < deadline, "timed out");
+            Thread.sleep(10);
+        }
+    }
+
+    private static void publish(TestBroker broker, int messages) throws Exception {
+        for (int i = 0; i < messages; i++) {
+            broker.publish("home/room" + i % 5 + "/temperature", "21.5".getBytes(), 0);
+        }
+    }
+
+    @Test
+    public void groupMembersSplitTheMessages() throws Exception {
+        try (TestBroker broker = new TestBroker()) {
+            Pump first = pump(broker, "pumps");
+            Pump second = pump(broker, "pumps");
+            try {
+                first.init(StubSink::new);
+                second.init(StubSink::new);
+                waitFor(() -> broker.getSubscriptionCount() == 2);
+                assertTrue(broker.getSubscriptions().get(first.mqttClientId).contains("$share/pumps/home/#"));
+
+                publish(broker, 100);
+                waitFor(() -> first.getMetrics().getReceivedMessages() + second.getMetrics().getReceivedMessages() == 100);
+                assertEquals(50, first.getMetrics().getReceivedMessages());
+                assertEquals(50, second.getMetrics().getReceivedMessages());
+                assertEquals(50, first.getQueueDepth());
+            } finally {
+                first.close();
+                second.close();
+            }
+        }
+    }
+
+    @Test
+    public void withoutGroupEveryPumpGetsEverything() throws Exception {
+        try (TestBroker broker = new TestBroker()) {
+            Pump first = pump(broker, null);
+            Pump second = pump(broker, null);
+            try {
+                first.init(StubSink::new);
+                second.init(StubSink::new);
+                waitFor(() -> broker.getSubscriptionCount() == 2);
+
+                publish(broker, 20);
+                waitFor(() -> first.getMetrics().getReceivedMessages() == 20 && second.getMetrics().getReceivedMessages() == 20);
+            } finally {
+                first.close();
+                second.close();
+            }
+        }
+    }
+
+    @Test
+    public void clientIdsAndFilters() {
+        Pump pump = new Pump.Builder().topics("/+/+/CO2").mqttClientId("pump").mqttShareGroup("pumps").build();
+        assertEquals("$share/pumps//+/+/CO2", pump.subscriptionFilter(pump.topics[0]));
+        assertTrue(pump.mqttClientId.startsWith("pump-"));
+        assertTrue(pump.mqttClientId.endsWith("-" + ProcessHandle.current().pid()));
+        assertEquals("tcp://localhost:1883", pump.mqttServerAddress());
+
+        pump = new Pump.Builder().topics("/+/+/CO2").mqttClientId("pump").mqttServerUri("ssl://broker:8883").build();
+        assertEquals("/+/+/CO2", pump.subscriptionFilter(pump.topics[0]));
+        assertEquals("pump", pump.mqttClientId);
+        assertEquals("ssl://broker:8883", pump.mqttServerAddress());
+
+        String id = Pump.expandClientId("a-{uuid}-{uuid}");
+        assertEquals(19, id.length());
+        assertNotEquals(Pump.expandClientId("a-{uuid}"), Pump.expandClientId("a-{uuid}"));
+
+        assertThrows(IllegalArgumentException.class, () -> new Pump.Builder().topics("a").mqttShareGroup("a/b").build());
+    }
+
+    @Test
+    public void matchesTopicFilters() {
+        assertTrue(TestBroker.matches("home/#", "home/a/b"));
+        assertTrue(TestBroker.matches("home/+/b", "home/a/b"));
+        assertTrue(TestBroker.matches("/+/+/CO2", "/a/b/CO2"));
+        assertFalse(TestBroker.matches("home/+", "home/a/b"));
+        assertFalse(TestBroker.matches("home/a/b", "home/a"));
+    }
+}
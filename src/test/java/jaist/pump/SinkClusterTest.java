@@ -0,0 +1,121 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.tsfile.enums.TSDataType;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SinkClusterTest {
+
+    private final List<StubSink> endpoints = new ArrayList<>();
+
+    //a cluster of stub endpoints, which refuse connections while down
+    private SinkCluster cluster(int nodes, SinkCluster.Spread spread) {
+        List<String> names = new ArrayList<>();
+        List<SinkFactory> factories = new ArrayList<>();
+        for (int i = 0; i < nodes; i++) {
+            StubSink endpoint = new StubSink();
+            endpoints.add(endpoint);
+            names.add("node" + i + ":6667");
+            factories.add(() -> {
+                if (endpoint.down) {
+                    throw new IoTDBConnectionException("connection refused");
+                }
+                return endpoint;
+            });
+        }
+        return new SinkCluster(names, factories, spread);
+    }
+
+    private static void write(RecordSink sink, String device) throws Exception {
+        sink.insertRecordsOfOneDevice(device, List.of(1L), List.of(List.of("temperature")),
+            List.of(List.of(TSDataType.DOUBLE)), List.of(List.of(21.5)));
+    }
+
+    @Test
+    public void callsGoRoundTheNodes() throws Exception {
+        SinkCluster cluster = cluster(3, SinkCluster.Spread.ROUND_ROBIN);
+        RecordSink first = cluster.open();
+        RecordSink second = cluster.open();
+        for (int i = 0; i < 6; i++) {
+            write(first, "root.devdb.a");
+            write(second, "root.devdb.a");
+        }
+        for (int i = 0; i < 3; i++) {
+            assertEquals(4, endpoints.get(i).points());
+            assertEquals(4, cluster.getNodes().get(i).getCalls());
+            assertEquals(4, cluster.getNodes().get(i).getCallMicros().getCount());
+        }
+    }
+
+    @Test
+    public void unreachableNodesAreLeftOutUntilTheyAreDue() throws Exception {
+        SinkCluster cluster = cluster(3, SinkCluster.Spread.ROUND_ROBIN);
+        RecordSink sink = cluster.open();
+        write(sink, "root.devdb.a");
+        endpoints.get(1).down = true;
+        for (int i = 0; i < 30; i++) {
+            write(sink, "root.devdb.a");
+        }
+        //every write went through, and the dead node was tried just once
+        assertEquals(31, endpoints.get(0).points() + endpoints.get(2).points());
+        SinkCluster.Node dead = cluster.getNodes().get(1);
+        assertFalse(dead.isHealthy());
+        assertEquals(1, dead.getFailures());
+
+        endpoints.get(1).down = false;
+        Thread.sleep(SinkCluster.INITIAL_BACKOFF_MS + 50);
+        for (int i = 0; i < 6; i++) {
+            write(sink, "root.devdb.a");
+        }
+        assertTrue(dead.isHealthy());
+        assertEquals(2, endpoints.get(1).points());
+    }
+
+    @Test
+    public void devicesStayOnTheirNode() throws Exception {
+        SinkCluster cluster = cluster(2, SinkCluster.Spread.DEVICE);
+        RecordSink sink = cluster.open();
+        for (int i = 0; i < 5; i++) {
+            write(sink, "root.devdb.a");
+        }
+        int home = endpoints.get(0).points() == 5 ? 0 : 1;
+        assertEquals(5, endpoints.get(home).points());
+
+        //and move while it is down
+        endpoints.get(home).down = true;
+        write(sink, "root.devdb.a");
+        assertEquals(1, endpoints.get(1 - home).points());
+
+        //with no node left the writers' own retries take over
+        endpoints.get(1 - home).down = true;
+        assertThrows(IoTDBConnectionException.class, () -> write(sink, "root.devdb.a"));
+        assertThrows(IoTDBConnectionException.class, () -> write(sink, "root.devdb.a"));
+        assertEquals(1, cluster.getNodes().get(1 - home).getFailures());
+    }
+
+    @Test
+    public void nodesAreConfigured() throws Exception {
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/+/+/+");
+        props.setProperty("DBPORT", "7000");
+        props.setProperty("DBNODES", "10.0.0.1:6667, 10.0.0.2, ");
+        props.setProperty("DB-SPREAD", "device");
+        Pump pump = new Pump.Builder().fromProperties(props);
+        assertEquals(List.of("10.0.0.1:6667", "10.0.0.2"), pump.dbNodes);
+        assertEquals(SinkCluster.Spread.DEVICE, pump.dbSpread);
+        assertThrows(IllegalArgumentException.class,
+            () -> SinkCluster.of(List.of("host:port"), 6667, "root", "root", SinkCluster.Spread.DEVICE));
+
+        SinkCluster cluster = cluster(2, SinkCluster.Spread.ROUND_ROBIN);
+        pump.load(cluster, List.of());
+        assertTrue(pump.getMetrics().getGauges().containsKey("pump_db_node_calls{node=\"node1:6667\"}"));
+    }
+}
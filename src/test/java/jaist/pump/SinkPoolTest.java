@@ -0,0 +1,108 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SinkPoolTest {
+
+    //a sink that holds every call until released and counts concurrent calls
+    private static class SlowSink extends StubSink {
+
+        static final AtomicInteger inFlight = new AtomicInteger();
+        static final AtomicInteger mostInFlight = new AtomicInteger();
+        static volatile CountDownLatch release = new CountDownLatch(0);
+
+        @Override
+        public void insertRecordsOfOneDevice(String deviceId, List<Long> times, List<List<String>> measurementsList, List<List<TSDataType>> typesList, List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+            mostInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            inFlight.decrementAndGet();
+            super.insertRecordsOfOneDevice(deviceId, times, measurementsList, typesList, valuesList);
+        }
+    }
+
+    @Test
+    public void callsAreBoundedByConnections() throws Exception {
+        List<StubSink> sinks = Collections.synchronizedList(new ArrayList<>());
+        SinkPool pool = new SinkPool(() -> {
+            SlowSink sink = new SlowSink();
+            sinks.add(sink);
+            return sink;
+        }, 3);
+        assertEquals(1, pool.getOpened());
+
+        SlowSink.release = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            long time = i;
+            Thread thread = new Thread(() -> {
+                try {
+                    pool.insertRecordsOfOneDevice("root.devdb.a", List.of(time), List.of(List.of("lux")),
+                        List.of(List.of(TSDataType.INT32)), List.of(List.of(1)));
+                } catch (Exception ex) {
+                    fail(ex);
+                }
+            });
+            thread.start();
+            threads.add(thread);
+        }
+        //give every thread the chance to get stuck
+        while (SlowSink.inFlight.get() < 3) {
+            Thread.sleep(1);
+        }
+        Thread.sleep(50);
+        assertEquals(3, SlowSink.inFlight.get());
+        SlowSink.release.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(3, pool.getOpened());
+        assertEquals(3, SlowSink.mostInFlight.get());
+        assertEquals(10, sinks.stream().mapToInt(sink -> sink.times.size()).sum());
+        pool.close();
+    }
+
+    @Test
+    public void writersShareConnections() throws IoTDBConnectionException {
+        List<StubSink> sinks = Collections.synchronizedList(new ArrayList<>());
+        WriterPool pool = new WriterPool(() -> {
+            StubSink sink = new StubSink();
+            sinks.add(sink);
+            return sink;
+        }, 16, 2, Threads.factory(Pump.ExecutionMode.VIRTUAL, "test-writer-"), sink -> new BatchWriter(sink, 8, 10));
+        for (int i = 0; i < 1000; i++) {
+            pool.submit(new TimeSeriesAndValue("root.devdb.dev" + i % 50 + ".lux", TSDataType.INT32, i, i));
+        }
+        pool.close();
+        assertTrue(sinks.size() <= 2);
+        assertEquals(1000, sinks.stream().mapToInt(sink -> sink.times.size()).sum());
+    }
+
+    @Test
+    public void virtualThreadsWhenAvailable() throws InterruptedException {
+        Thread thread = Threads.factory(Pump.ExecutionMode.VIRTUAL, "test-").newThread(() -> {
+        });
+        assertEquals(Runtime.version().feature() >= 21, Threads.isVirtual(thread));
+        assertTrue(thread.getName().startsWith("test-"));
+        assertFalse(Threads.isVirtual(Threads.factory(Pump.ExecutionMode.PLATFORM, "test-").newThread(() -> {
+        })));
+    }
+}
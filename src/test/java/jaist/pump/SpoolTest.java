@@ -0,0 +1,158 @@
+package jaist.pump;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.utils.Binary;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class SpoolTest {
+
+    @TempDir
+    Path dir;
+
+    @Test
+    public void replaysEveryTypeInOrder() throws IOException, IoTDBConnectionException {
+        try (Spool spool = new Spool(dir, 4096, 4)) {
+            assertTrue(spool.isEmpty());
+            spool.append("root.devdb.a", "presence", 1, TSDataType.BOOLEAN, true);
+            spool.append("root.devdb.a", "lux", 2, TSDataType.INT32, 300);
+            spool.append("root.devdb.b", "temperature", 3, TSDataType.FLOAT, 21.5f);
+            spool.append("root.devdb.b", "humidity", 4, TSDataType.DOUBLE, 40.25);
+            spool.append("root.devdb.c", "status", 5, TSDataType.TEXT, new Binary("ok".getBytes()));
+            assertFalse(spool.isEmpty());
+
+            StubSink sink = new StubSink();
+            assertEquals(5, spool.replayOnce(sink, 100));
+            assertTrue(spool.isEmpty());
+            assertEquals(List.of(1L, 2L, 3L, 4L, 5L), sink.times);
+            assertEquals(List.of("root.devdb.a", "root.devdb.a", "root.devdb.b", "root.devdb.b", "root.devdb.c"), sink.devices);
+            assertEquals(List.of(true, 300, 21.5f, 40.25, new Binary("ok".getBytes())),
+                sink.values.stream().map(v -> v.get(0)).toList());
+            assertEquals(0, spool.replayOnce(sink, 100));
+        }
+    }
+
+    @Test
+    public void failedReplayKeepsValues() throws IOException, IoTDBConnectionException {
+        try (Spool spool = new Spool(dir, 4096, 4)) {
+            spool.append("root.devdb.a", "lux", 1, TSDataType.INT32, 1);
+            StubSink sink = new StubSink();
+            sink.down = true;
+            assertThrows(IoTDBConnectionException.class, () -> spool.replayOnce(sink, 100));
+            sink.down = false;
+            assertEquals(1, spool.replayOnce(sink, 100));
+        }
+    }
+
+    @Test
+    public void rotatesAndResumesFromCheckpointAfterRestart() throws IOException, IoTDBConnectionException {
+        StubSink sink = new StubSink();
+        try (Spool spool = new Spool(dir, 4096, 100)) {
+            for (int i = 0; i < 500; i++) {
+                spool.append("root.devdb.device" + i % 7, "lux", i, TSDataType.INT32, i);
+                if (i % 50 == 0) {
+                    //forced in batches, across rotations
+                    spool.force();
+                }
+            }
+            spool.force();
+            spool.force();
+            assertTrue(spool.getSegmentCount() > 2);
+            assertEquals(100, spool.replayOnce(sink, 100));
+        }
+        try (Spool spool = new Spool(dir, 4096, 100)) {
+            spool.append("root.devdb.late", "lux", 500, TSDataType.INT32, 500);
+            while (spool.replayOnce(sink, 64) > 0) {
+            }
+            assertEquals(501, sink.times.size());
+            for (int i = 0; i <= 500; i++) {
+                assertEquals(i, sink.times.get(i));
+            }
+            //replayed segments are gone, only the one being written is left
+            assertEquals(1, spool.getSegmentCount());
+        }
+    }
+
+    @Test
+    public void segmentsLeftBrokenByACrashAreSetAside() throws IOException, IoTDBConnectionException {
+        try (Spool spool = new Spool(dir, 4096, 4)) {
+            for (int i = 0; i < 3; i++) {
+                spool.append("root.devdb.a", "lux", i, TSDataType.INT32, i);
+            }
+        }
+        //created, but the crash came before anything reached the disk
+        Path empty = dir.resolve(String.format("spool-%020d.seg", 1));
+        Path zeroed = dir.resolve(String.format("spool-%020d.seg", 2));
+        Files.createFile(empty);
+        Files.write(zeroed, new byte[4096]);
+        Files.createFile(dir.resolve("spool-stray.seg"));
+
+        StubSink sink = new StubSink();
+        try (Spool spool = new Spool(dir, 4096, 4)) {
+            assertTrue(Files.exists(dir.resolve(empty.getFileName() + ".broken")));
+            assertTrue(Files.exists(dir.resolve(zeroed.getFileName() + ".broken")));
+            assertFalse(Files.exists(empty));
+            spool.append("root.devdb.a", "lux", 3, TSDataType.INT32, 3);
+            while (spool.replayOnce(sink, 64) > 0) {
+            }
+            assertEquals(List.of(0L, 1L, 2L, 3L), sink.times);
+        }
+        //writing went on past the broken ones
+        assertTrue(Files.exists(dir.resolve(String.format("spool-%020d.seg", 3))));
+    }
+
+    @Test
+    public void oldestSegmentsAreDroppedBeyondRetention() throws IOException, IoTDBConnectionException {
+        try (Spool spool = new Spool(dir, 4096, 2)) {
+            for (int i = 0; i < 1000; i++) {
+                spool.append("root.devdb.a", "lux", i, TSDataType.INT32, i);
+            }
+            assertEquals(2, spool.getSegmentCount());
+            assertTrue(spool.getDroppedSegments() > 0);
+
+            StubSink sink = new StubSink();
+            while (spool.replayOnce(sink, 100) > 0) {
+            }
+            //whatever survived is the newest data, still in order
+            assertEquals(999L, sink.times.get(sink.times.size() - 1));
+            for (int i = 1; i < sink.times.size(); i++) {
+                assertEquals(sink.times.get(i - 1) + 1, sink.times.get(i));
+            }
+        }
+    }
+
+    @Test
+    public void writersSpoolWhileDatabaseIsDown() throws IOException, IoTDBConnectionException {
+        try (Spool spool = new Spool(dir, 4096, 4)) {
+            StubSink sink = new StubSink();
+            sink.down = true;
+            BatchWriter writer = new BatchWriter(sink, 2, 60_000);
+            writer.setSpool(spool);
+
+            writer.add(new TimeSeriesAndValue("root.devdb.a.lux", TSDataType.INT32, 1, 1));
+            writer.add(new TimeSeriesAndValue("root.devdb.a.lux", TSDataType.INT32, 2, 2));
+            assertTrue(spool.isDatabaseDown());
+            assertEquals(2, spool.getSpooled());
+
+            //no further attempts while the database is down
+            sink.down = false;
+            writer.add(new TimeSeriesAndValue("root.devdb.a.lux", TSDataType.INT32, 3, 3));
+            writer.add(new TimeSeriesAndValue("root.devdb.a.lux", TSDataType.INT32, 4, 4));
+            assertTrue(sink.calls.isEmpty());
+            assertEquals(4, spool.getSpooled());
+
+            assertEquals(4, spool.replayOnce(sink, 100));
+            assertEquals(List.of(1L, 2L, 3L, 4L), sink.times);
+        }
+    }
+}
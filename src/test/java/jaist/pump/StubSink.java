@@ -0,0 +1,150 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.iotdb.rpc.StatementExecutionException;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.file.metadata.enums.CompressionType;
+import org.apache.tsfile.file.metadata.enums.TSEncoding;
+import org.apache.tsfile.write.record.Tablet;
+
+/**
+ * Records every call instead of talking to a database.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class StubSink implements RecordSink {
+
+    public final List<String> calls = new ArrayList<>();
+    public final List<String> devices = new ArrayList<>();
+    public final List<Long> times = new ArrayList<>();
+    public final List<List<String>> measurements = new ArrayList<>();
+    public final List<List<Object>> values = new ArrayList<>();
+    //the timeseries created, with their encodings
+    public final Map<String, TSEncoding> created = new LinkedHashMap<>();
+    //when set, every insert fails as if the database was unreachable
+    public volatile boolean down;
+
+    private void checkDown() throws IoTDBConnectionException {
+        if (down) {
+            throw new IoTDBConnectionException("stub database is down");
+        }
+    }
+
+    @Override
+    public synchronized void insertRecords(List<String> deviceIds, List<Long> times,
+        List<List<String>> measurementsList, List<List<TSDataType>> typesList,
+        List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+        checkDown();
+        calls.add("insertRecords");
+        this.devices.addAll(deviceIds);
+        this.times.addAll(times);
+        this.measurements.addAll(measurementsList);
+        this.values.addAll(valuesList);
+    }
+
+    @Override
+    public synchronized void insertRecordsOfOneDevice(String deviceId, List<Long> times,
+        List<List<String>> measurementsList, List<List<TSDataType>> typesList,
+        List<List<Object>> valuesList) throws IoTDBConnectionException, StatementExecutionException {
+        checkDown();
+        calls.add("insertRecordsOfOneDevice");
+        for (int i = 0; i < times.size(); i++) {
+            this.devices.add(deviceId);
+        }
+        this.times.addAll(times);
+        this.measurements.addAll(measurementsList);
+        this.values.addAll(valuesList);
+    }
+
+    @Override
+    public synchronized void insertTablet(Tablet tablet) throws IoTDBConnectionException {
+        checkDown();
+        calls.add("insertTablet");
+        recordTablet(tablet);
+    }
+
+    @Override
+    public synchronized void insertAlignedTablet(Tablet tablet) throws IoTDBConnectionException {
+        checkDown();
+        calls.add("insertAlignedTablet");
+        recordTablet(tablet);
+    }
+
+    @Override
+    public synchronized void insertTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException {
+        checkDown();
+        calls.add("insertTablets");
+        tablets.values().forEach(this::recordTablet);
+    }
+
+    @Override
+    public synchronized void insertAlignedTablets(Map<String, Tablet> tablets) throws IoTDBConnectionException {
+        checkDown();
+        calls.add("insertAlignedTablets");
+        tablets.values().forEach(this::recordTablet);
+    }
+
+    //tablets are reused after writing, so flatten them into rows right away
+    private void recordTablet(Tablet tablet) {
+        for (int row = 0; row < tablet.getRowSize(); row++) {
+            List<String> rowMeasurements = new ArrayList<>();
+            List<Object> rowValues = new ArrayList<>();
+            for (int column = 0; column < tablet.getSchemas().size(); column++) {
+                if (!tablet.isNull(row, column)) {
+                    rowMeasurements.add(tablet.getSchemas().get(column).getMeasurementName());
+                    rowValues.add(tablet.getValue(row, column));
+                }
+            }
+            this.devices.add(tablet.getDeviceId());
+            this.times.add(tablet.getTimestamp(row));
+            this.measurements.add(rowMeasurements);
+            this.values.add(rowValues);
+        }
+    }
+
+    @Override
+    public synchronized void createTimeseries(List<String> paths, List<TSDataType> types, List<TSEncoding> encodings,
+        List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+        checkDown();
+        calls.add("createTimeseries");
+        for (int i = 0; i < paths.size(); i++) {
+            if (created.containsKey(paths.get(i))) {
+                throw new StatementExecutionException("timeseries exists already: " + paths.get(i));
+            }
+        }
+        for (int i = 0; i < paths.size(); i++) {
+            created.put(paths.get(i), encodings.get(i));
+        }
+    }
+
+    @Override
+    public synchronized void createAlignedTimeseries(String deviceId, List<String> measurements, List<TSDataType> types,
+        List<TSEncoding> encodings, List<CompressionType> compressions) throws IoTDBConnectionException, StatementExecutionException {
+        checkDown();
+        calls.add("createAlignedTimeseries");
+        for (int i = 0; i < measurements.size(); i++) {
+            created.put(deviceId + "." + measurements.get(i), encodings.get(i));
+        }
+    }
+
+    @Override
+    public Map<String, TSDataType> fetchSeriesTypes(String pathPattern) {
+        return Map.of();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public synchronized int points() {
+        int points = 0;
+        for (var m : measurements) {
+            points += m.size();
+        }
+        return points;
+    }
+}
@@ -0,0 +1,98 @@
+package jaist.pump;
+
+import java.util.List;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.utils.Binary;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class TabletWriterTest {
+
+    @Test
+    public void sameTimestampSharesARow() {
+        StubSink sink = new StubSink();
+        TabletWriter writer = new TabletWriter(sink, 10, 60_000, false);
+
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 21.5f, 10));
+        writer.add(new TimeSeriesAndValue("root.devdb.a.humidity", TSDataType.DOUBLE, 40.0, 10));
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 21.7f, 11));
+        writer.add(new TimeSeriesAndValue("root.devdb.b.presence", TSDataType.BOOLEAN, true, 11));
+        //the first value was written when humidity showed up and the tablet of
+        //the device had to be rebuilt with another column
+        assertEquals(3, writer.size());
+        writer.flush();
+
+        assertEquals(List.of("insertTablet", "insertTablets"), sink.calls);
+        assertEquals(4, sink.points());
+        assertEquals(0, writer.size());
+
+        //rows: a@10 {temperature}, a@10 {humidity, temperature missing}, ...
+        int humidityRow = sink.measurements.indexOf(List.of("humidity"));
+        assertEquals("root.devdb.a", sink.devices.get(humidityRow));
+        assertEquals(40.0, sink.values.get(humidityRow).get(0));
+        assertTrue(sink.devices.contains("root.devdb.b"));
+    }
+
+    @Test
+    public void valuesOfOneTimestampFormOneRow() {
+        StubSink sink = new StubSink();
+        TabletWriter writer = new TabletWriter(sink, 10, 60_000, true);
+        //establish the columns first
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 1f, 1));
+        writer.add(new TimeSeriesAndValue("root.devdb.a.status", TSDataType.TEXT, new Binary("ok".getBytes()), 1));
+        writer.flush();
+        sink.measurements.clear();
+        sink.values.clear();
+        sink.calls.clear();
+
+        writer.add(new TimeSeriesAndValue("root.devdb.a.temperature", TSDataType.FLOAT, 2f, 5));
+        writer.add(new TimeSeriesAndValue("root.devdb.a.status", TSDataType.TEXT, new Binary("ok".getBytes()), 5));
+        writer.add(new TimeSeriesAndValue("root.devdb.a.status", TSDataType.TEXT, new Binary("bad".getBytes()), 6));
+        writer.flush();
+        assertEquals(List.of("insertAlignedTablets"), sink.calls);
+        assertEquals(List.of(List.of("temperature", "status"), List.of("status")), sink.measurements);
+        assertEquals(2f, sink.values.get(0).get(0));
+    }
+
+    @Test
+    public void quietDevicesAreLetGo() {
+        StubSink sink = new StubSink();
+        TabletWriter writer = new TabletWriter(sink, 10, 60_000, false);
+        for (int i = 0; i < 100; i++) {
+            writer.add(new TimeSeriesAndValue("root.devdb.d" + i + ".lux", TSDataType.INT32, i, 1));
+        }
+        writer.flush();
+        assertEquals(100, writer.deviceCount());
+
+        writer.add(new TimeSeriesAndValue("root.devdb.d7.lux", TSDataType.INT32, 7, 2));
+        writer.flush();
+        assertEquals(1, writer.deviceCount());
+        assertEquals(List.of("insertTablets", "insertTablets"), sink.calls);
+        assertEquals(101, sink.points());
+
+        //and come back with a fresh tablet
+        writer.add(new TimeSeriesAndValue("root.devdb.d8.lux", TSDataType.INT32, 8, 3));
+        writer.add(new TimeSeriesAndValue("root.devdb.d8.humidity", TSDataType.DOUBLE, 40.0, 3));
+        writer.flush();
+        assertEquals(103, sink.points());
+        assertEquals(1, writer.deviceCount());
+    }
+
+    @Test
+    public void fullTabletIsWrittenOnItsOwn() {
+        StubSink sink = new StubSink();
+        TabletWriter writer = new TabletWriter(sink, 2, 60_000, false);
+        for (int i = 0; i < 5; i++) {
+            writer.add(new TimeSeriesAndValue("root.devdb.a.lux", TSDataType.INT32, i, i));
+        }
+        assertEquals(List.of("insertTablet", "insertTablet"), sink.calls);
+        assertEquals(1, writer.size());
+        writer.flushIfDue(System.currentTimeMillis() + 60_000);
+        assertEquals(5, sink.points());
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L), sink.times);
+    }
+}
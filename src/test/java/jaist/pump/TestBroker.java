@@ -0,0 +1,472 @@
+package jaist.pump;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Just enough of an MQTT v5 broker to test against: connect, subscribe and
+ * unsubscribe, QoS 0 and 1 publishing in both directions, the client's receive
+ * maximum, shared subscriptions (round robin within a group) and ping. No
+ * retained messages, no wills, no sessions.
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class TestBroker implements AutoCloseable {
+
+    private static final int CONNECT = 1;
+    private static final int CONNACK = 2;
+    private static final int PUBLISH = 3;
+    private static final int PUBACK = 4;
+    private static final int SUBSCRIBE = 8;
+    private static final int SUBACK = 9;
+    private static final int UNSUBSCRIBE = 10;
+    private static final int UNSUBACK = 11;
+    private static final int PINGREQ = 12;
+    private static final int PINGRESP = 13;
+    private static final int DISCONNECT = 14;
+
+    private final ServerSocket server;
+    private final List<Client> clients = new CopyOnWriteArrayList<>();
+    private final Map<String, AtomicInteger> shareCursors = new ConcurrentHashMap<>();
+    private final AtomicLong acked = new AtomicLong();
+    private final Thread acceptor;
+
+    public TestBroker() throws IOException {
+        server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        acceptor = new Thread(this::accept, "test-broker");
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    public int getPort() {
+        return server.getLocalPort();
+    }
+
+    public String getUri() {
+        return "tcp://127.0.0.1:" + getPort();
+    }
+
+    /**
+     * @return every subscription of every connected client, by client id
+     */
+    public Map<String, List<String>> getSubscriptions() {
+        Map<String, List<String>> subscriptions = new LinkedHashMap<>();
+        for (Client client : clients) {
+            if (client.id != null) {
+                subscriptions.put(client.id, new ArrayList<>(client.subscriptions.keySet()));
+            }
+        }
+        return subscriptions;
+    }
+
+    public int getSubscriptionCount() {
+        return getSubscriptions().values().stream().mapToInt(List::size).sum();
+    }
+
+    /**
+     * @return QoS 1 messages the clients acknowledged
+     */
+    public long getAcked() {
+        return acked.get();
+    }
+
+    /**
+     * @return QoS 1 messages sent but not acknowledged yet, over all clients
+     */
+    public int getInflight() {
+        int inflight = 0;
+        for (Client client : clients) {
+            inflight += client.inflightCount();
+        }
+        return inflight;
+    }
+
+    /**
+     * @return QoS 1 messages held back by the clients' receive maximum
+     */
+    public int getWaiting() {
+        int waiting = 0;
+        for (Client client : clients) {
+            waiting += client.waitingCount();
+        }
+        return waiting;
+    }
+
+    /**
+     * Drops the connection of a client, as if the network had failed.
+     */
+    public void disconnect(String clientId) {
+        for (Client client : clients) {
+            if (clientId.equals(client.id)) {
+                client.close();
+            }
+        }
+    }
+
+    /**
+     * Publishes as if a client had.
+     */
+    public void publish(String topic, byte[] payload, int qos) throws IOException {
+        route(topic, payload, qos);
+    }
+
+    private void accept() {
+        while (!server.isClosed()) {
+            try {
+                Socket socket = server.accept();
+                socket.setTcpNoDelay(true);
+                Client client = new Client(socket);
+                clients.add(client);
+                Thread thread = new Thread(client, "test-broker-client");
+                thread.setDaemon(true);
+                thread.start();
+            } catch (IOException ex) {
+                //closed
+            }
+        }
+    }
+
+    private void route(String topic, byte[] payload, int qos) throws IOException {
+        Map<String, List<Client>> groups = new LinkedHashMap<>();
+        Map<String, Integer> groupQos = new ConcurrentHashMap<>();
+        for (Client client : clients) {
+            int direct = -1;
+            for (var subscription : client.subscriptions.entrySet()) {
+                String filter = subscription.getKey();
+                if (filter.startsWith("$share/")) {
+                    int split = filter.indexOf('/', 7);
+                    String shared = filter.substring(split + 1);
+                    if (matches(shared, topic)) {
+                        groups.computeIfAbsent(filter, f -> new ArrayList<>()).add(client);
+                        groupQos.put(filter, subscription.getValue());
+                    }
+                } else if (matches(filter, topic)) {
+                    direct = Math.max(direct, subscription.getValue());
+                }
+            }
+            if (direct >= 0) {
+                client.deliver(topic, payload, Math.min(qos, direct));
+            }
+        }
+        for (var group : groups.entrySet()) {
+            List<Client> members = group.getValue();
+            int next = shareCursors.computeIfAbsent(group.getKey(), g -> new AtomicInteger()).getAndIncrement();
+            members.get(Math.floorMod(next, members.size())).deliver(topic, payload, Math.min(qos, groupQos.get(group.getKey())));
+        }
+    }
+
+    static boolean matches(String filter, String topic) {
+        String[] filterLevels = filter.split("/", -1);
+        String[] topicLevels = topic.split("/", -1);
+        for (int i = 0; i < filterLevels.length; i++) {
+            if (filterLevels[i].equals("#")) {
+                return true;
+            }
+            if (i >= topicLevels.length) {
+                return false;
+            }
+            if (!filterLevels[i].equals("+") && !filterLevels[i].equals(topicLevels[i])) {
+                return false;
+            }
+        }
+        return filterLevels.length == topicLevels.length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        server.close();
+        for (Client client : clients) {
+            client.close();
+        }
+    }
+
+    private class Client implements Runnable {
+
+        final Socket socket;
+        final DataInputStream in;
+        final OutputStream out;
+        final Map<String, Integer> subscriptions = new ConcurrentHashMap<>();
+        final AtomicInteger packetIds = new AtomicInteger();
+        //unacknowledged packet ids, and what waits for one of them to go
+        final Set<Integer> inflight = new HashSet<>();
+        final Deque<Object[]> waiting = new ArrayDeque<>();
+        volatile int receiveMaximum = 65535;
+        volatile String id;
+
+        Client(Socket socket) throws IOException {
+            this.socket = socket;
+            this.in = new DataInputStream(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    int header = in.readUnsignedByte();
+                    byte[] body = new byte[readVarInt(in)];
+                    in.readFully(body);
+                    if (!handle(header >> 4, header & 0x0f, ByteBuffer.wrap(body))) {
+                        break;
+                    }
+                }
+            } catch (IOException ex) {
+                //client went away
+            } finally {
+                close();
+            }
+        }
+
+        private boolean handle(int type, int flags, ByteBuffer body) throws IOException {
+            switch (type) {
+                case CONNECT: {
+                    readString(body);
+                    body.get();
+                    int connectFlags = body.get() & 0xff;
+                    body.getShort();
+                    receiveMaximum = readReceiveMaximum(body);
+                    String clientId = readString(body);
+                    //a second connection with the same id takes over
+                    for (Client other : clients) {
+                        if (other != this && clientId.equals(other.id)) {
+                            other.close();
+                        }
+                    }
+                    id = clientId;
+                    if ((connectFlags & 0x04) != 0) {
+                        skipProperties(body);
+                        readString(body);
+                        readBinary(body);
+                    }
+                    send(CONNACK << 4, new byte[]{0, 0, 0});
+                    return true;
+                }
+                case SUBSCRIBE: {
+                    int packetId = body.getShort() & 0xffff;
+                    skipProperties(body);
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                    reply.write(packetId >> 8);
+                    reply.write(packetId);
+                    reply.write(0);
+                    while (body.hasRemaining()) {
+                        String filter = readString(body);
+                        int qos = Math.min(1, body.get() & 0x03);
+                        subscriptions.put(filter, qos);
+                        reply.write(qos);
+                    }
+                    send(SUBACK << 4, reply.toByteArray());
+                    return true;
+                }
+                case UNSUBSCRIBE: {
+                    int packetId = body.getShort() & 0xffff;
+                    skipProperties(body);
+                    ByteArrayOutputStream reply = new ByteArrayOutputStream();
+                    reply.write(packetId >> 8);
+                    reply.write(packetId);
+                    reply.write(0);
+                    while (body.hasRemaining()) {
+                        reply.write(subscriptions.remove(readString(body)) != null ? 0x00 : 0x11);
+                    }
+                    send(UNSUBACK << 4, reply.toByteArray());
+                    return true;
+                }
+                case PUBLISH: {
+                    int qos = (flags >> 1) & 0x03;
+                    String topic = readString(body);
+                    int packetId = qos > 0 ? body.getShort() & 0xffff : 0;
+                    skipProperties(body);
+                    byte[] payload = new byte[body.remaining()];
+                    body.get(payload);
+                    if (qos > 0) {
+                        send(PUBACK << 4, new byte[]{(byte) (packetId >> 8), (byte) packetId});
+                    }
+                    route(topic, payload, qos);
+                    return true;
+                }
+                case PUBACK: {
+                    int packetId = body.getShort() & 0xffff;
+                    acked.incrementAndGet();
+                    Object[] next;
+                    synchronized (this) {
+                        inflight.remove(packetId);
+                        next = waiting.poll();
+                    }
+                    if (next != null) {
+                        deliver((String) next[0], (byte[]) next[1], 1);
+                    }
+                    return true;
+                }
+                case PINGREQ:
+                    send(PINGRESP << 4, new byte[0]);
+                    return true;
+                case DISCONNECT:
+                    return false;
+                default:
+                    //not needed by the tests
+                    return true;
+            }
+        }
+
+        void deliver(String topic, byte[] payload, int qos) throws IOException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            writeString(body, topic);
+            if (qos > 0) {
+                int packetId;
+                synchronized (this) {
+                    if (inflight.size() >= receiveMaximum) {
+                        waiting.add(new Object[]{topic, payload});
+                        return;
+                    }
+                    packetId = packetIds.updateAndGet(id -> id % 65535 + 1);
+                    inflight.add(packetId);
+                }
+                body.write(packetId >> 8);
+                body.write(packetId);
+            }
+            body.write(0);
+            body.write(payload);
+            try {
+                send(PUBLISH << 4 | qos << 1, body.toByteArray());
+            } catch (IOException ex) {
+                //the client went away, like a real broker we drop the message
+            }
+        }
+
+        synchronized int inflightCount() {
+            return inflight.size();
+        }
+
+        synchronized int waitingCount() {
+            return waiting.size();
+        }
+
+        synchronized void send(int header, byte[] body) throws IOException {
+            ByteArrayOutputStream packet = new ByteArrayOutputStream(body.length + 5);
+            packet.write(header);
+            int length = body.length;
+            do {
+                int digit = length & 0x7f;
+                length >>>= 7;
+                packet.write(length > 0 ? digit | 0x80 : digit);
+            } while (length > 0);
+            packet.write(body);
+            out.write(packet.toByteArray());
+            out.flush();
+        }
+
+        void close() {
+            clients.remove(this);
+            try {
+                socket.close();
+            } catch (IOException ex) {
+                //already closed
+            }
+        }
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        int value = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = in.read();
+            if (digit < 0) {
+                throw new EOFException();
+            }
+            value |= (digit & 0x7f) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0);
+        return value;
+    }
+
+    private static int readVarInt(ByteBuffer body) {
+        int value = 0;
+        int shift = 0;
+        int digit;
+        do {
+            digit = body.get() & 0xff;
+            value |= (digit & 0x7f) << shift;
+            shift += 7;
+        } while ((digit & 0x80) != 0);
+        return value;
+    }
+
+    //reads the CONNECT properties, only the receive maximum matters here
+    private static int readReceiveMaximum(ByteBuffer body) {
+        int receiveMaximum = 65535;
+        int end = readVarInt(body);
+        end += body.position();
+        while (body.position() < end) {
+            int property = readVarInt(body);
+            switch (property) {
+                case 0x21:
+                    receiveMaximum = body.getShort() & 0xffff;
+                    break;
+                case 0x17:
+                case 0x19:
+                    body.get();
+                    break;
+                case 0x22:
+                    body.getShort();
+                    break;
+                case 0x11:
+                case 0x27:
+                    body.getInt();
+                    break;
+                case 0x15:
+                case 0x16:
+                    readBinary(body);
+                    break;
+                case 0x26:
+                    readBinary(body);
+                    readBinary(body);
+                    break;
+                default:
+                    throw new IllegalStateException("unexpected CONNECT property " + property);
+            }
+        }
+        return receiveMaximum;
+    }
+
+    private static void skipProperties(ByteBuffer body) {
+        int length = readVarInt(body);
+        body.position(body.position() + length);
+    }
+
+    private static String readString(ByteBuffer body) {
+        return new String(readBinary(body), StandardCharsets.UTF_8);
+    }
+
+    private static byte[] readBinary(ByteBuffer body) {
+        byte[] bytes = new byte[body.getShort() & 0xffff];
+        body.get(bytes);
+        return bytes;
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.write(bytes.length >> 8);
+        out.write(bytes.length);
+        out.write(bytes, 0, bytes.length);
+    }
+}
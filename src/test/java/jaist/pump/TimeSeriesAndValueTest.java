@@ -82,4 +82,13 @@ public class TimeSeriesAndValueTest {
         assertEquals(expResult, result);
     }
 
+    @org.junit.jupiter.api.Test
+    public void testPrefixAndSuffixFromRoute() {
+        TopicRoute route = new TopicRoute("/src1/temperature", "root.somewhere.src1.temperature", DataConvertor.Float());
+        TimeSeriesAndValue instance = new TimeSeriesAndValue(route, TSDataType.FLOAT, 1.0f, 42);
+        assertSame(route.device, instance.getPrefix());
+        assertSame(route.measurement, instance.getSuffix());
+        assertEquals(42, instance.timestamp);
+    }
+
 }
@@ -0,0 +1,42 @@
+package jaist.pump;
+
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class TopicCacheTest {
+
+    private static TopicRoute route(String topic) {
+        return new TopicRoute(topic, "root.devdb" + topic.replace('/', '.'), DataConvertor.Float());
+    }
+
+    @Test
+    public void resolvesOncePerTopic() {
+        TopicCache cache = new TopicCache(10);
+        TopicRoute first = cache.get("/a/b/temperature", TopicCacheTest::route);
+        TopicRoute second = cache.get("/a/b/temperature", t -> fail("should have been cached"));
+        assertSame(first, second);
+        assertEquals("root.devdb.a.b", first.device);
+        assertEquals("temperature", first.measurement);
+        assertEquals(1, cache.getHits());
+        assertEquals(1, cache.getMisses());
+    }
+
+    @Test
+    public void staysBoundedAndKeepsRecentlyUsedTopics() {
+        TopicCache cache = new TopicCache(4);
+        cache.get("/hot", TopicCacheTest::route);
+        for (int i = 0; i < 100; i++) {
+            cache.get("/hot", TopicCacheTest::route);
+            cache.get("/cold/" + i, TopicCacheTest::route);
+            assertTrue(cache.size() <= 4);
+        }
+        assertTrue(cache.getEvictions() > 90);
+        long misses = cache.getMisses();
+        cache.get("/hot", TopicCacheTest::route);
+        assertEquals(misses, cache.getMisses());
+    }
+}
@@ -0,0 +1,120 @@
+package jaist.pump;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class TrafficCaptureTest {
+
+    @TempDir
+    Path dir;
+
+    private List<String> readAll(Path path) throws IOException {
+        List<String> read = new ArrayList<>();
+        for (Path file : CaptureFile.list(path)) {
+            CaptureFile.read(file, (topic, timestamp, payload) -> read.add(topic + "=" + new String(payload, StandardCharsets.UTF_8)));
+        }
+        return read;
+    }
+
+    @Test
+    public void capturedMessagesAreReadBack() throws IOException {
+        TrafficCapture capture = new TrafficCapture(dir, 1 << 20, 0);
+        List<String> sent = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            capture.append("/room/" + i % 7 + "/temperature", 1000 + i, String.valueOf(i).getBytes());
+            sent.add("/room/" + i % 7 + "/temperature=" + i);
+        }
+        capture.close();
+        assertEquals(1000, capture.getCaptured());
+        assertEquals(0, capture.getDropped());
+        assertEquals(sent, readAll(dir));
+
+        //a new capture continues after the files already there
+        TrafficCapture again = new TrafficCapture(dir, 1 << 20, 0);
+        again.append("/room/1/lux", 5000, "12".getBytes());
+        again.close();
+        assertEquals(2, CaptureFile.list(dir).size());
+        assertEquals("/room/1/lux=12", readAll(dir).get(1000));
+    }
+
+    @Test
+    public void segmentsAreRotatedAndTheOldestDeleted() throws IOException {
+        TrafficCapture capture = new TrafficCapture(dir, TrafficCapture.BUFFER_BYTES, 3);
+        byte[] payload = new byte[1000];
+        //a little over a buffer's worth each time, so every write rotates
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < 270; i++) {
+                capture.append("/a/b/c", round, payload);
+            }
+        }
+        //too large to be captured at all
+        capture.append("/a/b/c", 0, new byte[TrafficCapture.BUFFER_BYTES]);
+        capture.close();
+        assertEquals(1, capture.getDropped());
+        assertEquals(3, capture.getSegmentCount());
+        assertEquals(3, CaptureFile.list(dir).size());
+        long kept = 0;
+        for (Path file : CaptureFile.list(dir)) {
+            kept += CaptureFile.read(file, (topic, timestamp, p) -> assertEquals(1000, p.length));
+        }
+        assertTrue(kept > 0 && kept < 5 * 270, "kept " + kept);
+    }
+
+    @Test
+    public void replaysKeepTheRecordedPace() throws IOException {
+        TrafficCapture capture = new TrafficCapture(dir, 1 << 20, 0);
+        for (int i = 0; i < 5; i++) {
+            capture.append("/a/b/c", 10_000 + i * 100, String.valueOf(i).getBytes());
+        }
+        capture.close();
+        List<Path> files = CaptureFile.list(dir);
+
+        List<String> replayed = new ArrayList<>();
+        long start = System.nanoTime();
+        assertEquals(5, CaptureReplay.atSpeed("2x").replay(files, (topic, timestamp, payload) -> replayed.add(new String(payload))));
+        long paced = System.nanoTime() - start;
+        assertEquals(List.of("0", "1", "2", "3", "4"), replayed);
+        //400ms of traffic at twice the speed
+        assertTrue(paced >= 190_000_000L, "replayed in " + paced + "ns");
+
+        start = System.nanoTime();
+        assertEquals(5, CaptureReplay.atSpeed("max").replay(files, (topic, timestamp, payload) -> {
+        }));
+        assertTrue(System.nanoTime() - start < paced);
+
+        assertThrows(IllegalArgumentException.class, () -> CaptureReplay.atSpeed("fast"));
+        assertThrows(IllegalArgumentException.class, () -> CaptureReplay.atSpeed("-1"));
+    }
+
+    @Test
+    public void replaysRunThroughThePipeline() throws Exception {
+        TrafficCapture capture = new TrafficCapture(dir, 1 << 20, 0);
+        capture.append("/room/1/temperature", 1, "21.5".getBytes());
+        capture.append("/room/2/temperature", 2, "19".getBytes());
+        capture.append("/room/1/json", 3, "{\"lux\": 12, \"presence\": true}".getBytes());
+        capture.close();
+
+        Properties props = new Properties();
+        props.setProperty("MQTTTOPICS", "/+/+/+");
+        props.setProperty("CONVERT-FLOAT", "temperature");
+        props.setProperty("JSON-TOPICS", "/+/+/json");
+        Pump pump = new Pump.Builder().fromProperties(props);
+        StubSink sink = new StubSink();
+        long before = System.currentTimeMillis();
+        assertEquals(3, pump.replay(() -> sink, CaptureFile.list(dir), new CaptureReplay(0)));
+        assertEquals(4, sink.points());
+        //timestamped at replay, not at recording
+        assertTrue(sink.times.stream().allMatch(time -> time >= before));
+    }
+}
@@ -0,0 +1,221 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import org.apache.tsfile.enums.TSDataType;
+import org.apache.tsfile.utils.Binary;
+import org.eclipse.paho.mqttv5.common.MqttMessage;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class WindowAggregatorTest {
+
+    private final List<TimeSeriesAndValue> emitted = new ArrayList<>();
+
+    private static TopicRoute route(String timeseries, long windowMs) {
+        TopicRoute route = new TopicRoute("topic", timeseries, DataConvertor.Double());
+        route.aggregateEvery(windowMs);
+        return route;
+    }
+
+    private static TimeSeriesAndValue value(TopicRoute route, double value, long timestamp) {
+        return new TimeSeriesAndValue(route, TSDataType.DOUBLE, value, timestamp);
+    }
+
+    //statistic name to value, for the window starting at start
+    private Map<String, Object> window(long start) {
+        Map<String, Object> stats = new HashMap<>();
+        for (var tsval : emitted) {
+            if (tsval.timestamp == start) {
+                stats.put(tsval.getSuffix(), tsval.getValue());
+            }
+        }
+        return stats;
+    }
+
+    @Test
+    public void topicFilters() {
+        assertTrue(TopicFilter.matches("/+/+/lux", "/room/a/lux"));
+        assertFalse(TopicFilter.matches("/+/+/lux", "/room/a/b/lux"));
+        assertFalse(TopicFilter.matches("/+/+/lux", "room/a/lux"));
+        assertTrue(TopicFilter.matches("sensors/#", "sensors/a/b"));
+        assertTrue(TopicFilter.matches("sensors/#", "sensors"));
+        assertFalse(TopicFilter.matches("sensors/#", "sensorsX/a"));
+        assertTrue(TopicFilter.matches("#", "anything/at/all"));
+        assertTrue(TopicFilter.matches("a/+", "a/"));
+        assertFalse(TopicFilter.matches("a/b", "a/bc"));
+
+        assertNull(TopicFilter.check("/+/+/lux"));
+        assertNotNull(TopicFilter.check("a/#/b"));
+        assertNotNull(TopicFilter.check("a/b+"));
+
+        RouteConfig config = new RouteConfig(Map.of(), Map.of(), Map.of("/+/+/lux", 1000L), List.of(), null, List.of(), List.of());
+        assertEquals(1000, config.windowFor("/room/a/lux"));
+        assertEquals(0, config.windowFor("/room/a/temperature"));
+    }
+
+    @Test
+    public void windowsCloseOnLaterValues() {
+        WindowAggregator aggregator = new WindowAggregator(0);
+        TopicRoute route = route("root.db.room.lux", 1000);
+        for (double v : new double[]{3, 1, 5, 4}) {
+            assertTrue(aggregator.add(route, value(route, v, 1100), emitted::add));
+        }
+        assertTrue(emitted.isEmpty());
+        assertEquals(1, aggregator.getOpenWindows());
+
+        aggregator.add(route, value(route, 7, 2500), emitted::add);
+        assertEquals(5, emitted.size());
+        assertEquals(Map.of("lux_min", 1.0, "lux_max", 5.0, "lux_mean", 3.25, "lux_last", 4.0, "lux_count", 4), window(1000));
+        assertEquals("root.db.room", emitted.get(0).getPrefix());
+        assertEquals(1, aggregator.getEmitted());
+
+        //too late for the window already written
+        aggregator.add(route, value(route, 100, 1999), emitted::add);
+        assertEquals(1, aggregator.getLate());
+        aggregator.emitAll(emitted::add);
+        assertEquals(Map.of("lux_min", 7.0, "lux_max", 7.0, "lux_mean", 7.0, "lux_last", 7.0, "lux_count", 1), window(2000));
+        assertEquals(0, aggregator.getOpenWindows());
+    }
+
+    @Test
+    public void quietSeriesCloseAfterTheGraceTime() {
+        WindowAggregator aggregator = new WindowAggregator(500);
+        TopicRoute a = route("root.db.room.a", 1000);
+        TopicRoute b = route("root.db.room.b", 10_000);
+        aggregator.add(a, value(a, 1, 0), emitted::add);
+        aggregator.add(b, value(b, 1, 0), emitted::add);
+        assertEquals(1500, aggregator.millisUntilDue(0));
+
+        aggregator.emitDue(1499, emitted::add);
+        assertTrue(emitted.isEmpty());
+        aggregator.emitDue(1500, emitted::add);
+        assertEquals(5, emitted.size());
+        assertEquals(10_500 - 1500, aggregator.millisUntilDue(1500));
+
+        aggregator.emitDue(10_500, emitted::add);
+        assertEquals(10, emitted.size());
+        assertEquals(-1, aggregator.millisUntilDue(10_500));
+    }
+
+    @Test
+    public void writtenWindowsOutliveTheirRoute() {
+        WindowAggregator aggregator = new WindowAggregator(0);
+        TopicRoute route = route("root.db.room.lux", 1000);
+        aggregator.add(route, value(route, 1, 1100), emitted::add);
+        aggregator.emitAll(emitted::add);
+        assertEquals(5, emitted.size());
+
+        //evicted from the topic cache and resolved again, the window stays written
+        TopicRoute resolved = route("root.db.room.lux", 1000);
+        assertTrue(aggregator.add(resolved, value(resolved, 100, 1999), emitted::add));
+        aggregator.emitAll(emitted::add);
+        assertEquals(5, emitted.size());
+        assertEquals(1, aggregator.getLate());
+        assertEquals(0, aggregator.getOpenWindows());
+    }
+
+    @Test
+    public void onlyNumbersAreAggregated() {
+        WindowAggregator aggregator = new WindowAggregator(0);
+        TopicRoute route = route("root.db.room.state", 1000);
+        assertFalse(aggregator.add(route, new TimeSeriesAndValue(route, TSDataType.TEXT, new Binary("on".getBytes()), 0), emitted::add));
+        assertTrue(aggregator.add(route, new TimeSeriesAndValue(route, TSDataType.BOOLEAN, true, 0), emitted::add));
+        TopicRoute plain = route("root.db.room.lux", 0);
+        assertFalse(aggregator.add(plain, value(plain, 1, 0), emitted::add));
+    }
+
+    @Test
+    public void slotsAreReused() {
+        WindowAggregator aggregator = new WindowAggregator(0);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 200; i++) {
+                TopicRoute route = route("root.db.device" + i + ".lux", 1000);
+                aggregator.add(route, value(route, i, round * 1000), emitted::add);
+            }
+            assertEquals(200, aggregator.getOpenWindows());
+            aggregator.emitDue(round * 1000 + 1000, emitted::add);
+            assertEquals(0, aggregator.getOpenWindows());
+        }
+        assertEquals(3 * 200 * 5, emitted.size());
+    }
+
+    @Test
+    public void acksWaitForTheirWindow() {
+        List<Integer> acked = new ArrayList<>();
+        AckTracker tracker = new AckTracker(acked::add);
+        WindowAggregator aggregator = new WindowAggregator(0);
+        TopicRoute route = route("root.devdb.room.a.lux", 1000);
+        for (int id = 1; id <= 3; id++) {
+            AckTracker.Ack ack = tracker.arrived(id);
+            assertTrue(aggregator.add(route, value(route, id, 100 * id), ack, emitted::add));
+            //the converting thread is done with the message
+            ack.done();
+        }
+        assertTrue(acked.isEmpty());
+
+        //the next window closes the first one, whose statistics carry its acks
+        AckTracker.Ack next = tracker.arrived(4);
+        aggregator.add(route, value(route, 4, 1500), next, emitted::add);
+        next.done();
+        assertEquals(5, emitted.size());
+        for (int i = 0; i < 4; i++) {
+            emitted.get(i).ack.done();
+        }
+        assertTrue(acked.isEmpty());
+        emitted.get(4).ack.done();
+        assertEquals(List.of(1, 2, 3), acked);
+
+        //late values are left out, nothing holds on to their acks
+        AckTracker.Ack late = tracker.arrived(5);
+        assertTrue(aggregator.add(route, value(route, 0, 200), late, emitted::add));
+        late.done();
+        assertEquals(List.of(1, 2, 3), acked);
+        aggregator.emitAll(emitted::add);
+        emitted.subList(5, 10).forEach(tsval -> tsval.ack.done());
+        assertEquals(List.of(1, 2, 3, 4, 5), acked);
+    }
+
+    @Test
+    public void pumpWritesStatisticsInsteadOfValues() throws Exception {
+        StubSink sink = new StubSink();
+        try (TestBroker broker = new TestBroker()) {
+            Properties props = new Properties();
+            props.setProperty("MQTTTOPICS", "/+/+/lux");
+            props.setProperty("MQTTSERVER", broker.getUri());
+            props.setProperty("MQTTCLIENTID", "pump");
+            props.setProperty(Pump.AGGREGATE_KEY, "/+/+/lux:60000, /noisy/#:1000");
+            Pump pump = new Pump.Builder().fromProperties(props);
+            assertEquals(60_000, pump.resolveTopic("/room/a/lux").getAggregateWindow());
+            assertEquals(1000, pump.resolveTopic("/noisy/a/b").getAggregateWindow());
+            assertEquals(0, pump.resolveTopic("/room/a/humidity").getAggregateWindow());
+            try {
+                pump.init(() -> sink);
+                long deadline = System.currentTimeMillis() + 10_000;
+                while (broker.getSubscriptionCount() == 0) {
+                    assertTrue(System.currentTimeMillis() < deadline, "timed out");
+                    Thread.sleep(10);
+                }
+                for (int i = 0; i < 10; i++) {
+                    assertNull(pump.convertMessage(new TopicAndMessage("/room/a/lux", new MqttMessage(String.valueOf(i).getBytes()), 60_000 + i)));
+                }
+                assertNotNull(pump.convertMessage(new TopicAndMessage("/room/a/humidity", new MqttMessage("40".getBytes()), 60_000)));
+            } finally {
+                pump.close();
+            }
+        }
+        //the open window is written on close, its statistics in one record
+        assertEquals(1, sink.devices.size());
+        assertEquals("root.devdb.room.a", sink.devices.get(0));
+        int count = sink.measurements.get(0).indexOf("lux_count");
+        assertEquals(10, sink.values.get(0).get(count));
+        assertEquals(60_000L, sink.times.get(0));
+    }
+}
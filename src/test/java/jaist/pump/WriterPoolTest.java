@@ -0,0 +1,59 @@
+package jaist.pump;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.iotdb.rpc.IoTDBConnectionException;
+import org.apache.tsfile.enums.TSDataType;
+import static org.junit.jupiter.api.Assertions.*;
+import org.junit.jupiter.api.Test;
+
+/**
+ *
+ * @author smarios <smarios@jaist.ac.jp>
+ */
+public class WriterPoolTest {
+
+    @Test
+    public void devicesStickToOneWriterInOrder() throws IoTDBConnectionException {
+        List<StubSink> sinks = new ArrayList<>();
+        WriterPool pool = new WriterPool(() -> {
+            StubSink sink = new StubSink();
+            sinks.add(sink);
+            return sink;
+        }, 4, 16, 10);
+        assertEquals(4, pool.size());
+
+        int devices = 20;
+        int perDevice = 200;
+        for (int i = 0; i < perDevice; i++) {
+            for (int d = 0; d < devices; d++) {
+                pool.submit(new TimeSeriesAndValue("root.devdb.dev" + d + ".temperature", TSDataType.FLOAT, 1.0f, i));
+            }
+        }
+        pool.close();
+
+        int total = 0;
+        for (StubSink sink : sinks) {
+            total += sink.times.size();
+            for (int d = 0; d < devices; d++) {
+                String device = "root.devdb.dev" + d;
+                long last = -1;
+                for (int i = 0; i < sink.devices.size(); i++) {
+                    if (sink.devices.get(i).equals(device)) {
+                        assertEquals(sinks.indexOf(sink), pool.shardOf(device));
+                        assertTrue(sink.times.get(i) > last);
+                        last = sink.times.get(i);
+                    }
+                }
+            }
+        }
+        assertEquals(devices * perDevice, total);
+    }
+
+    @Test
+    public void failingConnectionIsReported() {
+        assertThrows(IoTDBConnectionException.class, () -> new WriterPool(() -> {
+            throw new IoTDBConnectionException("no database here");
+        }, 2, 16, 10));
+    }
+}